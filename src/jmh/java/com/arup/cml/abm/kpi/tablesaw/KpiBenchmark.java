@@ -0,0 +1,86 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.Kpi;
+import com.arup.cml.abm.kpi.LinearNormaliser;
+import org.junit.rules.TemporaryFolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times writing each KPI over a synthetic population. The tables a KPI is computed from are built
+ * once during setup, so only the KPI calculation and the writing of its outputs are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KpiBenchmark {
+    @Param({"1000", "10000", "50000"})
+    public int populationSize;
+
+    @Param
+    public Kpi kpi;
+
+    private final TemporaryFolder tmpDir = new TemporaryFolder();
+    private TablesawKpiCalculator kpiCalculator;
+    private Path outputDirectory;
+
+    @Setup
+    public void setUp() throws IOException {
+        tmpDir.create();
+        kpiCalculator = new SyntheticScenario(populationSize).kpiCalculatorBuilder(tmpDir).build();
+        outputDirectory = tmpDir.newFolder("kpis").toPath();
+        // without a plan no table is ever released, so the first write leaves them all built for the
+        // measured ones
+        writeKpi();
+    }
+
+    @TearDown
+    public void tearDown() {
+        tmpDir.delete();
+    }
+
+    @Benchmark
+    public Object writeKpi() {
+        return switch (kpi) {
+            case AFFORDABILITY -> kpiCalculator.writeAffordabilityKpi(outputDirectory, new LinearNormaliser(1.25, 1));
+            case PT_WAIT_TIME -> kpiCalculator.writePtWaitTimeKpi(outputDirectory, new LinearNormaliser(15 * 60, 5 * 60));
+            case MODAL_SPLIT -> {
+                kpiCalculator.writeModalSplitKpi(outputDirectory);
+                yield outputDirectory;
+            }
+            case OCCUPANCY_RATE -> kpiCalculator.writeOccupancyRateKpi(outputDirectory, new LinearNormaliser(0.2, 0.6));
+            case VEHICLE_KM -> kpiCalculator.writeVehicleKMKpi(outputDirectory);
+            case PASSENGER_KM -> {
+                kpiCalculator.writePassengerKMKpi(outputDirectory);
+                yield outputDirectory;
+            }
+            case SPEED -> {
+                kpiCalculator.writeSpeedKpi(outputDirectory, 60 * 60);
+                yield outputDirectory;
+            }
+            case GHG -> kpiCalculator.writeGHGKpi(outputDirectory, new LinearNormaliser(8.87, 0.0));
+            case ACCESS_TO_MOBILITY_SERVICES ->
+                    kpiCalculator.writeAccessToMobilityServicesKpi(outputDirectory, new LinearNormaliser(0.0, 100.0));
+            case CONGESTION -> kpiCalculator.writeCongestionKpi(outputDirectory, new LinearNormaliser(3.0, 1.25));
+            case TRAVEL_TIME -> kpiCalculator.writeTravelTimeKpi(outputDirectory, new LinearNormaliser(90.0, 10.0));
+            case MOBILITY_SPACE_USAGE -> kpiCalculator.writeMobilitySpaceUsageKpi(outputDirectory);
+        };
+    }
+}
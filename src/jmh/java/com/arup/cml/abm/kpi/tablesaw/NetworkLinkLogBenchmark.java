@@ -0,0 +1,59 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.data.LinkLog;
+import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times recording a day of synthetic link events into each {@link NetworkLinkLog} implementation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NetworkLinkLogBenchmark {
+    @Param({"1000", "10000", "50000"})
+    public int populationSize;
+
+    private SyntheticScenario scenario;
+
+    @Setup
+    public void setUp() {
+        scenario = new SyntheticScenario(populationSize);
+    }
+
+    @Benchmark
+    public NetworkLinkLog linkLog() {
+        LinkLog linkLog = new LinkLog();
+        scenario.replayLinkLogEvents(linkLog);
+        return linkLog;
+    }
+
+    @Benchmark
+    public NetworkLinkLog tablesawNetworkLinkLog() {
+        TablesawNetworkLinkLog linkLog = new TablesawNetworkLinkLog();
+        scenario.replayLinkLogEvents(linkLog);
+        return linkLog;
+    }
+
+    @Benchmark
+    public NetworkLinkLog columnarNetworkLinkLog() {
+        ColumnarNetworkLinkLog linkLog = new ColumnarNetworkLinkLog();
+        scenario.replayLinkLogEvents(linkLog);
+        return linkLog;
+    }
+}
@@ -0,0 +1,292 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.builders.KpiCalculatorBuilder;
+import com.arup.cml.abm.kpi.builders.LegBuilder;
+import com.arup.cml.abm.kpi.builders.LinkLogBuilder;
+import com.arup.cml.abm.kpi.builders.NetworkBuilder;
+import com.arup.cml.abm.kpi.builders.PersonsBuilder;
+import com.arup.cml.abm.kpi.builders.ScoringConfigBuilder;
+import com.arup.cml.abm.kpi.builders.TransitScheduleBuilder;
+import com.arup.cml.abm.kpi.builders.TripBuilder;
+import com.arup.cml.abm.kpi.builders.TripsTableBuilder;
+import com.arup.cml.abm.kpi.builders.VehiclesBuilder;
+import com.arup.cml.abm.kpi.data.LinkLog;
+import com.arup.cml.abm.kpi.data.MoneyLog;
+import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.core.scoring.EventsToLegs;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.vehicles.Vehicles;
+
+import java.util.List;
+
+/**
+ * A synthetic population of any size, built with the test builders, so that the hot paths can be
+ * benchmarked at several scales without real MATSim outputs.
+ * <p>
+ * The network is a two-way ring road. Every person lives next to one of its nodes and makes the same
+ * day of three trips: to work by car, on to the shops by bus and back home by car. Car trips pay a toll,
+ * and a PT stop sits at every few nodes of the ring.
+ */
+class SyntheticScenario {
+    private static final int NODE_COUNT = 200;
+    private static final double LINK_LENGTH = 250.0;
+    private static final int WORK_DISTANCE_IN_LINKS = 10;
+    private static final int SHOP_DISTANCE_IN_LINKS = 5;
+    private static final int NODES_PER_STOP = 4;
+    private static final int MORNING_TRIP = 0;
+    private static final int EVENING_TRIP = 1;
+
+    private final int populationSize;
+    private final String[] persons;
+    private final String[] vehicles;
+    // forward links around the ring first, followed by the links going the other way
+    private final String[] links = new String[2 * NODE_COUNT];
+    private TripsTableBuilder tripsTableBuilder;
+
+    SyntheticScenario(int populationSize) {
+        this.populationSize = populationSize;
+        persons = new String[populationSize];
+        vehicles = new String[populationSize];
+        for (int person = 0; person < populationSize; person++) {
+            persons[person] = String.format("person_%d", person);
+            vehicles[person] = String.format("car_%d", person);
+        }
+        for (int node = 0; node < NODE_COUNT; node++) {
+            links[node] = String.format("%d-%d", node, nextNode(node));
+            links[NODE_COUNT + node] = String.format("%d-%d", nextNode(node), node);
+        }
+    }
+
+    /**
+     * Feeds every car link traversal of the day to {@code linkLog}, in the same order of calls the
+     * MATSim link log handler makes for each vehicle.
+     */
+    void replayLinkLogEvents(NetworkLinkLog linkLog) {
+        for (int person = 0; person < populationSize; person++) {
+            linkLog.recordVehicleMode(vehicles[person], "car");
+        }
+        for (int trip : new int[]{MORNING_TRIP, EVENING_TRIP}) {
+            for (int person = 0; person < populationSize; person++) {
+                linkLog.personBoardsVehicle(vehicles[person], persons[person]);
+            }
+            forEachCarLinkTraversal(trip, (person, link, enterTime, leaveTime) -> {
+                linkLog.createLinkLogEntry(vehicles[person], links[link], enterTime);
+                linkLog.completeLinkLogEntry(vehicles[person], leaveTime);
+            });
+            for (int person = 0; person < populationSize; person++) {
+                linkLog.personAlightsVehicle(vehicles[person], persons[person]);
+            }
+        }
+    }
+
+    /**
+     * Writes the persons, legs and trips files of the population to {@code tmpDir} and returns a builder
+     * for a calculator over the whole scenario.
+     */
+    KpiCalculatorBuilder kpiCalculatorBuilder(TemporaryFolder tmpDir) {
+        // the calculator builder writes its own default input files, which ours have to replace
+        KpiCalculatorBuilder kpiCalculatorBuilder = new KpiCalculatorBuilder(tmpDir);
+        TripsTableBuilder trips = tripsTableBuilder(tmpDir);
+        return kpiCalculatorBuilder
+                .withNetwork(network())
+                .withTransitSchedule(transitSchedule())
+                .withVehicles(vehicles())
+                .withLinkLog(linkLog())
+                .withMoneyLog(moneyLog())
+                .withScoring(new ScoringConfigBuilder()
+                        .withMonetaryCosts("default", "car", -3.0, -0.0002)
+                        .build())
+                .withPersons(personsFile(tmpDir))
+                .withLegs(trips.getLegsBuilder().build())
+                .withTrips(trips.build());
+    }
+
+    /**
+     * Writes the legs file of the population to {@code tmpDir} and returns its path.
+     */
+    String legsFile(TemporaryFolder tmpDir) {
+        return tripsTableBuilder(tmpDir).getLegsBuilder().build();
+    }
+
+    Network network() {
+        NetworkBuilder networkBuilder = new NetworkBuilder();
+        for (int node = 0; node < NODE_COUNT; node++) {
+            Coord coord = nodeCoord(node);
+            networkBuilder.withNetworkNode(String.valueOf(node), coord.getX(), coord.getY());
+        }
+        for (int node = 0; node < NODE_COUNT; node++) {
+            String from = String.valueOf(node);
+            String to = String.valueOf(nextNode(node));
+            networkBuilder.withNetworkLink(links[node], from, to, LINK_LENGTH, freespeed(node), 1800, 2);
+            networkBuilder.withNetworkLink(
+                    links[NODE_COUNT + node], to, from, LINK_LENGTH, freespeed(NODE_COUNT + node), 1800, 2);
+        }
+        return networkBuilder.build();
+    }
+
+    TransitSchedule transitSchedule() {
+        TransitScheduleBuilder transitScheduleBuilder = new TransitScheduleBuilder();
+        for (int node = 0; node < NODE_COUNT; node += NODES_PER_STOP) {
+            Coord coord = nodeCoord(node);
+            String mode = node % (5 * NODES_PER_STOP) == 0 ? "rail" : "bus";
+            transitScheduleBuilder.withTransitStopWithMode(
+                    String.format("stop_%d", node), coord.getX(), coord.getY(), mode);
+        }
+        return transitScheduleBuilder.build();
+    }
+
+    Vehicles vehicles() {
+        VehiclesBuilder vehiclesBuilder = new VehiclesBuilder();
+        for (String vehicle : vehicles) {
+            vehiclesBuilder.withVehicleOfCapacity(vehicle, "car", "car", 4);
+        }
+        return vehiclesBuilder.build();
+    }
+
+    LinkLog linkLog() {
+        LinkLogBuilder linkLogBuilder = new LinkLogBuilder();
+        for (int person = 0; person < populationSize; person++) {
+            linkLogBuilder.withOccupant(vehicles[person], persons[person]);
+        }
+        for (int trip : new int[]{MORNING_TRIP, EVENING_TRIP}) {
+            forEachCarLinkTraversal(trip, (person, link, enterTime, leaveTime) ->
+                    linkLogBuilder.withEntry(vehicles[person], links[link], enterTime, leaveTime));
+        }
+        return linkLogBuilder.build();
+    }
+
+    MoneyLog moneyLog() {
+        MoneyLog moneyLog = new MoneyLog();
+        for (int person = 0; person < populationSize; person++) {
+            moneyLog.createMoneyLogEntry(persons[person], departureTime(person, MORNING_TRIP) + 60, -2.5);
+        }
+        return moneyLog;
+    }
+
+    private String personsFile(TemporaryFolder tmpDir) {
+        PersonsBuilder personsBuilder = new PersonsBuilder(tmpDir);
+        for (int person = 0; person < populationSize; person++) {
+            personsBuilder.withPerson(persons[person], 10000.0 + 500.0 * (person % 40), "default");
+        }
+        return personsBuilder.build();
+    }
+
+    private TripsTableBuilder tripsTableBuilder(TemporaryFolder tmpDir) {
+        if (tripsTableBuilder != null) {
+            return tripsTableBuilder;
+        }
+        tripsTableBuilder = new TripsTableBuilder(tmpDir).reset();
+        for (int person = 0; person < populationSize; person++) {
+            int home = homeNode(person);
+            int work = (home + WORK_DISTANCE_IN_LINKS) % NODE_COUNT;
+            int shop = (home + SHOP_DISTANCE_IN_LINKS) % NODE_COUNT;
+
+            double morningTravelTime = carTripTravelTime(person, MORNING_TRIP);
+            tripsTableBuilder.withTrip(persons[person], "1", trip(
+                    carLeg(person, departureTime(person, MORNING_TRIP), morningTravelTime, WORK_DISTANCE_IN_LINKS),
+                    "home", home, "work", work));
+
+            double busDepartureTime = 12 * 3600 + person % 1800;
+            Leg busLeg = new LegBuilder().ofSomePtType().withWaitTime("00:05:00").build();
+            busLeg.setMode("bus");
+            busLeg.setDepartureTime(busDepartureTime);
+            busLeg.setTravelTime(15 * 60);
+            busLeg.getRoute().setDistance(WORK_DISTANCE_IN_LINKS * LINK_LENGTH);
+            busLeg.getAttributes().putAttribute(EventsToLegs.VEHICLE_ID_ATTRIBUTE_NAME, "bus_1");
+            tripsTableBuilder.withTrip(persons[person], "2", trip(busLeg, "work", work, "shop", shop));
+
+            double eveningTravelTime = carTripTravelTime(person, EVENING_TRIP);
+            tripsTableBuilder.withTrip(persons[person], "3", trip(
+                    carLeg(person, departureTime(person, EVENING_TRIP), eveningTravelTime, SHOP_DISTANCE_IN_LINKS),
+                    "shop", shop, "home", home));
+        }
+        return tripsTableBuilder;
+    }
+
+    private Leg carLeg(int person, double departureTime, double travelTime, int linkCount) {
+        Leg leg = new LegBuilder().build();
+        leg.setDepartureTime(departureTime);
+        leg.setTravelTime(travelTime);
+        leg.getRoute().setDistance(linkCount * LINK_LENGTH);
+        leg.getAttributes().putAttribute(EventsToLegs.VEHICLE_ID_ATTRIBUTE_NAME, vehicles[person]);
+        return leg;
+    }
+
+    private TripBuilder.Trip trip(Leg leg, String startType, int startNode, String endType, int endNode) {
+        TripBuilder.Trip trip = new TripBuilder().withLegs(List.of(leg)).build();
+        trip.setStartActivity(startType, links[startNode], nodeCoord(startNode));
+        trip.setEndActivity(endType, links[endNode], nodeCoord(endNode));
+        return trip;
+    }
+
+    private interface LinkTraversalConsumer {
+        void accept(int person, int link, double enterTime, double leaveTime);
+    }
+
+    private void forEachCarLinkTraversal(int trip, LinkTraversalConsumer consumer) {
+        for (int person = 0; person < populationSize; person++) {
+            double time = departureTime(person, trip);
+            for (int step = 0; step < carTripLinkCount(trip); step++) {
+                int link = carTripLink(person, trip, step);
+                double leaveTime = time + linkTravelTime(person, link);
+                consumer.accept(person, link, time, leaveTime);
+                time = leaveTime;
+            }
+        }
+    }
+
+    private double carTripTravelTime(int person, int trip) {
+        double travelTime = 0.0;
+        for (int step = 0; step < carTripLinkCount(trip); step++) {
+            travelTime += linkTravelTime(person, carTripLink(person, trip, step));
+        }
+        return travelTime;
+    }
+
+    private int carTripLinkCount(int trip) {
+        return trip == MORNING_TRIP ? WORK_DISTANCE_IN_LINKS : SHOP_DISTANCE_IN_LINKS;
+    }
+
+    private int carTripLink(int person, int trip, int step) {
+        int home = homeNode(person);
+        if (trip == MORNING_TRIP) {
+            // clockwise from home to work
+            return (home + step) % NODE_COUNT;
+        }
+        // anticlockwise from the shops back home
+        int node = (home + SHOP_DISTANCE_IN_LINKS - 1 - step) % NODE_COUNT;
+        return NODE_COUNT + node;
+    }
+
+    private double departureTime(int person, int trip) {
+        double spread = (person * 37) % 7200;
+        return (trip == MORNING_TRIP ? 7 * 3600 : 17 * 3600) + spread;
+    }
+
+    private double linkTravelTime(int person, int link) {
+        // some people are stuck in more traffic than others
+        return Math.ceil(LINK_LENGTH / freespeed(link) * (1.0 + 0.25 * (person % 4)));
+    }
+
+    private double freespeed(int link) {
+        return link % 2 == 0 ? 13.9 : 8.3;
+    }
+
+    private int homeNode(int person) {
+        return person % NODE_COUNT;
+    }
+
+    private int nextNode(int node) {
+        return (node + 1) % NODE_COUNT;
+    }
+
+    private Coord nodeCoord(int node) {
+        double radius = NODE_COUNT * LINK_LENGTH / (2 * Math.PI);
+        double angle = 2 * Math.PI * node / NODE_COUNT;
+        return new Coord(radius * Math.cos(angle), radius * Math.sin(angle));
+    }
+}
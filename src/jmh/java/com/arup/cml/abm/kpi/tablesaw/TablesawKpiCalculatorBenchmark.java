@@ -0,0 +1,94 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.data.MoneyLog;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.core.utils.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tech.tablesaw.api.Table;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times reading the legs file and the table transformations that dominate building the legs, activities
+ * and access to mobility tables, over a synthetic population.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TablesawKpiCalculatorBenchmark {
+    @Param({"1000", "10000", "50000"})
+    public int populationSize;
+
+    private final TemporaryFolder tmpDir = new TemporaryFolder();
+    private TablesawKpiCalculator kpiCalculator;
+    private String legsFile;
+    private Table legs;
+    private Table personModeScores;
+    private MoneyLog moneyLog;
+    private Table trips;
+    private Table homeLocations;
+    private Table busStops;
+
+    @Setup
+    public void setUp() throws IOException {
+        tmpDir.create();
+        SyntheticScenario scenario = new SyntheticScenario(populationSize);
+        kpiCalculator = scenario.kpiCalculatorBuilder(tmpDir).build();
+        moneyLog = scenario.moneyLog();
+        legsFile = scenario.legsFile(tmpDir);
+        legs = readLegs();
+        personModeScores = kpiCalculator.getDerivedTable(DerivedTable.PERSON_MODE_SCORES);
+        trips = kpiCalculator.getDerivedTable(DerivedTable.TRIPS);
+
+        Table homeTrips = trips.where(trips.stringColumn("start_activity_type").isEqualTo("home"));
+        homeLocations = Table.create("home locations",
+                homeTrips.column("person"),
+                homeTrips.column("start_x").copy().setName("x"),
+                homeTrips.column("start_y").copy().setName("y"));
+        Table scheduleStops = kpiCalculator.getDerivedTable(DerivedTable.SCHEDULE_STOPS);
+        busStops = scheduleStops.where(scheduleStops.stringColumn("mode").isEqualTo("bus"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        tmpDir.delete();
+    }
+
+    @Benchmark
+    public Table readLegs() {
+        return new MatsimCsvReader(1).read(
+                IOUtils.getInputStream(IOUtils.resolveFileOrResource(legsFile)), MatsimCsvReader.LEGS, "Legs");
+    }
+
+    @Benchmark
+    public Table addCostToLegs() {
+        return kpiCalculator.addCostToLegs(legs, personModeScores, moneyLog);
+    }
+
+    @Benchmark
+    public Table createActivitiesTable() {
+        return kpiCalculator.createActivitiesTable(trips);
+    }
+
+    @Benchmark
+    public Table addPTAccessColumnWithinDistance() {
+        // the access column is added to the table it is given, so each call gets a fresh table over the same columns
+        Table locations = Table.create(homeLocations.name(), homeLocations.columnArray());
+        return kpiCalculator.addPTAccessColumnWithinDistance(locations, busStops, 400.0, "bus_access_400m");
+    }
+}
@@ -0,0 +1,19 @@
+package com.arup.cml.abm.kpi;
+
+/**
+ * The KPIs a {@link KpiCalculator} can write, in the order they are written in a full run.
+ */
+public enum Kpi {
+    AFFORDABILITY,
+    PT_WAIT_TIME,
+    MODAL_SPLIT,
+    OCCUPANCY_RATE,
+    VEHICLE_KM,
+    PASSENGER_KM,
+    SPEED,
+    GHG,
+    ACCESS_TO_MOBILITY_SERVICES,
+    CONGESTION,
+    TRAVEL_TIME,
+    MOBILITY_SPACE_USAGE
+}
@@ -3,9 +3,17 @@ package com.arup.cml.abm.kpi;
 import tech.tablesaw.api.Table;
 
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.Map;
 
 public interface KpiCalculator {
+    /**
+     * Declares which KPIs are going to be written, so that data none of them needs is never built and data
+     * is released as soon as the last KPI needing it has been written. Without a plan, every KPI can be
+     * written and all data is kept.
+     */
+    void planKpis(Collection<Kpi> kpis);
+
     Map<String, Double> writeAffordabilityKpi(Path outputDirectory, Normaliser normaliser);
 
     Map<String, Double> writePtWaitTimeKpi(Path outputDirectory, Normaliser normaliser);
@@ -18,7 +26,11 @@ public interface KpiCalculator {
 
     void writePassengerKMKpi(Path outputDirectory);
 
-    void writeSpeedKpi(Path outputDirectory);
+    /**
+     * Writes the mean speed on each link in each time bin of {@code timeBinSeconds}, with the bins as columns
+     * in chronological order.
+     */
+    void writeSpeedKpi(Path outputDirectory, int timeBinSeconds);
 
     Map<String, Double> writeGHGKpi(Path outputDirectory, Normaliser normaliser);
 
@@ -29,4 +41,14 @@ public interface KpiCalculator {
     Table writeCongestionKpi(Path directory, Normaliser normaliser);
 
     double writeMobilitySpaceUsageKpi(Path outputDirectory);
+
+    /**
+     * Waits for any outputs still being written in the background to be finished.
+     */
+    void finishWriting();
+
+    /**
+     * The number of rows of each table built so far and still held, by table name, for monitoring long runs.
+     */
+    Map<String, Integer> getTableSizes();
 }
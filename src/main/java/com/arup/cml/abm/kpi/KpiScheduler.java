@@ -0,0 +1,74 @@
+package com.arup.cml.abm.kpi;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes KPIs on a fixed size pool of threads and records how long each of them took. KPIs are
+ * submitted in the order given, so with a single thread they are written one after the other exactly
+ * as before.
+ */
+public class KpiScheduler {
+    private static final Logger LOGGER = LogManager.getLogger(KpiScheduler.class);
+    private final int threads;
+    private final Map<Kpi, Double> wallTimes = new EnumMap<>(Kpi.class);
+
+    public KpiScheduler(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed to write KPIs");
+        }
+        this.threads = threads;
+    }
+
+    public void run(Map<Kpi, Runnable> kpiWriters) {
+        LOGGER.info("Writing {} KPIs on {} thread(s)", kpiWriters.size(), threads);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(kpiWriters.size(), 1)));
+        CompletionService<Kpi> completionService = new ExecutorCompletionService<>(executor);
+        try {
+            kpiWriters.forEach((kpi, writer) -> completionService.submit(() -> {
+                long startNanos = System.nanoTime();
+                writer.run();
+                recordWallTime(kpi, (System.nanoTime() - startNanos) / 1e9);
+                return kpi;
+            }));
+            // fail fast: the first KPI to fail stops the others
+            for (int i = 0; i < kpiWriters.size(); i++) {
+                Kpi kpi = completionService.take().get();
+                LOGGER.info(String.format("Finished writing the %s KPI in %.1fs", kpi, getWallTimes().get(kpi)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing KPIs", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to write KPIs", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private synchronized void recordWallTime(Kpi kpi, double seconds) {
+        wallTimes.put(kpi, seconds);
+    }
+
+    /**
+     * Wall clock seconds each KPI that has finished took, in KPI order.
+     */
+    public synchronized Map<Kpi, Double> getWallTimes() {
+        Map<Kpi, Double> wallTimesSoFar = new EnumMap<>(Kpi.class);
+        wallTimesSoFar.putAll(wallTimes);
+        return wallTimesSoFar;
+    }
+
+    public void logWallTimes() {
+        getWallTimes().forEach((kpi, seconds) ->
+                LOGGER.info(String.format("%s KPI: %.1fs", kpi, seconds)));
+    }
+}
@@ -0,0 +1,239 @@
+package com.arup.cml.abm.kpi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Records the wall time, CPU time, allocated bytes and peak heap of each named phase of a run, and
+ * writes them out so that the cost of each phase can be tracked from one run to the next.
+ * <p>
+ * CPU time and allocated bytes are those of the thread running the phase, plus those of the work it hands to
+ * pools of threads through {@link #onBehalfOfRunningPhases}, so phases may run concurrently and may be nested,
+ * in which case the outer phase includes the inner one. Peak heap is
+ * the whole heap's peak while the phase ran; when phases overlap it also covers whatever else was
+ * running at the time. Measurements the JVM does not support are recorded as -1.
+ */
+public class RunProfile {
+    private static final Logger LOGGER = LogManager.getLogger(RunProfile.class);
+    public static final String FILE_NAME = "run-profile.json";
+
+    private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+    // the pooled work of the phases running on each thread, innermost last
+    private static final ThreadLocal<Deque<PooledWork>> PHASES_ON_THREAD = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+    private final long createdNanos = System.nanoTime();
+    private final List<Phase> phases = new ArrayList<>();
+    private final List<String> runningPhases = new ArrayList<>();
+
+    public RunProfile() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool);
+            }
+        }
+    }
+
+    public void profile(String phaseName, Runnable work) {
+        profile(phaseName, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    public <T> T profile(String phaseName, Supplier<T> work) {
+        phaseStarted(phaseName);
+        PooledWork pooledWork = new PooledWork();
+        Deque<PooledWork> phasesOnThread = PHASES_ON_THREAD.get();
+        phasesOnThread.addLast(pooledWork);
+        long startNanos = System.nanoTime();
+        long startCpuNanos = currentThreadCpuTime();
+        long startAllocatedBytes = currentThreadAllocatedBytes();
+        try {
+            return work.get();
+        } finally {
+            phasesOnThread.removeLast();
+            long wallNanos = System.nanoTime() - startNanos;
+            long cpuNanos = startCpuNanos < 0
+                    ? -1
+                    : currentThreadCpuTime() - startCpuNanos + pooledWork.cpuNanos.get();
+            long allocatedBytes = startAllocatedBytes < 0
+                    ? -1
+                    : currentThreadAllocatedBytes() - startAllocatedBytes + pooledWork.allocatedBytes.get();
+            phaseFinished(new Phase(
+                    phaseName,
+                    Thread.currentThread().getName(),
+                    (startNanos - createdNanos) / 1_000_000,
+                    wallNanos / 1_000_000,
+                    cpuNanos < 0 ? -1 : cpuNanos / 1_000_000,
+                    allocatedBytes,
+                    peakHeapBytes()));
+        }
+    }
+
+    /**
+     * Wraps {@code task}, to be run on a pool's thread on behalf of the phases running on the calling thread, so
+     * that the CPU time and bytes allocated running it are counted in theirs rather than lost while the calling
+     * thread waits. Work that only finishes after a phase has is not counted in it.
+     */
+    public static <T> Callable<T> onBehalfOfRunningPhases(Callable<T> task) {
+        List<PooledWork> phases = List.copyOf(PHASES_ON_THREAD.get());
+        if (phases.isEmpty()) {
+            return task;
+        }
+        return () -> {
+            long startCpuNanos = currentThreadCpuTime();
+            long startAllocatedBytes = currentThreadAllocatedBytes();
+            try {
+                return task.call();
+            } finally {
+                long cpuNanos = startCpuNanos < 0 ? 0 : currentThreadCpuTime() - startCpuNanos;
+                long allocatedBytes = startAllocatedBytes < 0 ? 0 : currentThreadAllocatedBytes() - startAllocatedBytes;
+                for (PooledWork phase : phases) {
+                    phase.cpuNanos.addAndGet(cpuNanos);
+                    phase.allocatedBytes.addAndGet(allocatedBytes);
+                }
+            }
+        };
+    }
+
+    private synchronized void phaseStarted(String phaseName) {
+        // peaks can only be reset when no other phase is relying on them
+        if (runningPhases.isEmpty()) {
+            heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+        }
+        runningPhases.add(phaseName);
+    }
+
+    private synchronized void phaseFinished(Phase phase) {
+        runningPhases.remove(phase.getName());
+        phases.add(phase);
+    }
+
+    /**
+     * The names of the phases running right now, in the order they started.
+     */
+    public synchronized List<String> getRunningPhases() {
+        return new ArrayList<>(runningPhases);
+    }
+
+    /**
+     * The phases that have finished so far, in the order they finished.
+     */
+    public synchronized List<Phase> getPhases() {
+        return new ArrayList<>(phases);
+    }
+
+    public void write(Path directory) {
+        Path profileFile = directory.resolve(FILE_NAME);
+        Map<String, Object> profile = new LinkedHashMap<>();
+        profile.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+        profile.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        profile.put("phases", getPhases());
+        LOGGER.info("Writing run profile to {}", profileFile);
+        try {
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(profileFile.toFile(), profile);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long currentThreadCpuTime() {
+        return THREAD_BEAN.isCurrentThreadCpuTimeSupported() ? THREAD_BEAN.getCurrentThreadCpuTime() : -1;
+    }
+
+    private static long currentThreadAllocatedBytes() {
+        if (THREAD_BEAN instanceof com.sun.management.ThreadMXBean allocationBean
+                && allocationBean.isThreadAllocatedMemorySupported()
+                && allocationBean.isThreadAllocatedMemoryEnabled()) {
+            return allocationBean.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    private long peakHeapBytes() {
+        if (heapPools.isEmpty()) {
+            return -1;
+        }
+        // pools peak at different times, so this is an upper bound of the heap's actual peak
+        long peakBytes = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakBytes += pool.getPeakUsage().getUsed();
+        }
+        return peakBytes;
+    }
+
+    private static class PooledWork {
+        private final AtomicLong cpuNanos = new AtomicLong();
+        private final AtomicLong allocatedBytes = new AtomicLong();
+    }
+
+    public static class Phase {
+        private final String name;
+        private final String thread;
+        private final long startMillis;
+        private final long wallTimeMillis;
+        private final long cpuTimeMillis;
+        private final long allocatedBytes;
+        private final long peakHeapBytes;
+
+        Phase(String name, String thread, long startMillis, long wallTimeMillis, long cpuTimeMillis,
+              long allocatedBytes, long peakHeapBytes) {
+            this.name = name;
+            this.thread = thread;
+            this.startMillis = startMillis;
+            this.wallTimeMillis = wallTimeMillis;
+            this.cpuTimeMillis = cpuTimeMillis;
+            this.allocatedBytes = allocatedBytes;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getThread() {
+            return thread;
+        }
+
+        /**
+         * Milliseconds from the start of the run to the start of the phase.
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public long getWallTimeMillis() {
+            return wallTimeMillis;
+        }
+
+        public long getCpuTimeMillis() {
+            return cpuTimeMillis;
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public long getPeakHeapBytes() {
+            return peakHeapBytes;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.arup.cml.abm.kpi;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Keeps track of how far a run has got while it is going: the phases of the {@link RunProfile} running,
+ * how many events have been read and how fast, how much of the compressed events file has been consumed
+ * and so when reading it should finish, and how big the tables held are. Once started it is registered
+ * as a JMX MXBean under {@link #OBJECT_NAME}, qualified by the run's name when several runs share the JVM,
+ * and, optionally, logs a progress line periodically.
+ * <p>
+ * Counters are updated by whichever threads read events and may be read from any thread.
+ */
+public class RunProgress implements RunProgressMXBean, Closeable {
+    private static final Logger LOGGER = LogManager.getLogger(RunProgress.class);
+    public static final String OBJECT_NAME = "com.arup.cml.abm.kpi:type=RunProgress";
+
+    private final RunProfile runProfile;
+    private final String runName;
+    private final LongAdder eventsRead = new LongAdder();
+    private final AtomicLong compressedBytesRead = new AtomicLong();
+    private final Map<String, IntSupplier> tableSizes = new ConcurrentHashMap<>();
+    private final List<Supplier<Map<String, Integer>>> tableSizeSources = new CopyOnWriteArrayList<>();
+    private volatile long compressedBytesTotal = -1;
+    private volatile long eventsStartNanos = -1;
+    private volatile long eventsFinishNanos = -1;
+    private ScheduledExecutorService progressLogger;
+    private ObjectName registeredName;
+
+    public RunProgress(RunProfile runProfile) {
+        this(runProfile, null);
+    }
+
+    /**
+     * Progress of one of several runs in the same JVM, told apart by {@code runName} in the MBean's name
+     * and the progress lines.
+     */
+    public RunProgress(RunProfile runProfile, String runName) {
+        this.runProfile = runProfile;
+        this.runName = runName;
+    }
+
+    /**
+     * Registers this as a JMX MXBean, replacing any registered by an earlier run in the same JVM, and logs
+     * a progress line every {@code logIntervalSeconds} seconds unless that is 0.
+     */
+    public synchronized void start(int logIntervalSeconds) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(runName == null
+                    ? OBJECT_NAME
+                    : String.format("%s,run=%s", OBJECT_NAME, ObjectName.quote(runName)));
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            // monitoring is not worth failing a run for
+            LOGGER.warn("Could not register run progress as a JMX MBean", e);
+        }
+        if (logIntervalSeconds > 0) {
+            progressLogger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "run-progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+            progressLogger.scheduleAtFixedRate(
+                    () -> LOGGER.info(describe()), logIntervalSeconds, logIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (progressLogger != null) {
+            progressLogger.shutdownNow();
+            progressLogger = null;
+        }
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException e) {
+                LOGGER.warn("Could not unregister run progress JMX MBean", e);
+            }
+            registeredName = null;
+        }
+    }
+
+    /**
+     * Marks the start of reading the events file, whose compressed size is {@code compressedBytesTotal},
+     * or -1 if it is not known.
+     */
+    public void eventsReadingStarted(long compressedBytesTotal) {
+        this.compressedBytesTotal = compressedBytesTotal;
+        this.eventsFinishNanos = -1;
+        this.eventsStartNanos = System.nanoTime();
+    }
+
+    public void eventsReadingFinished() {
+        eventsFinishNanos = System.nanoTime();
+    }
+
+    public void eventRead() {
+        eventsRead.increment();
+    }
+
+    public void compressedBytesRead(long bytes) {
+        compressedBytesRead.addAndGet(bytes);
+    }
+
+    /**
+     * Reports the size of {@code table}, replacing any size reported for a table of the same name.
+     */
+    public void trackTableSize(String table, IntSupplier rows) {
+        tableSizes.put(table, rows);
+    }
+
+    /**
+     * Reports the sizes of a changing set of tables, such as those a {@link KpiCalculator} has built.
+     */
+    public void trackTableSizes(Supplier<Map<String, Integer>> tables) {
+        tableSizeSources.add(tables);
+    }
+
+    @Override
+    public String getPhase() {
+        return String.join(", ", runProfile.getRunningPhases());
+    }
+
+    @Override
+    public long getEventsRead() {
+        return eventsRead.sum();
+    }
+
+    @Override
+    public double getEventsPerSecond() {
+        double seconds = eventsReadingSeconds();
+        return seconds > 0 ? getEventsRead() / seconds : 0;
+    }
+
+    @Override
+    public long getCompressedBytesRead() {
+        return compressedBytesRead.get();
+    }
+
+    @Override
+    public long getCompressedBytesTotal() {
+        return compressedBytesTotal;
+    }
+
+    @Override
+    public double getEventsFileFractionRead() {
+        if (eventsFinishNanos >= 0) {
+            return 1;
+        }
+        long total = compressedBytesTotal;
+        if (total <= 0) {
+            return -1;
+        }
+        return Math.min(1, (double) getCompressedBytesRead() / total);
+    }
+
+    @Override
+    public long getEstimatedSecondsRemaining() {
+        if (eventsFinishNanos >= 0) {
+            return 0;
+        }
+        double fractionRead = getEventsFileFractionRead();
+        if (fractionRead <= 0) {
+            return -1;
+        }
+        return Math.round(eventsReadingSeconds() * (1 - fractionRead) / fractionRead);
+    }
+
+    @Override
+    public String getEstimatedCompletionTime() {
+        long secondsRemaining = getEstimatedSecondsRemaining();
+        if (secondsRemaining < 0 || eventsFinishNanos >= 0) {
+            return "";
+        }
+        return Instant.now().plusSeconds(secondsRemaining).toString();
+    }
+
+    @Override
+    public Map<String, Integer> getTableSizes() {
+        Map<String, Integer> sizes = new TreeMap<>();
+        tableSizes.forEach((table, rows) -> sizes.put(table, rows.getAsInt()));
+        tableSizeSources.forEach(tables -> sizes.putAll(tables.get()));
+        return sizes;
+    }
+
+    /**
+     * A one line summary of the progress so far, as logged periodically.
+     */
+    public String describe() {
+        StringBuilder line = new StringBuilder(runName == null ? "Progress" : String.format("Progress of %s", runName));
+        line.append(String.format(": phase [%s]", getPhase()));
+        if (eventsStartNanos >= 0) {
+            line.append(String.format(", %,d events read (%,.0f events/s)", getEventsRead(), getEventsPerSecond()));
+            double fractionRead = getEventsFileFractionRead();
+            if (eventsFinishNanos >= 0) {
+                line.append(", events file read");
+            } else if (fractionRead >= 0) {
+                line.append(String.format(", %,d of %,d compressed bytes (%.1f%%), reading expected to finish at %s",
+                        getCompressedBytesRead(), getCompressedBytesTotal(), fractionRead * 100,
+                        getEstimatedCompletionTime()));
+            }
+        }
+        Map<String, Integer> sizes = getTableSizes();
+        if (!sizes.isEmpty()) {
+            line.append(", table sizes ").append(sizes);
+        }
+        return line.toString();
+    }
+
+    private double eventsReadingSeconds() {
+        long start = eventsStartNanos;
+        if (start < 0) {
+            return 0;
+        }
+        long end = eventsFinishNanos < 0 ? System.nanoTime() : eventsFinishNanos;
+        return (end - start) / 1e9;
+    }
+}
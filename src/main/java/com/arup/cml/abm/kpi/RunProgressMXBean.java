@@ -0,0 +1,42 @@
+package com.arup.cml.abm.kpi;
+
+import java.util.Map;
+
+/**
+ * The progress of a run as seen over JMX, so that long runs can be monitored, and stalled runs spotted,
+ * from outside the JVM. Values that are not known (yet) are -1, or empty for strings.
+ */
+public interface RunProgressMXBean {
+    /**
+     * The phases of the run profile running right now, comma separated.
+     */
+    String getPhase();
+
+    long getEventsRead();
+
+    /**
+     * The average rate events have been read at since reading the events file started.
+     */
+    double getEventsPerSecond();
+
+    long getCompressedBytesRead();
+
+    long getCompressedBytesTotal();
+
+    /**
+     * The share of the events file read so far, between 0 and 1.
+     */
+    double getEventsFileFractionRead();
+
+    long getEstimatedSecondsRemaining();
+
+    /**
+     * When reading the events file is expected to finish, as an ISO-8601 instant.
+     */
+    String getEstimatedCompletionTime();
+
+    /**
+     * The number of rows (or entries) of each table held, by table name.
+     */
+    Map<String, Integer> getTableSizes();
+}
@@ -0,0 +1,49 @@
+package com.arup.cml.abm.kpi.data;
+
+import org.matsim.api.core.v01.Id;
+
+import java.util.Arrays;
+
+/**
+ * Maps the dense integer indices MATSim gives {@link Id}s of one type ({@link Id#index()}) to the codes of a
+ * {@link StringDictionary}, so that IDs handed over as indices can be coded with an array lookup. An index is
+ * only turned into a string the first time it is seen, when its ID is added to the dictionary, which keeps
+ * codes consistent with those of IDs handed over as strings.
+ */
+public class IdDictionary<T> {
+    private final Class<T> idType;
+    private final StringDictionary dictionary;
+    private int[] codes = new int[0];
+
+    public IdDictionary(Class<T> idType, StringDictionary dictionary) {
+        this.idType = idType;
+        this.dictionary = dictionary;
+    }
+
+    public int encode(int idIndex) {
+        if (idIndex >= codes.length) {
+            int capacity = Math.max(Math.max(1024, codes.length * 2), idIndex + 1);
+            int oldCapacity = codes.length;
+            codes = Arrays.copyOf(codes, capacity);
+            Arrays.fill(codes, oldCapacity, capacity, StringDictionary.NOT_FOUND);
+        }
+        int code = codes[idIndex];
+        if (code == StringDictionary.NOT_FOUND) {
+            code = dictionary.encode(idOf(idIndex));
+            codes[idIndex] = code;
+        }
+        return code;
+    }
+
+    public int codeOf(int idIndex) {
+        if (idIndex < codes.length && codes[idIndex] != StringDictionary.NOT_FOUND) {
+            return codes[idIndex];
+        }
+        // the ID may have been encoded as a string
+        return dictionary.codeOf(idOf(idIndex));
+    }
+
+    public String idOf(int idIndex) {
+        return Id.get(idIndex, idType).toString();
+    }
+}
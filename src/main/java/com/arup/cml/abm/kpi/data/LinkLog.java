@@ -2,6 +2,9 @@ package com.arup.cml.abm.kpi.data;
 
 import com.arup.cml.abm.kpi.data.exceptions.LinkLogPassengerConsistencyException;
 import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.LinkedHashMultiset;
+import com.google.common.collect.Multiset;
 import com.google.common.collect.RowSortedTable;
 import com.google.common.collect.Table;
 import com.google.common.collect.TreeBasedTable;
@@ -18,8 +21,9 @@ public class LinkLog implements NetworkLinkLog {
     // points to the index of the most recent reference of that vehicle ID in the Link Log
     private final Map<String, Long> vehicleLatestLogIndex = new HashMap<>();
 
-    // tracks the most recent occupants of a vehicle
-    private final Map<String, List<String>> vehicleLatestOccupants = new HashMap<>();
+    // tracks the most recent occupants of a vehicle in boarding order, counting a person who boarded more than
+    // once as often as they are aboard
+    private final Map<String, Multiset<String>> vehicleLatestOccupants = new HashMap<>();
 
     // Link Log entry index
     private long index = 0;
@@ -48,12 +52,12 @@ public class LinkLog implements NetworkLinkLog {
     public void completeLinkLogEntry(String vehicleID, double endTime) {
         long latestStateIndex = this.vehicleLatestLogIndex.get(vehicleID);
         linkLogData.put(latestStateIndex, "endTime", endTime);
-        linkLogData.put(latestStateIndex, "numberOfPeople", vehicleLatestOccupants.getOrDefault(vehicleID, new ArrayList<>()).size());
+        linkLogData.put(latestStateIndex, "numberOfPeople", getLatestVehicleOccupants(vehicleID).size());
         updateVehicleOccupantsTable(vehicleID, latestStateIndex);
     }
 
     private void updateVehicleOccupantsTable(String vehicleID, long idx) {
-        List<String> currentOccupants = getLatestVehicleOccupants(vehicleID);
+        Multiset<String> currentOccupants = getLatestVehicleOccupants(vehicleID);
         for (String personID : currentOccupants) {
             vehicleOccupantsData.put(vehicleOccupancyIndex, "linkLogIndex", idx);
             vehicleOccupantsData.put(vehicleOccupancyIndex, "agentId", personID);
@@ -68,19 +72,13 @@ public class LinkLog implements NetworkLinkLog {
 
     @Override
     public void personBoardsVehicle(String vehicleID, String personID) {
-        if (vehicleLatestOccupants.containsKey(vehicleID)) {
-            getLatestVehicleOccupants(vehicleID).add(personID);
-        } else {
-            vehicleLatestOccupants.put(vehicleID, new ArrayList<>(Arrays.asList(personID)));
-        }
+        vehicleLatestOccupants.computeIfAbsent(vehicleID, k -> LinkedHashMultiset.create()).add(personID);
     }
 
     @Override
     public void personAlightsVehicle(String vehicleID, String personID) throws LinkLogPassengerConsistencyException {
-        List<String> latestOccupants = getLatestVehicleOccupants(vehicleID);
-        if (latestOccupants.contains(personID)) {
-            latestOccupants.remove(personID);
-        } else {
+        Multiset<String> latestOccupants = vehicleLatestOccupants.get(vehicleID);
+        if (latestOccupants == null || !latestOccupants.remove(personID)) {
             throw new LinkLogPassengerConsistencyException(String.format(
                     "The requested person: `%s` cannot leave vehicle `%s` because they didn't board it",
                     personID,
@@ -88,7 +86,7 @@ public class LinkLog implements NetworkLinkLog {
         }
     }
 
-    private List<String> getLatestVehicleOccupants(String vehicleID) {
-        return vehicleLatestOccupants.getOrDefault(vehicleID, new ArrayList<>());
+    private Multiset<String> getLatestVehicleOccupants(String vehicleID) {
+        return vehicleLatestOccupants.getOrDefault(vehicleID, ImmutableMultiset.of());
     }
 }
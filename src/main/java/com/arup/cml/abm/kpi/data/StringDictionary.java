@@ -0,0 +1,40 @@
+package com.arup.cml.abm.kpi.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns strings into dense integer codes, so that repeated values (link IDs, vehicle IDs, modes...)
+ * can be stored as ints and only turned back into strings when output tables are built.
+ * Codes are assigned in order of first appearance, starting from 0.
+ */
+public class StringDictionary {
+    public static final int NOT_FOUND = -1;
+
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+
+    public int encode(String value) {
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = values.size();
+            codes.put(value, code);
+            values.add(value);
+        }
+        return code;
+    }
+
+    public int codeOf(String value) {
+        return codes.getOrDefault(value, NOT_FOUND);
+    }
+
+    public String decode(int code) {
+        return values.get(code);
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
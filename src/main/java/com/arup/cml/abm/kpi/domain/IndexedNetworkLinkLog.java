@@ -0,0 +1,15 @@
+package com.arup.cml.abm.kpi.domain;
+
+/**
+ * A {@link NetworkLinkLog} that can also be handed vehicles, links and people by the dense integer indices
+ * MATSim gives their Ids ({@code Id#index()}) rather than as strings, so that recording an event needs no
+ * string conversion or hashing. IDs are only turned back into strings when output tables are built.
+ */
+public interface IndexedNetworkLinkLog extends NetworkLinkLog {
+
+    void createLinkLogEntry(int vehicleIndex, int linkIndex, double startTime);
+    void completeLinkLogEntry(int vehicleIndex, double endTime);
+    void recordVehicleMode(int vehicleIndex, String mode);
+    void personBoardsVehicle(int vehicleIndex, int personIndex);
+    void personAlightsVehicle(int vehicleIndex, int personIndex) throws LinkLogConsistencyException;
+}
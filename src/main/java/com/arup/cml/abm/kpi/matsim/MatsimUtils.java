@@ -1,5 +1,7 @@
 package com.arup.cml.abm.kpi.matsim;
 
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Id;
@@ -35,15 +37,23 @@ public class MatsimUtils {
     private Path matsimOutputDir;
     private Config matsimConfig;
     private Scenario matsimScenario;
-    private Network matsimNetwork;
-    private TransitSchedule matsimTransitSchedule;
-    private Vehicles matsimVehicles;
+    private Supplier<Network> matsimNetwork;
+    private Supplier<TransitSchedule> matsimTransitSchedule;
+    private Supplier<Vehicles> matsimVehicles;
     private ActivityFacilities facilities;
     private ScoringConfigGroup scoring;
     private Population population;
     private String runId;
     private String compressionFileEnd;
 
+    // the inputs of a scenario that can be loaded on their own
+    private enum ScenarioInput {
+        NETWORK,
+        TRANSIT_SCHEDULE,
+        VEHICLES,
+        FACILITIES_AND_HOUSEHOLDS
+    }
+
     private final Set<String> necessaryConfigGroups = new HashSet<>(Arrays.asList(
             GlobalConfigGroup.GROUP_NAME,
             PlansConfigGroup.GROUP_NAME,
@@ -60,14 +70,59 @@ public class MatsimUtils {
         this.matsimOutputDir = matsimOutputDir;
         this.matsimConfig = buildConfig(matsimConfigFile.toString());
         this.matsimScenario = ScenarioUtils.loadScenario(matsimConfig);
-        this.matsimNetwork = matsimScenario.getNetwork();
-        this.matsimTransitSchedule = matsimScenario.getTransitSchedule();
-        this.matsimVehicles = collectVehicles(matsimScenario);
+        this.matsimNetwork = Suppliers.ofInstance(matsimScenario.getNetwork());
+        this.matsimTransitSchedule = Suppliers.ofInstance(matsimScenario.getTransitSchedule());
+        this.matsimVehicles = Suppliers.ofInstance(collectVehicles(matsimScenario, matsimScenario.getTransitSchedule()));
+        this.population = matsimScenario.getPopulation();
+        this.facilities = matsimScenario.getActivityFacilities();
+        this.scoring = matsimConfig.scoring();
+    }
+
+    /**
+     * Takes the network, transit schedule and vehicles from {@code scenarioCache}, so that runs sharing
+     * them only read them once, and only when they are first asked for. The scenario only holds the run's
+     * own inputs, such as its facilities.
+     */
+    public MatsimUtils(Path matsimOutputDir, Path matsimConfigFile, ScenarioCache scenarioCache) {
+        this.matsimOutputDir = matsimOutputDir;
+        this.matsimConfig = buildConfig(matsimConfigFile.toString());
+        this.matsimNetwork = Suppliers.memoize(() -> scenarioCache.get("network", getNetworkFiles(),
+                () -> loadScenario(matsimConfigFile, ScenarioInput.NETWORK).getNetwork()));
+        this.matsimTransitSchedule = Suppliers.memoize(() -> scenarioCache.get("transit schedule",
+                getTransitScheduleFiles(),
+                () -> loadScenario(matsimConfigFile, ScenarioInput.TRANSIT_SCHEDULE).getTransitSchedule()));
+        this.matsimVehicles = Suppliers.memoize(() -> scenarioCache.get("vehicles", getVehiclesFiles(),
+                () -> collectVehicles(loadScenario(matsimConfigFile, ScenarioInput.VEHICLES),
+                        matsimTransitSchedule.get())));
+        this.matsimScenario = loadScenario(matsimConfigFile, ScenarioInput.FACILITIES_AND_HOUSEHOLDS);
         this.population = matsimScenario.getPopulation();
         this.facilities = matsimScenario.getActivityFacilities();
         this.scoring = matsimConfig.scoring();
     }
 
+    private Scenario loadScenario(Path matsimConfigFile, ScenarioInput input) {
+        Config config = buildConfig(matsimConfigFile.toString());
+        if (input != ScenarioInput.NETWORK) {
+            config.network().setInputFile(null);
+        }
+        if (input != ScenarioInput.TRANSIT_SCHEDULE) {
+            config.transit().setTransitScheduleFile(null);
+        }
+        if (input != ScenarioInput.VEHICLES) {
+            config.transit().setVehiclesFile(null);
+            config.vehicles().setVehiclesFile(null);
+        }
+        if (input != ScenarioInput.FACILITIES_AND_HOUSEHOLDS) {
+            config.facilities().setInputFile(null);
+            config.households().setInputFile(null);
+        }
+        return ScenarioUtils.loadScenario(config);
+    }
+
+    private Path outputFile(String fileName) {
+        return Path.of(String.format("%s/%s%s%s", matsimOutputDir, runId, fileName, compressionFileEnd));
+    }
+
     private Config buildConfig(String matsimInputConfig) {
         Config config = ConfigUtils.createConfig();
         TreeMap<String, ConfigGroup> configuredModules = config.getModules();
@@ -117,15 +172,32 @@ public class MatsimUtils {
     }
 
     public Network getMatsimNetwork() {
-        return matsimNetwork;
+        return matsimNetwork.get();
     }
 
     public TransitSchedule getTransitSchedule() {
-        return matsimTransitSchedule;
+        return matsimTransitSchedule.get();
     }
 
     public Vehicles getMatsimVehicles() {
-        return matsimVehicles;
+        return matsimVehicles.get();
+    }
+
+    public List<Path> getNetworkFiles() {
+        return List.of(outputFile("output_network.xml"));
+    }
+
+    public List<Path> getTransitScheduleFiles() {
+        return List.of(outputFile("output_transitSchedule.xml"));
+    }
+
+    /**
+     * The files vehicles are collected from, as they are labelled with the transit routes and DRT fleet
+     * they serve.
+     */
+    public List<Path> getVehiclesFiles() {
+        return List.of(outputFile("output_vehicles.xml"), outputFile("output_transitVehicles.xml"),
+                outputFile("output_transitSchedule.xml"), outputFile("drt_vehicles.xml"));
     }
 
     public ScoringConfigGroup getScoring() {
@@ -186,14 +258,13 @@ public class MatsimUtils {
         }
     }
 
-    private Vehicles collectVehicles(Scenario scenario) {
+    private Vehicles collectVehicles(Scenario scenario, TransitSchedule schedule) {
         // get civilian vehicles
         Vehicles vehicles = scenario.getVehicles();
 
         // transit vehicles can report network mode as car which is useless, we want the vehicles to have the
         // transit route modes
         Vehicles transitVehicles = scenario.getTransitVehicles();
-        TransitSchedule schedule = scenario.getTransitSchedule();
         schedule.getTransitLines().forEach((lineId, transitLine) -> {
             transitLine.getRoutes().forEach((routeId, route) -> {
                 route.getDepartures().forEach((departureId, departure) -> {
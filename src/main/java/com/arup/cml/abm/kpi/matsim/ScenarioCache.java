@@ -0,0 +1,98 @@
+package com.arup.cml.abm.kpi.matsim;
+
+import com.arup.cml.abm.kpi.tablesaw.LinkLogSnapshot;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * MATSim inputs shared by the runs post-processed in the same JVM, such as the network, transit schedule and
+ * vehicles of scenario variants. Each input is keyed by a hash of the content of the files it is read from,
+ * so it is only read once however many runs share it, and a changed file is never matched with a stale
+ * input.
+ * <p>
+ * Inputs are loaded by whichever run asks for them first; runs asking for the same input meanwhile wait for
+ * it rather than loading it again. Cached inputs are shared between runs and must only be read from.
+ */
+public class ScenarioCache {
+    private static final Logger LOGGER = LogManager.getLogger(ScenarioCache.class);
+    private static final String MISSING_FILE = "none";
+
+    private final Map<String, FutureTask<Object>> inputs = new ConcurrentHashMap<>();
+    private final Map<String, String> fileHashes = new ConcurrentHashMap<>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * The {@code input} read from {@code files} by {@code loader}, which is only called if no run has loaded
+     * it from files with the same content yet. Files that do not exist are keyed as missing, so optional
+     * inputs can be listed too.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String input, List<Path> files, Supplier<T> loader) {
+        String key = String.format("%s:%s", input, files.stream()
+                .map(this::hash)
+                .collect(Collectors.joining(",")));
+        FutureTask<Object> task = new FutureTask<>(loader::get);
+        FutureTask<Object> cached = inputs.putIfAbsent(key, task);
+        if (cached == null) {
+            misses.incrementAndGet();
+            LOGGER.info("Loading {} from {}", input, files);
+            task.run();
+            cached = task;
+        } else {
+            hits.incrementAndGet();
+            LOGGER.info("Reusing {} already loaded from files matching {}", input, files);
+        }
+        try {
+            return (T) cached.get();
+        } catch (ExecutionException e) {
+            // let a later run try again rather than failing it with this run's error
+            inputs.remove(key, cached);
+            throw new IllegalStateException(String.format("Failed to load %s from %s", input, files), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(String.format("Interrupted waiting for %s", input), e);
+        }
+    }
+
+    /**
+     * The hash of the content of {@code file}, or {@code "none"} if it does not exist. A file is only hashed
+     * again once its size or modification time changes, so inputs whose tables are cached on disk too are
+     * not read twice to be hashed.
+     */
+    public String hash(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return MISSING_FILE;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Failed to read the attributes of %s", file), e);
+        }
+        String version = String.format("%s:%d:%d",
+                file.toAbsolutePath().normalize(), attributes.size(), attributes.lastModifiedTime().toMillis());
+        return fileHashes.computeIfAbsent(version, v -> LinkLogSnapshot.hash(file));
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+}
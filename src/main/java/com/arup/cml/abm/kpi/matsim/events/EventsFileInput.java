@@ -0,0 +1,98 @@
+package com.arup.cml.abm.kpi.matsim.events;
+
+import com.arup.cml.abm.kpi.RunProgress;
+import org.matsim.core.utils.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens a MATSim events file for reading, counting the bytes of the file consumed as it is read into a
+ * {@link RunProgress}. The count is of the bytes on disk, before decompression, so it can be set against
+ * the size of the file to tell how far reading has got. That is only possible for local plain or gzipped
+ * XML files; other files are opened with MATSim's {@link IOUtils} and their progress is not known.
+ */
+public final class EventsFileInput {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private EventsFileInput() {
+    }
+
+    /**
+     * Whether {@link #open} can count the bytes read of {@code eventsFile}, which is then a plain or gzipped
+     * XML file.
+     */
+    public static boolean isCountable(String eventsFile) {
+        return isCountable(IOUtils.resolveFileOrResource(eventsFile));
+    }
+
+    public static InputStream open(String eventsFile, RunProgress progress) throws IOException {
+        URL url = IOUtils.resolveFileOrResource(eventsFile);
+        if (isCountable(url)) {
+            Path path = toPath(url);
+            boolean gzipped = url.getPath().toLowerCase(Locale.ROOT).endsWith(".gz");
+            progress.eventsReadingStarted(Files.size(path));
+            InputStream countedInput = new CountingInputStream(Files.newInputStream(path), progress);
+            return gzipped
+                    ? new GZIPInputStream(countedInput, BUFFER_SIZE)
+                    : new BufferedInputStream(countedInput, BUFFER_SIZE);
+        }
+        progress.eventsReadingStarted(-1);
+        return IOUtils.getInputStream(url);
+    }
+
+    private static boolean isCountable(URL url) {
+        String fileName = url.getPath().toLowerCase(Locale.ROOT);
+        return "file".equals(url.getProtocol()) && (fileName.endsWith(".gz") || fileName.endsWith(".xml"));
+    }
+
+    private static Path toPath(URL url) {
+        try {
+            return Path.of(url.toURI());
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final RunProgress progress;
+
+        CountingInputStream(InputStream in, RunProgress progress) {
+            super(in);
+            this.progress = progress;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read >= 0) {
+                progress.compressedBytesRead(1);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                progress.compressedBytesRead(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long bytes) throws IOException {
+            long skipped = super.skip(bytes);
+            progress.compressedBytesRead(skipped);
+            return skipped;
+        }
+    }
+}
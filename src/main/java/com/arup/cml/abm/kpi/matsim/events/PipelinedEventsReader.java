@@ -0,0 +1,411 @@
+package com.arup.cml.abm.kpi.matsim.events;
+
+import com.arup.cml.abm.kpi.RunProfile;
+import com.arup.cml.abm.kpi.RunProgress;
+import com.arup.cml.abm.kpi.data.MoneyLog;
+import com.arup.cml.abm.kpi.matsim.handlers.MatsimLinkLogHandler;
+import com.arup.cml.abm.kpi.matsim.handlers.MatsimPersonMoneyHandler;
+import com.arup.cml.abm.kpi.tablesaw.ColumnarNetworkLinkLog;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.*;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsReaderXMLv1;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads a MATSim XML events file as a pipeline of stages, each running on its own thread and connected
+ * by bounded queues:
+ * <ol>
+ *     <li>decompression of the events file into chunks of bytes</li>
+ *     <li>XML parsing of those chunks into events relevant to the link log and money log</li>
+ *     <li>dispatch of events to handler workers, sharded by vehicle ID</li>
+ *     <li>one {@link MatsimLinkLogHandler} worker per shard, plus one {@link MatsimPersonMoneyHandler} worker</li>
+ * </ol>
+ * All events of a given vehicle go to the same shard in file order, so per-vehicle ordering is kept. The shard
+ * link logs are merged at the end so that link log entries keep the order the single-threaded reader gives them.
+ */
+public class PipelinedEventsReader {
+    private static final Logger LOGGER = LogManager.getLogger(PipelinedEventsReader.class);
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int EVENT_BATCH_SIZE = 1024;
+    private static final int QUEUE_CAPACITY = 64;
+    private static final byte[] END_OF_STREAM = new byte[0];
+    private static final List<Event> END_OF_EVENTS = Collections.emptyList();
+
+    private final int shardCount;
+    private final List<ColumnarNetworkLinkLog> shardLinkLogs = new ArrayList<>();
+    private final List<MatsimLinkLogHandler> shardHandlers = new ArrayList<>();
+    private final MatsimPersonMoneyHandler moneyHandler;
+    private final RunProgress progress;
+    private final List<StageThroughput> stageThroughputs = Collections.synchronizedList(new ArrayList<>());
+
+    // position each shard's link log entries take in the merged link log, written by the dispatch stage
+    private final int[][] shardEntryIndices;
+    private final int[] shardEntryCounts;
+
+    public PipelinedEventsReader(int shardCount, MoneyLog moneyLog) {
+        this(shardCount, moneyLog, new RunProgress(new RunProfile()));
+    }
+
+    /**
+     * @param progress counts the events read and the bytes of the events file consumed
+     */
+    public PipelinedEventsReader(int shardCount, MoneyLog moneyLog, RunProgress progress) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("At least one link log handler thread is needed to read events");
+        }
+        this.shardCount = shardCount;
+        this.moneyHandler = new MatsimPersonMoneyHandler(moneyLog);
+        this.progress = progress;
+        this.shardEntryIndices = new int[shardCount][1024];
+        this.shardEntryCounts = new int[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            ColumnarNetworkLinkLog linkLog = new ColumnarNetworkLinkLog();
+            shardLinkLogs.add(linkLog);
+            shardHandlers.add(new MatsimLinkLogHandler(linkLog));
+        }
+    }
+
+    public ColumnarNetworkLinkLog readFile(String eventsFile) {
+        LOGGER.info("Reading events from {} with {} link log handler threads", eventsFile, shardCount);
+        progress.trackTableSize("link log", () -> shardLinkLogs.stream()
+                .mapToInt(ColumnarNetworkLinkLog::getLinkLogSize)
+                .sum());
+        BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<List<Event>> parsedEvents = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<List<Event>> moneyEvents = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        List<BlockingQueue<List<Event>>> shardEvents = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            shardEvents.add(new ArrayBlockingQueue<>(QUEUE_CAPACITY));
+        }
+
+        List<Callable<Void>> stages = new ArrayList<>();
+        stages.add(() -> decompress(eventsFile, chunks));
+        stages.add(() -> parse(chunks, parsedEvents));
+        stages.add(() -> dispatch(parsedEvents, shardEvents, moneyEvents));
+        for (int shard = 0; shard < shardCount; shard++) {
+            int finalShard = shard;
+            stages.add(() -> handleLinkLogEvents(finalShard, shardEvents.get(finalShard)));
+        }
+        stages.add(() -> handleMoneyEvents(moneyEvents));
+
+        ExecutorService executor = Executors.newFixedThreadPool(stages.size());
+        CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+        try {
+            stages.forEach(stage -> completionService.submit(RunProfile.onBehalfOfRunningPhases(stage)));
+            // fail fast: the first stage to fail stops the whole pipeline
+            for (int i = 0; i < stages.size(); i++) {
+                completionService.take().get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading events from " + eventsFile, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to read events from " + eventsFile, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        progress.eventsReadingFinished();
+        LOGGER.info("Merging link logs of {} shards", shardCount);
+        List<int[]> entryIndices = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            entryIndices.add(Arrays.copyOf(shardEntryIndices[shard], shardEntryCounts[shard]));
+        }
+        ColumnarNetworkLinkLog linkLog = ColumnarNetworkLinkLog.merge(shardLinkLogs, entryIndices);
+        // stop reporting (and holding on to) the shards
+        progress.trackTableSize("link log", linkLog::getLinkLogSize);
+        return linkLog;
+    }
+
+    public Map<String, AtomicInteger> getLinkLogEventCounts() {
+        Map<String, AtomicInteger> eventCounts = new TreeMap<>();
+        for (MatsimLinkLogHandler handler : shardHandlers) {
+            handler.getEventCounts().forEach((eventType, count) ->
+                    eventCounts.computeIfAbsent(eventType, k -> new AtomicInteger(0)).addAndGet(count.get()));
+        }
+        return eventCounts;
+    }
+
+    public Map<String, AtomicInteger> getMoneyEventCounts() {
+        return moneyHandler.getEventCounts();
+    }
+
+    public List<StageThroughput> getStageThroughputs() {
+        return List.copyOf(stageThroughputs);
+    }
+
+    public void logStageThroughputs() {
+        LOGGER.info("Events pipeline throughput per stage:");
+        getStageThroughputs().forEach(stage -> LOGGER.info("  {}", stage));
+    }
+
+    private Void decompress(String eventsFile, BlockingQueue<byte[]> chunks)
+            throws IOException, InterruptedException {
+        StageThroughput throughput = startStage("decompression", "bytes");
+        try (InputStream inputStream = EventsFileInput.open(eventsFile, progress)) {
+            while (true) {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                int read = inputStream.readNBytes(chunk, 0, CHUNK_SIZE);
+                if (read == 0) {
+                    break;
+                }
+                chunks.put(read == CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, read));
+                throughput.add(read);
+            }
+        }
+        chunks.put(END_OF_STREAM);
+        throughput.finish();
+        return null;
+    }
+
+    private Void parse(BlockingQueue<byte[]> chunks, BlockingQueue<List<Event>> parsedEvents)
+            throws InterruptedException {
+        StageThroughput throughput = startStage("XML parsing", "events");
+        EventBatcher batcher = new EventBatcher(parsedEvents, throughput, progress);
+        EventsManager eventsManager = EventsUtils.createEventsManager();
+        eventsManager.addHandler(batcher);
+        new EventsReaderXMLv1(eventsManager).parse(new ChunkQueueInputStream(chunks));
+        batcher.flush();
+        parsedEvents.put(END_OF_EVENTS);
+        throughput.finish();
+        return null;
+    }
+
+    private Void dispatch(BlockingQueue<List<Event>> parsedEvents,
+                          List<BlockingQueue<List<Event>>> shardEvents,
+                          BlockingQueue<List<Event>> moneyEvents) throws InterruptedException {
+        StageThroughput throughput = startStage("dispatch", "events");
+        List<List<Event>> shardBatches = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            shardBatches.add(new ArrayList<>(EVENT_BATCH_SIZE));
+        }
+        List<Event> moneyBatch = new ArrayList<>(EVENT_BATCH_SIZE);
+        int linkLogEntryIndex = 0;
+
+        List<Event> batch;
+        while ((batch = parsedEvents.take()) != END_OF_EVENTS) {
+            for (Event event : batch) {
+                if (event instanceof PersonMoneyEvent) {
+                    moneyBatch.add(event);
+                    if (moneyBatch.size() == EVENT_BATCH_SIZE) {
+                        moneyEvents.put(moneyBatch);
+                        moneyBatch = new ArrayList<>(EVENT_BATCH_SIZE);
+                    }
+                } else {
+                    int shard = Math.floorMod(getVehicleId(event).toString().hashCode(), shardCount);
+                    if (event instanceof LinkEnterEvent || event instanceof VehicleEntersTrafficEvent) {
+                        recordEntryIndex(shard, linkLogEntryIndex++);
+                    }
+                    List<Event> shardBatch = shardBatches.get(shard);
+                    shardBatch.add(event);
+                    if (shardBatch.size() == EVENT_BATCH_SIZE) {
+                        shardEvents.get(shard).put(shardBatch);
+                        shardBatches.set(shard, new ArrayList<>(EVENT_BATCH_SIZE));
+                    }
+                }
+                throughput.increment();
+            }
+        }
+
+        for (int shard = 0; shard < shardCount; shard++) {
+            if (!shardBatches.get(shard).isEmpty()) {
+                shardEvents.get(shard).put(shardBatches.get(shard));
+            }
+            shardEvents.get(shard).put(END_OF_EVENTS);
+        }
+        if (!moneyBatch.isEmpty()) {
+            moneyEvents.put(moneyBatch);
+        }
+        moneyEvents.put(END_OF_EVENTS);
+        throughput.finish();
+        return null;
+    }
+
+    private Void handleLinkLogEvents(int shard, BlockingQueue<List<Event>> events) throws InterruptedException {
+        StageThroughput throughput = startStage(String.format("link log handler %d", shard), "events");
+        MatsimLinkLogHandler handler = shardHandlers.get(shard);
+        List<Event> batch;
+        while ((batch = events.take()) != END_OF_EVENTS) {
+            for (Event event : batch) {
+                if (event instanceof LinkEnterEvent linkEnterEvent) {
+                    handler.handleEvent(linkEnterEvent);
+                } else if (event instanceof LinkLeaveEvent linkLeaveEvent) {
+                    handler.handleEvent(linkLeaveEvent);
+                } else if (event instanceof PersonEntersVehicleEvent personEntersVehicleEvent) {
+                    handler.handleEvent(personEntersVehicleEvent);
+                } else if (event instanceof PersonLeavesVehicleEvent personLeavesVehicleEvent) {
+                    handler.handleEvent(personLeavesVehicleEvent);
+                } else if (event instanceof VehicleEntersTrafficEvent vehicleEntersTrafficEvent) {
+                    handler.handleEvent(vehicleEntersTrafficEvent);
+                } else if (event instanceof VehicleLeavesTrafficEvent vehicleLeavesTrafficEvent) {
+                    handler.handleEvent(vehicleLeavesTrafficEvent);
+                }
+                throughput.increment();
+            }
+        }
+        throughput.finish();
+        return null;
+    }
+
+    private Void handleMoneyEvents(BlockingQueue<List<Event>> events) throws InterruptedException {
+        StageThroughput throughput = startStage("money handler", "events");
+        List<Event> batch;
+        while ((batch = events.take()) != END_OF_EVENTS) {
+            for (Event event : batch) {
+                moneyHandler.handleEvent((PersonMoneyEvent) event);
+                throughput.increment();
+            }
+        }
+        throughput.finish();
+        return null;
+    }
+
+    private void recordEntryIndex(int shard, int linkLogEntryIndex) {
+        int count = shardEntryCounts[shard];
+        if (count == shardEntryIndices[shard].length) {
+            shardEntryIndices[shard] = Arrays.copyOf(shardEntryIndices[shard], count * 2);
+        }
+        shardEntryIndices[shard][count] = linkLogEntryIndex;
+        shardEntryCounts[shard] = count + 1;
+    }
+
+    private StageThroughput startStage(String stage, String unit) {
+        StageThroughput throughput = new StageThroughput(stage, unit);
+        stageThroughputs.add(throughput);
+        return throughput;
+    }
+
+    static boolean isLinkLogEvent(Event event) {
+        return event instanceof LinkEnterEvent
+                || event instanceof LinkLeaveEvent
+                || event instanceof PersonEntersVehicleEvent
+                || event instanceof PersonLeavesVehicleEvent
+                || event instanceof VehicleEntersTrafficEvent
+                || event instanceof VehicleLeavesTrafficEvent;
+    }
+
+    private static Id<Vehicle> getVehicleId(Event event) {
+        if (event instanceof LinkEnterEvent linkEnterEvent) {
+            return linkEnterEvent.getVehicleId();
+        } else if (event instanceof LinkLeaveEvent linkLeaveEvent) {
+            return linkLeaveEvent.getVehicleId();
+        } else if (event instanceof PersonEntersVehicleEvent personEntersVehicleEvent) {
+            return personEntersVehicleEvent.getVehicleId();
+        } else if (event instanceof PersonLeavesVehicleEvent personLeavesVehicleEvent) {
+            return personLeavesVehicleEvent.getVehicleId();
+        } else if (event instanceof VehicleEntersTrafficEvent vehicleEntersTrafficEvent) {
+            return vehicleEntersTrafficEvent.getVehicleId();
+        } else if (event instanceof VehicleLeavesTrafficEvent vehicleLeavesTrafficEvent) {
+            return vehicleLeavesTrafficEvent.getVehicleId();
+        }
+        throw new IllegalArgumentException(String.format("Event '%s' has no vehicle", event.getEventType()));
+    }
+
+    /**
+     * Collects the parsed events the link log and money log handlers need into batches, so that the
+     * queue between the parsing and dispatch stages is not touched once per event.
+     */
+    private static class EventBatcher implements BasicEventHandler {
+        private final BlockingQueue<List<Event>> parsedEvents;
+        private final StageThroughput throughput;
+        private final RunProgress progress;
+        private List<Event> batch = new ArrayList<>(EVENT_BATCH_SIZE);
+
+        EventBatcher(BlockingQueue<List<Event>> parsedEvents, StageThroughput throughput, RunProgress progress) {
+            this.parsedEvents = parsedEvents;
+            this.throughput = throughput;
+            this.progress = progress;
+        }
+
+        @Override
+        public void handleEvent(Event event) {
+            throughput.increment();
+            progress.eventRead();
+            if (!(event instanceof PersonMoneyEvent || isLinkLogEvent(event))) {
+                return;
+            }
+            batch.add(event);
+            if (batch.size() == EVENT_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                parsedEvents.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while queueing parsed events", e);
+            }
+            batch = new ArrayList<>(EVENT_BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Presents the chunks produced by the decompression stage as a single input stream for the XML parser.
+     */
+    private static class ChunkQueueInputStream extends InputStream {
+        private final BlockingQueue<byte[]> chunks;
+        private byte[] chunk = new byte[0];
+        private int position = 0;
+        private boolean finished = false;
+
+        ChunkQueueInputStream(BlockingQueue<byte[]> chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunkIfNeeded()) {
+                return -1;
+            }
+            return chunk[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextChunkIfNeeded()) {
+                return -1;
+            }
+            int count = Math.min(length, chunk.length - position);
+            System.arraycopy(chunk, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        private boolean nextChunkIfNeeded() throws IOException {
+            while (position == chunk.length) {
+                if (finished) {
+                    return false;
+                }
+                try {
+                    chunk = chunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for decompressed events");
+                }
+                position = 0;
+                finished = chunk == END_OF_STREAM;
+            }
+            return true;
+        }
+    }
+}
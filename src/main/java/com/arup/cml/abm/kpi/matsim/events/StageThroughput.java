@@ -0,0 +1,53 @@
+package com.arup.cml.abm.kpi.matsim.events;
+
+/**
+ * Counts the items a single pipeline stage has processed between being started and finished.
+ * Each instance is only ever updated by the thread running its stage.
+ */
+public class StageThroughput {
+    private final String stage;
+    private final String unit;
+    private final long startNanos = System.nanoTime();
+    private long endNanos = -1;
+    private long count = 0;
+
+    public StageThroughput(String stage, String unit) {
+        this.stage = stage;
+        this.unit = unit;
+    }
+
+    void add(long items) {
+        count += items;
+    }
+
+    void increment() {
+        count++;
+    }
+
+    void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    public String getStage() {
+        return stage;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSeconds() {
+        long end = endNanos < 0 ? System.nanoTime() : endNanos;
+        return (end - startNanos) / 1e9;
+    }
+
+    public double getRate() {
+        double seconds = getSeconds();
+        return seconds > 0 ? count / seconds : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %,d %s in %.1fs (%,.0f %s/s)", stage, count, unit, getSeconds(), getRate(), unit);
+    }
+}
@@ -1,5 +1,6 @@
 package com.arup.cml.abm.kpi.matsim.handlers;
 
+import com.arup.cml.abm.kpi.domain.IndexedNetworkLinkLog;
 import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
 import com.google.common.collect.ImmutableMap;
 import org.matsim.api.core.v01.events.*;
@@ -18,15 +19,22 @@ public class MatsimLinkLogHandler implements
         LinkLeaveEventHandler {
 
     private NetworkLinkLog linkLog;
+    // set when the link log takes MATSim Id indices, which spares turning the Ids of every event into strings
+    private final IndexedNetworkLinkLog indexedLinkLog;
     private final Map<String, AtomicInteger> eventCounts = new HashMap<>();
 
     public MatsimLinkLogHandler(NetworkLinkLog linkLog) {
         this.linkLog = linkLog;
+        this.indexedLinkLog = linkLog instanceof IndexedNetworkLinkLog indexed ? indexed : null;
     }
 
     @Override
     public void handleEvent(LinkEnterEvent event) {
         incrementEventCount(event);
+        if (indexedLinkLog != null) {
+            indexedLinkLog.createLinkLogEntry(event.getVehicleId().index(), event.getLinkId().index(), event.getTime());
+            return;
+        }
         linkLog.createLinkLogEntry(
                 event.getVehicleId().toString(),
                 event.getLinkId().toString(),
@@ -37,6 +45,10 @@ public class MatsimLinkLogHandler implements
     @Override
     public void handleEvent(LinkLeaveEvent event) {
         incrementEventCount(event);
+        if (indexedLinkLog != null) {
+            indexedLinkLog.completeLinkLogEntry(event.getVehicleId().index(), event.getTime());
+            return;
+        }
         linkLog.completeLinkLogEntry(
                 event.getVehicleId().toString(),
                 event.getTime()
@@ -46,6 +58,10 @@ public class MatsimLinkLogHandler implements
     @Override
     public void handleEvent(PersonEntersVehicleEvent event) {
         incrementEventCount(event);
+        if (indexedLinkLog != null) {
+            indexedLinkLog.personBoardsVehicle(event.getVehicleId().index(), event.getPersonId().index());
+            return;
+        }
         linkLog.personBoardsVehicle(
                 event.getVehicleId().toString(),
                 event.getPersonId().toString()
@@ -55,6 +71,10 @@ public class MatsimLinkLogHandler implements
     @Override
     public void handleEvent(PersonLeavesVehicleEvent event) {
         incrementEventCount(event);
+        if (indexedLinkLog != null) {
+            indexedLinkLog.personAlightsVehicle(event.getVehicleId().index(), event.getPersonId().index());
+            return;
+        }
         linkLog.personAlightsVehicle(
                 event.getVehicleId().toString(),
                 event.getPersonId().toString()
@@ -64,6 +84,12 @@ public class MatsimLinkLogHandler implements
     @Override
     public void handleEvent(VehicleEntersTrafficEvent event) {
         incrementEventCount(event);
+        if (indexedLinkLog != null) {
+            int vehicleIndex = event.getVehicleId().index();
+            indexedLinkLog.recordVehicleMode(vehicleIndex, event.getNetworkMode());
+            indexedLinkLog.createLinkLogEntry(vehicleIndex, event.getLinkId().index(), event.getTime());
+            return;
+        }
         linkLog.recordVehicleMode(event.getVehicleId().toString(), event.getNetworkMode());
         linkLog.createLinkLogEntry(
                 event.getVehicleId().toString(),
@@ -75,6 +101,10 @@ public class MatsimLinkLogHandler implements
     @Override
     public void handleEvent(VehicleLeavesTrafficEvent event) {
         incrementEventCount(event);
+        if (indexedLinkLog != null) {
+            indexedLinkLog.completeLinkLogEntry(event.getVehicleId().index(), event.getTime());
+            return;
+        }
         linkLog.completeLinkLogEntry(
                 event.getVehicleId().toString(),
                 event.getTime()
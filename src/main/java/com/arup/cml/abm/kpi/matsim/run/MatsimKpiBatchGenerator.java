@@ -0,0 +1,182 @@
+package com.arup.cml.abm.kpi.matsim.run;
+
+import com.arup.cml.abm.kpi.matsim.ScenarioCache;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.utils.MemoryObserver;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+/**
+ * Writes the KPIs of many MATSim runs in one JVM, as for scenario variants, each to its own directory under
+ * the output directory. The network, transit schedule and vehicles are read once for all the runs that share
+ * them, through a {@link ScenarioCache}.
+ * <p>
+ * Runs are processed concurrently, but only as many at once as fit in the memory budget given what each
+ * run is expected to need. A run that fails is logged and the others carry on.
+ */
+@Command(name = "MatsimKpiBatchGenerator", version = "0.0.4-alpha", mixinStandardHelpOptions = true)
+public class MatsimKpiBatchGenerator implements Callable<Integer> {
+    private static final Logger LOGGER = LogManager.getLogger(MatsimKpiBatchGenerator.class);
+    // the link log and the tables built from it take a few times the size of the compressed events
+    static final int HEAP_BYTES_PER_EVENTS_FILE_BYTE = 8;
+    private static final long BYTES_IN_A_MEGABYTE = 1024L * 1024L;
+
+    @Option(names = "-mc", arity = "1..*", required = true,
+            description = "Full path to the MATSim config file of the runs, either one for all of them or one per " +
+                    "output directory, in the same order")
+    private List<Path> matsimConfigFiles;
+
+    @Option(names = "-mo", arity = "1..*", required = true,
+            description = "Full paths to the MATSim output directories of the runs")
+    private List<Path> matsimOutputDirectories;
+
+    @Option(names = "-o", required = true,
+            description = "Full path to the directory KPIs are written to, each run to a directory named after " +
+                    "its MATSim output directory")
+    private Path outputDir;
+
+    @Option(names = "-j", defaultValue = "1",
+            description = "Number of runs processed concurrently, memory budget allowing (default: ${DEFAULT-VALUE})")
+    private int concurrentRuns;
+
+    @Option(names = "-mb",
+            description = "Megabytes of heap the runs processed concurrently may take between them " +
+                    "(default: three quarters of the maximum heap)")
+    private Long memoryBudgetMegabytes;
+
+    @Option(names = "-rm",
+            description = "Megabytes of heap each run is expected to take (default: " +
+                    HEAP_BYTES_PER_EVENTS_FILE_BYTE + " times the size of its compressed events file)")
+    private Long runMemoryMegabytes;
+
+    @Parameters(description = "Any other MatsimKpiGenerator options, after --, applied to every run, e.g. " +
+            "-- -k CONGESTION,SPEED -c none")
+    private List<String> generatorOptions = new ArrayList<>();
+
+    public static void main(String[] args) {
+        System.setProperty("line.separator", MatsimKpiGenerator.EOL);
+        int exitCode = new CommandLine(new MatsimKpiBatchGenerator()).execute(args);
+        System.exit(exitCode);
+    }
+
+    @Override
+    public Integer call() {
+        if (matsimConfigFiles.size() != 1 && matsimConfigFiles.size() != matsimOutputDirectories.size()) {
+            throw new IllegalArgumentException(String.format(
+                    "Expected one MATSim config file for all runs or one per output directory, but got %d for %d runs",
+                    matsimConfigFiles.size(), matsimOutputDirectories.size()));
+        }
+        if (concurrentRuns < 1) {
+            throw new IllegalArgumentException("At least one run needs to be processed at a time");
+        }
+        long budgetMegabytes = memoryBudgetMegabytes == null
+                ? Runtime.getRuntime().maxMemory() * 3 / 4 / BYTES_IN_A_MEGABYTE
+                : memoryBudgetMegabytes;
+        if (budgetMegabytes < 1) {
+            throw new IllegalArgumentException("The memory budget has to be at least a megabyte");
+        }
+
+        // parse every run's options before starting any, so a mistake fails the batch straight away
+        ScenarioCache scenarioCache = new ScenarioCache();
+        Map<String, MatsimKpiGenerator> runs = new LinkedHashMap<>();
+        Map<String, Integer> runMegabytes = new LinkedHashMap<>();
+        Set<String> runNames = new HashSet<>();
+        for (int i = 0; i < matsimOutputDirectories.size(); i++) {
+            Path matsimOutputDirectory = matsimOutputDirectories.get(i);
+            String runName = runName(matsimOutputDirectory);
+            if (!runNames.add(runName)) {
+                throw new IllegalArgumentException(String.format(
+                        "More than one MATSim output directory is named %s, so their KPIs would overwrite each other",
+                        runName));
+            }
+            MatsimKpiGenerator generator = new MatsimKpiGenerator(scenarioCache, runName);
+            List<String> args = new ArrayList<>(List.of(
+                    "-mc", matsimConfigFiles.get(matsimConfigFiles.size() == 1 ? 0 : i).toString(),
+                    "-mo", matsimOutputDirectory.toString(),
+                    "-o", outputDir.resolve(runName).toString()));
+            args.addAll(generatorOptions);
+            new CommandLine(generator).parseArgs(args.toArray(new String[0]));
+            runs.put(runName, generator);
+            runMegabytes.put(runName, (int) Math.max(1, Math.min(budgetMegabytes,
+                    runMemoryMegabytes == null ? estimateMegabytes(matsimOutputDirectory) : runMemoryMegabytes)));
+        }
+
+        LOGGER.info("Writing KPIs of {} runs to {}, {} at a time within {} MB of heap",
+                new Object[]{runs.size(), outputDir, concurrentRuns, budgetMegabytes});
+        MemoryObserver.start(60);
+        Semaphore memoryBudget = new Semaphore((int) Math.min(Integer.MAX_VALUE, budgetMegabytes), true);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrentRuns, runs.size()));
+        Map<String, Future<?>> results = new LinkedHashMap<>();
+        try {
+            runs.forEach((runName, generator) -> results.put(runName, executor.submit(() -> {
+                int megabytes = runMegabytes.get(runName);
+                memoryBudget.acquireUninterruptibly(megabytes);
+                try {
+                    LOGGER.info("Writing KPIs of run {}, expected to take {} MB of heap", runName, megabytes);
+                    generator.run();
+                } finally {
+                    memoryBudget.release(megabytes);
+                }
+            })));
+            List<String> failedRuns = new ArrayList<>();
+            for (Map.Entry<String, Future<?>> result : results.entrySet()) {
+                try {
+                    result.getValue().get();
+                    LOGGER.info("Finished writing KPIs of run {}", result.getKey());
+                } catch (ExecutionException e) {
+                    LOGGER.error(String.format("Failed to write KPIs of run %s", result.getKey()), e.getCause());
+                    failedRuns.add(result.getKey());
+                }
+            }
+            LOGGER.info("Loaded {} shared scenario input(s) and reused them {} time(s)",
+                    scenarioCache.getMisses(), scenarioCache.getHits());
+            if (!failedRuns.isEmpty()) {
+                LOGGER.error("Failed to write KPIs of runs {}", failedRuns);
+                return 1;
+            }
+            return 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing KPIs of the runs", e);
+        } finally {
+            executor.shutdownNow();
+            MemoryObserver.stop();
+        }
+    }
+
+    static String runName(Path matsimOutputDirectory) {
+        return matsimOutputDirectory.toAbsolutePath().normalize().getFileName().toString();
+    }
+
+    static long estimateMegabytes(Path matsimOutputDirectory) {
+        try (Stream<Path> files = Files.list(matsimOutputDirectory)) {
+            long eventsBytes = 0;
+            for (Path file : files.filter(file -> file.getFileName().toString().contains("output_events.xml")).toList()) {
+                eventsBytes += Files.size(file);
+            }
+            return eventsBytes * HEAP_BYTES_PER_EVENTS_FILE_BYTE / BYTES_IN_A_MEGABYTE;
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Failed to list %s", matsimOutputDirectory), e);
+        }
+    }
+}
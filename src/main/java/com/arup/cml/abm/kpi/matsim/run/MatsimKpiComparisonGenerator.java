@@ -0,0 +1,113 @@
+package com.arup.cml.abm.kpi.matsim.run;
+
+import com.arup.cml.abm.kpi.matsim.ScenarioCache;
+import com.arup.cml.abm.kpi.tablesaw.KpiComparison;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.utils.MemoryObserver;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares a policy scenario with its baseline. The KPIs of both MATSim runs are written at the same time, to
+ * {@value #BASELINE} and {@value #SCENARIO} directories under the output directory, reading the network,
+ * transit schedule and vehicles once if the runs share them. The differences between the two are then written
+ * to a {@value #COMPARISON} directory by {@link KpiComparison}.
+ */
+@Command(name = "MatsimKpiComparisonGenerator", version = "0.0.4-alpha", mixinStandardHelpOptions = true)
+public class MatsimKpiComparisonGenerator implements Callable<Integer> {
+    private static final Logger LOGGER = LogManager.getLogger(MatsimKpiComparisonGenerator.class);
+    static final String BASELINE = "baseline";
+    static final String SCENARIO = "scenario";
+    static final String COMPARISON = "comparison";
+
+    @Option(names = "-mc", arity = "1..2", required = true,
+            description = "Full path to the MATSim config file of both runs, or of the baseline then the scenario")
+    private List<Path> matsimConfigFiles;
+
+    @Option(names = "-bo", required = true, description = "Full path to the baseline's MATSim output directory")
+    private Path baselineOutputDirectory;
+
+    @Option(names = "-so", required = true, description = "Full path to the scenario's MATSim output directory")
+    private Path scenarioOutputDirectory;
+
+    @Option(names = "-o", required = true,
+            description = "Full path to the directory the KPIs of both runs and their differences are written to")
+    private Path outputDir;
+
+    @Parameters(description = "Any other MatsimKpiGenerator options, after --, applied to both runs, e.g. " +
+            "-- -k CONGESTION,SPEED,AFFORDABILITY")
+    private List<String> generatorOptions = new ArrayList<>();
+
+    public static void main(String[] args) {
+        System.setProperty("line.separator", MatsimKpiGenerator.EOL);
+        int exitCode = new CommandLine(new MatsimKpiComparisonGenerator()).execute(args);
+        System.exit(exitCode);
+    }
+
+    @Override
+    public Integer call() {
+        ScenarioCache scenarioCache = new ScenarioCache();
+        Map<String, Path> matsimOutputDirectories = new LinkedHashMap<>();
+        matsimOutputDirectories.put(BASELINE, baselineOutputDirectory);
+        matsimOutputDirectories.put(SCENARIO, scenarioOutputDirectory);
+        Map<String, MatsimKpiGenerator> runs = new LinkedHashMap<>();
+        matsimOutputDirectories.forEach((runName, matsimOutputDirectory) -> {
+            MatsimKpiGenerator generator = new MatsimKpiGenerator(scenarioCache, runName);
+            Path matsimConfigFile = matsimConfigFiles.get(runs.isEmpty() ? 0 : matsimConfigFiles.size() - 1);
+            List<String> args = new ArrayList<>(List.of(
+                    "-mc", matsimConfigFile.toString(),
+                    "-mo", matsimOutputDirectory.toString(),
+                    "-o", outputDir.resolve(runName).toString()));
+            args.addAll(generatorOptions);
+            new CommandLine(generator).parseArgs(args.toArray(new String[0]));
+            runs.put(runName, generator);
+        });
+
+        LOGGER.info("Comparing the KPIs of scenario {} with baseline {} in {}",
+                new Object[]{scenarioOutputDirectory, baselineOutputDirectory, outputDir});
+        MemoryObserver.start(60);
+        ExecutorService executor = Executors.newFixedThreadPool(runs.size());
+        try {
+            Map<String, Future<?>> results = new LinkedHashMap<>();
+            runs.forEach((runName, generator) -> results.put(runName, executor.submit(generator)));
+            boolean failed = false;
+            for (Map.Entry<String, Future<?>> result : results.entrySet()) {
+                try {
+                    result.getValue().get();
+                    LOGGER.info("Finished writing KPIs of the {}", result.getKey());
+                } catch (ExecutionException e) {
+                    LOGGER.error(String.format("Failed to write KPIs of the %s", result.getKey()), e.getCause());
+                    failed = true;
+                }
+            }
+            if (failed) {
+                LOGGER.error("Not comparing the runs, as the KPIs of both were not written");
+                return 1;
+            }
+            new KpiComparison(outputDir.resolve(BASELINE), outputDir.resolve(SCENARIO),
+                    runs.get(BASELINE).getCompressionType())
+                    .write(outputDir.resolve(COMPARISON));
+            return 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing KPIs of the runs", e);
+        } finally {
+            executor.shutdownNow();
+            MemoryObserver.stop();
+        }
+    }
+}
@@ -1,29 +1,52 @@
 package com.arup.cml.abm.kpi.matsim.run;
 
+import com.arup.cml.abm.kpi.Kpi;
 import com.arup.cml.abm.kpi.KpiCalculator;
+import com.arup.cml.abm.kpi.KpiScheduler;
 import com.arup.cml.abm.kpi.LinearNormaliser;
+import com.arup.cml.abm.kpi.RunProfile;
+import com.arup.cml.abm.kpi.RunProgress;
 import com.arup.cml.abm.kpi.data.MoneyLog;
 import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
 import com.arup.cml.abm.kpi.matsim.MatsimUtils;
+import com.arup.cml.abm.kpi.matsim.ScenarioCache;
+import com.arup.cml.abm.kpi.matsim.events.EventsFileInput;
+import com.arup.cml.abm.kpi.matsim.events.PipelinedEventsReader;
 import com.arup.cml.abm.kpi.matsim.handlers.MatsimLinkLogHandler;
 import com.arup.cml.abm.kpi.matsim.handlers.MatsimPersonMoneyHandler;
+import com.arup.cml.abm.kpi.tablesaw.AggregatingNetworkLinkLog;
+import com.arup.cml.abm.kpi.tablesaw.ColumnarNetworkLinkLog;
+import com.arup.cml.abm.kpi.tablesaw.LinkLogSnapshot;
+import com.arup.cml.abm.kpi.tablesaw.MappedNetworkLinkLog;
+import com.arup.cml.abm.kpi.tablesaw.ScenarioTableCache;
 import com.arup.cml.abm.kpi.tablesaw.TablesawKpiCalculator;
-import com.arup.cml.abm.kpi.tablesaw.TablesawNetworkLinkLog;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.config.groups.ControllerConfigGroup.CompressionType;
+import org.matsim.core.config.groups.ControllerConfigGroup.EventsFileFormat;
 import org.matsim.core.events.EventsUtils;
 import org.matsim.core.events.MatsimEventsReader;
+import org.matsim.core.events.handler.BasicEventHandler;
 import org.matsim.utils.MemoryObserver;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
+import picocli.CommandLine.Spec;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @Command(name = "MatsimKpiGenerator", version = "0.0.4-alpha", mixinStandardHelpOptions = true)
@@ -31,6 +54,9 @@ public class MatsimKpiGenerator implements Runnable {
     private static final Logger LOGGER = LogManager.getLogger(MatsimKpiGenerator.class);
     public static final String EOL = "\n";
 
+    @Spec
+    private CommandSpec spec;
+
     @Option(names = "-mc", description = "Full path to your model's MATSim config file", required = true)
     private Path matsimConfigFile;
 
@@ -40,6 +66,99 @@ public class MatsimKpiGenerator implements Runnable {
     @Option(names = "-o", description = "Full path to the directory you want KPIs to be written to", required = true)
     private Path outputDir;
 
+    @Option(names = "-t", defaultValue = "1",
+            description = "Number of threads handling link log events. With more than one, the events file is read " +
+                    "in a parallel pipeline that shards link log state by vehicle ID (default: ${DEFAULT-VALUE})")
+    private int eventHandlerThreads;
+
+    @Option(names = "-s",
+            description = "Full path to a directory of binary link log snapshots. When it holds a snapshot of the " +
+                    "events file, the link log is loaded from it instead of parsing the events, otherwise a " +
+                    "snapshot is written there once the events have been parsed")
+    private Path snapshotDirectory;
+
+    @Option(names = "-mm",
+            description = "Record the link log in memory-mapped files in the output directory rather than on the " +
+                    "heap, for scenarios whose link log does not fit in memory. Link based KPIs are written from " +
+                    "totals scanned from the files rather than from a table of every entry. Cannot be combined " +
+                    "with -t or -s")
+    private boolean memoryMappedLinkLog;
+
+    @Option(names = "-st",
+            description = "Aggregate link log entries into per vehicle and per link, hour and mode totals as events " +
+                    "are read rather than recording the link log, so that memory grows with the network rather " +
+                    "than the events. The link log and vehicle occupancy supporting data are not written. Cannot " +
+                    "be combined with -t, -s or -mm")
+    private boolean streamingLinkLog;
+
+    @Option(names = "-ic",
+            description = "Keep a binary cache of the tables built from the network, transit schedule and vehicles " +
+                    "in a " + ScenarioTableCache.DIRECTORY_NAME + " directory in the MATSim output directory, so " +
+                    "later runs over the same inputs read the tables instead of parsing those files. Cached tables " +
+                    "are built again when the files they were built from or the columns of the tables change")
+    private boolean cacheScenarioTables;
+
+    @Option(names = "-rt", defaultValue = "1",
+            description = "Number of threads parsing the legs, trips and persons CSV files (default: ${DEFAULT-VALUE})")
+    private int readThreads;
+
+    @Option(names = "-wt", defaultValue = "1",
+            description = "Number of threads writing tables. With more than one, supporting data tables are " +
+                    "written in the background while KPIs are calculated, and gzip files are compressed in " +
+                    "parallel blocks (default: ${DEFAULT-VALUE})")
+    private int writeThreads;
+
+    @Option(names = "-c", defaultValue = "gzip",
+            description = "Compression of the files written, out of ${COMPLETION-CANDIDATES} " +
+                    "(default: ${DEFAULT-VALUE})")
+    private CompressionType compressionType;
+
+    @Option(names = "-k", split = ",",
+            description = "Comma separated KPIs to write, out of ${COMPLETION-CANDIDATES}. Tables that none of " +
+                    "the selected KPIs need are not built (default: all KPIs)")
+    private List<Kpi> selectedKpis;
+
+    private int speedTimeBinMinutes;
+
+    @Option(names = "-sb", defaultValue = "60",
+            description = "Minutes in each time bin of the Speed KPI, whose columns are the bins in chronological " +
+                    "order, named after the hour with 60 minute bins and after the HH:mm each bin starts at " +
+                    "otherwise. Only hourly bins can be used with -st (default: ${DEFAULT-VALUE})")
+    private void setSpeedTimeBinMinutes(int speedTimeBinMinutes) {
+        // checked as the option is parsed, so a batch of runs fails before any of them starts
+        if (speedTimeBinMinutes < 1) {
+            throw new ParameterException(spec.commandLine(), String.format(
+                    "Time bins of the Speed KPI have to be at least a minute long, not %d minutes",
+                    speedTimeBinMinutes));
+        }
+        this.speedTimeBinMinutes = speedTimeBinMinutes;
+    }
+
+    @Option(names = "-kt", defaultValue = "1",
+            description = "Number of KPIs written concurrently, each on its own thread (default: ${DEFAULT-VALUE})")
+    private int kpiThreads;
+
+    @Option(names = "-p", defaultValue = "60",
+            description = "Seconds between progress lines in the log, giving the phase, events read, events per " +
+                    "second, when reading events should finish and table sizes, which are also exposed over JMX " +
+                    "as the " + RunProgress.OBJECT_NAME + " MBean. 0 turns the progress lines off " +
+                    "(default: ${DEFAULT-VALUE})")
+    private int progressIntervalSeconds;
+
+    // set when this is one of a batch of runs sharing scenario inputs
+    private final ScenarioCache scenarioCache;
+    private final String runName;
+    private RunProgress runProgress;
+
+    public MatsimKpiGenerator() {
+        this(null, null);
+    }
+
+    MatsimKpiGenerator(ScenarioCache scenarioCache, String runName) {
+        this.scenarioCache = scenarioCache;
+        this.runName = runName;
+    }
+
     public static void main(String[] args) {
         System.setProperty("line.separator", EOL); // Required to allow platform independent checksum similarity
         int exitCode = new CommandLine(new MatsimKpiGenerator()).execute(args);
@@ -52,63 +171,208 @@ public class MatsimKpiGenerator implements Runnable {
                 new Object[]{outputDir, matsimOutputDirectory, matsimConfigFile}
         );
 
-        MemoryObserver.start(60);
+        if (scenarioCache == null) {
+            MemoryObserver.start(60);
+        }
+        RunProfile runProfile = new RunProfile();
+        runProgress = new RunProgress(runProfile, runName);
+        runProgress.start(progressIntervalSeconds);
 
         // We're not using a dependency injection framework, but we *are* programming
         // in a dependency injection style (explicit dependencies passed into
         // constructors) and then creating and wiring together the objects in the
         // object graph "manually" here. Switching to a DI framework in future should
         // be pretty straightforward if we need to.
-        MatsimUtils matsimUtils = new MatsimUtils(matsimOutputDirectory, matsimConfigFile);
-        NetworkLinkLog linkLog = new TablesawNetworkLinkLog();
-        MatsimLinkLogHandler matsimLinkLogHandler = new MatsimLinkLogHandler(linkLog);
+        // the network, transit schedule and vehicles are only read once first needed when they may be shared
+        // with other runs or their tables may be cached
+        ScenarioCache runScenarioCache = scenarioCache == null && cacheScenarioTables
+                ? new ScenarioCache()
+                : scenarioCache;
+        MatsimUtils matsimUtils = runProfile.profile("read MATSim inputs", () -> {
+            if (runScenarioCache == null) {
+                return new MatsimUtils(matsimOutputDirectory, matsimConfigFile);
+            }
+            return new MatsimUtils(matsimOutputDirectory, matsimConfigFile, runScenarioCache);
+        });
+        ScenarioTableCache scenarioTableCache = null;
+        if (cacheScenarioTables) {
+            // hashed through the scenario cache, so input files whose tables are not cached yet are only
+            // hashed once though they are read for the scenario cache too
+            scenarioTableCache = new ScenarioTableCache(
+                    matsimOutputDirectory.resolve(ScenarioTableCache.DIRECTORY_NAME),
+                    matsimUtils.getNetworkFiles(),
+                    matsimUtils.getTransitScheduleFiles(),
+                    matsimUtils.getVehiclesFiles(),
+                    runScenarioCache::hash);
+        }
         MoneyLog moneyLog = new MoneyLog();
-        MatsimPersonMoneyHandler matsimPersonMoneyHandler = new MatsimPersonMoneyHandler(moneyLog);
-        EventsManager eventsManager = EventsUtils.createEventsManager();
-        eventsManager.addHandler(matsimLinkLogHandler);
-        eventsManager.addHandler(matsimPersonMoneyHandler);
-
         String eventsFile = String.format("%s/%soutput_events.xml%s",
                 matsimOutputDirectory,
                 matsimUtils.getRunId(),
                 matsimUtils.getCompressionFileEnd());
 
+        NetworkLinkLog linkLog = null;
+        try {
+            if (streamingLinkLog) {
+                if (eventHandlerThreads > 1 || snapshotDirectory != null || memoryMappedLinkLog) {
+                    throw new IllegalArgumentException(
+                            "Link log totals can only be aggregated by a single thread, without a link log to " +
+                                    "snapshot or memory-map");
+                }
+                if (speedTimeBinMinutes != 60) {
+                    throw new IllegalArgumentException(
+                            "Link log totals are kept by the hour, so the Speed KPI can only have hourly time bins");
+                }
+                linkLog = runProfile.profile("read events", () -> {
+                    AggregatingNetworkLinkLog aggregatingLinkLog = new AggregatingNetworkLinkLog(
+                            matsimUtils.getMatsimNetwork(), matsimUtils.getMatsimVehicles());
+                    runProgress.trackTableSize("link totals", aggregatingLinkLog::getGroupCount);
+                    readEvents(eventsFile, aggregatingLinkLog, moneyLog);
+                    return aggregatingLinkLog;
+                });
+            } else if (memoryMappedLinkLog) {
+                if (eventHandlerThreads > 1 || snapshotDirectory != null) {
+                    throw new IllegalArgumentException(
+                            "A memory-mapped link log can only be recorded by a single thread and cannot be " +
+                                    "snapshotted");
+                }
+                MappedNetworkLinkLog mappedLinkLog = new MappedNetworkLinkLog(outputDir);
+                // handed over before the events are read, so that the file is deleted even if reading them fails
+                linkLog = mappedLinkLog;
+                runProgress.trackTableSize("link log", mappedLinkLog::getLinkLogSize);
+                runProfile.profile("read events", () -> readEvents(eventsFile, mappedLinkLog, moneyLog));
+            } else if (snapshotDirectory == null) {
+                linkLog = runProfile.profile("read events", () -> readEvents(eventsFile, moneyLog));
+            } else {
+                LinkLogSnapshot snapshot = runProfile.profile("hash events file",
+                        () -> new LinkLogSnapshot(snapshotDirectory, Path.of(eventsFile)));
+                if (snapshot.exists()) {
+                    ColumnarNetworkLinkLog snapshotLinkLog = runProfile.profile("read link log snapshot",
+                            () -> snapshot.read(moneyLog));
+                    runProgress.trackTableSize("link log", snapshotLinkLog::getLinkLogSize);
+                    linkLog = snapshotLinkLog;
+                } else {
+                    LOGGER.info("Found no snapshot of {} at {}", eventsFile, snapshot.getFile());
+                    ColumnarNetworkLinkLog eventsLinkLog = runProfile.profile("read events",
+                            () -> readEvents(eventsFile, moneyLog));
+                    runProfile.profile("write link log snapshot", () -> snapshot.write(eventsLinkLog, moneyLog));
+                    linkLog = eventsLinkLog;
+                }
+            }
+
+            KpiCalculator kpiCalculator = new TablesawKpiCalculator(
+                    matsimUtils::getMatsimNetwork,
+                    matsimUtils::getTransitSchedule,
+                    matsimUtils::getMatsimVehicles,
+                    scenarioTableCache,
+                    linkLog,
+                    matsimUtils.getMatsimPersonsCSVInputStream(),
+                    moneyLog,
+                    matsimUtils.getScoring(),
+                    matsimUtils.getFacilities(),
+                    matsimUtils.getMatsimLegsCSVInputStream(),
+                    matsimUtils.getMatsimTripsCSVInputStream(),
+                    outputDir,
+                    compressionType,
+                    runProfile,
+                    readThreads,
+                    writeThreads
+            );
+
+            runProgress.trackTableSizes(kpiCalculator::getTableSizes);
+
+            Set<Kpi> kpis = selectedKpis == null ? EnumSet.allOf(Kpi.class) : EnumSet.copyOf(selectedKpis);
+            LOGGER.info("Writing KPIs {}", kpis);
+            kpiCalculator.planKpis(kpis);
+            Map<Kpi, Runnable> kpiWriters = new LinkedHashMap<>();
+            for (Kpi kpi : kpis) {
+                kpiWriters.put(kpi, () -> runProfile.profile(String.format("write %s KPI", kpi),
+                        () -> writeKpi(kpiCalculator, kpi)));
+            }
+            KpiScheduler kpiScheduler = new KpiScheduler(kpiThreads);
+            kpiScheduler.run(kpiWriters);
+            kpiScheduler.logWallTimes();
+            runProfile.profile("finish writing tables", kpiCalculator::finishWriting);
+            runProfile.write(outputDir);
+        } finally {
+            // the memory-mapped link log's scratch file, the progress thread and the memory observer have to go
+            // whether or not the KPIs were written
+            try {
+                if (linkLog instanceof Closeable closeableLinkLog) {
+                    closeableLinkLog.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                runProgress.close();
+                if (scenarioCache == null) {
+                    MemoryObserver.stop();
+                }
+            }
+        }
+    }
+
+    CompressionType getCompressionType() {
+        return compressionType;
+    }
+
+    private ColumnarNetworkLinkLog readEvents(String eventsFile, MoneyLog moneyLog) {
         LOGGER.info("Streaming MATSim events from {}", eventsFile);
-        new MatsimEventsReader(eventsManager).readFile(eventsFile);
+        if (eventHandlerThreads > 1) {
+            PipelinedEventsReader eventsReader = new PipelinedEventsReader(eventHandlerThreads, moneyLog, runProgress);
+            ColumnarNetworkLinkLog linkLog = eventsReader.readFile(eventsFile);
+            summariseEventsHandled(eventsFile, eventsReader.getLinkLogEventCounts());
+            summariseEventsHandled(eventsFile, eventsReader.getMoneyEventCounts());
+            eventsReader.logStageThroughputs();
+            return linkLog;
+        }
+        ColumnarNetworkLinkLog linkLog = new ColumnarNetworkLinkLog();
+        runProgress.trackTableSize("link log", linkLog::getLinkLogSize);
+        readEvents(eventsFile, linkLog, moneyLog);
+        return linkLog;
+    }
+
+    private void readEvents(String eventsFile, NetworkLinkLog linkLog, MoneyLog moneyLog) {
+        MatsimLinkLogHandler matsimLinkLogHandler = new MatsimLinkLogHandler(linkLog);
+        MatsimPersonMoneyHandler matsimPersonMoneyHandler = new MatsimPersonMoneyHandler(moneyLog);
+        EventsManager eventsManager = EventsUtils.createEventsManager();
+        eventsManager.addHandler(matsimLinkLogHandler);
+        eventsManager.addHandler(matsimPersonMoneyHandler);
+        eventsManager.addHandler((BasicEventHandler) event -> runProgress.eventRead());
+        MatsimEventsReader eventsReader = new MatsimEventsReader(eventsManager);
+        if (EventsFileInput.isCountable(eventsFile)) {
+            try (InputStream events = EventsFileInput.open(eventsFile, runProgress)) {
+                eventsReader.readStream(events, EventsFileFormat.xml);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        } else {
+            runProgress.eventsReadingStarted(-1);
+            eventsReader.readFile(eventsFile);
+        }
+        runProgress.eventsReadingFinished();
         summariseEventsHandled(eventsFile, matsimLinkLogHandler.getEventCounts());
         summariseEventsHandled(eventsFile, matsimPersonMoneyHandler.getEventCounts());
+    }
 
-        KpiCalculator kpiCalculator = new TablesawKpiCalculator(
-                matsimUtils.getMatsimNetwork(),
-                matsimUtils.getTransitSchedule(),
-                matsimUtils.getMatsimVehicles(),
-                linkLog,
-                matsimUtils.getMatsimPersonsCSVInputStream(),
-                moneyLog,
-                matsimUtils.getScoring(),
-                matsimUtils.getFacilities(),
-                matsimUtils.getMatsimLegsCSVInputStream(),
-                matsimUtils.getMatsimTripsCSVInputStream(),
-                outputDir,
-                CompressionType.gzip
-        );
-
+    private void writeKpi(KpiCalculator kpiCalculator, Kpi kpi) {
         double leftIntervalBound = 0.0;
         double rightIntervalBound = 10.0;
         double secondsInAMinute = 60.0;
-        kpiCalculator.writeAffordabilityKpi(outputDir, new LinearNormaliser(leftIntervalBound, rightIntervalBound, 1.25, 1));
-        kpiCalculator.writePtWaitTimeKpi(outputDir, new LinearNormaliser(leftIntervalBound, rightIntervalBound, 15 * secondsInAMinute, 5 * secondsInAMinute));
-        kpiCalculator.writeModalSplitKpi(outputDir);
-        kpiCalculator.writeOccupancyRateKpi(outputDir, new LinearNormaliser(leftIntervalBound, rightIntervalBound, 0.2, 0.6));
-        kpiCalculator.writeVehicleKMKpi(outputDir);
-        kpiCalculator.writePassengerKMKpi(outputDir);
-        kpiCalculator.writeSpeedKpi(outputDir);
-        kpiCalculator.writeGHGKpi(outputDir, new LinearNormaliser(leftIntervalBound, rightIntervalBound, 8.87, 0.0));
-        kpiCalculator.writeAccessToMobilityServicesKpi(outputDir, new LinearNormaliser(leftIntervalBound, rightIntervalBound, 0.0, 100.0));
-        kpiCalculator.writeCongestionKpi(outputDir, new LinearNormaliser(leftIntervalBound, rightIntervalBound, 3.0, 1.25));
-        kpiCalculator.writeTravelTimeKpi(outputDir, new LinearNormaliser(leftIntervalBound, rightIntervalBound, 90.0, 10.0));
-        kpiCalculator.writeMobilitySpaceUsageKpi(outputDir);
-        MemoryObserver.stop();
+        switch (kpi) {
+            case AFFORDABILITY -> kpiCalculator.writeAffordabilityKpi(outputDir, new LinearNormaliser(leftIntervalBound, rightIntervalBound, 1.25, 1));
+            case PT_WAIT_TIME -> kpiCalculator.writePtWaitTimeKpi(outputDir, new LinearNormaliser(leftIntervalBound, rightIntervalBound, 15 * secondsInAMinute, 5 * secondsInAMinute));
+            case MODAL_SPLIT -> kpiCalculator.writeModalSplitKpi(outputDir);
+            case OCCUPANCY_RATE -> kpiCalculator.writeOccupancyRateKpi(outputDir, new LinearNormaliser(leftIntervalBound, rightIntervalBound, 0.2, 0.6));
+            case VEHICLE_KM -> kpiCalculator.writeVehicleKMKpi(outputDir);
+            case PASSENGER_KM -> kpiCalculator.writePassengerKMKpi(outputDir);
+            case SPEED -> kpiCalculator.writeSpeedKpi(outputDir, speedTimeBinMinutes * 60);
+            case GHG -> kpiCalculator.writeGHGKpi(outputDir, new LinearNormaliser(leftIntervalBound, rightIntervalBound, 8.87, 0.0));
+            case ACCESS_TO_MOBILITY_SERVICES -> kpiCalculator.writeAccessToMobilityServicesKpi(outputDir, new LinearNormaliser(leftIntervalBound, rightIntervalBound, 0.0, 100.0));
+            case CONGESTION -> kpiCalculator.writeCongestionKpi(outputDir, new LinearNormaliser(leftIntervalBound, rightIntervalBound, 3.0, 1.25));
+            case TRAVEL_TIME -> kpiCalculator.writeTravelTimeKpi(outputDir, new LinearNormaliser(leftIntervalBound, rightIntervalBound, 90.0, 10.0));
+            case MOBILITY_SPACE_USAGE -> kpiCalculator.writeMobilitySpaceUsageKpi(outputDir);
+        }
     }
 
     private static void summariseEventsHandled(String eventsFilePath, Map<String, AtomicInteger> eventCounts) {
@@ -0,0 +1,155 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.data.StringDictionary;
+import com.arup.cml.abm.kpi.domain.LinkLogConsistencyException;
+import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.vehicles.Vehicles;
+import tech.tablesaw.api.Table;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link NetworkLinkLog} that never keeps link log entries. As each entry is completed it is folded into
+ * {@link LinkLogTotals}, which is all the link based KPIs (occupancy rate, vehicle km, GHG, speed and congestion)
+ * need, and takes memory in proportion to the network and fleet rather than to the number of events.
+ * <p>
+ * An entry only counts once the vehicle starts its next one (or the totals are read), so completing an entry
+ * again overrides its end time and occupancy as it does in a link log, and entries never completed are left out.
+ */
+public class AggregatingNetworkLinkLog implements NetworkLinkLog {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int NO_ENTRY = -1;
+
+    private final StringDictionary linkIds = new StringDictionary();
+    private final StringDictionary vehicleIds = new StringDictionary();
+    private final LinkLogTotals totals;
+
+    // per-vehicle state of the latest link log entry, indexed by vehicle code. The link is NO_ENTRY when
+    // there is none
+    private int[] entryLinks = new int[0];
+    private double[] entryStartTimes = new double[0];
+    private double[] entryEndTimes = new double[0];
+    private int[] entryPeople = new int[0];
+    // counting a person who boarded more than once as often as they are aboard
+    private final List<Multiset<String>> occupants = new ArrayList<>();
+
+    public AggregatingNetworkLinkLog(Network network, Vehicles vehicles) {
+        this.totals = new LinkLogTotals(network, vehicles, linkIds, vehicleIds);
+    }
+
+    @Override
+    public void createLinkLogEntry(String vehicleID, String linkID, double startTime) {
+        int vehicle = vehicleCode(vehicleID);
+        addLatestEntry(vehicle);
+        entryLinks[vehicle] = linkIds.encode(linkID);
+        entryStartTimes[vehicle] = startTime;
+        entryEndTimes[vehicle] = Double.NaN;
+    }
+
+    @Override
+    public void completeLinkLogEntry(String vehicleID, double endTime) {
+        int vehicle = vehicleIds.codeOf(vehicleID);
+        if (vehicle == StringDictionary.NOT_FOUND || entryLinks[vehicle] == NO_ENTRY) {
+            throw new LinkLogConsistencyException(String.format(
+                    "Vehicle '%s' cannot complete a link log entry because it never started one", vehicleID));
+        }
+        entryEndTimes[vehicle] = endTime;
+        entryPeople[vehicle] = occupants.get(vehicle).size();
+    }
+
+    @Override
+    public void recordVehicleMode(String vehicleId, String mode) {
+        // entries are attributed to the mode of their vehicle in the MATSim vehicles instead
+    }
+
+    @Override
+    public void personBoardsVehicle(String vehicleID, String personID) {
+        occupants.get(vehicleCode(vehicleID)).add(personID);
+    }
+
+    @Override
+    public void personAlightsVehicle(String vehicleID, String personID) throws LinkLogConsistencyException {
+        int vehicle = vehicleIds.codeOf(vehicleID);
+        if (vehicle == StringDictionary.NOT_FOUND || !occupants.get(vehicle).remove(personID)) {
+            throw new LinkLogConsistencyException(String.format(
+                    "Person '%s' cannot leave vehicle '%s' because they didn't board it",
+                    personID,
+                    vehicleID));
+        }
+    }
+
+    /**
+     * The number of link, hour and mode groups totalled so far.
+     */
+    public int getGroupCount() {
+        return totals.getGroupCount();
+    }
+
+    /**
+     * The totals of every entry completed so far.
+     */
+    synchronized LinkLogTotals getTotals() {
+        addLatestEntries();
+        return totals;
+    }
+
+    /**
+     * @see LinkLogTotals#getVehicleTotalsTable()
+     */
+    public synchronized Table getVehicleTotalsTable() {
+        return getTotals().getVehicleTotalsTable();
+    }
+
+    /**
+     * @see LinkLogTotals#getLinkHourTotalsTable()
+     */
+    public synchronized Table getLinkHourTotalsTable() {
+        return getTotals().getLinkHourTotalsTable();
+    }
+
+    private void addLatestEntries() {
+        for (int vehicle = 0; vehicle < vehicleIds.size(); vehicle++) {
+            addLatestEntry(vehicle);
+        }
+        totals.logLeftOutEntries();
+    }
+
+    /**
+     * Adds the latest entry of {@code vehicle} to the totals, or to the count of incomplete entries if it
+     * was never completed, and clears it.
+     */
+    private void addLatestEntry(int vehicle) {
+        int link = entryLinks[vehicle];
+        if (link == NO_ENTRY) {
+            return;
+        }
+        entryLinks[vehicle] = NO_ENTRY;
+        double endTime = entryEndTimes[vehicle];
+        if (Double.isNaN(endTime)) {
+            totals.addIncompleteEntry();
+            return;
+        }
+        totals.addEntry(vehicle, link, entryStartTimes[vehicle], endTime, entryPeople[vehicle]);
+    }
+
+    private int vehicleCode(String vehicleID) {
+        int vehicle = vehicleIds.encode(vehicleID);
+        if (vehicle == entryLinks.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, entryLinks.length * 2);
+            entryLinks = Arrays.copyOf(entryLinks, capacity);
+            entryStartTimes = Arrays.copyOf(entryStartTimes, capacity);
+            entryEndTimes = Arrays.copyOf(entryEndTimes, capacity);
+            entryPeople = Arrays.copyOf(entryPeople, capacity);
+            Arrays.fill(entryLinks, vehicle, capacity, NO_ENTRY);
+        }
+        if (vehicle == occupants.size()) {
+            occupants.add(HashMultiset.create());
+        }
+        return vehicle;
+    }
+}
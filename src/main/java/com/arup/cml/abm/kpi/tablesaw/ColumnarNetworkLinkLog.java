@@ -0,0 +1,177 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.data.StringDictionary;
+import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link NetworkLinkLog} that keeps link log entries in growable primitive arrays rather than
+ * Tablesaw rows.
+ */
+public class ColumnarNetworkLinkLog extends EncodedNetworkLinkLog {
+    // link log columns, one element per link log entry
+    private int[] linkCodes = new int[INITIAL_CAPACITY];
+    private int[] vehicleCodes = new int[INITIAL_CAPACITY];
+    private int[] modeCodes = new int[INITIAL_CAPACITY];
+    private double[] startTimes = new double[INITIAL_CAPACITY];
+    private double[] endTimes = new double[INITIAL_CAPACITY];
+    private int[] numberOfPeople = new int[INITIAL_CAPACITY];
+
+    @Override
+    void putEntry(int index, int link, int vehicle, int mode, double startTime) {
+        if (index == linkCodes.length) {
+            growLinkLog();
+        }
+        linkCodes[index] = link;
+        vehicleCodes[index] = vehicle;
+        modeCodes[index] = mode;
+        startTimes[index] = startTime;
+        endTimes[index] = Double.NaN;
+        numberOfPeople[index] = NO_ENTRY;
+    }
+
+    @Override
+    void putCompletion(int index, double endTime, int people) {
+        endTimes[index] = endTime;
+        numberOfPeople[index] = people;
+    }
+
+    @Override
+    int linkOf(int index) {
+        return linkCodes[index];
+    }
+
+    @Override
+    int vehicleOf(int index) {
+        return vehicleCodes[index];
+    }
+
+    @Override
+    int modeOf(int index) {
+        return modeCodes[index];
+    }
+
+    @Override
+    double startTimeOf(int index) {
+        return startTimes[index];
+    }
+
+    @Override
+    double endTimeOf(int index) {
+        return endTimes[index];
+    }
+
+    @Override
+    int numberOfPeopleOf(int index) {
+        return numberOfPeople[index];
+    }
+
+    /**
+     * Merges link logs that were each fed the events of a disjoint set of vehicles into a single link log.
+     * {@code entryIndices.get(s)[k]} is the position the k-th entry of shard {@code s} takes in the merged
+     * link log, so across all shards the indices must cover 0..n-1 exactly once, and must increase with k.
+     * Per-vehicle tracking state is not carried over, so the merged link log should only be read from.
+     */
+    public static ColumnarNetworkLinkLog merge(List<ColumnarNetworkLinkLog> shards, List<int[]> entryIndices) {
+        ColumnarNetworkLinkLog merged = new ColumnarNetworkLinkLog();
+        int linkLogSize = 0;
+        for (ColumnarNetworkLinkLog shard : shards) {
+            linkLogSize += shard.linkLogSize;
+        }
+        merged.linkCodes = new int[Math.max(linkLogSize, INITIAL_CAPACITY)];
+        merged.vehicleCodes = new int[merged.linkCodes.length];
+        merged.modeCodes = new int[merged.linkCodes.length];
+        merged.startTimes = new double[merged.linkCodes.length];
+        merged.endTimes = new double[merged.linkCodes.length];
+        merged.numberOfPeople = new int[merged.linkCodes.length];
+
+        List<OccupancyIntervals> shardOccupancies = new ArrayList<>();
+        List<int[]> vehicleMappings = new ArrayList<>();
+        List<int[]> personMappings = new ArrayList<>();
+
+        for (int s = 0; s < shards.size(); s++) {
+            ColumnarNetworkLinkLog shard = shards.get(s);
+            int[] indices = entryIndices.get(s);
+            int[] linkMapping = remap(shard.linkIds, merged.linkIds);
+            int[] vehicleMapping = remap(shard.vehicleIds, merged.vehicleIds);
+            int[] modeMapping = remap(shard.modes, merged.modes);
+            int[] personMapping = remap(shard.personIds, merged.personIds);
+            shardOccupancies.add(shard.occupancy);
+            vehicleMappings.add(vehicleMapping);
+            personMappings.add(personMapping);
+            for (int k = 0; k < shard.linkLogSize; k++) {
+                int index = indices[k];
+                merged.linkCodes[index] = linkMapping[shard.linkCodes[k]];
+                merged.vehicleCodes[index] = vehicleMapping[shard.vehicleCodes[k]];
+                merged.modeCodes[index] = modeMapping[shard.modeCodes[k]];
+                merged.startTimes[index] = shard.startTimes[k];
+                merged.endTimes[index] = shard.endTimes[k];
+                merged.numberOfPeople[index] = shard.numberOfPeople[k];
+            }
+        }
+        merged.linkLogSize = linkLogSize;
+        merged.occupancy = OccupancyIntervals.merge(shardOccupancies, entryIndices, vehicleMappings, personMappings);
+        return merged;
+    }
+
+    /**
+     * Writes the link log entries and vehicle occupancy intervals to {@code output}. Per-vehicle tracking
+     * state is not written, so a link log read back with {@link #readFrom} should only be read from.
+     */
+    void writeTo(SnapshotOutput output) throws IOException {
+        output.writeStrings(linkIds);
+        output.writeStrings(vehicleIds);
+        output.writeStrings(modes);
+        output.writeStrings(personIds);
+        output.writeInt(linkLogSize);
+        output.writeInts(linkCodes, linkLogSize);
+        output.writeInts(vehicleCodes, linkLogSize);
+        output.writeInts(modeCodes, linkLogSize);
+        output.writeDoubles(startTimes, linkLogSize);
+        output.writeDoubles(endTimes, linkLogSize);
+        output.writeInts(numberOfPeople, linkLogSize);
+        occupancy.writeTo(output);
+    }
+
+    static ColumnarNetworkLinkLog readFrom(SnapshotInput input) throws IOException {
+        ColumnarNetworkLinkLog linkLog = new ColumnarNetworkLinkLog();
+        // dictionaries are read back in code order, so every stored code decodes to the same ID as before.
+        // The unknown mode was the first mode of the written link log too, so it keeps its code
+        input.readStrings(linkLog.linkIds);
+        input.readStrings(linkLog.vehicleIds);
+        input.readStrings(linkLog.modes);
+        input.readStrings(linkLog.personIds);
+        int linkLogSize = input.readInt();
+        linkLog.linkCodes = input.readInts(linkLogSize, INITIAL_CAPACITY);
+        linkLog.vehicleCodes = input.readInts(linkLogSize, INITIAL_CAPACITY);
+        linkLog.modeCodes = input.readInts(linkLogSize, INITIAL_CAPACITY);
+        linkLog.startTimes = input.readDoubles(linkLogSize, INITIAL_CAPACITY);
+        linkLog.endTimes = input.readDoubles(linkLogSize, INITIAL_CAPACITY);
+        linkLog.numberOfPeople = input.readInts(linkLogSize, INITIAL_CAPACITY);
+        linkLog.linkLogSize = linkLogSize;
+        linkLog.occupancy = OccupancyIntervals.readFrom(input);
+        return linkLog;
+    }
+
+    private static int[] remap(StringDictionary from, StringDictionary to) {
+        int[] mapping = new int[from.size()];
+        for (int code = 0; code < mapping.length; code++) {
+            mapping[code] = to.encode(from.decode(code));
+        }
+        return mapping;
+    }
+
+    private void growLinkLog() {
+        int capacity = linkCodes.length * 2;
+        linkCodes = Arrays.copyOf(linkCodes, capacity);
+        vehicleCodes = Arrays.copyOf(vehicleCodes, capacity);
+        modeCodes = Arrays.copyOf(modeCodes, capacity);
+        startTimes = Arrays.copyOf(startTimes, capacity);
+        endTimes = Arrays.copyOf(endTimes, capacity);
+        numberOfPeople = Arrays.copyOf(numberOfPeople, capacity);
+    }
+}
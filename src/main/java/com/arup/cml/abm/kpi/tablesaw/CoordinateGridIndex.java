@@ -0,0 +1,75 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buckets points into a uniform grid of square cells as wide as the query radius, so that finding
+ * whether any point lies within that radius of a location only needs to look at the 3x3 block of
+ * cells around it rather than at every point.
+ */
+class CoordinateGridIndex {
+    private final double radius;
+    private final double radiusSquared;
+    // interleaved x, y coordinates of the points in each cell
+    private final Map<Long, double[]> cells = new HashMap<>();
+
+    CoordinateGridIndex(double[] xs, double[] ys, double radius) {
+        if (!(radius > 0)) {
+            throw new IllegalArgumentException(String.format("Grid index radius must be positive, got %s", radius));
+        }
+        this.radius = radius;
+        this.radiusSquared = radius * radius;
+
+        Map<Long, List<Integer>> cellMembers = new HashMap<>();
+        for (int i = 0; i < xs.length; i++) {
+            if (Double.isNaN(xs[i]) || Double.isNaN(ys[i])) {
+                continue;
+            }
+            cellMembers.computeIfAbsent(cellKey(cell(xs[i]), cell(ys[i])), k -> new ArrayList<>()).add(i);
+        }
+        cellMembers.forEach((key, members) -> {
+            double[] coordinates = new double[members.size() * 2];
+            for (int j = 0; j < members.size(); j++) {
+                coordinates[2 * j] = xs[members.get(j)];
+                coordinates[2 * j + 1] = ys[members.get(j)];
+            }
+            cells.put(key, coordinates);
+        });
+    }
+
+    boolean hasPointWithinRadius(double x, double y) {
+        long cellX = cell(x);
+        long cellY = cell(y);
+        for (long dx = -1; dx <= 1; dx++) {
+            for (long dy = -1; dy <= 1; dy++) {
+                double[] coordinates = cells.get(cellKey(cellX + dx, cellY + dy));
+                if (coordinates == null) {
+                    continue;
+                }
+                for (int j = 0; j < coordinates.length; j += 2) {
+                    double distanceX = coordinates[j] - x;
+                    double distanceY = coordinates[j + 1] - y;
+                    if (distanceX * distanceX + distanceY * distanceY <= radiusSquared) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    int getCellCount() {
+        return cells.size();
+    }
+
+    private long cell(double coordinate) {
+        return (long) Math.floor(coordinate / radius);
+    }
+
+    private static long cellKey(long cellX, long cellY) {
+        return (cellX << 32) ^ (cellY & 0xffffffffL);
+    }
+}
@@ -0,0 +1,48 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.Kpi;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The tables {@link TablesawKpiCalculator} derives from MATSim outputs, together with the tables each
+ * of them is built from and the tables each KPI reads.
+ */
+enum DerivedTable {
+    PERSON_MODE_SCORES,
+    LEGS(PERSON_MODE_SCORES),
+    TRIPS(LEGS),
+    ACTIVITIES(TRIPS),
+    NETWORK_LINKS,
+    SCHEDULE_STOPS,
+    VEHICLES,
+    LINK_LOG(VEHICLES),
+    // network link attributes of each link log entry, aligned with the link log rows
+    LINK_LOG_NETWORK(LINK_LOG, NETWORK_LINKS);
+
+    private final Set<DerivedTable> dependencies;
+
+    DerivedTable(DerivedTable... dependencies) {
+        this.dependencies = Set.of(dependencies);
+    }
+
+    Set<DerivedTable> getDependencies() {
+        return dependencies;
+    }
+
+    static Set<DerivedTable> requiredBy(Kpi kpi) {
+        return switch (kpi) {
+            case AFFORDABILITY -> EnumSet.of(LEGS, PERSON_MODE_SCORES);
+            case PT_WAIT_TIME -> EnumSet.of(LEGS);
+            case MODAL_SPLIT, PASSENGER_KM, TRAVEL_TIME -> EnumSet.of(TRIPS);
+            case OCCUPANCY_RATE -> EnumSet.of(LINK_LOG, VEHICLES);
+            case VEHICLE_KM -> EnumSet.of(LINK_LOG, LINK_LOG_NETWORK, VEHICLES);
+            case SPEED -> EnumSet.of(LINK_LOG, NETWORK_LINKS);
+            case CONGESTION -> EnumSet.of(LINK_LOG, LINK_LOG_NETWORK);
+            case GHG -> EnumSet.of(LINK_LOG, LINK_LOG_NETWORK, VEHICLES, PERSON_MODE_SCORES);
+            case ACCESS_TO_MOBILITY_SERVICES -> EnumSet.of(TRIPS, SCHEDULE_STOPS);
+            case MOBILITY_SPACE_USAGE -> EnumSet.of(ACTIVITIES, PERSON_MODE_SCORES);
+        };
+    }
+}
@@ -0,0 +1,158 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.Kpi;
+import com.arup.cml.abm.kpi.RunProfile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tech.tablesaw.api.Table;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Builds each {@link DerivedTable} the first time it is asked for and keeps it for later KPIs. Once the
+ * KPIs still to be written are known, tables (and the builders of tables not yet built) that none of
+ * those KPIs need any more are dropped so their memory can be reclaimed.
+ * <p>
+ * KPIs may ask for tables from several threads at once. Each table is built by whichever thread asks for
+ * it first while others asking for the same table wait, and different tables can be built concurrently.
+ * Building each table is recorded as a phase of the run profile.
+ */
+class DerivedTables {
+    private static final Logger LOGGER = LogManager.getLogger(DerivedTables.class);
+    private final Map<DerivedTable, Supplier<Table>> builders = new EnumMap<>(DerivedTable.class);
+    private final Map<DerivedTable, Table> tables = new EnumMap<>(DerivedTable.class);
+    private final Set<DerivedTable> released = EnumSet.noneOf(DerivedTable.class);
+    private final Map<DerivedTable, Object> buildLocks = new EnumMap<>(DerivedTable.class);
+    private final RunProfile runProfile;
+    // null until the KPIs to write are declared, in which case no table is ever released
+    private Set<Kpi> pendingKpis = null;
+
+    DerivedTables() {
+        this(new RunProfile());
+    }
+
+    DerivedTables(RunProfile runProfile) {
+        this.runProfile = runProfile;
+        for (DerivedTable table : DerivedTable.values()) {
+            buildLocks.put(table, new Object());
+        }
+    }
+
+    synchronized void register(DerivedTable table, Supplier<Table> builder) {
+        builders.put(table, builder);
+    }
+
+    Table get(DerivedTable table) {
+        // tables are only ever built from the tables they depend on, so these locks are always taken in
+        // dependency order and cannot deadlock
+        synchronized (buildLocks.get(table)) {
+            synchronized (this) {
+                Table builtTable = tables.get(table);
+                if (builtTable != null) {
+                    return builtTable;
+                }
+                checkNotReleased(table);
+            }
+            // the tables this one is built from are built first, so that its phase in the run profile
+            // only covers building this table
+            for (DerivedTable dependency : table.getDependencies()) {
+                get(dependency);
+            }
+            Supplier<Table> builder;
+            synchronized (this) {
+                checkNotReleased(table);
+                builder = builders.remove(table);
+                if (builder == null) {
+                    throw new IllegalStateException(String.format("There is no way to build the %s table", table));
+                }
+            }
+            LOGGER.info("Building the {} table for the first time", table);
+            Table builtTable = runProfile.profile(String.format("build %s table", table), builder);
+            synchronized (this) {
+                tables.put(table, builtTable);
+            }
+            return builtTable;
+        }
+    }
+
+    private void checkNotReleased(DerivedTable table) {
+        if (released.contains(table)) {
+            throw new IllegalStateException(String.format(
+                    "The %s table was released because none of the KPIs planned at the time needed it", table));
+        }
+    }
+
+    /**
+     * Returns a table holding the same columns as the given table, which a KPI can add columns to or
+     * drop columns from without other KPIs seeing it. The column data itself is shared and must not be
+     * modified.
+     */
+    Table snapshot(DerivedTable table) {
+        Table builtTable = get(table);
+        return Table.create(builtTable.name(), builtTable.columnArray());
+    }
+
+    /**
+     * The number of rows of each table built so far and not yet released.
+     */
+    synchronized Map<String, Integer> getRowCounts() {
+        Map<String, Integer> rowCounts = new LinkedHashMap<>();
+        tables.forEach((table, builtTable) -> rowCounts.put(table.name(), builtTable.rowCount()));
+        return rowCounts;
+    }
+
+    synchronized void planKpis(Collection<Kpi> kpis) {
+        pendingKpis = EnumSet.noneOf(Kpi.class);
+        pendingKpis.addAll(kpis);
+        LOGGER.info("Planned KPIs {}, which need the {} tables", pendingKpis, neededTables());
+        releaseUnneededTables();
+    }
+
+    synchronized void kpiFinished(Kpi kpi) {
+        if (pendingKpis == null) {
+            return;
+        }
+        pendingKpis.remove(kpi);
+        releaseUnneededTables();
+    }
+
+    private void releaseUnneededTables() {
+        Set<DerivedTable> neededTables = neededTables();
+        for (DerivedTable table : DerivedTable.values()) {
+            if (neededTables.contains(table) || released.contains(table)) {
+                continue;
+            }
+            if (tables.remove(table) != null) {
+                LOGGER.info("Releasing the {} table, none of the remaining KPIs need it", table);
+            }
+            builders.remove(table);
+            released.add(table);
+        }
+    }
+
+    private Set<DerivedTable> neededTables() {
+        Set<DerivedTable> neededTables = EnumSet.noneOf(DerivedTable.class);
+        for (Kpi kpi : pendingKpis) {
+            for (DerivedTable table : DerivedTable.requiredBy(kpi)) {
+                addWithUnbuiltDependencies(table, neededTables);
+            }
+        }
+        return neededTables;
+    }
+
+    private void addWithUnbuiltDependencies(DerivedTable table, Set<DerivedTable> neededTables) {
+        if (!neededTables.add(table) || tables.containsKey(table)) {
+            return;
+        }
+        // a table that is still to be built needs the tables it is built from
+        for (DerivedTable dependency : table.getDependencies()) {
+            addWithUnbuiltDependencies(dependency, neededTables);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.data.IdDictionary;
+import com.arup.cml.abm.kpi.data.StringDictionary;
+import com.arup.cml.abm.kpi.domain.IndexedNetworkLinkLog;
+import com.arup.cml.abm.kpi.domain.LinkLogConsistencyException;
+import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.Vehicles;
+import tech.tablesaw.api.*;
+
+import java.util.Arrays;
+
+/**
+ * The state machine shared by the {@link NetworkLinkLog}s that dictionary-encode link, vehicle, mode and person
+ * IDs as ints while events are recorded: the latest entry and mode of each vehicle, vehicle occupancy kept as
+ * {@link OccupancyIntervals}, and building the Tablesaw tables (with the same columns as
+ * {@link TablesawNetworkLinkLog}) when they are asked for. IDs handed over as MATSim Id indices are coded through
+ * an {@link IdDictionary} without being turned into strings. Subclasses only decide where the fields of each link
+ * log entry are stored.
+ */
+public abstract class EncodedNetworkLinkLog implements IndexedNetworkLinkLog {
+    static final int INITIAL_CAPACITY = 1024;
+    static final int NO_ENTRY = -1;
+    private static final String UNKNOWN_MODE = "unknown";
+
+    final StringDictionary linkIds = new StringDictionary();
+    final StringDictionary vehicleIds = new StringDictionary();
+    final StringDictionary modes = new StringDictionary();
+    final StringDictionary personIds = new StringDictionary();
+    private final int unknownModeCode = modes.encode(UNKNOWN_MODE);
+    private final IdDictionary<Link> linkIdIndices = new IdDictionary<>(Link.class, linkIds);
+    private final IdDictionary<Vehicle> vehicleIdIndices = new IdDictionary<>(Vehicle.class, vehicleIds);
+    private final IdDictionary<Person> personIdIndices = new IdDictionary<>(Person.class, personIds);
+
+    OccupancyIntervals occupancy = new OccupancyIntervals();
+    int linkLogSize = 0;
+
+    // per-vehicle state, indexed by vehicle code
+    private int[] vehicleModes = new int[0];
+    private int[] vehicleLatestLogIndex = new int[0];
+
+    /**
+     * Stores a link log entry that has not been completed yet, with a missing end time and
+     * {@link #NO_ENTRY} people, making room for it if need be.
+     */
+    abstract void putEntry(int index, int link, int vehicle, int mode, double startTime);
+
+    abstract void putCompletion(int index, double endTime, int numberOfPeople);
+
+    abstract int linkOf(int index);
+
+    abstract int vehicleOf(int index);
+
+    abstract int modeOf(int index);
+
+    abstract double startTimeOf(int index);
+
+    abstract double endTimeOf(int index);
+
+    abstract int numberOfPeopleOf(int index);
+
+    @Override
+    public void createLinkLogEntry(String vehicleID, String linkID, double startTime) {
+        addEntry(vehicleState(vehicleIds.encode(vehicleID)), linkIds.encode(linkID), startTime);
+    }
+
+    @Override
+    public void createLinkLogEntry(int vehicleIndex, int linkIndex, double startTime) {
+        addEntry(vehicleState(vehicleIdIndices.encode(vehicleIndex)), linkIdIndices.encode(linkIndex), startTime);
+    }
+
+    private void addEntry(int vehicle, int link, double startTime) {
+        putEntry(linkLogSize, link, vehicle, vehicleModes[vehicle], startTime);
+        vehicleLatestLogIndex[vehicle] = linkLogSize;
+        linkLogSize++;
+    }
+
+    @Override
+    public void completeLinkLogEntry(String vehicleID, double endTime) {
+        if (!completeEntry(vehicleIds.codeOf(vehicleID), endTime)) {
+            throw entryNeverStarted(vehicleID);
+        }
+    }
+
+    @Override
+    public void completeLinkLogEntry(int vehicleIndex, double endTime) {
+        if (!completeEntry(vehicleIdIndices.codeOf(vehicleIndex), endTime)) {
+            throw entryNeverStarted(vehicleIdIndices.idOf(vehicleIndex));
+        }
+    }
+
+    private boolean completeEntry(int vehicle, double endTime) {
+        if (vehicle == StringDictionary.NOT_FOUND || vehicleLatestLogIndex[vehicle] == NO_ENTRY) {
+            return false;
+        }
+        int latestStateIndex = vehicleLatestLogIndex[vehicle];
+        putCompletion(latestStateIndex, endTime, occupancy.complete(vehicle, latestStateIndex));
+        return true;
+    }
+
+    @Override
+    public void recordVehicleMode(String vehicleId, String mode) {
+        recordMode(vehicleState(vehicleIds.encode(vehicleId)), mode);
+    }
+
+    @Override
+    public void recordVehicleMode(int vehicleIndex, String mode) {
+        recordMode(vehicleState(vehicleIdIndices.encode(vehicleIndex)), mode);
+    }
+
+    private void recordMode(int vehicle, String mode) {
+        vehicleModes[vehicle] = modes.encode(mode);
+    }
+
+    @Override
+    public void personBoardsVehicle(String vehicleID, String personID) {
+        occupancy.board(vehicleState(vehicleIds.encode(vehicleID)), personIds.encode(personID));
+    }
+
+    @Override
+    public void personBoardsVehicle(int vehicleIndex, int personIndex) {
+        occupancy.board(vehicleState(vehicleIdIndices.encode(vehicleIndex)), personIdIndices.encode(personIndex));
+    }
+
+    @Override
+    public void personAlightsVehicle(String vehicleID, String personID) throws LinkLogConsistencyException {
+        if (!alight(vehicleIds.codeOf(vehicleID), personIds.codeOf(personID))) {
+            throw didNotBoard(vehicleID, personID);
+        }
+    }
+
+    @Override
+    public void personAlightsVehicle(int vehicleIndex, int personIndex) throws LinkLogConsistencyException {
+        if (!alight(vehicleIdIndices.codeOf(vehicleIndex), personIdIndices.codeOf(personIndex))) {
+            throw didNotBoard(vehicleIdIndices.idOf(vehicleIndex), personIdIndices.idOf(personIndex));
+        }
+    }
+
+    private boolean alight(int vehicle, int person) {
+        return vehicle != StringDictionary.NOT_FOUND && person != StringDictionary.NOT_FOUND
+                && occupancy.alight(vehicle, person);
+    }
+
+    private static LinkLogConsistencyException entryNeverStarted(String vehicleID) {
+        return new LinkLogConsistencyException(String.format(
+                "Vehicle '%s' cannot complete a link log entry because it never started one", vehicleID));
+    }
+
+    private static LinkLogConsistencyException didNotBoard(String vehicleID, String personID) {
+        return new LinkLogConsistencyException(String.format(
+                "Person '%s' cannot leave vehicle '%s' because they didn't board it",
+                personID,
+                vehicleID));
+    }
+
+    public int getLinkLogSize() {
+        return linkLogSize;
+    }
+
+    public int getVehicleOccupancySize() {
+        return occupancy.size();
+    }
+
+    public Table getLinkLogTable() {
+        return getLinkLogTable(0, linkLogSize);
+    }
+
+    /**
+     * The link log entries from index {@code from} up to but not including {@code to}, for link logs too big
+     * to be turned into a single table.
+     */
+    Table getLinkLogTable(int from, int to) {
+        int size = to - from;
+        long[] index = new long[size];
+        String[] linkIDs = new String[size];
+        String[] vehicleIDs = new String[size];
+        String[] initialModes = new String[size];
+        double[] startTimes = new double[size];
+        double[] endTimes = new double[size];
+        int[] numberOfPeople = new int[size];
+        for (int row = 0; row < size; row++) {
+            int i = from + row;
+            index[row] = i;
+            linkIDs[row] = linkIds.decode(linkOf(i));
+            vehicleIDs[row] = vehicleIds.decode(vehicleOf(i));
+            initialModes[row] = modes.decode(modeOf(i));
+            startTimes[row] = startTimeOf(i);
+            endTimes[row] = endTimeOf(i);
+            numberOfPeople[row] = numberOfPeopleOf(i);
+        }
+        IntColumn numberOfPeopleColumn = IntColumn.create("numberOfPeople", numberOfPeople);
+        for (int row = 0; row < size; row++) {
+            if (numberOfPeople[row] == NO_ENTRY) {
+                numberOfPeopleColumn.setMissing(row);
+            }
+        }
+        return Table.create("Link Log").addColumns(
+                LongColumn.create("index", index),
+                StringColumn.create("linkID", linkIDs),
+                StringColumn.create("vehicleID", vehicleIDs),
+                StringColumn.create("initialMode", initialModes),
+                DoubleColumn.create("startTime", startTimes),
+                DoubleColumn.create("endTime", endTimes),
+                numberOfPeopleColumn
+        );
+    }
+
+    String linkIdOf(int index) {
+        return linkIds.decode(linkOf(index));
+    }
+
+    /**
+     * Totals the link log entries in a single pass over them, for the link based KPIs to be written from
+     * without building a table of every entry.
+     */
+    LinkLogTotals getTotals(Network network, Vehicles vehicles) {
+        LinkLogTotals totals = new LinkLogTotals(network, vehicles, linkIds, vehicleIds);
+        for (int i = 0; i < linkLogSize; i++) {
+            double endTime = endTimeOf(i);
+            if (Double.isNaN(endTime)) {
+                totals.addIncompleteEntry();
+            } else {
+                totals.addEntry(vehicleOf(i), linkOf(i), startTimeOf(i), endTime, numberOfPeopleOf(i));
+            }
+        }
+        totals.logLeftOutEntries();
+        return totals;
+    }
+
+    /**
+     * One row per occupant of each completed link log entry, expanded from the occupancy intervals.
+     */
+    public Table getVehicleOccupancyTable() {
+        return occupancy.expand(new OccupancyIntervals.LinkLogEntries() {
+            @Override
+            public int size() {
+                return linkLogSize;
+            }
+
+            @Override
+            public int vehicle(int index) {
+                return vehicleOf(index);
+            }
+
+            @Override
+            public boolean isCompleted(int index) {
+                return numberOfPeopleOf(index) != NO_ENTRY;
+            }
+        }, vehicleIds.size(), personIds);
+    }
+
+    /**
+     * One row per boarding, with the first and last link log entries the person was aboard for.
+     */
+    public Table getVehicleOccupancyIntervalTable() {
+        return occupancy.intervalTable(vehicleIds, personIds);
+    }
+
+    /**
+     * Makes room for the state of {@code vehicle} if it was only just coded.
+     */
+    private int vehicleState(int vehicle) {
+        if (vehicle == vehicleModes.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, vehicleModes.length * 2);
+            vehicleModes = Arrays.copyOf(vehicleModes, capacity);
+            vehicleLatestLogIndex = Arrays.copyOf(vehicleLatestLogIndex, capacity);
+            Arrays.fill(vehicleModes, vehicle, capacity, unknownModeCode);
+            Arrays.fill(vehicleLatestLogIndex, vehicle, capacity, NO_ENTRY);
+        }
+        return vehicle;
+    }
+}
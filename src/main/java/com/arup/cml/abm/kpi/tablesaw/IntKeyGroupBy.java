@@ -0,0 +1,149 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import java.util.Arrays;
+
+/**
+ * Groups rows by keys made of a few ints, such as dictionary codes of link IDs and modes and hours, and keeps
+ * the sum and count of each of a number of values in each group, without boxing keys or values.
+ * <p>
+ * Groups are numbered from 0 in order of first appearance. They are found in an open-addressing hash table of
+ * group numbers probed linearly, with the key parts and totals of each group kept in flat primitive arrays, so
+ * that grouping hundreds of millions of rows allocates nothing but the arrays as they grow.
+ */
+class IntKeyGroupBy {
+    private static final int INITIAL_GROUP_CAPACITY = 1024;
+    private static final int EMPTY_SLOT = -1;
+
+    private final int keyParts;
+    private final int values;
+    private int groupCount = 0;
+    private int[] keys;
+    private double[] sums;
+    private int[] counts;
+    // group number in each slot of the hash table, kept at most half full
+    private int[] slots;
+
+    IntKeyGroupBy(int keyParts, int values) {
+        if (keyParts < 1) {
+            throw new IllegalArgumentException("Groups need a key of at least one int");
+        }
+        if (values < 0) {
+            throw new IllegalArgumentException(String.format("Cannot total up %d values", values));
+        }
+        this.keyParts = keyParts;
+        this.values = values;
+        this.keys = new int[INITIAL_GROUP_CAPACITY * keyParts];
+        this.sums = new double[INITIAL_GROUP_CAPACITY * values];
+        this.counts = new int[INITIAL_GROUP_CAPACITY * values];
+        this.slots = new int[INITIAL_GROUP_CAPACITY * 2];
+        Arrays.fill(slots, EMPTY_SLOT);
+    }
+
+    /**
+     * The group of {@code key}, which is added if it was not seen before. The key is copied, so the array can
+     * be reused for the next row.
+     */
+    int group(int[] key) {
+        if (key.length != keyParts) {
+            throw new IllegalArgumentException(String.format(
+                    "Expected a key of %d ints, but got %d", keyParts, key.length));
+        }
+        int mask = slots.length - 1;
+        int slot = hash(key) & mask;
+        while (slots[slot] != EMPTY_SLOT) {
+            if (keyEquals(slots[slot], key)) {
+                return slots[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        int group = groupCount++;
+        if (groupCount * keyParts > keys.length) {
+            growGroups();
+        }
+        System.arraycopy(key, 0, keys, group * keyParts, keyParts);
+        slots[slot] = group;
+        if (groupCount * 2 > slots.length) {
+            growSlots();
+        }
+        return group;
+    }
+
+    /**
+     * Adds {@code value} to the totals of the {@code valueIndex}th value of {@code group}. Values that are not
+     * a number are left out of the totals, as Tablesaw leaves missing values out of aggregates.
+     */
+    void add(int group, int valueIndex, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        int total = group * values + valueIndex;
+        sums[total] += value;
+        counts[total]++;
+    }
+
+    int getGroupCount() {
+        return groupCount;
+    }
+
+    int getKey(int group, int keyPart) {
+        return keys[group * keyParts + keyPart];
+    }
+
+    double getSum(int group, int valueIndex) {
+        return sums[group * values + valueIndex];
+    }
+
+    int getCount(int group, int valueIndex) {
+        return counts[group * values + valueIndex];
+    }
+
+    /**
+     * The mean of the {@code valueIndex}th value of {@code group}, or not a number if none was added.
+     */
+    double getMean(int group, int valueIndex) {
+        int total = group * values + valueIndex;
+        return counts[total] == 0 ? Double.NaN : sums[total] / counts[total];
+    }
+
+    private boolean keyEquals(int group, int[] key) {
+        int offset = group * keyParts;
+        for (int part = 0; part < keyParts; part++) {
+            if (keys[offset + part] != key[part]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(int[] key) {
+        int hash = 0;
+        for (int part : key) {
+            hash = hash * 31 + part;
+        }
+        // spread the bits, as codes and hours only differ in their lowest bits
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private void growGroups() {
+        int capacity = keys.length / keyParts * 2;
+        keys = Arrays.copyOf(keys, capacity * keyParts);
+        sums = Arrays.copyOf(sums, capacity * values);
+        counts = Arrays.copyOf(counts, capacity * values);
+    }
+
+    private void growSlots() {
+        slots = new int[slots.length * 2];
+        Arrays.fill(slots, EMPTY_SLOT);
+        int mask = slots.length - 1;
+        int[] key = new int[keyParts];
+        for (int group = 0; group < groupCount; group++) {
+            System.arraycopy(keys, group * keyParts, key, 0, keyParts);
+            int slot = hash(key) & mask;
+            while (slots[slot] != EMPTY_SLOT) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = group;
+        }
+    }
+}
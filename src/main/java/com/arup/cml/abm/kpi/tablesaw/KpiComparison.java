@@ -0,0 +1,380 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.core.config.groups.ControllerConfigGroup.CompressionType;
+import org.matsim.core.utils.io.IOUtils;
+import tech.tablesaw.api.ColumnType;
+import tech.tablesaw.api.DoubleColumn;
+import tech.tablesaw.api.StringColumn;
+import tech.tablesaw.api.Table;
+import tech.tablesaw.io.csv.CsvReadOptions;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Differences between the KPIs written for a baseline and for a scenario, read from the two output
+ * directories: a delta of every KPI value, and link and person level differences behind the congestion, speed
+ * and affordability KPIs.
+ * <p>
+ * All differences are in long form, one row per key and measure with its baseline and scenario values and
+ * the scenario's value less the baseline's. Values only found in one of the runs are kept, with a missing
+ * delta.
+ */
+public class KpiComparison {
+    private static final Logger LOGGER = LogManager.getLogger(KpiComparison.class);
+    public static final String KPI_DELTAS = "comparison-kpis.csv";
+    public static final String LINK_CONGESTION = "comparison-link-congestion.csv";
+    public static final String LINK_SPEED = "comparison-link-speed.csv";
+    public static final String PERSON_AFFORDABILITY = "comparison-person-affordability.csv";
+    private static final String KPI_FILE_PREFIX = "kpi-";
+    private static final String CSV_FILE_ENDING = ".csv";
+    private static final String LEGS_FILE = "supporting-data-legs.csv";
+    // columns that identify rows of KPI tables even though their values may be numbers
+    private static final Set<String> KEY_COLUMNS = Set.of("linkID", "mode", "hour", "person", "facility_id");
+    private static final double DELTA_PRECISION = 1e6;
+
+    private final Path baselineDirectory;
+    private final Path scenarioDirectory;
+    private final CompressionType compressionType;
+
+    public KpiComparison(Path baselineDirectory, Path scenarioDirectory, CompressionType compressionType) {
+        this.baselineDirectory = baselineDirectory;
+        this.scenarioDirectory = scenarioDirectory;
+        this.compressionType = compressionType;
+    }
+
+    /**
+     * Writes the differences to {@code outputDirectory}, skipping any whose files were not written for both
+     * runs, as when only some of the KPIs were.
+     */
+    public void write(Path outputDirectory) {
+        LOGGER.info("Writing differences between the KPIs in {} and {} to {}",
+                new Object[]{baselineDirectory, scenarioDirectory, outputDirectory});
+        try {
+            Files.createDirectories(outputDirectory);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        TableWriter tableWriter = new TableWriter(compressionType, 1);
+        Map<String, Optional<Table>> differences = new LinkedHashMap<>();
+        differences.put(KPI_DELTAS, Optional.of(kpiDeltas()));
+        differences.put(LINK_CONGESTION, linkCongestion());
+        differences.put(LINK_SPEED, linkSpeed());
+        differences.put(PERSON_AFFORDABILITY, personAffordability());
+        differences.forEach((fileName, difference) -> {
+            if (difference.isPresent()) {
+                tableWriter.write(difference.get(), outputDirectory.resolve(fileName).toString());
+            } else {
+                LOGGER.warn("Not writing {}, the files it compares were not written for both runs", fileName);
+            }
+        });
+    }
+
+    /**
+     * The difference in every value of the KPI files written for both runs, keyed by the KPI file, the values
+     * of the row's key columns joined by {@code /}, and the value's column.
+     */
+    Table kpiDeltas() {
+        StringColumn kpis = StringColumn.create("kpi");
+        StringColumn keys = StringColumn.create("key");
+        StringColumn measures = StringColumn.create("measure");
+        DoubleColumn baselineValues = DoubleColumn.create("baseline");
+        DoubleColumn scenarioValues = DoubleColumn.create("scenario");
+        DoubleColumn deltas = DoubleColumn.create("delta");
+        for (String kpiFile : kpiFiles()) {
+            Optional<Table> baseline = read(baselineDirectory, kpiFile, column -> ColumnType.STRING);
+            Optional<Table> scenario = read(scenarioDirectory, kpiFile, column -> ColumnType.STRING);
+            if (baseline.isEmpty() || scenario.isEmpty()) {
+                LOGGER.warn("{} was only written for one of the runs, so is not compared", kpiFile);
+                continue;
+            }
+            List<String> keyColumns = keyColumns(baseline.get(), scenario.get());
+            Table difference = difference(kpiFile, baseline.get(), scenario.get(), keyColumns, "measure");
+            for (int row = 0; row < difference.rowCount(); row++) {
+                List<String> key = new ArrayList<>(keyColumns.size());
+                for (String keyColumn : keyColumns) {
+                    key.add(difference.stringColumn(keyColumn).get(row));
+                }
+                kpis.append(kpiFile.substring(KPI_FILE_PREFIX.length(), kpiFile.length() - CSV_FILE_ENDING.length()));
+                keys.append(String.join("/", key));
+                measures.append(difference.stringColumn("measure").get(row));
+                baselineValues.append(difference.doubleColumn("baseline").get(row));
+                scenarioValues.append(difference.doubleColumn("scenario").get(row));
+                deltas.append(difference.doubleColumn("delta").get(row));
+            }
+        }
+        return Table.create("KPI Deltas", kpis, keys, measures, baselineValues, scenarioValues, deltas);
+    }
+
+    /**
+     * The difference in mean delay ratio of each link, mode and hour.
+     */
+    Optional<Table> linkCongestion() {
+        return compare("Link Congestion Differences", "intermediate-congestion.csv",
+                List.of("linkID", "mode", "hour"), "measure");
+    }
+
+    /**
+     * The difference in mean speed of each link and hour.
+     */
+    Optional<Table> linkSpeed() {
+        return compare("Link Speed Differences", "kpi-speed.csv", List.of("linkID"), "hour");
+    }
+
+    /**
+     * The difference in daily monetary cost of travel of each person, summed over their legs.
+     */
+    Optional<Table> personAffordability() {
+        Optional<Table> baselineCosts = dailyMonetaryCosts(baselineDirectory);
+        Optional<Table> scenarioCosts = dailyMonetaryCosts(scenarioDirectory);
+        if (baselineCosts.isEmpty() || scenarioCosts.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(difference("Person Affordability Differences",
+                baselineCosts.get(), scenarioCosts.get(), List.of("person"), "measure"));
+    }
+
+    private Optional<Table> compare(String name, String fileName, List<String> keyColumns, String measureColumn) {
+        Optional<Table> baseline = read(baselineDirectory, fileName, column -> ColumnType.STRING);
+        Optional<Table> scenario = read(scenarioDirectory, fileName, column -> ColumnType.STRING);
+        if (baseline.isEmpty() || scenario.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(difference(name, baseline.get(), scenario.get(), keyColumns, measureColumn));
+    }
+
+    /**
+     * Sums the monetary cost of each person's legs line by line as the legs file is read, so that only the
+     * totals are held and not the legs themselves, which can be many.
+     */
+    private Optional<Table> dailyMonetaryCosts(Path directory) {
+        Path file = directory.resolve(LEGS_FILE + compressionType.fileEnding);
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+        Map<String, Double> costs = new LinkedHashMap<>();
+        try (BufferedReader reader = openReader(file)) {
+            String headerLine = reader.readLine();
+            List<String> header = headerLine == null ? List.of() : MatsimCsvReader.splitLine(headerLine, ',');
+            int personColumn = columnIndex(file, header, "person");
+            int costColumn = columnIndex(file, header, "monetaryCostOfTravel");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                List<String> fields = MatsimCsvReader.splitLine(line, ',');
+                String cost = costColumn < fields.size() ? fields.get(costColumn) : "";
+                costs.merge(fields.get(personColumn),
+                        MatsimCsvReader.isMissing(cost) ? 0.0 : Double.parseDouble(cost), Double::sum);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Failed to read %s", file), e);
+        }
+        StringColumn person = StringColumn.create("person");
+        StringColumn dailyCost = StringColumn.create("daily_monetary_cost");
+        costs.forEach((personId, cost) -> {
+            person.append(personId);
+            dailyCost.append(String.valueOf(cost));
+        });
+        return Optional.of(Table.create("Daily Monetary Travel Cost", person, dailyCost));
+    }
+
+    private static int columnIndex(Path file, List<String> header, String column) {
+        int index = header.indexOf(column);
+        if (index < 0) {
+            throw new IllegalStateException(String.format("%s has no '%s' column", file, column));
+        }
+        return index;
+    }
+
+    /**
+     * One row per key and non key column found in either table, with the column's name in
+     * {@code measureColumn}. Rows are in the order their keys are first found in the baseline, then the
+     * scenario. Non key values are parsed as numbers, with empty values missing.
+     */
+    static Table difference(String name, Table baseline, Table scenario, List<String> keyColumns,
+                            String measureColumn) {
+        Set<String> measures = new LinkedHashSet<>();
+        for (Table table : List.of(baseline, scenario)) {
+            for (String column : table.columnNames()) {
+                if (!keyColumns.contains(column)) {
+                    measures.add(column);
+                }
+            }
+        }
+        Map<List<String>, Integer> baselineRows = rowsByKey(baseline, keyColumns);
+        Map<List<String>, Integer> scenarioRows = rowsByKey(scenario, keyColumns);
+        Set<List<String>> allKeys = new LinkedHashSet<>(baselineRows.keySet());
+        allKeys.addAll(scenarioRows.keySet());
+
+        List<StringColumn> keys = new ArrayList<>();
+        for (String keyColumn : keyColumns) {
+            keys.add(StringColumn.create(keyColumn));
+        }
+        StringColumn measureNames = StringColumn.create(measureColumn);
+        DoubleColumn baselineValues = DoubleColumn.create("baseline");
+        DoubleColumn scenarioValues = DoubleColumn.create("scenario");
+        DoubleColumn deltas = DoubleColumn.create("delta");
+        for (List<String> key : allKeys) {
+            for (String measure : measures) {
+                double baselineValue = value(baseline, baselineRows.get(key), measure);
+                double scenarioValue = value(scenario, scenarioRows.get(key), measure);
+                if (Double.isNaN(baselineValue) && Double.isNaN(scenarioValue)) {
+                    continue;
+                }
+                for (int i = 0; i < keys.size(); i++) {
+                    keys.get(i).append(key.get(i));
+                }
+                measureNames.append(measure);
+                baselineValues.append(baselineValue);
+                scenarioValues.append(scenarioValue);
+                deltas.append(delta(baselineValue, scenarioValue));
+            }
+        }
+        Table difference = Table.create(name);
+        keys.forEach(difference::addColumns);
+        return difference.addColumns(measureNames, baselineValues, scenarioValues, deltas);
+    }
+
+    private static double delta(double baselineValue, double scenarioValue) {
+        if (Double.isNaN(baselineValue) || Double.isNaN(scenarioValue)) {
+            return Double.NaN;
+        }
+        // values are usually rounded, so rounding the delta keeps floating point noise out of it
+        return Math.round((scenarioValue - baselineValue) * DELTA_PRECISION) / DELTA_PRECISION;
+    }
+
+    private static Map<List<String>, Integer> rowsByKey(Table table, List<String> keyColumns) {
+        Map<List<String>, Integer> rows = new LinkedHashMap<>();
+        for (int row = 0; row < table.rowCount(); row++) {
+            List<String> key = new ArrayList<>(keyColumns.size());
+            for (String keyColumn : keyColumns) {
+                key.add(table.containsColumn(keyColumn) ? table.stringColumn(keyColumn).get(row) : "");
+            }
+            if (rows.putIfAbsent(key, row) != null) {
+                throw new IllegalArgumentException(String.format(
+                        "Table %s has more than one row keyed %s by %s, so cannot be compared",
+                        table.name(), key, keyColumns));
+            }
+        }
+        return rows;
+    }
+
+    private static double value(Table table, Integer row, String column) {
+        if (row == null || !table.containsColumn(column)) {
+            return Double.NaN;
+        }
+        String value = table.stringColumn(column).get(row);
+        return value.isEmpty() ? Double.NaN : Double.parseDouble(value);
+    }
+
+    private static List<String> keyColumns(Table baseline, Table scenario) {
+        Set<String> keyColumns = new LinkedHashSet<>();
+        for (Table table : List.of(baseline, scenario)) {
+            for (String column : table.columnNames()) {
+                if (KEY_COLUMNS.contains(column) || !isNumeric(table.stringColumn(column))) {
+                    keyColumns.add(column);
+                }
+            }
+        }
+        return new ArrayList<>(keyColumns);
+    }
+
+    private static boolean isNumeric(StringColumn column) {
+        for (String value : column) {
+            if (value.isEmpty()) {
+                continue;
+            }
+            try {
+                Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Set<String> kpiFiles() {
+        Set<String> kpiFiles = new TreeSet<>();
+        for (Path directory : List.of(baselineDirectory, scenarioDirectory)) {
+            try (Stream<Path> files = Files.list(directory)) {
+                files.map(file -> file.getFileName().toString())
+                        .filter(file -> file.startsWith(KPI_FILE_PREFIX)
+                                && file.endsWith(CSV_FILE_ENDING + compressionType.fileEnding))
+                        .map(file -> file.substring(0, file.length() - compressionType.fileEnding.length()))
+                        .forEach(kpiFiles::add);
+            } catch (IOException e) {
+                throw new IllegalStateException(String.format("Failed to list %s", directory), e);
+            }
+        }
+        return kpiFiles;
+    }
+
+    private Optional<Table> read(Path directory, String fileName, Function<String, ColumnType> columnTypes) {
+        Path file = directory.resolve(fileName + compressionType.fileEnding);
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+        Optional<String> singleValue = singleValue(file);
+        if (singleValue.isPresent()) {
+            return Optional.of(Table.create(fileName, StringColumn.create("value", singleValue.get())));
+        }
+        // every column is given a type, so that Tablesaw reads the stream once without caching it to guess them
+        try (InputStream stream = IOUtils.getInputStream(IOUtils.getFileUrl(file.toString()))) {
+            CsvReadOptions options = CsvReadOptions.builder(stream)
+                    .tableName(fileName)
+                    .header(true)
+                    .columnTypes(columnTypes)
+                    .build();
+            return Optional.of(Table.read().usingOptions(options));
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Failed to read %s", file), e);
+        }
+    }
+
+    /**
+     * The value of a KPI written as a single number without a header, told apart from a table by a first line
+     * without a separator and nothing after it, or empty for a table.
+     */
+    private static Optional<String> singleValue(Path file) {
+        try (BufferedReader reader = openReader(file)) {
+            String firstLine = reader.readLine();
+            String value = firstLine == null ? "" : firstLine.strip();
+            if (value.contains(",")) {
+                return Optional.empty();
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    return Optional.empty();
+                }
+            }
+            return Optional.of(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Failed to read %s", file), e);
+        }
+    }
+
+    private static BufferedReader openReader(Path file) {
+        return new BufferedReader(new InputStreamReader(
+                IOUtils.getInputStream(IOUtils.getFileUrl(file.toString())), StandardCharsets.UTF_8));
+    }
+}
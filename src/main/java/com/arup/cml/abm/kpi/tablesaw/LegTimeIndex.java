@@ -0,0 +1,98 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Groups leg rows by person, sorted by departure time, so that the legs a person was on at a given
+ * time can be found with a binary search over that person's legs instead of a scan of every leg.
+ */
+class LegTimeIndex {
+    private final Map<String, Integer> personCodes = new HashMap<>();
+    private final double[] arrivalTimes;
+    // leg rows grouped by person, person p's legs are rows[personOffsets[p]] to rows[personOffsets[p + 1] - 1]
+    private final int[] personOffsets;
+    private final int[] rows;
+    private final double[] sortedDepartureTimes;
+    // latest arrival time among a person's legs up to and including each position
+    private final double[] latestArrivalTimes;
+
+    LegTimeIndex(String[] persons, double[] departureTimes, double[] arrivalTimes) {
+        this.arrivalTimes = arrivalTimes;
+        int legCount = persons.length;
+        int[] legPersonCodes = new int[legCount];
+        for (int row = 0; row < legCount; row++) {
+            legPersonCodes[row] = personCodes.computeIfAbsent(persons[row], k -> personCodes.size());
+        }
+
+        // counting sort of leg rows by person, keeping file order within a person
+        personOffsets = new int[personCodes.size() + 1];
+        for (int row = 0; row < legCount; row++) {
+            personOffsets[legPersonCodes[row] + 1]++;
+        }
+        for (int person = 0; person < personCodes.size(); person++) {
+            personOffsets[person + 1] += personOffsets[person];
+        }
+        rows = new int[legCount];
+        int[] nextPosition = personOffsets.clone();
+        for (int row = 0; row < legCount; row++) {
+            rows[nextPosition[legPersonCodes[row]]++] = row;
+        }
+
+        sortedDepartureTimes = new double[legCount];
+        latestArrivalTimes = new double[legCount];
+        for (int person = 0; person < personCodes.size(); person++) {
+            int start = personOffsets[person];
+            int end = personOffsets[person + 1];
+            // a person only has a handful of legs, which are usually already in departure order
+            for (int i = start + 1; i < end; i++) {
+                int row = rows[i];
+                int j = i - 1;
+                while (j >= start && departureTimes[rows[j]] > departureTimes[row]) {
+                    rows[j + 1] = rows[j];
+                    j--;
+                }
+                rows[j + 1] = row;
+            }
+            double latestArrival = Double.NEGATIVE_INFINITY;
+            for (int i = start; i < end; i++) {
+                sortedDepartureTimes[i] = departureTimes[rows[i]];
+                // a leg with no arrival time spans no time, and Math.max would carry it into every later leg
+                if (!Double.isNaN(arrivalTimes[rows[i]])) {
+                    latestArrival = Math.max(latestArrival, arrivalTimes[rows[i]]);
+                }
+                latestArrivalTimes[i] = latestArrival;
+            }
+        }
+    }
+
+    /**
+     * Passes the rows of the legs of {@code person} that departed strictly before {@code time} and
+     * arrived at or after it to {@code legRowConsumer}.
+     */
+    void forEachLegSpanning(String person, double time, IntConsumer legRowConsumer) {
+        Integer personCode = personCodes.get(person);
+        if (personCode == null) {
+            return;
+        }
+        int start = personOffsets[personCode];
+        int end = personOffsets[personCode + 1];
+        // first position whose departure time is not before the given time
+        int low = start;
+        int high = end;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedDepartureTimes[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for (int i = low - 1; i >= start && latestArrivalTimes[i] >= time; i--) {
+            if (arrivalTimes[rows[i]] >= time) {
+                legRowConsumer.accept(rows[i]);
+            }
+        }
+    }
+}
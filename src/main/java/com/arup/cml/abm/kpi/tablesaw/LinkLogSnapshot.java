@@ -0,0 +1,147 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.data.MoneyLog;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
+
+/**
+ * A binary snapshot of the link log and money log recorded from an events file, so that later runs over
+ * the same events can load them instead of parsing the events again. Snapshots are kept in a directory
+ * under a name derived from a hash of the events file's content, so a changed events file is never
+ * matched with a stale snapshot.
+ * <p>
+ * Snapshots are written to a temporary file that is then moved into place, and are read through
+ * memory-mapped windows over the file.
+ */
+public class LinkLogSnapshot {
+    private static final Logger LOGGER = LogManager.getLogger(LinkLogSnapshot.class);
+    private static final int MAGIC_NUMBER = 0x474C4C53;
+    private static final int FORMAT_VERSION = 2;
+    private static final long HASH_WINDOW_BYTES = 1L << 30;
+    private final Path file;
+    private final String eventsHash;
+
+    public LinkLogSnapshot(Path snapshotDirectory, Path eventsFile) {
+        this.eventsHash = hash(eventsFile);
+        this.file = snapshotDirectory.resolve(String.format("link-log-%s.snapshot", eventsHash));
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public boolean exists() {
+        return Files.isRegularFile(file);
+    }
+
+    public void write(ColumnarNetworkLinkLog linkLog, MoneyLog moneyLog) {
+        LOGGER.info("Writing link log snapshot to {}", file);
+        Path partFile = file.resolveSibling(file.getFileName() + ".part");
+        try {
+            Files.createDirectories(file.getParent());
+            try (SnapshotOutput output = new SnapshotOutput(partFile)) {
+                output.writeInt(MAGIC_NUMBER);
+                output.writeInt(FORMAT_VERSION);
+                output.writeString(eventsHash);
+                linkLog.writeTo(output);
+                writeMoneyLog(moneyLog, output);
+            }
+            Files.move(partFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Failed to write link log snapshot %s", file), e);
+        }
+        LOGGER.info("Finished writing link log snapshot to {}", file);
+    }
+
+    /**
+     * Reads the link log from the snapshot, adding the money log entries it holds to {@code moneyLog}.
+     * The link log read back should only be read from.
+     */
+    public ColumnarNetworkLinkLog read(MoneyLog moneyLog) {
+        LOGGER.info("Reading link log snapshot from {}", file);
+        try (SnapshotInput input = new SnapshotInput(file)) {
+            if (input.readInt() != MAGIC_NUMBER) {
+                throw new IllegalStateException(String.format("%s is not a link log snapshot", file));
+            }
+            int formatVersion = input.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IllegalStateException(String.format(
+                        "Link log snapshot %s has format version %d, but only version %d can be read",
+                        file, formatVersion, FORMAT_VERSION));
+            }
+            String snapshotEventsHash = input.readString();
+            if (!snapshotEventsHash.equals(eventsHash)) {
+                throw new IllegalStateException(String.format(
+                        "Link log snapshot %s was recorded from different events", file));
+            }
+            ColumnarNetworkLinkLog linkLog = ColumnarNetworkLinkLog.readFrom(input);
+            readMoneyLog(input, moneyLog);
+            LOGGER.info("Read {} link log entries and {} vehicle occupancy records from snapshot {}",
+                    linkLog.getLinkLogSize(), linkLog.getVehicleOccupancySize(), file);
+            return linkLog;
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Failed to read link log snapshot %s", file), e);
+        }
+    }
+
+    private static void writeMoneyLog(MoneyLog moneyLog, SnapshotOutput output) throws IOException {
+        Map<String, Map<Double, Double>> moneyLogData = moneyLog.getMoneyLogData();
+        output.writeInt(moneyLogData.size());
+        for (Map.Entry<String, Map<Double, Double>> personLog : moneyLogData.entrySet()) {
+            output.writeString(personLog.getKey());
+            output.writeInt(personLog.getValue().size());
+            for (Map.Entry<Double, Double> entry : personLog.getValue().entrySet()) {
+                output.writeDouble(entry.getKey());
+                output.writeDouble(entry.getValue());
+            }
+        }
+    }
+
+    private static void readMoneyLog(SnapshotInput input, MoneyLog moneyLog) throws IOException {
+        // entries are added back in the order they were iterated in, which keeps the iteration order of
+        // the money log, and so the order costs are summed in, the same as in the run that wrote it
+        int personCount = input.readInt();
+        for (int i = 0; i < personCount; i++) {
+            String person = input.readString();
+            int entryCount = input.readInt();
+            for (int j = 0; j < entryCount; j++) {
+                double time = input.readDouble();
+                double amount = input.readDouble();
+                moneyLog.createMoneyLogEntry(person, time, amount);
+            }
+        }
+    }
+
+    /**
+     * A hash of the content of {@code file}, as snapshots are keyed by.
+     */
+    public static String hash(Path file) {
+        LOGGER.info("Hashing {}", file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            long size = channel.size();
+            for (long position = 0; position < size; position += HASH_WINDOW_BYTES) {
+                MappedByteBuffer window = channel.map(
+                        FileChannel.MapMode.READ_ONLY, position, Math.min(HASH_WINDOW_BYTES, size - position));
+                digest.update(window);
+            }
+            // half of the digest is plenty to tell files apart
+            return HexFormat.of().formatHex(Arrays.copyOf(digest.digest(), 16));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException(String.format("Failed to hash %s", file), e);
+        }
+    }
+}
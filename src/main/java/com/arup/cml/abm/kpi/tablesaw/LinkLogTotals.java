@@ -0,0 +1,277 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.data.StringDictionary;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.Vehicles;
+import tech.tablesaw.api.DoubleColumn;
+import tech.tablesaw.api.IntColumn;
+import tech.tablesaw.api.StringColumn;
+import tech.tablesaw.api.Table;
+
+import java.util.Arrays;
+
+/**
+ * Running totals of completed link log entries, which is all the link based KPIs (occupancy rate, vehicle km,
+ * GHG, speed and congestion) need: per vehicle, the number of entries, the people carried over them and the
+ * length of network travelled; and per link, hour and mode, the sums and counts of the travel speeds and delay
+ * ratios of the entries. They take memory in proportion to the network and fleet rather than to the number of
+ * entries.
+ * <p>
+ * Vehicles and links are handed over as codes of the caller's dictionaries, and are looked up in the network and
+ * vehicles the first time each is seen. Entries are attributed the same way {@link TablesawKpiCalculator}
+ * attributes link log rows: to the hour their end time falls in and to the mode of their vehicle in the MATSim
+ * vehicles, whatever mode the vehicle entered traffic with.
+ */
+class LinkLogTotals {
+    private static final Logger LOGGER = LogManager.getLogger(LinkLogTotals.class);
+    private static final int INITIAL_CAPACITY = 1024;
+    // the mode of vehicles missing from the MATSim vehicles, which is missing in the KPI tables too
+    private static final String MISSING_MODE = "";
+    private static final byte LINK_NOT_LOOKED_UP = 0;
+    private static final byte LINK_ON_NETWORK = 1;
+    private static final byte LINK_OFF_NETWORK = 2;
+    private static final int MODE_NOT_LOOKED_UP = -1;
+
+    private final Network network;
+    private final Vehicles vehicles;
+    private final StringDictionary linkIds;
+    private final StringDictionary vehicleIds;
+    private final StringDictionary modes = new StringDictionary();
+
+    // network attributes, indexed by link code
+    private byte[] linkStates = new byte[0];
+    private double[] linkLengths = new double[0];
+    private double[] linkFreespeeds = new double[0];
+
+    // per-vehicle totals of completed entries, indexed by vehicle code
+    private int[] vehicleModes = new int[0];
+    private int[] vehicleEntries = new int[0];
+    private long[] vehiclePeople = new long[0];
+    private int[] vehicleNetworkEntries = new int[0];
+    private double[] vehicleNetworkLengths = new double[0];
+
+    // totals by link, hour and mode, one element per group in order of first appearance
+    private final IntKeyGroupBy groups = new IntKeyGroupBy(3, 0);
+    private final int[] groupKey = new int[3];
+    private double[] speedSums = new double[INITIAL_CAPACITY];
+    private int[] speedCounts = new int[INITIAL_CAPACITY];
+    private double[] delayRatioSums = new double[INITIAL_CAPACITY];
+    private int[] delayRatioCounts = new int[INITIAL_CAPACITY];
+
+    private long entriesOffNetwork = 0;
+    private long incompleteEntries = 0;
+    private long entriesWithUnusableEndTimes = 0;
+
+    LinkLogTotals(Network network, Vehicles vehicles, StringDictionary linkIds, StringDictionary vehicleIds) {
+        this.network = network;
+        this.vehicles = vehicles;
+        this.linkIds = linkIds;
+        this.vehicleIds = vehicleIds;
+    }
+
+    /**
+     * Adds a completed link log entry of {@code vehicle} on {@code link} to the totals.
+     */
+    void addEntry(int vehicle, int link, double startTime, double endTime, int numberOfPeople) {
+        lookUpVehicle(vehicle);
+        vehicleEntries[vehicle]++;
+        vehiclePeople[vehicle] += numberOfPeople;
+        if (lookUpLink(link) == LINK_OFF_NETWORK) {
+            entriesOffNetwork++;
+            return;
+        }
+        double length = linkLengths[link];
+        double freespeed = linkFreespeeds[link];
+        double travelTime = endTime - startTime;
+        if (!Double.isNaN(length)) {
+            vehicleNetworkEntries[vehicle]++;
+            vehicleNetworkLengths[vehicle] += length;
+        }
+        boolean usableLength = Double.isFinite(length);
+        boolean usableFreespeed = Double.isFinite(freespeed);
+        if (!usableLength && !usableFreespeed) {
+            return;
+        }
+        if (Double.isInfinite(endTime) || endTime < 0) {
+            // there is no hour to total them in
+            entriesWithUnusableEndTimes++;
+            return;
+        }
+        int group = group(link, (int) Math.floor(endTime / (60 * 60)), vehicleModes[vehicle]);
+        if (usableLength) {
+            speedSums[group] += length / 1000 / (travelTime / (60 * 60));
+            speedCounts[group]++;
+        }
+        double delayRatio = travelTime / (length / freespeed);
+        // a link of missing length has no free flow time, so no delay ratio to average
+        if (usableFreespeed && !Double.isNaN(delayRatio)) {
+            delayRatioSums[group] += delayRatio;
+            delayRatioCounts[group]++;
+        }
+    }
+
+    /**
+     * Counts a link log entry that was never completed, which is left out of the totals.
+     */
+    void addIncompleteEntry() {
+        incompleteEntries++;
+    }
+
+    /**
+     * Logs how many entries were left out of the totals since this was last called.
+     */
+    void logLeftOutEntries() {
+        if (incompleteEntries > 0) {
+            LOGGER.warn("{} link log entries were never completed - some vehicles were stuck and did not " +
+                    "complete their journey. These entries were left out.", incompleteEntries);
+            incompleteEntries = 0;
+        }
+        if (entriesOffNetwork > 0) {
+            LOGGER.warn("{} link log entries are on links missing from the network and will be left out of " +
+                    "link based KPIs", entriesOffNetwork);
+            entriesOffNetwork = 0;
+        }
+        if (entriesWithUnusableEndTimes > 0) {
+            LOGGER.warn("{} link log entries end at an infinite or negative time and will be left out of the " +
+                    "speeds and delay ratios", entriesWithUnusableEndTimes);
+            entriesWithUnusableEndTimes = 0;
+        }
+    }
+
+    int getGroupCount() {
+        return groups.getGroupCount();
+    }
+
+    /**
+     * One row per vehicle that completed a link log entry, with the number of entries it completed
+     * ({@code linkLogEntries}), the sum of the people aboard over them ({@code numberOfPeople}), and the number
+     * and total length of those on links of the network ({@code networkLinkLogEntries}, {@code length}).
+     */
+    Table getVehicleTotalsTable() {
+        int vehicleCodes = Math.min(vehicleEntries.length, vehicleIds.size());
+        int vehicleCount = 0;
+        for (int vehicle = 0; vehicle < vehicleCodes; vehicle++) {
+            if (vehicleEntries[vehicle] > 0) {
+                vehicleCount++;
+            }
+        }
+        String[] vehicleIDs = new String[vehicleCount];
+        int[] entries = new int[vehicleCount];
+        double[] people = new double[vehicleCount];
+        int[] networkEntries = new int[vehicleCount];
+        double[] lengths = new double[vehicleCount];
+        int row = 0;
+        for (int vehicle = 0; vehicle < vehicleCodes; vehicle++) {
+            if (vehicleEntries[vehicle] == 0) {
+                continue;
+            }
+            vehicleIDs[row] = vehicleIds.decode(vehicle);
+            entries[row] = vehicleEntries[vehicle];
+            people[row] = vehiclePeople[vehicle];
+            networkEntries[row] = vehicleNetworkEntries[vehicle];
+            lengths[row] = vehicleNetworkLengths[vehicle];
+            row++;
+        }
+        return Table.create("Vehicle Link Log Totals").addColumns(
+                StringColumn.create("vehicleID", vehicleIDs),
+                IntColumn.create("linkLogEntries", entries),
+                DoubleColumn.create("numberOfPeople", people),
+                IntColumn.create("networkLinkLogEntries", networkEntries),
+                DoubleColumn.create("length", lengths));
+    }
+
+    /**
+     * One row per link, hour and mode with at least one completed link log entry on a link of the network, with
+     * the sum and number of the travel speeds in km/h ({@code speedSum}, {@code speedCount}) and delay ratios
+     * ({@code delayRatioSum}, {@code delayRatioCount}) of those entries. Entries on links with an infinite or
+     * missing length are left out of the speeds, and those on links with an infinite or missing freespeed or a
+     * missing length out of the delay ratios.
+     */
+    Table getLinkHourTotalsTable() {
+        int groupCount = groups.getGroupCount();
+        String[] linkIDs = new String[groupCount];
+        int[] groupHours = new int[groupCount];
+        String[] groupModeNames = new String[groupCount];
+        for (int group = 0; group < groupCount; group++) {
+            linkIDs[group] = linkIds.decode(groups.getKey(group, 0));
+            groupHours[group] = groups.getKey(group, 1);
+            groupModeNames[group] = modes.decode(groups.getKey(group, 2));
+        }
+        StringColumn modeColumn = StringColumn.create("mode", groupModeNames);
+        for (int group = 0; group < groupCount; group++) {
+            if (MISSING_MODE.equals(groupModeNames[group])) {
+                modeColumn.setMissing(group);
+            }
+        }
+        return Table.create("Link Hour Totals").addColumns(
+                StringColumn.create("linkID", linkIDs),
+                modeColumn,
+                IntColumn.create("hour", groupHours),
+                DoubleColumn.create("speedSum", Arrays.copyOf(speedSums, groupCount)),
+                IntColumn.create("speedCount", Arrays.copyOf(speedCounts, groupCount)),
+                DoubleColumn.create("delayRatioSum", Arrays.copyOf(delayRatioSums, groupCount)),
+                IntColumn.create("delayRatioCount", Arrays.copyOf(delayRatioCounts, groupCount)));
+    }
+
+    private int group(int link, int hour, int mode) {
+        groupKey[0] = link;
+        groupKey[1] = hour;
+        groupKey[2] = mode;
+        int group = groups.group(groupKey);
+        if (group == speedSums.length) {
+            growGroups();
+        }
+        return group;
+    }
+
+    private byte lookUpLink(int link) {
+        if (link >= linkStates.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, Math.max(link + 1, linkStates.length * 2));
+            linkStates = Arrays.copyOf(linkStates, capacity);
+            linkLengths = Arrays.copyOf(linkLengths, capacity);
+            linkFreespeeds = Arrays.copyOf(linkFreespeeds, capacity);
+        }
+        if (linkStates[link] == LINK_NOT_LOOKED_UP) {
+            Link networkLink = network.getLinks().get(Id.createLinkId(linkIds.decode(link)));
+            if (networkLink == null) {
+                linkStates[link] = LINK_OFF_NETWORK;
+            } else {
+                linkStates[link] = LINK_ON_NETWORK;
+                linkLengths[link] = networkLink.getLength();
+                linkFreespeeds[link] = networkLink.getFreespeed();
+            }
+        }
+        return linkStates[link];
+    }
+
+    private void lookUpVehicle(int vehicle) {
+        if (vehicle >= vehicleModes.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, Math.max(vehicle + 1, vehicleModes.length * 2));
+            int previousCapacity = vehicleModes.length;
+            vehicleModes = Arrays.copyOf(vehicleModes, capacity);
+            vehicleEntries = Arrays.copyOf(vehicleEntries, capacity);
+            vehiclePeople = Arrays.copyOf(vehiclePeople, capacity);
+            vehicleNetworkEntries = Arrays.copyOf(vehicleNetworkEntries, capacity);
+            vehicleNetworkLengths = Arrays.copyOf(vehicleNetworkLengths, capacity);
+            Arrays.fill(vehicleModes, previousCapacity, capacity, MODE_NOT_LOOKED_UP);
+        }
+        if (vehicleModes[vehicle] == MODE_NOT_LOOKED_UP) {
+            Vehicle matsimVehicle = vehicles.getVehicles().get(Id.createVehicleId(vehicleIds.decode(vehicle)));
+            vehicleModes[vehicle] = modes.encode(
+                    matsimVehicle == null ? MISSING_MODE : matsimVehicle.getType().getNetworkMode());
+        }
+    }
+
+    private void growGroups() {
+        int capacity = speedSums.length * 2;
+        speedSums = Arrays.copyOf(speedSums, capacity);
+        speedCounts = Arrays.copyOf(speedCounts, capacity);
+        delayRatioSums = Arrays.copyOf(delayRatioSums, capacity);
+        delayRatioCounts = Arrays.copyOf(delayRatioCounts, capacity);
+    }
+}
@@ -0,0 +1,122 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.data.StringDictionary;
+import tech.tablesaw.api.DoubleColumn;
+import tech.tablesaw.api.StringColumn;
+import tech.tablesaw.api.Table;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * The mean speed on each link in each time bin, accumulated in a dense matrix of speed sums and counts with a
+ * row per link and a column per time bin, so that the speed KPI does not need a table of the speed of every
+ * link log entry to pivot by link and hour.
+ * <p>
+ * Time bins are numbered from midnight. Each time bin speeds were added to becomes a column of the speed table,
+ * in chronological order, named after the hour for hourly bins or the {@code HH:mm} the bin starts at
+ * otherwise.
+ */
+class LinkSpeedMatrix {
+    static final int SECONDS_IN_AN_HOUR = 60 * 60;
+
+    private final int binSeconds;
+    private final int binCount;
+    private final StringDictionary links = new StringDictionary();
+    private final boolean[] binsUsed;
+    private double[] speedSums = new double[0];
+    private int[] speedCounts = new int[0];
+
+    LinkSpeedMatrix(int binSeconds, int binCount) {
+        if (binSeconds < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Time bins have to be at least a second long, not %d seconds", binSeconds));
+        }
+        this.binSeconds = binSeconds;
+        this.binCount = binCount;
+        this.binsUsed = new boolean[binCount];
+    }
+
+    static int binOf(double time, int binSeconds) {
+        return (int) Math.floor(time / binSeconds);
+    }
+
+    /**
+     * Adds the speed of a link log entry, leaving speeds that are not a number out of the mean but keeping
+     * the link and time bin in the table.
+     */
+    void addSpeed(String linkId, int bin, double speed) {
+        int cell = cell(linkId, bin);
+        if (!Double.isNaN(speed)) {
+            speedSums[cell] += speed;
+            speedCounts[cell]++;
+        }
+    }
+
+    /**
+     * Adds the sum and count of speeds already totalled up for a link and time bin.
+     */
+    void addSpeeds(String linkId, int bin, double speedSum, int speedCount) {
+        int cell = cell(linkId, bin);
+        speedSums[cell] += speedSum;
+        speedCounts[cell] += speedCount;
+    }
+
+    int getLinkCount() {
+        return links.size();
+    }
+
+    /**
+     * A row per link, in link ID order, and a column of mean speeds per time bin, missing where no speed was
+     * added for the link in that bin.
+     */
+    Table toTable(String name) {
+        int[] linkOrder = IntStream.range(0, links.size())
+                .boxed()
+                .sorted(Comparator.comparing(links::decode))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        String[] linkIds = new String[linkOrder.length];
+        for (int row = 0; row < linkOrder.length; row++) {
+            linkIds[row] = links.decode(linkOrder[row]);
+        }
+        Table table = Table.create(name, StringColumn.create("linkID", linkIds));
+        for (int bin = 0; bin < binCount; bin++) {
+            if (!binsUsed[bin]) {
+                continue;
+            }
+            double[] meanSpeeds = new double[linkOrder.length];
+            for (int row = 0; row < linkOrder.length; row++) {
+                int cell = linkOrder[row] * binCount + bin;
+                meanSpeeds[row] = speedCounts[cell] == 0 ? Double.NaN : speedSums[cell] / speedCounts[cell];
+            }
+            table.addColumns(DoubleColumn.create(binName(bin), meanSpeeds));
+        }
+        return table;
+    }
+
+    private int cell(String linkId, int bin) {
+        if (bin < 0 || bin >= binCount) {
+            throw new IllegalArgumentException(String.format(
+                    "Time bin %d is outside the %d bins of %d seconds speeds are kept for", bin, binCount, binSeconds));
+        }
+        int link = links.encode(linkId);
+        int cells = links.size() * binCount;
+        if (cells > speedSums.length) {
+            int capacity = Math.max(cells, speedSums.length * 2);
+            speedSums = Arrays.copyOf(speedSums, capacity);
+            speedCounts = Arrays.copyOf(speedCounts, capacity);
+        }
+        binsUsed[bin] = true;
+        return link * binCount + bin;
+    }
+
+    private String binName(int bin) {
+        if (binSeconds == SECONDS_IN_AN_HOUR) {
+            return String.valueOf(bin);
+        }
+        long binStart = (long) bin * binSeconds;
+        return String.format("%02d:%02d", binStart / SECONDS_IN_AN_HOUR, binStart % SECONDS_IN_AN_HOUR / 60);
+    }
+}
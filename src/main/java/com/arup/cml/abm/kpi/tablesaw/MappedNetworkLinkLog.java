@@ -0,0 +1,96 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A {@link NetworkLinkLog} that keeps link log entries as fixed-width records in a memory-mapped file, so
+ * the heap only has to hold the ID dictionaries, the per-vehicle state and the vehicle occupancy intervals
+ * (one per boarding) however many link log entries are recorded.
+ * <p>
+ * The file is scratch space for a single run; it is deleted when the link log is closed.
+ */
+public class MappedNetworkLinkLog extends EncodedNetworkLinkLog implements Closeable {
+    public static final String LINK_LOG_FILE_NAME = "link-log.records";
+
+    // link log record layout, doubles are kept 8-byte aligned
+    private static final int LINK = 0;
+    private static final int VEHICLE = 4;
+    private static final int MODE = 8;
+    private static final int NUMBER_OF_PEOPLE = 12;
+    private static final int START_TIME = 16;
+    private static final int END_TIME = 24;
+    private static final int LINK_LOG_RECORD_BYTES = 32;
+
+    private final MappedRecordFile linkLog;
+
+    public MappedNetworkLinkLog(Path directory) {
+        this(directory, MappedRecordFile.DEFAULT_SEGMENT_BYTES);
+    }
+
+    MappedNetworkLinkLog(Path directory, long segmentBytes) {
+        try {
+            Files.createDirectories(directory);
+            this.linkLog = new MappedRecordFile(directory.resolve(LINK_LOG_FILE_NAME),
+                    LINK_LOG_RECORD_BYTES, (int) (segmentBytes / LINK_LOG_RECORD_BYTES));
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Failed to create link log file in %s", directory), e);
+        }
+    }
+
+    @Override
+    void putEntry(int index, int link, int vehicle, int mode, double startTime) {
+        linkLog.ensureCapacity(index + 1L);
+        linkLog.putInt(index, LINK, link);
+        linkLog.putInt(index, VEHICLE, vehicle);
+        linkLog.putInt(index, MODE, mode);
+        linkLog.putInt(index, NUMBER_OF_PEOPLE, NO_ENTRY);
+        linkLog.putDouble(index, START_TIME, startTime);
+        linkLog.putDouble(index, END_TIME, Double.NaN);
+    }
+
+    @Override
+    void putCompletion(int index, double endTime, int numberOfPeople) {
+        linkLog.putDouble(index, END_TIME, endTime);
+        linkLog.putInt(index, NUMBER_OF_PEOPLE, numberOfPeople);
+    }
+
+    @Override
+    int linkOf(int index) {
+        return linkLog.getInt(index, LINK);
+    }
+
+    @Override
+    int vehicleOf(int index) {
+        return linkLog.getInt(index, VEHICLE);
+    }
+
+    @Override
+    int modeOf(int index) {
+        return linkLog.getInt(index, MODE);
+    }
+
+    @Override
+    double startTimeOf(int index) {
+        return linkLog.getDouble(index, START_TIME);
+    }
+
+    @Override
+    double endTimeOf(int index) {
+        return linkLog.getDouble(index, END_TIME);
+    }
+
+    @Override
+    int numberOfPeopleOf(int index) {
+        return linkLog.getInt(index, NUMBER_OF_PEOPLE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        linkLog.close();
+    }
+}
@@ -0,0 +1,87 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A file of fixed-width records, memory-mapped in segments that are added as the file grows, so that
+ * records can be appended and updated in place without being held on the heap. Each segment holds a
+ * whole number of records, so no record straddles two mappings. The file is deleted when closed.
+ */
+class MappedRecordFile implements Closeable {
+    static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+    private final Path file;
+    private final FileChannel channel;
+    private final int recordBytes;
+    private final int recordsPerSegment;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+    MappedRecordFile(Path file, int recordBytes, int recordsPerSegment) throws IOException {
+        this.file = file;
+        this.recordBytes = recordBytes;
+        this.recordsPerSegment = recordsPerSegment;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Maps enough segments to hold {@code records} records, growing the file as needed.
+     */
+    void ensureCapacity(long records) {
+        long segmentBytes = (long) recordsPerSegment * recordBytes;
+        try {
+            while ((long) segments.size() * recordsPerSegment < records) {
+                MappedByteBuffer segment = channel.map(
+                        FileChannel.MapMode.READ_WRITE, segments.size() * segmentBytes, segmentBytes);
+                // the file never outlives the run, so it is laid out in whatever order is fastest here
+                segment.order(ByteOrder.nativeOrder());
+                segments.add(segment);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Failed to grow %s to %d records", file, records), e);
+        }
+    }
+
+    int getInt(long record, int fieldOffset) {
+        return segment(record).getInt(position(record, fieldOffset));
+    }
+
+    void putInt(long record, int fieldOffset, int value) {
+        segment(record).putInt(position(record, fieldOffset), value);
+    }
+
+    double getDouble(long record, int fieldOffset) {
+        return segment(record).getDouble(position(record, fieldOffset));
+    }
+
+    void putDouble(long record, int fieldOffset, double value) {
+        segment(record).putDouble(position(record, fieldOffset), value);
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    private MappedByteBuffer segment(long record) {
+        return segments.get((int) (record / recordsPerSegment));
+    }
+
+    private int position(long record, int fieldOffset) {
+        return (int) (record % recordsPerSegment) * recordBytes + fieldOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        segments.clear();
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+}
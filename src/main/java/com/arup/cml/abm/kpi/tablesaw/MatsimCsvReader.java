@@ -0,0 +1,491 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.RunProfile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.core.utils.misc.Time;
+import tech.tablesaw.api.DoubleColumn;
+import tech.tablesaw.api.IntColumn;
+import tech.tablesaw.api.StringColumn;
+import tech.tablesaw.api.Table;
+import tech.tablesaw.columns.Column;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads MATSim's semicolon separated output CSVs (legs, trips and persons) into typed Tablesaw columns
+ * using a fixed {@link Schema}, rather than inferring column types from the data. Columns that are not
+ * in the schema are never parsed, and schema columns missing from a file are left out of the table.
+ * <p>
+ * Lines are read (and so decompressed) on the calling thread and handed out in chunks to be parsed on a
+ * pool of threads; chunks are put back together in file order, so the table is the same whatever the
+ * number of threads. As with Tablesaw's own reader, empty values and "NaN", "*", "NA" and "null" are read
+ * as missing. Quoted values may contain separators, but not line breaks.
+ */
+class MatsimCsvReader {
+    private static final Logger LOGGER = LogManager.getLogger(MatsimCsvReader.class);
+    private static final char SEPARATOR = ';';
+    private static final char QUOTE = '"';
+    private static final Set<String> MISSING_VALUES = Set.of("", "NaN", "*", "NA", "null");
+    static final int DEFAULT_CHUNK_LINES = 1 << 14;
+    /**
+     * A missing time in the seconds and hour columns, which is Tablesaw's missing int. It is not a time, so
+     * arithmetic on those columns has to check for it rather than add it up.
+     */
+    static final int MISSING_TIME = Integer.MIN_VALUE;
+    private static final int NO_COLUMN = -1;
+
+    static final Schema LEGS = new Schema()
+            .string("person")
+            .string("trip_id")
+            .string("dep_time")
+            .string("trav_time")
+            .string("wait_time")
+            .timeInSeconds("dep_time")
+            .timeInSeconds("trav_time")
+            .timeInSeconds("wait_time")
+            .hourOf("dep_time", "dep_hour")
+            .integer("distance")
+            .string("mode")
+            .string("access_stop_id");
+
+    static final Schema TRIPS = new Schema()
+            .string("person")
+            .integer("trip_number")
+            .string("trip_id")
+            .string("dep_time")
+            .string("trav_time")
+            .string("wait_time")
+            .timeInSeconds("dep_time")
+            .timeInSeconds("trav_time")
+            .timeInSeconds("wait_time")
+            .hourOf("dep_time", "dep_hour")
+            .integer("traveled_distance")
+            .string("longest_distance_mode")
+            .string("start_activity_type")
+            .string("end_activity_type")
+            .string("start_facility_id")
+            .string("start_link")
+            .decimal("start_x")
+            .decimal("start_y")
+            .string("end_facility_id")
+            .string("end_link")
+            .decimal("end_x")
+            .decimal("end_y")
+            .string("first_pt_boarding_stop");
+
+    static final Schema PERSONS = new Schema()
+            .string("person")
+            .decimal("income")
+            .string("subpopulation");
+
+    private final int threads;
+    private final int chunkLines;
+
+    MatsimCsvReader(int threads) {
+        this(threads, DEFAULT_CHUNK_LINES);
+    }
+
+    MatsimCsvReader(int threads, int chunkLines) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed to read CSV files");
+        }
+        this.threads = threads;
+        this.chunkLines = chunkLines;
+    }
+
+    Table read(InputStream inputStream, Schema schema, String tableName) {
+        LOGGER.info("Reading '{}' table from CSV input stream on {} thread(s)", tableName, threads);
+        ExecutorService parsers = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            String headerLine = reader.readLine();
+            if (headerLine == null) {
+                throw new IllegalStateException(String.format("The CSV input for the '%s' table is empty", tableName));
+            }
+            List<SchemaColumn> columns = schema.columnsIn(splitLine(headerLine));
+
+            List<ParsedChunk> parsedChunks = new ArrayList<>();
+            Deque<Future<ParsedChunk>> chunksInFlight = new ArrayDeque<>();
+            List<String> lines = new ArrayList<>(chunkLines);
+            int firstRow = 1;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+                if (lines.size() == chunkLines) {
+                    submitChunk(parsers, columns, lines, firstRow, parsedChunks, chunksInFlight);
+                    firstRow += lines.size();
+                    lines = new ArrayList<>(chunkLines);
+                }
+            }
+            submitChunk(parsers, columns, lines, firstRow, parsedChunks, chunksInFlight);
+            while (!chunksInFlight.isEmpty()) {
+                parsedChunks.add(chunksInFlight.removeFirst().get());
+            }
+
+            Table table = Table.create(tableName);
+            for (int c = 0; c < columns.size(); c++) {
+                table.addColumns(columns.get(c).assemble(parsedChunks, c));
+            }
+            LOGGER.info("Read {} rows of {} columns into the '{}' table", table.rowCount(), columns.size(), tableName);
+            return table;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(String.format("Interrupted while reading the '%s' table", tableName), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            if (parsers != null) {
+                parsers.shutdownNow();
+            }
+        }
+    }
+
+    private void submitChunk(ExecutorService parsers, List<SchemaColumn> columns, List<String> lines,
+                             int firstRow, List<ParsedChunk> parsedChunks,
+                             Deque<Future<ParsedChunk>> chunksInFlight)
+            throws InterruptedException, ExecutionException {
+        if (lines.isEmpty()) {
+            return;
+        }
+        if (parsers == null) {
+            parsedChunks.add(parseChunk(columns, lines, firstRow));
+            return;
+        }
+        chunksInFlight.addLast(parsers.submit(
+                RunProfile.onBehalfOfRunningPhases(() -> parseChunk(columns, lines, firstRow))));
+        // bound the number of unparsed lines held in memory
+        while (chunksInFlight.size() > threads * 2) {
+            parsedChunks.add(chunksInFlight.removeFirst().get());
+        }
+    }
+
+    private static ParsedChunk parseChunk(List<SchemaColumn> columns, List<String> lines, int firstRow) {
+        Object[] values = new Object[columns.size()];
+        for (int c = 0; c < columns.size(); c++) {
+            values[c] = columns.get(c).type.newValues(lines.size());
+        }
+        for (int row = 0; row < lines.size(); row++) {
+            List<String> fields = splitLine(lines.get(row));
+            for (int c = 0; c < columns.size(); c++) {
+                SchemaColumn column = columns.get(c);
+                if (column.secondsColumn != NO_COLUMN) {
+                    // the hour of a time already read in seconds, rather than parsing the time again
+                    int seconds = ((int[]) values[column.secondsColumn])[row];
+                    ((int[]) values[c])[row] = seconds == MISSING_TIME ? MISSING_TIME : seconds / 3600;
+                    continue;
+                }
+                String value = column.fieldIndex < fields.size() ? fields.get(column.fieldIndex).trim() : "";
+                try {
+                    column.type.parseInto(values[c], row, isMissing(value) ? null : value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalStateException(String.format(
+                            "Cannot read '%s' as a %s value of column '%s' in row %d",
+                            value, column.type, column.name, firstRow + row), e);
+                }
+            }
+        }
+        return new ParsedChunk(lines.size(), values);
+    }
+
+    static List<String> splitLine(String line) {
+        return splitLine(line, SEPARATOR);
+    }
+
+    /**
+     * Splits a line of a CSV file with {@code separator} between its fields, which may be quoted.
+     */
+    static List<String> splitLine(String line, char separator) {
+        List<String> fields = new ArrayList<>();
+        if (line.indexOf(QUOTE) < 0) {
+            int start = 0;
+            int end;
+            while ((end = line.indexOf(separator, start)) >= 0) {
+                fields.add(line.substring(start, end));
+                start = end + 1;
+            }
+            fields.add(line.substring(start));
+            return fields;
+        }
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char character = line.charAt(i);
+            if (quoted) {
+                if (character == QUOTE && i + 1 < line.length() && line.charAt(i + 1) == QUOTE) {
+                    field.append(QUOTE);
+                    i++;
+                } else if (character == QUOTE) {
+                    quoted = false;
+                } else {
+                    field.append(character);
+                }
+            } else if (character == QUOTE) {
+                quoted = true;
+            } else if (character == separator) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(character);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    static boolean isMissing(String value) {
+        return MISSING_VALUES.contains(value);
+    }
+
+    enum ColumnType {
+        STRING {
+            @Override
+            Object newValues(int size) {
+                return new String[size];
+            }
+
+            @Override
+            void parseInto(Object values, int row, String value) {
+                ((String[]) values)[row] = value;
+            }
+
+            @Override
+            Column<?> assemble(String name, List<ParsedChunk> chunks, int column) {
+                StringColumn assembled = StringColumn.create(name);
+                for (ParsedChunk chunk : chunks) {
+                    String[] values = (String[]) chunk.values[column];
+                    for (int row = 0; row < chunk.rows; row++) {
+                        if (values[row] == null) {
+                            assembled.appendMissing();
+                        } else {
+                            assembled.append(values[row]);
+                        }
+                    }
+                }
+                return assembled;
+            }
+        },
+        INTEGER {
+            @Override
+            Object newValues(int size) {
+                return new int[size];
+            }
+
+            @Override
+            void parseInto(Object values, int row, String value) {
+                ((int[]) values)[row] = value == null ? Integer.MIN_VALUE : Integer.parseInt(value);
+            }
+
+            @Override
+            Column<?> assemble(String name, List<ParsedChunk> chunks, int column) {
+                return IntColumn.create(name, concatenateInts(chunks, column));
+            }
+        },
+        DOUBLE {
+            @Override
+            Object newValues(int size) {
+                return new double[size];
+            }
+
+            @Override
+            void parseInto(Object values, int row, String value) {
+                ((double[]) values)[row] = value == null ? Double.NaN : Double.parseDouble(value);
+            }
+
+            @Override
+            Column<?> assemble(String name, List<ParsedChunk> chunks, int column) {
+                double[] assembled = new double[totalRows(chunks)];
+                int position = 0;
+                for (ParsedChunk chunk : chunks) {
+                    System.arraycopy(chunk.values[column], 0, assembled, position, chunk.rows);
+                    position += chunk.rows;
+                }
+                return DoubleColumn.create(name, assembled);
+            }
+        },
+        /**
+         * A MATSim time of day or duration, "HH:MM:SS", read as whole seconds.
+         */
+        TIME {
+            @Override
+            Object newValues(int size) {
+                return new int[size];
+            }
+
+            @Override
+            void parseInto(Object values, int row, String value) {
+                ((int[]) values)[row] = value == null ? MISSING_TIME : (int) Time.parseTime(value);
+            }
+
+            @Override
+            Column<?> assemble(String name, List<ParsedChunk> chunks, int column) {
+                return IntColumn.create(name, concatenateInts(chunks, column));
+            }
+        },
+        /**
+         * The hour of a MATSim time of day, so "09:03:04" is 9 and "25:10:00" (past midnight) is 25.
+         */
+        HOUR {
+            @Override
+            Object newValues(int size) {
+                return new int[size];
+            }
+
+            @Override
+            void parseInto(Object values, int row, String value) {
+                ((int[]) values)[row] = value == null ? MISSING_TIME : (int) Time.parseTime(value) / 3600;
+            }
+
+            @Override
+            Column<?> assemble(String name, List<ParsedChunk> chunks, int column) {
+                return IntColumn.create(name, concatenateInts(chunks, column));
+            }
+        };
+
+        abstract Object newValues(int size);
+
+        /**
+         * Parses {@code value} into row {@code row} of {@code values}, where a null value is missing.
+         */
+        abstract void parseInto(Object values, int row, String value);
+
+        abstract Column<?> assemble(String name, List<ParsedChunk> chunks, int column);
+
+        private static int[] concatenateInts(List<ParsedChunk> chunks, int column) {
+            int[] assembled = new int[totalRows(chunks)];
+            int position = 0;
+            for (ParsedChunk chunk : chunks) {
+                System.arraycopy(chunk.values[column], 0, assembled, position, chunk.rows);
+                position += chunk.rows;
+            }
+            return assembled;
+        }
+
+        private static int totalRows(List<ParsedChunk> chunks) {
+            return chunks.stream().mapToInt(chunk -> chunk.rows).sum();
+        }
+    }
+
+    /**
+     * The columns to read from a file and their types. Columns are read in the order they appear in
+     * the file. A field can be read into more than one column, which is how MATSim's time strings are
+     * parsed once, as the file is read, into seconds and hour columns alongside the original strings. The
+     * hour of a field also read in seconds is taken from the seconds rather than parsed again.
+     */
+    static class Schema {
+        static final String SECONDS_SUFFIX = "_seconds";
+
+        private final Map<String, Map<String, ColumnType>> fieldColumns = new LinkedHashMap<>();
+
+        Schema string(String name) {
+            return column(name, ColumnType.STRING);
+        }
+
+        Schema integer(String name) {
+            return column(name, ColumnType.INTEGER);
+        }
+
+        Schema decimal(String name) {
+            return column(name, ColumnType.DOUBLE);
+        }
+
+        Schema time(String name) {
+            return column(name, ColumnType.TIME);
+        }
+
+        /**
+         * Also reads the time in {@code field} as whole seconds, into an integer column named after the
+         * field with a "_seconds" suffix.
+         */
+        Schema timeInSeconds(String field) {
+            return column(field, field + SECONDS_SUFFIX, ColumnType.TIME);
+        }
+
+        /**
+         * Also reads the hour of the time of day in {@code field} into an integer column called {@code name}.
+         */
+        Schema hourOf(String field, String name) {
+            return column(field, name, ColumnType.HOUR);
+        }
+
+        Schema column(String name, ColumnType type) {
+            return column(name, name, type);
+        }
+
+        Schema column(String field, String name, ColumnType type) {
+            fieldColumns.computeIfAbsent(field, f -> new LinkedHashMap<>()).put(name, type);
+            return this;
+        }
+
+        private List<SchemaColumn> columnsIn(List<String> header) {
+            List<SchemaColumn> columns = new ArrayList<>();
+            for (int fieldIndex = 0; fieldIndex < header.size(); fieldIndex++) {
+                Map<String, ColumnType> columnsOfField = fieldColumns.get(header.get(fieldIndex).trim());
+                if (columnsOfField != null) {
+                    int secondsColumn = NO_COLUMN;
+                    for (Map.Entry<String, ColumnType> column : columnsOfField.entrySet()) {
+                        ColumnType type = column.getValue();
+                        columns.add(new SchemaColumn(column.getKey(), type, fieldIndex,
+                                type == ColumnType.HOUR ? secondsColumn : NO_COLUMN));
+                        if (type == ColumnType.TIME) {
+                            secondsColumn = columns.size() - 1;
+                        }
+                    }
+                }
+            }
+            return columns;
+        }
+    }
+
+    private static class SchemaColumn {
+        private final String name;
+        private final ColumnType type;
+        private final int fieldIndex;
+        // the column of the same field read in seconds that an hour column is taken from, if there is one
+        private final int secondsColumn;
+
+        SchemaColumn(String name, ColumnType type, int fieldIndex, int secondsColumn) {
+            this.name = name;
+            this.type = type;
+            this.fieldIndex = fieldIndex;
+            this.secondsColumn = secondsColumn;
+        }
+
+        Column<?> assemble(List<ParsedChunk> chunks, int column) {
+            return type.assemble(name, chunks, column);
+        }
+    }
+
+    private static class ParsedChunk {
+        private final int rows;
+        // one primitive or String array per schema column
+        private final Object[] values;
+
+        ParsedChunk(int rows, Object[] values) {
+            this.rows = rows;
+            this.values = values;
+        }
+    }
+}
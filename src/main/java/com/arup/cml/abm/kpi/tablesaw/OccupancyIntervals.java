@@ -0,0 +1,361 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.data.StringDictionary;
+import tech.tablesaw.api.LongColumn;
+import tech.tablesaw.api.StringColumn;
+import tech.tablesaw.api.Table;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records vehicle occupancy as one interval per boarding - the person, the vehicle, and the first and last
+ * of the vehicle's link log entries completed while they were aboard - rather than one record per occupant
+ * of every link log entry, which for full buses and trains grows larger than the link log itself. The
+ * record per occupant of each link log entry is only built when {@link #expand} is asked for it.
+ * <p>
+ * As with the number of people of a link log entry, a person occupies an entry if they are aboard when it
+ * is completed. Vehicles and people are identified by their dictionary codes.
+ * <p>
+ * The intervals double as shared snapshots of who is aboard: completing an entry only stamps the people who
+ * boarded since the vehicle's previous entry, rather than copying everyone aboard, and boarding and alighting
+ * take constant time however full the vehicle is.
+ */
+class OccupancyIntervals {
+    static final int NO_ENTRY = -1;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // one element per boarding; the first index is NO_ENTRY while no entry has been completed since
+    // boarding, the last index while the person is still aboard
+    private int[] personCodes = new int[INITIAL_CAPACITY];
+    private int[] vehicleCodes = new int[INITIAL_CAPACITY];
+    private int[] firstIndices = new int[INITIAL_CAPACITY];
+    private int[] lastIndices = new int[INITIAL_CAPACITY];
+    // while the person is aboard, the position of the interval among its vehicle's occupants and the next
+    // interval of the same person still aboard a vehicle
+    private int[] occupantPositions = new int[INITIAL_CAPACITY];
+    private int[] nextAboard = new int[INITIAL_CAPACITY];
+    private int intervalCount = 0;
+    private int occupancySize = 0;
+
+    // per-vehicle state, indexed by vehicle code. Occupants are intervals, of which those from the unstarted
+    // position on boarded after the vehicle last completed an entry
+    private int[][] vehicleOccupants = new int[0][];
+    private int[] vehicleOccupantCounts = new int[0];
+    private int[] vehicleUnstarted = new int[0];
+    private int[] vehicleLastCompleted = new int[0];
+
+    // per-person state, indexed by person code: the latest interval of the person still aboard a vehicle
+    private int[] personLatestAboard = new int[0];
+
+    /**
+     * Reads the vehicle of each link log entry and whether it has been completed.
+     */
+    interface LinkLogEntries {
+        int size();
+
+        int vehicle(int index);
+
+        boolean isCompleted(int index);
+    }
+
+    void board(int vehicle, int person) {
+        ensureVehicle(vehicle);
+        if (intervalCount == personCodes.length) {
+            growIntervals(intervalCount + 1);
+        }
+        int interval = intervalCount++;
+        personCodes[interval] = person;
+        vehicleCodes[interval] = vehicle;
+        firstIndices[interval] = NO_ENTRY;
+        lastIndices[interval] = NO_ENTRY;
+        ensurePerson(person);
+        nextAboard[interval] = personLatestAboard[person];
+        personLatestAboard[person] = interval;
+
+        int[] occupants = vehicleOccupants[vehicle];
+        int count = vehicleOccupantCounts[vehicle];
+        if (occupants == null) {
+            occupants = new int[4];
+        } else if (count == occupants.length) {
+            occupants = Arrays.copyOf(occupants, count * 2);
+        }
+        occupants[count] = interval;
+        occupantPositions[interval] = count;
+        vehicleOccupants[vehicle] = occupants;
+        vehicleOccupantCounts[vehicle] = count + 1;
+    }
+
+    /**
+     * Records that {@code vehicle} completed the link log entry at {@code linkLogIndex}, returning the
+     * number of people aboard.
+     */
+    int complete(int vehicle, int linkLogIndex) {
+        ensureVehicle(vehicle);
+        int count = vehicleOccupantCounts[vehicle];
+        int unstarted = vehicleUnstarted[vehicle];
+        // completing the same entry again only adds the people who boarded since
+        occupancySize += vehicleLastCompleted[vehicle] == linkLogIndex ? count - unstarted : count;
+        int[] occupants = vehicleOccupants[vehicle];
+        for (int i = unstarted; i < count; i++) {
+            firstIndices[occupants[i]] = linkLogIndex;
+        }
+        vehicleUnstarted[vehicle] = count;
+        vehicleLastCompleted[vehicle] = linkLogIndex;
+        return count;
+    }
+
+    /**
+     * Closes the interval of {@code person} aboard {@code vehicle}, returning false if they are not aboard.
+     */
+    boolean alight(int vehicle, int person) {
+        if (vehicle >= vehicleOccupantCounts.length || person >= personLatestAboard.length) {
+            return false;
+        }
+        // people are rarely aboard more than one vehicle at once, so this is usually the first interval. If
+        // they boarded this vehicle more than once, the earliest boarding ends first
+        int interval = NO_ENTRY;
+        int previous = NO_ENTRY;
+        int previousOfInterval = NO_ENTRY;
+        for (int aboard = personLatestAboard[person]; aboard != NO_ENTRY; aboard = nextAboard[aboard]) {
+            if (vehicleCodes[aboard] == vehicle) {
+                interval = aboard;
+                previousOfInterval = previous;
+            }
+            previous = aboard;
+        }
+        if (interval == NO_ENTRY) {
+            return false;
+        }
+        if (previousOfInterval == NO_ENTRY) {
+            personLatestAboard[person] = nextAboard[interval];
+        } else {
+            nextAboard[previousOfInterval] = nextAboard[interval];
+        }
+
+        int position = occupantPositions[interval];
+        int last = vehicleOccupantCounts[vehicle] - 1;
+        int unstarted = vehicleUnstarted[vehicle];
+        if (position < unstarted) {
+            lastIndices[interval] = vehicleLastCompleted[vehicle];
+            // fill the gap with the last started occupant, and theirs with the last occupant
+            moveOccupant(vehicle, unstarted - 1, position);
+            moveOccupant(vehicle, last, unstarted - 1);
+            vehicleUnstarted[vehicle] = unstarted - 1;
+        } else {
+            moveOccupant(vehicle, last, position);
+        }
+        vehicleOccupantCounts[vehicle] = last;
+        return true;
+    }
+
+    private void moveOccupant(int vehicle, int from, int to) {
+        int[] occupants = vehicleOccupants[vehicle];
+        occupants[to] = occupants[from];
+        occupantPositions[occupants[to]] = to;
+    }
+
+    /**
+     * The number of records {@link #expand} builds, one per occupant of each completed link log entry.
+     */
+    int size() {
+        return occupancySize;
+    }
+
+    /**
+     * One row per boarding that spanned at least one completed link log entry, in boarding order.
+     */
+    Table intervalTable(StringDictionary vehicleIds, StringDictionary personIds) {
+        StringColumn agentIds = StringColumn.create("agentId");
+        StringColumn vehicleIDs = StringColumn.create("vehicleID");
+        LongColumn firstLinkLogIndices = LongColumn.create("firstLinkLogIndex");
+        LongColumn lastLinkLogIndices = LongColumn.create("lastLinkLogIndex");
+        for (int interval = 0; interval < intervalCount; interval++) {
+            if (firstIndices[interval] != NO_ENTRY) {
+                agentIds.append(personIds.decode(personCodes[interval]));
+                vehicleIDs.append(vehicleIds.decode(vehicleCodes[interval]));
+                firstLinkLogIndices.append(firstIndices[interval]);
+                lastLinkLogIndices.append(lastIndex(interval));
+            }
+        }
+        return Table.create("Vehicle Occupancy Intervals")
+                .addColumns(agentIds, vehicleIDs, firstLinkLogIndices, lastLinkLogIndices);
+    }
+
+    /**
+     * One row per occupant of each completed link log entry, ordered by link log index and, within an
+     * entry, by boarding order.
+     */
+    Table expand(LinkLogEntries entries, int vehicleCount, StringDictionary personIds) {
+        // completed entries of each vehicle, in link log order
+        int entryCount = entries.size();
+        int[] vehicleOffsets = new int[vehicleCount + 1];
+        for (int i = 0; i < entryCount; i++) {
+            if (entries.isCompleted(i)) {
+                vehicleOffsets[entries.vehicle(i) + 1]++;
+            }
+        }
+        for (int v = 0; v < vehicleCount; v++) {
+            vehicleOffsets[v + 1] += vehicleOffsets[v];
+        }
+        int[] vehicleEntries = new int[vehicleOffsets[vehicleCount]];
+        int[] vehiclePositions = Arrays.copyOf(vehicleOffsets, vehicleCount);
+        for (int i = 0; i < entryCount; i++) {
+            if (entries.isCompleted(i)) {
+                vehicleEntries[vehiclePositions[entries.vehicle(i)]++] = i;
+            }
+        }
+
+        int[] rowIndices = new int[occupancySize];
+        int[] rowPersons = new int[occupancySize];
+        int rows = 0;
+        for (int interval = 0; interval < intervalCount; interval++) {
+            int first = firstIndices[interval];
+            if (first == NO_ENTRY) {
+                continue;
+            }
+            int last = lastIndex(interval);
+            int vehicle = vehicleCodes[interval];
+            int end = vehicleOffsets[vehicle + 1];
+            int position = Arrays.binarySearch(vehicleEntries, vehicleOffsets[vehicle], end, first);
+            for (int k = position < 0 ? -position - 1 : position; k < end && vehicleEntries[k] <= last; k++) {
+                if (rows == rowIndices.length) {
+                    rowIndices = Arrays.copyOf(rowIndices, Math.max(INITIAL_CAPACITY, rows * 2));
+                    rowPersons = Arrays.copyOf(rowPersons, rowIndices.length);
+                }
+                rowIndices[rows] = vehicleEntries[k];
+                rowPersons[rows] = personCodes[interval];
+                rows++;
+            }
+        }
+
+        // counting sort by link log index, which keeps boarding order within each entry
+        int[] indexOffsets = new int[entryCount + 1];
+        for (int row = 0; row < rows; row++) {
+            indexOffsets[rowIndices[row] + 1]++;
+        }
+        for (int i = 0; i < entryCount; i++) {
+            indexOffsets[i + 1] += indexOffsets[i];
+        }
+        long[] linkLogIndices = new long[rows];
+        String[] agentIds = new String[rows];
+        for (int row = 0; row < rows; row++) {
+            int position = indexOffsets[rowIndices[row]]++;
+            linkLogIndices[position] = rowIndices[row];
+            agentIds[position] = personIds.decode(rowPersons[row]);
+        }
+        return Table.create("Vehicle Occupancy").addColumns(
+                LongColumn.create("linkLogIndex", linkLogIndices),
+                StringColumn.create("agentId", agentIds)
+        );
+    }
+
+    /**
+     * Merges the intervals of link logs that were each fed the events of a disjoint set of vehicles, as
+     * for {@link ColumnarNetworkLinkLog#merge}, mapping each shard's link log indices, vehicle codes and
+     * person codes to the merged ones. Per-vehicle state is not carried over, so people still aboard are
+     * taken to have been aboard until the last entry their vehicle completed.
+     */
+    static OccupancyIntervals merge(List<OccupancyIntervals> shards, List<int[]> entryIndices,
+                                    List<int[]> vehicleMappings, List<int[]> personMappings) {
+        OccupancyIntervals merged = new OccupancyIntervals();
+        for (int s = 0; s < shards.size(); s++) {
+            OccupancyIntervals shard = shards.get(s);
+            int[] indices = entryIndices.get(s);
+            for (int interval = 0; interval < shard.intervalCount; interval++) {
+                if (shard.firstIndices[interval] != NO_ENTRY) {
+                    merged.addInterval(
+                            personMappings.get(s)[shard.personCodes[interval]],
+                            vehicleMappings.get(s)[shard.vehicleCodes[interval]],
+                            indices[shard.firstIndices[interval]],
+                            indices[shard.lastIndex(interval)]);
+                }
+            }
+            merged.occupancySize += shard.occupancySize;
+        }
+        return merged;
+    }
+
+    /**
+     * Writes the intervals that span at least one completed link log entry. Per-vehicle state is not
+     * written, so people still aboard are taken to have been aboard until the last entry their vehicle
+     * completed.
+     */
+    void writeTo(SnapshotOutput output) throws IOException {
+        OccupancyIntervals spanning = new OccupancyIntervals();
+        for (int interval = 0; interval < intervalCount; interval++) {
+            if (firstIndices[interval] != NO_ENTRY) {
+                spanning.addInterval(personCodes[interval], vehicleCodes[interval],
+                        firstIndices[interval], lastIndex(interval));
+            }
+        }
+        output.writeInt(spanning.intervalCount);
+        output.writeInts(spanning.personCodes, spanning.intervalCount);
+        output.writeInts(spanning.vehicleCodes, spanning.intervalCount);
+        output.writeInts(spanning.firstIndices, spanning.intervalCount);
+        output.writeInts(spanning.lastIndices, spanning.intervalCount);
+        output.writeInt(occupancySize);
+    }
+
+    static OccupancyIntervals readFrom(SnapshotInput input) throws IOException {
+        OccupancyIntervals intervals = new OccupancyIntervals();
+        int intervalCount = input.readInt();
+        intervals.personCodes = input.readInts(intervalCount, INITIAL_CAPACITY);
+        intervals.vehicleCodes = input.readInts(intervalCount, INITIAL_CAPACITY);
+        intervals.firstIndices = input.readInts(intervalCount, INITIAL_CAPACITY);
+        intervals.lastIndices = input.readInts(intervalCount, INITIAL_CAPACITY);
+        intervals.occupantPositions = new int[intervals.personCodes.length];
+        intervals.nextAboard = new int[intervals.personCodes.length];
+        intervals.intervalCount = intervalCount;
+        intervals.occupancySize = input.readInt();
+        return intervals;
+    }
+
+    private void addInterval(int person, int vehicle, int first, int last) {
+        if (intervalCount == personCodes.length) {
+            growIntervals(intervalCount + 1);
+        }
+        personCodes[intervalCount] = person;
+        vehicleCodes[intervalCount] = vehicle;
+        firstIndices[intervalCount] = first;
+        lastIndices[intervalCount] = last;
+        intervalCount++;
+    }
+
+    private int lastIndex(int interval) {
+        int last = lastIndices[interval];
+        return last == NO_ENTRY ? vehicleLastCompleted[vehicleCodes[interval]] : last;
+    }
+
+    private void ensureVehicle(int vehicle) {
+        if (vehicle >= vehicleOccupantCounts.length) {
+            int capacity = Math.max(Math.max(INITIAL_CAPACITY, vehicle + 1), vehicleOccupantCounts.length * 2);
+            int previousCapacity = vehicleOccupantCounts.length;
+            vehicleOccupants = Arrays.copyOf(vehicleOccupants, capacity);
+            vehicleOccupantCounts = Arrays.copyOf(vehicleOccupantCounts, capacity);
+            vehicleUnstarted = Arrays.copyOf(vehicleUnstarted, capacity);
+            vehicleLastCompleted = Arrays.copyOf(vehicleLastCompleted, capacity);
+            Arrays.fill(vehicleLastCompleted, previousCapacity, capacity, NO_ENTRY);
+        }
+    }
+
+    private void ensurePerson(int person) {
+        if (person >= personLatestAboard.length) {
+            int capacity = Math.max(Math.max(INITIAL_CAPACITY, person + 1), personLatestAboard.length * 2);
+            int previousCapacity = personLatestAboard.length;
+            personLatestAboard = Arrays.copyOf(personLatestAboard, capacity);
+            Arrays.fill(personLatestAboard, previousCapacity, capacity, NO_ENTRY);
+        }
+    }
+
+    private void growIntervals(int minCapacity) {
+        int capacity = Math.max(minCapacity, personCodes.length * 2);
+        personCodes = Arrays.copyOf(personCodes, capacity);
+        vehicleCodes = Arrays.copyOf(vehicleCodes, capacity);
+        firstIndices = Arrays.copyOf(firstIndices, capacity);
+        lastIndices = Arrays.copyOf(lastIndices, capacity);
+        occupantPositions = Arrays.copyOf(occupantPositions, capacity);
+        nextAboard = Arrays.copyOf(nextAboard, capacity);
+    }
+}
@@ -0,0 +1,141 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.RunProfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip-compresses what is written to it in fixed size blocks, each compressed on a shared pool of threads
+ * into a gzip member of its own. Members are written out in order, and gzip readers treat a series of
+ * members as one stream, so the file decompresses to exactly what was written.
+ * <p>
+ * Blocks are cut at fixed offsets and gzip headers carry no timestamp, so the compressed bytes depend
+ * only on the content and not on how many threads compressed it. Without a pool of threads each block is
+ * compressed on the writing thread, into the same members.
+ */
+class ParallelGzipOutputStream extends OutputStream {
+    static final int DEFAULT_BLOCK_BYTES = 1 << 20;
+    // compressed blocks waiting to be written, per thread, before the writer has to wait for them
+    private static final int BLOCKS_IN_FLIGHT_PER_THREAD = 2;
+
+    private final OutputStream out;
+    private final ExecutorService compressors;
+    private final int maxBlocksInFlight;
+    private final Deque<Future<byte[]>> blocksInFlight = new ArrayDeque<>();
+    private final byte[] block;
+    private int blockSize = 0;
+    private boolean anyBlockWritten = false;
+    private boolean closed = false;
+
+    ParallelGzipOutputStream(OutputStream out, ExecutorService compressors, int threads) {
+        this(out, compressors, threads, DEFAULT_BLOCK_BYTES);
+    }
+
+    /**
+     * @param compressors the pool compressing blocks, or {@code null} to compress them on the writing thread
+     */
+    ParallelGzipOutputStream(OutputStream out, ExecutorService compressors, int threads, int blockBytes) {
+        this.out = out;
+        this.compressors = compressors;
+        this.maxBlocksInFlight = threads * BLOCKS_IN_FLIGHT_PER_THREAD;
+        this.block = new byte[blockBytes];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockSize++] = (byte) b;
+        if (blockSize == block.length) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int copied = Math.min(length, block.length - blockSize);
+            System.arraycopy(bytes, offset, block, blockSize, copied);
+            blockSize += copied;
+            offset += copied;
+            length -= copied;
+            if (blockSize == block.length) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Only writes out blocks that are already compressed; a partly filled block is held back so that
+     * block boundaries don't depend on when the stream was flushed.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!blocksInFlight.isEmpty() && blocksInFlight.peekFirst().isDone()) {
+            writeOldestBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try (out) {
+            // an empty stream still gets one (empty) member, so that it is a valid gzip file
+            if (blockSize > 0 || !anyBlockWritten) {
+                submitBlock();
+            }
+            while (!blocksInFlight.isEmpty()) {
+                writeOldestBlock();
+            }
+        } finally {
+            blocksInFlight.forEach(pendingBlock -> pendingBlock.cancel(false));
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] uncompressed = Arrays.copyOf(block, blockSize);
+        if (compressors == null) {
+            out.write(compress(uncompressed));
+            anyBlockWritten = true;
+            blockSize = 0;
+            return;
+        }
+        blocksInFlight.addLast(compressors.submit(
+                RunProfile.onBehalfOfRunningPhases(() -> compress(uncompressed))));
+        anyBlockWritten = true;
+        blockSize = 0;
+        while (blocksInFlight.size() > maxBlocksInFlight) {
+            writeOldestBlock();
+        }
+    }
+
+    private void writeOldestBlock() throws IOException {
+        try {
+            out.write(blocksInFlight.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress a block", e.getCause());
+        }
+    }
+
+    private static byte[] compress(byte[] uncompressed) throws IOException {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(uncompressed.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(member)) {
+            gzip.write(uncompressed);
+        }
+        return member.toByteArray();
+    }
+}
@@ -0,0 +1,250 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.data.StringDictionary;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tech.tablesaw.api.BooleanColumn;
+import tech.tablesaw.api.DoubleColumn;
+import tech.tablesaw.api.IntColumn;
+import tech.tablesaw.api.StringColumn;
+import tech.tablesaw.api.Table;
+import tech.tablesaw.columns.Column;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A compact binary cache of the tables built from the MATSim network, transit schedule and vehicles, so that
+ * later runs over the same inputs load the tables instead of parsing the XML files and building them again.
+ * As with {@link LinkLogSnapshot}, tables are kept in files named after a hash of the content of the files
+ * they were built from and of the columns of the tables, so neither a changed input nor a change to the tables
+ * built from it is ever matched with stale tables.
+ * <p>
+ * Tables are stored column by column, with strings as a dictionary of their distinct values and a code per
+ * row. A cache that cannot be read or written is only logged, and the tables are built as if there were none.
+ */
+public class ScenarioTableCache {
+    private static final Logger LOGGER = LogManager.getLogger(ScenarioTableCache.class);
+    public static final String DIRECTORY_NAME = "gelato-cache";
+    public static final String NETWORK = "network";
+    public static final String TRANSIT_SCHEDULE = "transitSchedule";
+    public static final String VEHICLES = "vehicles";
+    private static final int MAGIC_NUMBER = 0x47535443;
+    // bump whenever the tables built from the inputs change, so older caches are not read
+    private static final int FORMAT_VERSION = 1;
+    private static final String MISSING_FILE = "none";
+    private static final int STRING = 0;
+    private static final int DOUBLE = 1;
+    private static final int INT = 2;
+    private static final int BOOLEAN = 3;
+    private static final int FALSE = 0;
+    private static final int TRUE = 1;
+    private static final int MISSING_BOOLEAN = -1;
+
+    private final Path directory;
+    private final Map<String, List<Path>> sources;
+    private final Function<Path, String> fileHashes;
+
+    public ScenarioTableCache(Path directory,
+                              List<Path> networkFiles,
+                              List<Path> transitScheduleFiles,
+                              List<Path> vehiclesFiles) {
+        this(directory, networkFiles, transitScheduleFiles, vehiclesFiles,
+                file -> Files.isRegularFile(file) ? LinkLogSnapshot.hash(file) : MISSING_FILE);
+    }
+
+    /**
+     * Keys the tables by the file hashes of {@code fileHashes}, such as those of a {@code ScenarioCache} that
+     * hashes the same files to share their inputs between runs, so they are not hashed twice.
+     */
+    public ScenarioTableCache(Path directory,
+                              List<Path> networkFiles,
+                              List<Path> transitScheduleFiles,
+                              List<Path> vehiclesFiles,
+                              Function<Path, String> fileHashes) {
+        this.directory = directory;
+        this.sources = Map.of(
+                NETWORK, networkFiles,
+                TRANSIT_SCHEDULE, transitScheduleFiles,
+                VEHICLES, vehiclesFiles);
+        this.fileHashes = fileHashes;
+    }
+
+    /**
+     * The tables built from the {@link #NETWORK}, {@link #TRANSIT_SCHEDULE} or {@link #VEHICLES} files,
+     * read from the cache if they were built from files with the same content before, otherwise built by
+     * {@code builder} and written to the cache. {@code emptyTables} builds the same tables from an empty
+     * input, whose names and columns key the cache too.
+     */
+    public List<Table> get(String input, Supplier<List<Table>> emptyTables, Supplier<List<Table>> builder) {
+        List<Path> files = sources.get(input);
+        if (files == null) {
+            throw new IllegalArgumentException(String.format("No tables are cached for %s", input));
+        }
+        String key = key(files, emptyTables.get());
+        Path file = directory.resolve(String.format("%s-%s.tables", input, key));
+        if (Files.isRegularFile(file)) {
+            try {
+                List<Table> tables = read(file, key);
+                LOGGER.info("Read {} tables from cache {}", input, file);
+                return tables;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn(String.format("Failed to read %s tables from cache %s, building them again", input, file),
+                        e);
+            }
+        }
+        List<Table> tables = builder.get();
+        try {
+            write(file, key, tables);
+            LOGGER.info("Wrote {} tables to cache {}", input, file);
+        } catch (IOException e) {
+            LOGGER.warn(String.format("Failed to write %s tables to cache %s", input, file), e);
+        }
+        return tables;
+    }
+
+    private String key(List<Path> files, List<Table> schema) {
+        StringBuilder key = new StringBuilder().append(FORMAT_VERSION);
+        for (Path file : files) {
+            key.append(':').append(fileHashes.apply(file));
+        }
+        for (Table table : schema) {
+            key.append(':').append(table.name());
+            for (Column<?> column : table.columns()) {
+                key.append(',').append(column.name()).append('=').append(column.type().name());
+            }
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(key.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(Arrays.copyOf(digest, 16));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void write(Path file, String key, List<Table> tables) throws IOException {
+        Files.createDirectories(file.getParent());
+        // a temporary file of its own, so runs writing the same tables at once never write into each other's
+        Path partFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".part");
+        try {
+            try (SnapshotOutput output = new SnapshotOutput(partFile)) {
+                output.writeInt(MAGIC_NUMBER);
+                output.writeInt(FORMAT_VERSION);
+                output.writeString(key);
+                output.writeInt(tables.size());
+                for (Table table : tables) {
+                    writeTable(table, output);
+                }
+            }
+            Files.move(partFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partFile);
+        }
+    }
+
+    private static void writeTable(Table table, SnapshotOutput output) throws IOException {
+        int rows = table.rowCount();
+        output.writeString(table.name());
+        output.writeInt(rows);
+        output.writeInt(table.columnCount());
+        for (Column<?> column : table.columns()) {
+            output.writeString(column.name());
+            if (column instanceof StringColumn strings) {
+                StringDictionary dictionary = new StringDictionary();
+                int[] codes = new int[rows];
+                for (int row = 0; row < rows; row++) {
+                    codes[row] = dictionary.encode(strings.get(row));
+                }
+                output.writeInt(STRING);
+                output.writeStrings(dictionary);
+                output.writeInts(codes, rows);
+            } else if (column instanceof DoubleColumn doubles) {
+                output.writeInt(DOUBLE);
+                output.writeDoubles(doubles.asDoubleArray(), rows);
+            } else if (column instanceof IntColumn ints) {
+                // missing ints are kept as Tablesaw's missing value
+                output.writeInt(INT);
+                output.writeInts(ints.asIntArray(), rows);
+            } else if (column instanceof BooleanColumn booleans) {
+                int[] values = new int[rows];
+                for (int row = 0; row < rows; row++) {
+                    Boolean value = booleans.get(row);
+                    values[row] = value == null ? MISSING_BOOLEAN : value ? TRUE : FALSE;
+                }
+                output.writeInt(BOOLEAN);
+                output.writeInts(values, rows);
+            } else {
+                throw new IllegalArgumentException(String.format(
+                        "Cannot cache column %s of table %s, of type %s", column.name(), table.name(), column.type()));
+            }
+        }
+    }
+
+    private static List<Table> read(Path file, String key) throws IOException {
+        try (SnapshotInput input = new SnapshotInput(file)) {
+            if (input.readInt() != MAGIC_NUMBER || input.readInt() != FORMAT_VERSION) {
+                throw new IllegalStateException(String.format("%s is not a table cache this version can read", file));
+            }
+            if (!input.readString().equals(key)) {
+                throw new IllegalStateException(String.format("%s was built from different files", file));
+            }
+            int tableCount = input.readInt();
+            List<Table> tables = new ArrayList<>(tableCount);
+            for (int i = 0; i < tableCount; i++) {
+                tables.add(readTable(input));
+            }
+            return tables;
+        }
+    }
+
+    private static Table readTable(SnapshotInput input) throws IOException {
+        Table table = Table.create(input.readString());
+        int rows = input.readInt();
+        int columnCount = input.readInt();
+        for (int i = 0; i < columnCount; i++) {
+            String name = input.readString();
+            int type = input.readInt();
+            switch (type) {
+                case STRING -> {
+                    StringDictionary dictionary = new StringDictionary();
+                    input.readStrings(dictionary);
+                    int[] codes = input.readInts(rows, 0);
+                    String[] values = new String[rows];
+                    for (int row = 0; row < rows; row++) {
+                        values[row] = dictionary.decode(codes[row]);
+                    }
+                    table.addColumns(StringColumn.create(name, values));
+                }
+                case DOUBLE -> table.addColumns(DoubleColumn.create(name, input.readDoubles(rows, 0)));
+                case INT -> table.addColumns(IntColumn.create(name, input.readInts(rows, 0)));
+                case BOOLEAN -> {
+                    int[] values = input.readInts(rows, 0);
+                    BooleanColumn booleans = BooleanColumn.create(name);
+                    for (int row = 0; row < rows; row++) {
+                        if (values[row] == MISSING_BOOLEAN) {
+                            booleans.appendMissing();
+                        } else {
+                            booleans.append(values[row] == TRUE);
+                        }
+                    }
+                    table.addColumns(booleans);
+                }
+                default -> throw new IllegalStateException(String.format("Unknown column type %d", type));
+            }
+        }
+        return table;
+    }
+}
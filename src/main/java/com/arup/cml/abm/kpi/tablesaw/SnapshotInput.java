@@ -0,0 +1,125 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.data.StringDictionary;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file written by {@link SnapshotOutput} through memory-mapped windows over it, so arrays are
+ * copied straight out of the page cache in bulk. Windows are remapped as reading moves through the
+ * file, since a single mapping cannot be larger than 2GB.
+ */
+class SnapshotInput implements Closeable {
+    static final long DEFAULT_WINDOW_BYTES = 1L << 30;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long windowBytes;
+    private long windowStart;
+    private MappedByteBuffer window;
+
+    SnapshotInput(Path file) throws IOException {
+        this(file, DEFAULT_WINDOW_BYTES);
+    }
+
+    SnapshotInput(Path file, long windowBytes) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        this.windowBytes = windowBytes;
+        mapWindow(0);
+    }
+
+    int readInt() throws IOException {
+        ensureAvailable(Integer.BYTES);
+        return window.getInt();
+    }
+
+    double readDouble() throws IOException {
+        ensureAvailable(Double.BYTES);
+        return window.getDouble();
+    }
+
+    String readString() throws IOException {
+        byte[] bytes = new byte[readInt()];
+        int offset = 0;
+        while (offset < bytes.length) {
+            ensureAvailable(1);
+            int count = Math.min(window.remaining(), bytes.length - offset);
+            window.get(bytes, offset, count);
+            offset += count;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes strings written by {@link SnapshotOutput#writeStrings} into {@code dictionary} in the
+     * order they were written.
+     */
+    void readStrings(StringDictionary dictionary) throws IOException {
+        int size = readInt();
+        for (int i = 0; i < size; i++) {
+            dictionary.encode(readString());
+        }
+    }
+
+    /**
+     * Reads {@code length} ints into a new array of at least {@code capacity} elements.
+     */
+    int[] readInts(int length, int capacity) throws IOException {
+        int[] values = new int[Math.max(length, capacity)];
+        int offset = 0;
+        while (offset < length) {
+            ensureAvailable(Integer.BYTES);
+            int count = Math.min(window.remaining() / Integer.BYTES, length - offset);
+            window.asIntBuffer().get(values, offset, count);
+            window.position(window.position() + count * Integer.BYTES);
+            offset += count;
+        }
+        return values;
+    }
+
+    /**
+     * Reads {@code length} doubles into a new array of at least {@code capacity} elements.
+     */
+    double[] readDoubles(int length, int capacity) throws IOException {
+        double[] values = new double[Math.max(length, capacity)];
+        int offset = 0;
+        while (offset < length) {
+            ensureAvailable(Double.BYTES);
+            int count = Math.min(window.remaining() / Double.BYTES, length - offset);
+            window.asDoubleBuffer().get(values, offset, count);
+            window.position(window.position() + count * Double.BYTES);
+            offset += count;
+        }
+        return values;
+    }
+
+    private void ensureAvailable(int bytes) throws IOException {
+        if (window.remaining() >= bytes) {
+            return;
+        }
+        long position = windowStart + window.position();
+        if (fileSize - position < bytes) {
+            throw new IOException(String.format(
+                    "Expected %d more bytes at position %d, but the file ends at %d", bytes, position, fileSize));
+        }
+        mapWindow(position);
+    }
+
+    private void mapWindow(long position) throws IOException {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowBytes, fileSize - position));
+        window.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
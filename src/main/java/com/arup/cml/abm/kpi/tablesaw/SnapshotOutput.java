@@ -0,0 +1,106 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.data.StringDictionary;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes little-endian primitives, primitive arrays and strings to a file through a direct buffer, with
+ * arrays copied into the buffer in bulk rather than value by value. Read back with {@link SnapshotInput}.
+ */
+class SnapshotOutput implements Closeable {
+    private static final int BUFFER_BYTES = 1 << 20;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+    SnapshotOutput(Path file) throws IOException {
+        channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    void writeInt(int value) throws IOException {
+        ensureRemaining(Integer.BYTES);
+        buffer.putInt(value);
+    }
+
+    void writeDouble(double value) throws IOException {
+        ensureRemaining(Double.BYTES);
+        buffer.putDouble(value);
+    }
+
+    void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        int offset = 0;
+        while (offset < bytes.length) {
+            ensureRemaining(1);
+            int count = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, count);
+            offset += count;
+        }
+    }
+
+    /**
+     * Writes the values of {@code dictionary} in code order, so that reading them back encodes each
+     * value with the code it has now.
+     */
+    void writeStrings(StringDictionary dictionary) throws IOException {
+        writeInt(dictionary.size());
+        for (int code = 0; code < dictionary.size(); code++) {
+            writeString(dictionary.decode(code));
+        }
+    }
+
+    void writeInts(int[] values, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            ensureRemaining(Integer.BYTES);
+            int count = Math.min(buffer.remaining() / Integer.BYTES, length - offset);
+            buffer.asIntBuffer().put(values, offset, count);
+            buffer.position(buffer.position() + count * Integer.BYTES);
+            offset += count;
+        }
+    }
+
+    void writeDoubles(double[] values, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            ensureRemaining(Double.BYTES);
+            int count = Math.min(buffer.remaining() / Double.BYTES, length - offset);
+            buffer.asDoubleBuffer().put(values, offset, count);
+            buffer.position(buffer.position() + count * Double.BYTES);
+            offset += count;
+        }
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.matsim.run.MatsimKpiGenerator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.core.config.groups.ControllerConfigGroup.CompressionType;
+import org.matsim.core.utils.io.IOUtils;
+import tech.tablesaw.api.Table;
+import tech.tablesaw.io.csv.CsvWriteOptions;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes tables and other content out as compressed CSV files.
+ * <p>
+ * Gzip files are always compressed in blocks (see {@link ParallelGzipOutputStream}). With a single thread
+ * everything, compression included, is done on the calling thread. With more, writes handed to
+ * {@link #writeInBackground} run concurrently on a pool of threads while the caller carries on, and blocks
+ * are compressed on a second pool. Tables written in the background must not be changed afterwards.
+ */
+class TableWriter {
+    private static final Logger LOGGER = LogManager.getLogger(TableWriter.class);
+    private final CompressionType compressionType;
+    private final int threads;
+    private final ExecutorService writers;
+    private final ExecutorService compressors;
+    private final List<Future<?>> backgroundWrites = new ArrayList<>();
+
+    TableWriter(CompressionType compressionType, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed to write tables");
+        }
+        this.compressionType = compressionType;
+        this.threads = threads;
+        if (threads > 1) {
+            this.writers = Executors.newFixedThreadPool(threads, daemonThreads("table-writer"));
+            this.compressors = Executors.newFixedThreadPool(threads, daemonThreads("table-compressor"));
+        } else {
+            this.writers = null;
+            this.compressors = null;
+        }
+    }
+
+    void write(Table table, String filePath) {
+        LOGGER.info("Writing out compressed '{}' table to {}", table.name(), filePath);
+        try (OutputStream stream = openStream(filePath)) {
+            CsvWriteOptions options = CsvWriteOptions.builder(stream).lineEnd(MatsimKpiGenerator.EOL).build();
+            table.write().csv(options);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        LOGGER.info("Finished writing out '{}' table to {}", table.name(), filePath);
+    }
+
+    /**
+     * Writes the tables handed out by {@code slices}, which must all have the same columns, one after another
+     * as a single file with the header of the first, for tables too big to be built in one piece.
+     */
+    void write(String tableName, Iterator<Table> slices, String filePath) {
+        LOGGER.info("Writing out compressed '{}' table to {} in slices", tableName, filePath);
+        try (OutputStream stream = openStream(filePath)) {
+            boolean header = true;
+            while (slices.hasNext()) {
+                CsvWriteOptions options = CsvWriteOptions.builder(stream)
+                        .lineEnd(MatsimKpiGenerator.EOL)
+                        .header(header)
+                        .build();
+                slices.next().write().csv(options);
+                header = false;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        LOGGER.info("Finished writing out '{}' table to {}", tableName, filePath);
+    }
+
+    /**
+     * Runs {@code write} on the writer threads, or straight away when there is only one thread.
+     */
+    void writeInBackground(Runnable write) {
+        if (writers == null) {
+            write.run();
+            return;
+        }
+        synchronized (backgroundWrites) {
+            backgroundWrites.add(writers.submit(write));
+        }
+    }
+
+    void writeContent(String path, String content) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(openStream(path), StandardCharsets.UTF_8))) {
+            writer.write(content);
+        }
+    }
+
+    /**
+     * Waits for the tables being written in the background, rethrowing the first failure, then stops the
+     * threads writing them.
+     */
+    void finish() {
+        if (writers == null) {
+            return;
+        }
+        List<Future<?>> pendingWrites;
+        synchronized (backgroundWrites) {
+            pendingWrites = new ArrayList<>(backgroundWrites);
+            backgroundWrites.clear();
+        }
+        LOGGER.info("Waiting for {} table(s) being written in the background", pendingWrites.size());
+        try {
+            for (Future<?> pendingWrite : pendingWrites) {
+                pendingWrite.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing tables", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to write a table", e.getCause());
+        } finally {
+            writers.shutdownNow();
+            compressors.shutdownNow();
+        }
+    }
+
+    private OutputStream openStream(String filePath) throws IOException {
+        String compressedFilePath = filePath.concat(compressionType.fileEnding);
+        if (compressionType == CompressionType.gzip) {
+            // gzip always goes out in blocks, compressed inline with one thread, so the bytes don't change with it
+            return new ParallelGzipOutputStream(
+                    Files.newOutputStream(Path.of(compressedFilePath)), compressors, threads);
+        }
+        return IOUtils.getOutputStream(IOUtils.getFileUrl(compressedFilePath), false);
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, String.format("%s-%d", name, threadCount.incrementAndGet()));
+            // a run that fails part way through shouldn't be kept alive by idle writers
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
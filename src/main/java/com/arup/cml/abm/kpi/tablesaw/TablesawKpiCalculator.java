@@ -1,19 +1,23 @@
 package com.arup.cml.abm.kpi.tablesaw;
 
+import com.arup.cml.abm.kpi.Kpi;
 import com.arup.cml.abm.kpi.KpiCalculator;
 import com.arup.cml.abm.kpi.Normaliser;
+import com.arup.cml.abm.kpi.RunProfile;
 import com.arup.cml.abm.kpi.data.MoneyLog;
+import com.arup.cml.abm.kpi.data.StringDictionary;
 import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import com.arup.cml.abm.kpi.data.LinkLog;
-import com.arup.cml.abm.kpi.matsim.run.MatsimKpiGenerator;
 
+import com.google.common.base.Suppliers;
+import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.config.groups.ControllerConfigGroup.CompressionType;
 import org.matsim.core.config.groups.ScoringConfigGroup;
-import org.matsim.core.utils.io.IOUtils;
-import org.matsim.core.utils.misc.Time;
+import org.matsim.core.scenario.ScenarioUtils;
 import org.matsim.facilities.ActivityFacilities;
 import org.matsim.pt.transitSchedule.api.TransitSchedule;
 import org.matsim.utils.objectattributes.attributable.Attributes;
@@ -21,13 +25,10 @@ import org.matsim.vehicles.Vehicles;
 import tech.tablesaw.api.*;
 import tech.tablesaw.columns.Column;
 import tech.tablesaw.io.csv.CsvReadOptions;
-import tech.tablesaw.io.csv.CsvWriteOptions;
 import tech.tablesaw.selection.Selection;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
@@ -39,28 +40,42 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.Supplier;
 
 import static tech.tablesaw.aggregate.AggregateFunctions.*;
 
 public class TablesawKpiCalculator implements KpiCalculator {
     private static final Logger LOGGER = LogManager.getLogger(TablesawKpiCalculator.class);
-    private Table legs;
-    private Table trips;
-    private Table activities;
-    private Table activityFacilities;
-    private Table personModeScores;
-    private Table networkLinks;
-    private Table networkLinkModes;
-    private Table scheduleStops;
-    private Table scheduleRoutes;
-    private Table vehicles;
-
-    private Table linkLogTable;
-    private Table vehicleOccupancyTable;
-    private CompressionType compressionType;
+    private static final DateTimeFormatter TIME_OF_DAY_FORMATTER =
+            DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.of("UTC"));
+    private static final int LINK_LOG_SLICE_ENTRIES = 1 << 20;
+    // the bin of a link log entry left out of the Speed KPI
+    private static final int NO_BIN = -1;
+    private final RunProfile runProfile;
+    private final DerivedTables derivedTables;
+    private final MatsimCsvReader csvReader;
+    private final TableWriter tableWriter;
+    // set when the link based KPIs are written from link log totals rather than a table of every entry: when
+    // the link log only keeps totals, or when it keeps its entries in a memory-mapped file that is scanned instead
+    private final Supplier<LinkLogTotals> linkLogTotals;
+    // set when the link log entries are kept in a memory-mapped file, which is written out as supporting data
+    // the first time it is asked for
+    private final Supplier<MappedNetworkLinkLog> mappedLinkLog;
+    // set when the tables built from the network, transit schedule and vehicles are cached between runs
+    private final ScenarioTableCache scenarioTableCache;
+    private Path supportingDataDirectory;
 
     public TablesawKpiCalculator() {
         LOGGER.info("Running `TablesawKpiCalculator` in debug mode");
+        this.runProfile = new RunProfile();
+        this.derivedTables = new DerivedTables(runProfile);
+        this.csvReader = new MatsimCsvReader(1);
+        this.tableWriter = new TableWriter(CompressionType.gzip, 1);
+        this.linkLogTotals = null;
+        this.mappedLinkLog = null;
+        this.scenarioTableCache = null;
     }
 
     public TablesawKpiCalculator(Network network,
@@ -75,60 +90,139 @@ public class TablesawKpiCalculator implements KpiCalculator {
             InputStream tripsInputStream,
             Path outputDirectory,
             CompressionType compressionType) {
-        this.compressionType = compressionType;
-        createPeopleTables(personInputStream, scoring);
-        this.legs = readLegs(legsInputStream, personModeScores, moneyLog);
-        if (facilities.getFacilities().isEmpty()) {
-            this.trips = readTrips(tripsInputStream, legs);
-            this.activityFacilities = createFacilitiesTableFromTrips(trips);
+        this(network, schedule, vehicles, linkLog, personInputStream, moneyLog, scoring, facilities, legsInputStream,
+                tripsInputStream, outputDirectory, compressionType, new RunProfile(), 1, 1);
+    }
+
+    public TablesawKpiCalculator(Network network,
+            TransitSchedule schedule,
+            Vehicles vehicles,
+            NetworkLinkLog linkLog,
+            InputStream personInputStream,
+            MoneyLog moneyLog,
+            ScoringConfigGroup scoring,
+            ActivityFacilities facilities,
+            InputStream legsInputStream,
+            InputStream tripsInputStream,
+            Path outputDirectory,
+            CompressionType compressionType,
+            RunProfile runProfile,
+            int readThreads,
+            int writeThreads) {
+        this(() -> network, () -> schedule, () -> vehicles, null, linkLog, personInputStream, moneyLog, scoring,
+                facilities, legsInputStream, tripsInputStream, outputDirectory, compressionType, runProfile,
+                readThreads, writeThreads);
+    }
+
+    /**
+     * Only asks for the network, transit schedule and vehicles when the tables built from them are needed
+     * and not found in {@code scenarioTableCache}, which may be null.
+     */
+    public TablesawKpiCalculator(Supplier<Network> network,
+            Supplier<TransitSchedule> schedule,
+            Supplier<Vehicles> vehicles,
+            ScenarioTableCache scenarioTableCache,
+            NetworkLinkLog linkLog,
+            InputStream personInputStream,
+            MoneyLog moneyLog,
+            ScoringConfigGroup scoring,
+            ActivityFacilities facilities,
+            InputStream legsInputStream,
+            InputStream tripsInputStream,
+            Path outputDirectory,
+            CompressionType compressionType,
+            RunProfile runProfile,
+            int readThreads,
+            int writeThreads) {
+        this.runProfile = runProfile;
+        this.derivedTables = new DerivedTables(runProfile);
+        this.csvReader = new MatsimCsvReader(readThreads);
+        this.tableWriter = new TableWriter(compressionType, writeThreads);
+        if (linkLog instanceof AggregatingNetworkLinkLog aggregatingLinkLog) {
+            this.linkLogTotals = Suppliers.memoize(aggregatingLinkLog::getTotals);
+            this.mappedLinkLog = null;
+        } else if (linkLog instanceof MappedNetworkLinkLog mappedNetworkLinkLog) {
+            Supplier<MappedNetworkLinkLog> writtenLinkLog = Suppliers.memoize(
+                    () -> writeSupportingData(mappedNetworkLinkLog));
+            this.mappedLinkLog = writtenLinkLog;
+            this.linkLogTotals = Suppliers.memoize(() -> runProfile.profile("total link log entries",
+                    () -> writtenLinkLog.get().getTotals(network.get(), vehicles.get())));
         } else {
-            this.activityFacilities = createFacilitiesTable(facilities);
-            this.trips = readTrips(tripsInputStream, legs, activityFacilities);
+            this.linkLogTotals = null;
+            this.mappedLinkLog = null;
+        }
+        this.scenarioTableCache = scenarioTableCache;
+        this.supportingDataDirectory = outputDirectory;
+        try {
+            Files.createDirectories(outputDirectory);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new IllegalStateException(e);
+        }
+
+        // tables are only built, and written out as supporting data, once a KPI needs them
+        derivedTables.register(DerivedTable.PERSON_MODE_SCORES, () -> writeSupportingData(
+                createPeopleTables(personInputStream, scoring), "person-mode-score-parameters"));
+        derivedTables.register(DerivedTable.LEGS, () -> writeSupportingData(
+                readLegs(legsInputStream, derivedTables.get(DerivedTable.PERSON_MODE_SCORES), moneyLog), "legs"));
+        derivedTables.register(DerivedTable.TRIPS, () -> writeSupportingData(
+                createTripsTable(tripsInputStream, derivedTables.get(DerivedTable.LEGS), facilities), "trips"));
+        derivedTables.register(DerivedTable.ACTIVITIES, () -> writeSupportingData(
+                createActivitiesTable(derivedTables.get(DerivedTable.TRIPS)), "activities"));
+        derivedTables.register(DerivedTable.NETWORK_LINKS, () -> writeSupportingData(
+                createNetworkLinkTables(network), "networkLinks"));
+        derivedTables.register(DerivedTable.SCHEDULE_STOPS, () -> writeSupportingData(
+                createTransitTables(schedule), "scheduleStops"));
+        derivedTables.register(DerivedTable.VEHICLES, () -> writeSupportingData(
+                createVehicleTable(vehicles), "vehicles"));
+        if (linkLogTotals == null) {
+            derivedTables.register(DerivedTable.LINK_LOG, () -> writeSupportingData(
+                    createLinkLogTables(linkLog, derivedTables.get(DerivedTable.VEHICLES)), "linkLog"));
+            derivedTables.register(DerivedTable.LINK_LOG_NETWORK, () -> createLinkLogNetworkTable(
+                    derivedTables.get(DerivedTable.LINK_LOG), derivedTables.get(DerivedTable.NETWORK_LINKS)));
         }
-        this.activities = createActivitiesTable(trips);
-        createNetworkLinkTables(network);
-        createTransitTables(schedule);
-        createVehicleTable(vehicles);
-        createLinkLogTables(linkLog);
-        writeSupportingData(outputDirectory);
-    }
-
-    private Map<String, ColumnType> getLegsColumnMap() {
-        Map<String, ColumnType> columnMapping = new HashMap<>();
-        columnMapping.put("person", ColumnType.STRING);
-        columnMapping.put("dep_time", ColumnType.STRING);
-        columnMapping.put("trav_time", ColumnType.STRING);
-        columnMapping.put("wait_time", ColumnType.STRING);
-        columnMapping.put("trip_id", ColumnType.STRING);
-        return columnMapping;
-    }
-
-    private Map<String, ColumnType> getTripsColumnMap() {
-        Map<String, ColumnType> columnMapping = getLegsColumnMap();
-        columnMapping.put("first_pt_boarding_stop", ColumnType.STRING);
-        columnMapping.put("start_x", ColumnType.DOUBLE);
-        columnMapping.put("start_y", ColumnType.DOUBLE);
-        columnMapping.put("end_x", ColumnType.DOUBLE);
-        columnMapping.put("end_y", ColumnType.DOUBLE);
-        columnMapping.put("start_activity_type", ColumnType.STRING);
-        columnMapping.put("start_facility_id", ColumnType.STRING);
-        columnMapping.put("end_activity_type", ColumnType.STRING);
-        columnMapping.put("end_facility_id", ColumnType.STRING);
-        columnMapping.put("longest_distance_mode", ColumnType.STRING);
-        return columnMapping;
+    }
+
+    @Override
+    public void planKpis(Collection<Kpi> kpis) {
+        derivedTables.planKpis(kpis);
+    }
+
+    @Override
+    public Map<String, Integer> getTableSizes() {
+        return derivedTables.getRowCounts();
+    }
+
+    Table getDerivedTable(DerivedTable table) {
+        return derivedTables.get(table);
     }
 
     private Table readLegs(InputStream legsInputStream, Table personModeScores, MoneyLog moneyLog) {
         LOGGER.info("Reading legs file from stream");
-        legs = readCSVInputStream(legsInputStream, getLegsColumnMap()).setName("Legs");
-        legs = addCostToLegs(legs, personModeScores, moneyLog);
+        Table legsWithoutCosts = csvReader.read(legsInputStream, MatsimCsvReader.LEGS, "Legs");
+        Table legs = runProfile.profile("add costs to legs",
+                () -> addCostToLegs(legsWithoutCosts, personModeScores, moneyLog));
         LOGGER.info("Finished reading legs file");
         return legs;
     }
 
+    private Table createTripsTable(InputStream tripsInputStream, Table legs, ActivityFacilities facilities) {
+        Table trips;
+        Table activityFacilities;
+        if (facilities.getFacilities().isEmpty()) {
+            trips = readTrips(tripsInputStream, legs);
+            activityFacilities = createFacilitiesTableFromTrips(trips);
+        } else {
+            activityFacilities = createFacilitiesTable(facilities);
+            trips = readTrips(tripsInputStream, legs, activityFacilities);
+        }
+        writeSupportingData(activityFacilities, "activity-facilities");
+        return trips;
+    }
+
     private Table readTrips(InputStream tripsInputStream, Table legs, Table activityFacilities) {
         LOGGER.info("Reading trips file from stream with an activities table");
-        trips = readCSVInputStream(tripsInputStream, getTripsColumnMap()).setName("Trips");
+        Table trips = csvReader.read(tripsInputStream, MatsimCsvReader.TRIPS, "Trips");
         trips = fixFacilitiesInTripsTable(activityFacilities, trips);
         trips = addCostToTrips(legs, trips);
         LOGGER.info("Finished reading trips file");
@@ -137,7 +231,7 @@ public class TablesawKpiCalculator implements KpiCalculator {
 
     private Table readTrips(InputStream tripsInputStream, Table legs) {
         LOGGER.info("Reading trips file from stream without an activities table");
-        trips = readCSVInputStream(tripsInputStream, getTripsColumnMap()).setName("Trips");
+        Table trips = csvReader.read(tripsInputStream, MatsimCsvReader.TRIPS, "Trips");
         if (trips.column("start_facility_id").countMissing() != 0
                 || trips.column("end_facility_id").countMissing() != 0) {
             trips.removeColumns("start_facility_id", "end_facility_id");
@@ -165,6 +259,8 @@ public class TablesawKpiCalculator implements KpiCalculator {
     @Override
     public Map<String, Double> writeAffordabilityKpi(Path outputDirectory, Normaliser normaliser) {
         LOGGER.info("Writing Affordability KPI to {}", outputDirectory);
+        Table legs = derivedTables.get(DerivedTable.LEGS);
+        Table personModeScores = derivedTables.get(DerivedTable.PERSON_MODE_SCORES);
 
         // join personal income / subpop info
         Table table = legs
@@ -240,8 +336,7 @@ public class TablesawKpiCalculator implements KpiCalculator {
                 table.column("person").size();
         overallRow.doubleColumn("mean_daily_monetary_cost").append(overallAverageCost);
         intermediate.append(overallRow);
-        this.writeTableCompressed(intermediate, String.format("%s/intermediate-affordability.csv", outputDirectory),
-                this.compressionType);
+        this.writeTableCompressed(intermediate, String.format("%s/intermediate-affordability.csv", outputDirectory));
 
         if (lowIncomeName != null) {
             // average daily cost for agents in the low income bracket
@@ -254,10 +349,12 @@ public class TablesawKpiCalculator implements KpiCalculator {
                     "actual", round(kpi, 2),
                     "normalised", round(normaliser.normalise(kpi), 2)
             );
-            writeContentToFile(String.format("%s/kpi-affordability.csv", outputDirectory), kpiOutput, this.compressionType);
+            writeContentToFile(String.format("%s/kpi-affordability.csv", outputDirectory), kpiOutput);
+            derivedTables.kpiFinished(Kpi.AFFORDABILITY);
             return kpiOutput;
         }
         LOGGER.warn("We could not give you a KPI, check logs and intermediate output.");
+        derivedTables.kpiFinished(Kpi.AFFORDABILITY);
         return Map.of(
                 "actual", -1.0,
                 "normalised", -1.0
@@ -277,34 +374,23 @@ public class TablesawKpiCalculator implements KpiCalculator {
     @Override
     public Map<String, Double> writePtWaitTimeKpi(Path outputDirectory, Normaliser normaliser) {
         LOGGER.info("Writing PT Wait Time KPI to {}", outputDirectory);
+        Table legs = derivedTables.get(DerivedTable.LEGS);
 
         // pull out legs with PT stops information
         Table table = legs.where(
                 legs.column("access_stop_id").isNotMissing()
                         .or(legs.stringColumn("mode").isEqualTo("drt")));
 
-        // convert H:M:S format to seconds
-        IntColumn wait_time_seconds = IntColumn.create("wait_time_seconds");
-        table.stringColumn("wait_time")
-                .forEach(time -> wait_time_seconds.append(
-                        (int) Time.parseTime(time)));
-        table.addColumns(wait_time_seconds);
-
-        // put in hour bins
-        IntColumn hour = IntColumn.create("hour");
-        table.column("dep_time")
-                .forEach(time -> hour.append(
-                        // MATSim departure times look like "09:03:04" - grab the hour value
-                        Integer.parseInt(time.toString().split(":")[0])));
-        table.addColumns(hour);
+        // wait times and departure hour bins are parsed from MATSim's "09:03:04" times as the legs are read;
+        // the filtered table has its own columns, so renaming one leaves the legs table alone
+        table.intColumn("dep_hour").setName("hour");
 
         // ***** proposed intermediate output - average by mode, stop id and hour
         Table intermediate = table
                 .summarize("wait_time_seconds", mean)
                 .by("mode", "access_stop_id", "hour")
                 .setName("Average wait time at stops by mode");
-        this.writeTableCompressed(intermediate, String.format("%s/intermediate-pt-wait-time.csv", outputDirectory),
-                this.compressionType);
+        this.writeTableCompressed(intermediate, String.format("%s/intermediate-pt-wait-time.csv", outputDirectory));
 
         // kpi output
         double kpi =
@@ -318,7 +404,8 @@ public class TablesawKpiCalculator implements KpiCalculator {
                 "actual", round(kpi, 2),
                 "normalised", round(normaliser.normalise(kpi), 2)
         );
-        writeContentToFile(String.format("%s/kpi-pt-wait-time.csv", outputDirectory), kpiOutput, this.compressionType);
+        writeContentToFile(String.format("%s/kpi-pt-wait-time.csv", outputDirectory), kpiOutput);
+        derivedTables.kpiFinished(Kpi.PT_WAIT_TIME);
         return kpiOutput;
     }
 
@@ -327,32 +414,25 @@ public class TablesawKpiCalculator implements KpiCalculator {
         LOGGER.info("Writing Modal Split KPI to {}", outputDirectory);
 
         // percentages of trips by dominant (by distance) modes
-        Table kpi = trips.xTabPercents("longest_distance_mode");
+        Table kpi = derivedTables.get(DerivedTable.TRIPS).xTabPercents("longest_distance_mode");
         kpi.replaceColumn(
                 round(
                         kpi.doubleColumn("Percents").multiply(100).setName("Percents"), 2));
         kpi = kpi.sortDescendingOn("Percents");
         kpi.setName("Modal Split");
-        this.writeTableCompressed(kpi, String.format("%s/kpi-modal-split.csv", outputDirectory), compressionType);
+        this.writeTableCompressed(kpi, String.format("%s/kpi-modal-split.csv", outputDirectory));
+        derivedTables.kpiFinished(Kpi.MODAL_SPLIT);
     }
 
     @Override
     public Map<String, Double> writeOccupancyRateKpi(Path outputDirectory, Normaliser normaliser) {
         LOGGER.info("Writing Occupancy Rate KPI to {}", outputDirectory);
 
-        // add capacity of the vehicle
-        Table table = linkLogTable
-                .joinOn("vehicleID")
-                .inner(vehicles.selectColumns("vehicleID", "capacity"));
-
         // TODO include empty vehicles?
-        long numberOfVehicles = table.selectColumns("vehicleID").dropDuplicateRows().stream().count();
-
-        // average by vehicle
-        Table averageOccupancyPerVehicle = table
-                .summarize("numberOfPeople", "capacity", mean)
-                .by("vehicleID")
-                .setName("Occupancy Rate");
+        Table averageOccupancyPerVehicle = linkLogTotals == null
+                ? averageOccupancyPerVehicle()
+                : averageOccupancyPerVehicleFromTotals();
+        long numberOfVehicles = averageOccupancyPerVehicle.rowCount();
         averageOccupancyPerVehicle.addColumns(
                 averageOccupancyPerVehicle
                         .doubleColumn("Mean [numberOfPeople]")
@@ -364,8 +444,7 @@ public class TablesawKpiCalculator implements KpiCalculator {
                 round(averageOccupancyPerVehicle.doubleColumn("Mean [numberOfPeople] / Mean [capacity]"), 2)
                         .setName("Average occupancy rate"))
                 .setName("Occupancy Rate");
-        this.writeTableCompressed(intermediate, String.format("%s/intermediate-occupancy-rate.csv", outputDirectory),
-                this.compressionType);
+        this.writeTableCompressed(intermediate, String.format("%s/intermediate-occupancy-rate.csv", outputDirectory));
 
         double kpi = averageOccupancyPerVehicle.doubleColumn("Mean [numberOfPeople] / Mean [capacity]").sum();
         kpi = kpi / numberOfVehicles;
@@ -374,24 +453,42 @@ public class TablesawKpiCalculator implements KpiCalculator {
                 "actual", round(kpi, 2),
                 "normalised", round(normaliser.normalise(kpi), 2)
         );
-        writeContentToFile(String.format("%s/kpi-occupancy-rate.csv", outputDirectory), kpiOutput, this.compressionType);
+        writeContentToFile(String.format("%s/kpi-occupancy-rate.csv", outputDirectory), kpiOutput);
+        derivedTables.kpiFinished(Kpi.OCCUPANCY_RATE);
         return kpiOutput;
     }
 
+    private Table averageOccupancyPerVehicle() {
+        // add capacity of the vehicle
+        Table table = derivedTables.get(DerivedTable.LINK_LOG)
+                .joinOn("vehicleID")
+                .inner(derivedTables.get(DerivedTable.VEHICLES).selectColumns("vehicleID", "capacity"));
+
+        // average by vehicle
+        return table
+                .summarize("numberOfPeople", "capacity", mean)
+                .by("vehicleID")
+                .setName("Occupancy Rate");
+    }
+
+    private Table averageOccupancyPerVehicleFromTotals() {
+        Table table = linkLogTotals.get().getVehicleTotalsTable()
+                .joinOn("vehicleID")
+                .inner(derivedTables.get(DerivedTable.VEHICLES).selectColumns("vehicleID", "capacity"));
+        return Table.create("Occupancy Rate",
+                table.stringColumn("vehicleID"),
+                table.doubleColumn("numberOfPeople")
+                        .divide(table.intColumn("linkLogEntries"))
+                        .setName("Mean [numberOfPeople]"),
+                table.intColumn("capacity").asDoubleColumn().setName("Mean [capacity]"));
+    }
+
     @Override
     public double writeVehicleKMKpi(Path outputDirectory) {
         LOGGER.info("Writing Vehicle KM KPI to {}", outputDirectory);
 
-        // add link length to the link log table
-        Table table = linkLogTable
-                .joinOn("linkID")
-                .inner(networkLinks.selectColumns("linkID", "length"));
-
         // get total km travelled for each vehicle
-        table = table
-                .summarize("length", sum)
-                .by("vehicleID")
-                .setName("Vehicle KM");
+        Table table = networkLengthPerVehicle().setName("Vehicle KM");
         table.addColumns(
                 table
                         .doubleColumn("Sum [length]")
@@ -400,21 +497,45 @@ public class TablesawKpiCalculator implements KpiCalculator {
 
         Table intermediate = table
                 .joinOn("vehicleID")
-                .inner(vehicles.selectColumns("vehicleID", "mode"));
+                .inner(derivedTables.get(DerivedTable.VEHICLES).selectColumns("vehicleID", "mode"));
         intermediate.setName("Vehicle KM per vehicle");
-        this.writeTableCompressed(intermediate, String.format("%s/intermediate-vehicle-km.csv", outputDirectory),
-                this.compressionType);
+        this.writeTableCompressed(intermediate, String.format("%s/intermediate-vehicle-km.csv", outputDirectory));
 
         double kpi = round(table.doubleColumn("distance_km").sum(), 2);
         LOGGER.info("Vehicle KM KPI {}", kpi);
-        writeContentToFile(String.format("%s/kpi-vehicle-km.csv", outputDirectory), String.valueOf(kpi),
-                this.compressionType);
+        writeContentToFile(String.format("%s/kpi-vehicle-km.csv", outputDirectory), String.valueOf(kpi));
+        derivedTables.kpiFinished(Kpi.VEHICLE_KM);
         return kpi;
     }
 
+    /**
+     * The total length of network links each vehicle travelled, in a {@code Sum [length]} column.
+     */
+    private Table networkLengthPerVehicle() {
+        if (linkLogTotals != null) {
+            Table totals = linkLogTotals.get().getVehicleTotalsTable();
+            Selection onNetwork = totals.intColumn("networkLinkLogEntries").isGreaterThan(0);
+            return Table.create(totals.name(),
+                    totals.stringColumn("vehicleID").where(onNetwork),
+                    totals.doubleColumn("length").where(onNetwork).setName("Sum [length]"));
+        }
+
+        // add link length to the link log table
+        Table linkLogTable = derivedTables.get(DerivedTable.LINK_LOG);
+        DoubleColumn length = derivedTables.get(DerivedTable.LINK_LOG_NETWORK).doubleColumn("length");
+        Selection onNetwork = length.isNotMissing();
+        Table table = Table.create(linkLogTable.name(),
+                linkLogTable.stringColumn("vehicleID").where(onNetwork),
+                length.where(onNetwork));
+        return table
+                .summarize("length", sum)
+                .by("vehicleID");
+    }
+
     @Override
     public void writePassengerKMKpi(Path outputDirectory) {
         LOGGER.info("Writing Passenger KM KPI to {}", outputDirectory);
+        Table trips = derivedTables.get(DerivedTable.TRIPS);
 
         Table intermediate = trips
                 .summarize("traveled_distance", sum)
@@ -425,114 +546,221 @@ public class TablesawKpiCalculator implements KpiCalculator {
                 intermediate.doubleColumn("traveled_distance")
                         .divide(1000)
                         .setName("traveled_distance_km"));
-        this.writeTableCompressed(intermediate, String.format("%s/intermediate-passenger-km.csv", outputDirectory),
-                this.compressionType);
+        this.writeTableCompressed(intermediate, String.format("%s/intermediate-passenger-km.csv", outputDirectory));
 
         double kpi = round(trips.numberColumn("traveled_distance").divide(1000).sum(), 2);
         LOGGER.info("Passenger KM KPI: {} km", kpi);
-        writeContentToFile(String.format("%s/kpi-passenger-km.csv", outputDirectory), String.valueOf(kpi),
-                this.compressionType);
+        writeContentToFile(String.format("%s/kpi-passenger-km.csv", outputDirectory), String.valueOf(kpi));
+        derivedTables.kpiFinished(Kpi.PASSENGER_KM);
     }
 
     @Override
-    public void writeSpeedKpi(Path outputDirectory) {
+    public void writeSpeedKpi(Path outputDirectory, int timeBinSeconds) {
         LOGGER.info("Writing Speed KPI to {}", outputDirectory);
-        networkLinks = sanitiseInfiniteColumnValuesInTable(networkLinks, networkLinks.doubleColumn("length"));
-
-        // add length of links to log
-        Table table = linkLogTable
-                .joinOn("linkID")
-                .inner(networkLinks.selectColumns("linkID", "length"));
-
-        // compute time travelled
-        table.addColumns(
-                table.doubleColumn("endTime")
-                        .subtract(table.doubleColumn("startTime"))
-                        .setName("travelTime"));
-
-        // compute speed
-        table.addColumns(
-                table.doubleColumn("length")
-                        .divide(1000)
-                        .divide(
-                                table.doubleColumn("travelTime")
-                                        .divide(60 * 60))
-                        .setName("travelSpeedKMPH"));
-
-        // put in hour bins
-        IntColumn hour = IntColumn.create("hour");
-        table.doubleColumn("endTime")
-                .forEach(time -> hour.append(
-                        (int) Math.floor(time / (60 * 60))));
-        table.addColumns(hour);
-
-        // average travelSpeedKMPH by link (rows) and hour (columns)
-        // TODO is it possible to order columns? atm sorted with integers as strings,
-        // not a timeline
+        // average travelSpeedKMPH by link (rows) and time bin (columns, in chronological order)
         // TODO geojson output
-        // TODO missing data results in empty result
-        Table kpi = table
-                .pivot("linkID", "hour", "travelSpeedKMPH", mean)
-                .setName("Speed");
+        LinkSpeedMatrix speeds = linkLogTotals == null || mappedLinkLog != null
+                ? linkSpeeds(timeBinSeconds)
+                : linkSpeedsFromTotals(timeBinSeconds);
+        Table kpi = speeds.toTable("Speed");
         for (NumericColumn<?> column : kpi.numericColumns()) {
             kpi.replaceColumn(round(column.asDoubleColumn(), 2));
         }
-        this.writeTableCompressed(kpi, String.format("%s/kpi-speed.csv", outputDirectory), this.compressionType);
+        this.writeTableCompressed(kpi, String.format("%s/kpi-speed.csv", outputDirectory));
+        derivedTables.kpiFinished(Kpi.SPEED);
+    }
+
+    /**
+     * The speed of each link log entry, added straight into the bin its link was left in, looking up the
+     * length of its link rather than joining the link log with the network. The entries of a memory-mapped link
+     * log are read from its file rather than from a table of every entry.
+     */
+    private LinkSpeedMatrix linkSpeeds(int timeBinSeconds) {
+        if (mappedLinkLog != null) {
+            MappedNetworkLinkLog linkLog = mappedLinkLog.get();
+            return linkSpeeds(timeBinSeconds, linkLog.getLinkLogSize(),
+                    linkLog::linkIdOf, linkLog::startTimeOf, linkLog::endTimeOf);
+        }
+        Table linkLogTable = derivedTables.get(DerivedTable.LINK_LOG);
+        StringColumn linkIds = linkLogTable.stringColumn("linkID");
+        DoubleColumn startTimes = linkLogTable.doubleColumn("startTime");
+        DoubleColumn endTimes = linkLogTable.doubleColumn("endTime");
+        return linkSpeeds(timeBinSeconds, linkLogTable.rowCount(),
+                linkIds::get, startTimes::getDouble, endTimes::getDouble);
+    }
+
+    private LinkSpeedMatrix linkSpeeds(int timeBinSeconds,
+            int entryCount,
+            IntFunction<String> linkIds,
+            IntToDoubleFunction startTimes,
+            IntToDoubleFunction endTimes) {
+        Table networkLinks = derivedTables.get(DerivedTable.NETWORK_LINKS);
+        Map<String, Double> networkLinkLengths = new HashMap<>();
+        StringColumn networkLinkIds = networkLinks.stringColumn("linkID");
+        DoubleColumn networkLinkLength = networkLinks.doubleColumn("length");
+        for (int row = 0; row < networkLinks.rowCount(); row++) {
+            networkLinkLengths.putIfAbsent(networkLinkIds.get(row), networkLinkLength.getDouble(row));
+        }
+
+        // entries are binned in a first pass, so the bins only reach as far as the entries that are kept
+        int[] bins = new int[entryCount];
+        int lastBin = 0;
+        int incompleteEntries = 0;
+        int entriesWithUnusableEndTimes = 0;
+        int entriesOffNetwork = 0;
+        int entriesOnInfiniteLinks = 0;
+        for (int entry = 0; entry < entryCount; entry++) {
+            bins[entry] = NO_BIN;
+            double endTime = endTimes.applyAsDouble(entry);
+            // only the entries of a memory-mapped link log can still be incomplete, link log tables drop them
+            if (Double.isNaN(endTime)) {
+                incompleteEntries++;
+                continue;
+            }
+            if (Double.isInfinite(endTime) || endTime < 0) {
+                entriesWithUnusableEndTimes++;
+                continue;
+            }
+            Double length = networkLinkLengths.get(linkIds.apply(entry));
+            if (length == null) {
+                entriesOffNetwork++;
+                continue;
+            }
+            if (Double.isInfinite(length)) {
+                entriesOnInfiniteLinks++;
+                continue;
+            }
+            if (Double.isNaN(length)) {
+                continue;
+            }
+            bins[entry] = LinkSpeedMatrix.binOf(endTime, timeBinSeconds);
+            lastBin = Math.max(lastBin, bins[entry]);
+        }
+        LinkSpeedMatrix speeds = new LinkSpeedMatrix(timeBinSeconds, lastBin + 1);
+        for (int entry = 0; entry < entryCount; entry++) {
+            if (bins[entry] == NO_BIN) {
+                continue;
+            }
+            String linkId = linkIds.apply(entry);
+            double travelTime = endTimes.applyAsDouble(entry) - startTimes.applyAsDouble(entry);
+            speeds.addSpeed(linkId, bins[entry], networkLinkLengths.get(linkId) / 1000 / (travelTime / (60 * 60)));
+        }
+        if (incompleteEntries > 0) {
+            LOGGER.warn("{} link log entries were never completed and will be left out of the Speed KPI",
+                    incompleteEntries);
+        }
+        if (entriesWithUnusableEndTimes > 0) {
+            LOGGER.warn("{} link log entries end at an infinite or negative time and will be left out of the " +
+                    "Speed KPI", entriesWithUnusableEndTimes);
+        }
+        if (entriesOffNetwork > 0) {
+            LOGGER.warn("{} link log entries are on links missing from the network and will be left out of " +
+                    "the Speed KPI", entriesOffNetwork);
+        }
+        if (entriesOnInfiniteLinks > 0) {
+            LOGGER.warn("Table: 'Link Log' has {} row(s) on links with infinite values in column: 'length'. " +
+                    "These rows will be dropped for this calculation.", entriesOnInfiniteLinks);
+        }
+        LOGGER.info("Binned speeds of {} link log entries on {} links into {} bins of {} seconds",
+                new Object[]{entryCount, speeds.getLinkCount(), lastBin + 1, timeBinSeconds});
+        return speeds;
+    }
+
+    /**
+     * The mean speed on each link in each hour, which averages out to the same speeds as those of each entry.
+     */
+    private LinkSpeedMatrix linkSpeedsFromTotals(int timeBinSeconds) {
+        if (timeBinSeconds != LinkSpeedMatrix.SECONDS_IN_AN_HOUR) {
+            throw new IllegalArgumentException(String.format(
+                    "Link log totals are kept by the hour, so speeds cannot be binned by %d seconds",
+                    timeBinSeconds));
+        }
+        Table totals = linkLogTotals.get().getLinkHourTotalsTable();
+        StringColumn linkIds = totals.stringColumn("linkID");
+        IntColumn hours = totals.intColumn("hour");
+        DoubleColumn speedSums = totals.doubleColumn("speedSum");
+        IntColumn speedCounts = totals.intColumn("speedCount");
+        int lastHour = 0;
+        for (int row = 0; row < totals.rowCount(); row++) {
+            lastHour = Math.max(lastHour, hours.getInt(row));
+        }
+        LinkSpeedMatrix speeds = new LinkSpeedMatrix(timeBinSeconds, lastHour + 1);
+        for (int row = 0; row < totals.rowCount(); row++) {
+            if (speedCounts.getInt(row) > 0) {
+                speeds.addSpeeds(linkIds.get(row), hours.getInt(row), speedSums.getDouble(row),
+                        speedCounts.getInt(row));
+            }
+        }
+        return speeds;
     }
 
     @Override
     public Map<String, Double> writeGHGKpi(Path outputDirectory, Normaliser normaliser) {
         LOGGER.info("Writing GHG KPIs to {}", outputDirectory);
 
-        // add link length to the link log table
-        Table table = linkLogTable
-                .joinOn("linkID")
-                .inner(networkLinks.selectColumns("linkID", "length"));
-        table.addColumns(table.numberColumn("length").divide(1000).setName("distance_km"));
-
         // total distance by vehicle
-        table = table.summarize("distance_km", sum).by("vehicleID");
+        Table table;
+        if (linkLogTotals == null) {
+            // add link length to the link log table
+            Table linkLogTable = derivedTables.get(DerivedTable.LINK_LOG);
+            DoubleColumn length = derivedTables.get(DerivedTable.LINK_LOG_NETWORK).doubleColumn("length");
+            Selection onNetwork = length.isNotMissing();
+            table = Table.create(linkLogTable.name(),
+                    linkLogTable.stringColumn("vehicleID").where(onNetwork),
+                    length.where(onNetwork));
+            table.addColumns(table.numberColumn("length").divide(1000).setName("distance_km"));
+            table = table.summarize("distance_km", sum).by("vehicleID");
+        } else {
+            Table lengths = networkLengthPerVehicle();
+            table = Table.create(lengths.name(),
+                    lengths.stringColumn("vehicleID"),
+                    lengths.doubleColumn("Sum [length]").divide(1000).setName("Sum [distance_km]"));
+        }
 
         table = table
                 .joinOn("vehicleID")
-                .inner(vehicles.selectColumns("vehicleID", "emissionsFactor"));
+                .inner(derivedTables.get(DerivedTable.VEHICLES).selectColumns("vehicleID", "emissionsFactor"));
 
         table.addColumns(table.numberColumn("Sum [distance_km]")
                 .multiply(table.numberColumn("emissionsFactor"))
                 .setName("emissions"));
 
         double emissionsTotal = round(table.numberColumn("emissions").sum(), 2);
-        double emissionsPerCapita = round(emissionsTotal / personModeScores.column("person").countUnique(), 2);
+        double emissionsPerCapita = round(emissionsTotal /
+                derivedTables.get(DerivedTable.PERSON_MODE_SCORES).column("person").countUnique(), 2);
         writeContentToFile(
                 String.format("%s/intermediate-ghg-emissions.csv", outputDirectory),
-                String.format("emissions_total,emissions_per_capita\n%f,%f", emissionsTotal, emissionsPerCapita),
-                this.compressionType);
+                String.format("emissions_total,emissions_per_capita\n%f,%f", emissionsTotal, emissionsPerCapita));
 
         Map<String, Double> kpiOutput = Map.of(
                 "actual", round(emissionsPerCapita, 2),
                 "normalised", round(normaliser.normalise(emissionsPerCapita), 2)
         );
-        writeContentToFile(String.format("%s/kpi-ghg-emissions.csv", outputDirectory), kpiOutput, this.compressionType);
+        writeContentToFile(String.format("%s/kpi-ghg-emissions.csv", outputDirectory), kpiOutput);
+        derivedTables.kpiFinished(Kpi.GHG);
         return kpiOutput;
     }
 
     @Override
     public Map<String, Double> writeTravelTimeKpi(Path outputDirectory, Normaliser normaliser) {
         LOGGER.info("Writing Travel Time KPI to {}", outputDirectory);
+        Table trips = derivedTables.snapshot(DerivedTable.TRIPS);
 
-        // convert H:M:S format to seconds
         IntColumn trav_time_minutes = IntColumn.create("trav_time_minutes");
-        trips.stringColumn("trav_time")
-                .forEach(time -> trav_time_minutes.append(
-                        (int) Math.round(Time.parseTime(time) / 60)));
+        for (int seconds : trips.intColumn("trav_time_seconds").asIntArray()) {
+            if (seconds == MatsimCsvReader.MISSING_TIME) {
+                trav_time_minutes.appendMissing();
+            } else {
+                trav_time_minutes.append((int) Math.round(seconds / 60.0));
+            }
+        }
         trips.addColumns(trav_time_minutes);
 
         Table intermediate = trips
                 .summarize("trav_time_minutes", mean)
                 .by("end_activity_type")
                 .setName("Travel Time by trip purpose");
-        this.writeTableCompressed(intermediate, String.format("%s/intermediate-travel-time.csv", outputDirectory),
-                this.compressionType);
+        this.writeTableCompressed(intermediate, String.format("%s/intermediate-travel-time.csv", outputDirectory));
 
         double kpi = trips.intColumn("trav_time_minutes").mean();
 
@@ -540,13 +768,16 @@ public class TablesawKpiCalculator implements KpiCalculator {
                 "actual", round(kpi, 2),
                 "normalised", round(normaliser.normalise(kpi), 2)
         );
-        writeContentToFile(String.format("%s/kpi-travel-time.csv", outputDirectory), kpiOutput, this.compressionType);
+        writeContentToFile(String.format("%s/kpi-travel-time.csv", outputDirectory), kpiOutput);
+        derivedTables.kpiFinished(Kpi.TRAVEL_TIME);
         return kpiOutput;
     }
 
     @Override
     public Map<String, Map<String, Double>> writeAccessToMobilityServicesKpi(Path outputDirectory, Normaliser normaliser) {
         LOGGER.info("Writing Access To Mobility Services KPI to {}", outputDirectory);
+        Table trips = derivedTables.get(DerivedTable.TRIPS);
+        Table scheduleStops = derivedTables.get(DerivedTable.SCHEDULE_STOPS);
 
         LOGGER.info("Filtering trips table with {} rows to find trips that started from 'home'",
                 trips.rowCount());
@@ -591,8 +822,7 @@ public class TablesawKpiCalculator implements KpiCalculator {
         LOGGER.info("Writing intermediate output");
         this.writeTableCompressed(
                 table,
-                String.format("%s/intermediate-access-to-mobility-services.csv", outputDirectory),
-                this.compressionType);
+                String.format("%s/intermediate-access-to-mobility-services.csv", outputDirectory));
 
         LOGGER.info("Calculating bus access to mobility KPI");
         double busKpi = ((double) table.booleanColumn("bus_access_400m").countTrue() /
@@ -603,7 +833,7 @@ public class TablesawKpiCalculator implements KpiCalculator {
                 "normalised", round(normaliser.normalise(busKpi), 2)
         );
         writeContentToFile(String.format("%s/kpi-access-to-mobility-services-access-to-bus.csv", outputDirectory),
-                busKpiOutput, this.compressionType);
+                busKpiOutput);
 
         LOGGER.info("Calculating rail access to mobility KPI");
         double railKpi = ((double) table.booleanColumn("rail_access_800m").countTrue() /
@@ -614,7 +844,7 @@ public class TablesawKpiCalculator implements KpiCalculator {
                 "normalised", round(normaliser.normalise(railKpi), 2)
         );
         writeContentToFile(String.format("%s/kpi-access-to-mobility-services-access-to-rail.csv", outputDirectory),
-                railKpiOutput, this.compressionType);
+                railKpiOutput);
 
         LOGGER.info("Computing utilised PT KPI");
         Selection ptAccess = table.booleanColumn("bus_access_400m").isTrue()
@@ -627,9 +857,10 @@ public class TablesawKpiCalculator implements KpiCalculator {
                 "normalised", round(normaliser.normalise(usedPtKpi), 2)
         );
         writeContentToFile(String.format("%s/kpi-access-to-mobility-services-access-to-pt-and-pt-used.csv", outputDirectory),
-                usedPtKpiOutput, this.compressionType);
+                usedPtKpiOutput);
 
         LOGGER.info("Finished calculating access to mobility KPIs");
+        derivedTables.kpiFinished(Kpi.ACCESS_TO_MOBILITY_SERVICES);
         return Map.of(
                 "busKpi", busKpiOutput,
                 "railKpi", railKpiOutput,
@@ -642,86 +873,56 @@ public class TablesawKpiCalculator implements KpiCalculator {
                 columnName,
                 table.name(),
                 distance);
-        table.addColumns(
-                BooleanColumn.create(columnName,
-                        Collections.nCopies(table.column("person").size(), false)));
-        // to collect people with access, we remove them from table to not process them
-        // again
-        Table trueTable = table.emptyCopy();
-
-        LOGGER.info("Iterating over {} PT stops to calculate person distances from each", stops.rowCount());
-        for (Row stopRow : stops) {
-            double x = stopRow.getNumber("x");
-            double y = stopRow.getNumber("y");
-
-            LOGGER.debug("Calculating access for {} persons for stop {}",
-                    table.rowCount(), stopRow.getString("name"));
-            table.addColumns(
-                    table.doubleColumn("x").subtract(x).power(2)
-                            .add(table.doubleColumn("y").subtract(y).power(2))
-                            .setName("circleCalc"));
-            table.booleanColumn(columnName).set(
-                    table.doubleColumn("circleCalc").isLessThanOrEqualTo(Math.pow(distance, 2)),
-                    true);
-            table.removeColumns("circleCalc");
-            trueTable.append(table.where(table.booleanColumn(columnName).isTrue()));
-            table = table.dropWhere(table.booleanColumn(columnName).isTrue());
+        CoordinateGridIndex stopIndex = new CoordinateGridIndex(
+                stops.numberColumn("x").asDoubleArray(),
+                stops.numberColumn("y").asDoubleArray(),
+                distance);
+        LOGGER.info("Indexed {} PT stops into {} grid cells", stops.rowCount(), stopIndex.getCellCount());
+
+        LOGGER.info("Looking up PT stops within {} of {} locations", distance, table.rowCount());
+        NumericColumn<?> xColumn = table.numberColumn("x");
+        NumericColumn<?> yColumn = table.numberColumn("y");
+        BooleanColumn accessColumn = BooleanColumn.create(columnName);
+        for (int i = 0; i < table.rowCount(); i++) {
+            accessColumn.append(stopIndex.hasPointWithinRadius(xColumn.getDouble(i), yColumn.getDouble(i)));
         }
+        table.addColumns(accessColumn);
         LOGGER.info("Finished making PT stop distance calcs for '{}' at {} distance", columnName, distance);
-        return table.append(trueTable);
+        return table;
     }
 
     @Override
     public Table writeCongestionKpi(Path outputDirectory, Normaliser normaliser) {
         LOGGER.info("Writing Congestion KPIs to {}", outputDirectory);
-
-        // compute travel time on links
-        Table table = linkLogTable.addColumns(
-                linkLogTable.doubleColumn("endTime")
-                        .subtract(linkLogTable.doubleColumn("startTime"))
-                        .setName("travelTime"));
-
-        // compute free flow time on links (length / freespeed)
-        Table sanitisedNetworkLinks = sanitiseInfiniteColumnValuesInTable(
-                networkLinks, networkLinks.doubleColumn("freespeed"));
-        sanitisedNetworkLinks.addColumns(
-                sanitisedNetworkLinks.doubleColumn("length")
-                        .divide(sanitisedNetworkLinks.doubleColumn("freespeed"))
-                        .setName("freeFlowTime"));
-
-        // add freeflow time to link log
-        table = table
-                .joinOn("linkID")
-                .inner(sanitisedNetworkLinks.selectColumns("linkID", "freeFlowTime"));
-
-        // compute delay ratio
-        table.addColumns(
-                table.doubleColumn("travelTime")
-                        .divide(table.doubleColumn("freeFlowTime"))
-                        .setName("delayRatio"));
-
-        // put in hour bins
-        IntColumn hour = IntColumn.create("hour");
-        table.doubleColumn("endTime")
-                .forEach(time -> hour.append(
-                        (int) Math.floor(time / (60 * 60))));
-        table.addColumns(hour);
-
-        // intermediate output data
-        Table intermediate = table
-                .summarize("delayRatio", mean)
-                .by("linkID", "mode", "hour");
-        this.writeTableCompressed(intermediate, String.format("%s/intermediate-congestion.csv", outputDirectory),
-                this.compressionType);
-
-        // kpi output
-        Table kpi =
-                table
-                        .where(table.intColumn("hour").isGreaterThanOrEqualTo(8)
-                                .and(table.intColumn("hour").isLessThan(10)))
-                        .summarize("delayRatio", mean)
-                        .by("mode")
-                        .setName("Congestion KPI");
+        Table intermediate;
+        Table kpi;
+        if (linkLogTotals == null) {
+            List<Table> delayRatios = meanDelayRatios();
+            intermediate = delayRatios.get(0);
+            kpi = delayRatios.get(1);
+        } else {
+            Table totals = linkLogTotals.get().getLinkHourTotalsTable();
+            totals = totals.where(totals.intColumn("delayRatioCount").isGreaterThan(0));
+            intermediate = Table.create(totals.name(),
+                    totals.stringColumn("linkID"),
+                    totals.stringColumn("mode"),
+                    totals.intColumn("hour"),
+                    totals.doubleColumn("delayRatioSum")
+                            .divide(totals.intColumn("delayRatioCount"))
+                            .setName("Mean [delayRatio]"));
+
+            Table peakTotals = totals
+                    .where(totals.intColumn("hour").isGreaterThanOrEqualTo(8)
+                            .and(totals.intColumn("hour").isLessThan(10)))
+                    .summarize("delayRatioSum", "delayRatioCount", sum)
+                    .by("mode");
+            kpi = Table.create("Congestion KPI",
+                    peakTotals.stringColumn("mode"),
+                    peakTotals.doubleColumn("Sum [delayRatioSum]")
+                            .divide(peakTotals.doubleColumn("Sum [delayRatioCount]"))
+                            .setName("Mean [delayRatio]"));
+        }
+        this.writeTableCompressed(intermediate, String.format("%s/intermediate-congestion.csv", outputDirectory));
 
         // add scaled output column
         DoubleColumn normalisedDelayedRatio = DoubleColumn.create("Normalised [Mean [delayRatio]]");
@@ -733,13 +934,97 @@ public class TablesawKpiCalculator implements KpiCalculator {
 
         kpi.replaceColumn(round(kpi.doubleColumn("Mean [delayRatio]"), 2));
         kpi.replaceColumn(round(kpi.doubleColumn("Normalised [Mean [delayRatio]]"), 2));
-        this.writeTableCompressed(kpi, String.format("%s/kpi-congestion.csv", outputDirectory), compressionType);
+        this.writeTableCompressed(kpi, String.format("%s/kpi-congestion.csv", outputDirectory));
+        derivedTables.kpiFinished(Kpi.CONGESTION);
         return kpi;
     }
 
+    /**
+     * The mean delay ratio (travel time over free flow time) by link, mode and hour, and by mode in the peak
+     * hours, totalled up in one scan of the link log without building a table of the delay ratio of every entry.
+     */
+    private List<Table> meanDelayRatios() {
+        Table linkLogTable = derivedTables.get(DerivedTable.LINK_LOG);
+        Table linkLogNetwork = derivedTables.get(DerivedTable.LINK_LOG_NETWORK);
+        StringColumn linkIds = linkLogTable.stringColumn("linkID");
+        StringColumn modes = linkLogTable.stringColumn("mode");
+        DoubleColumn freespeed = linkLogNetwork.doubleColumn("freespeed");
+        DoubleColumn travelTime = linkLogNetwork.doubleColumn("travelTime");
+        DoubleColumn freeFlowTime = linkLogNetwork.doubleColumn("freeFlowTime");
+        IntColumn hour = linkLogNetwork.intColumn("hour");
+
+        StringDictionary linkCodes = new StringDictionary();
+        StringDictionary modeCodes = new StringDictionary();
+        IntKeyGroupBy linkModeHours = new IntKeyGroupBy(3, 1);
+        IntKeyGroupBy peakModes = new IntKeyGroupBy(1, 1);
+        int[] linkModeHour = new int[3];
+        int[] peakMode = new int[1];
+        int entriesOnInfiniteLinks = 0;
+        for (int row = 0; row < linkLogTable.rowCount(); row++) {
+            double rowFreespeed = freespeed.getDouble(row);
+            if (Double.isNaN(rowFreespeed)) {
+                continue;
+            }
+            if (Double.isInfinite(rowFreespeed)) {
+                entriesOnInfiniteLinks++;
+                continue;
+            }
+            double delayRatio = travelTime.getDouble(row) / freeFlowTime.getDouble(row);
+            if (Double.isNaN(delayRatio)) {
+                // a link of missing length has no free flow time, so no delay ratio to average
+                continue;
+            }
+            int rowHour = hour.getInt(row);
+            linkModeHour[0] = linkCodes.encode(linkIds.get(row));
+            linkModeHour[1] = modeCodes.encode(modes.get(row));
+            linkModeHour[2] = rowHour;
+            linkModeHours.add(linkModeHours.group(linkModeHour), 0, delayRatio);
+            if (rowHour >= 8 && rowHour < 10) {
+                peakMode[0] = linkModeHour[1];
+                peakModes.add(peakModes.group(peakMode), 0, delayRatio);
+            }
+        }
+        if (entriesOnInfiniteLinks > 0) {
+            LOGGER.warn("Table: '{}' has {} row(s) on links with infinite values in column: 'freespeed'. " +
+                    "These rows will be dropped for this calculation.", linkLogTable.name(), entriesOnInfiniteLinks);
+        }
+        LOGGER.info("Totalled up delay ratios of {} link log entries into {} link, mode and hour groups",
+                linkLogTable.rowCount(), linkModeHours.getGroupCount());
+
+        // groups are numbered in order of first appearance, as Tablesaw orders them
+        int groupCount = linkModeHours.getGroupCount();
+        String[] groupLinks = new String[groupCount];
+        String[] groupModes = new String[groupCount];
+        int[] groupHours = new int[groupCount];
+        double[] groupDelayRatios = new double[groupCount];
+        for (int group = 0; group < groupCount; group++) {
+            groupLinks[group] = linkCodes.decode(linkModeHours.getKey(group, 0));
+            groupModes[group] = modeCodes.decode(linkModeHours.getKey(group, 1));
+            groupHours[group] = linkModeHours.getKey(group, 2);
+            groupDelayRatios[group] = linkModeHours.getMean(group, 0);
+        }
+        Table intermediate = Table.create("Link Delay Ratios",
+                StringColumn.create("linkID", groupLinks),
+                StringColumn.create("mode", groupModes),
+                IntColumn.create("hour", groupHours),
+                DoubleColumn.create("Mean [delayRatio]", groupDelayRatios));
+
+        String[] peakGroupModes = new String[peakModes.getGroupCount()];
+        double[] peakDelayRatios = new double[peakModes.getGroupCount()];
+        for (int group = 0; group < peakModes.getGroupCount(); group++) {
+            peakGroupModes[group] = modeCodes.decode(peakModes.getKey(group, 0));
+            peakDelayRatios[group] = peakModes.getMean(group, 0);
+        }
+        Table kpi = Table.create("Congestion KPI",
+                StringColumn.create("mode", peakGroupModes),
+                DoubleColumn.create("Mean [delayRatio]", peakDelayRatios));
+        return List.of(intermediate, kpi);
+    }
+
     @Override
     public double writeMobilitySpaceUsageKpi(Path outputDirectory) {
         LOGGER.info("Writing Mobility Space Usage KPI to {}", outputDirectory);
+        Table activities = derivedTables.get(DerivedTable.ACTIVITIES);
 
         LOGGER.debug("Filtering the activities table, which contains {} rows, for car activities",
                 activities.rowCount());
@@ -774,8 +1059,7 @@ public class TablesawKpiCalculator implements KpiCalculator {
                         .multiply(11.5)
                         .setName("parking_space_demand"));
         this.writeTableCompressed(intermediate,
-                String.format("%s/intermediate-mobility-space-usage.csv", outputDirectory),
-                this.compressionType);
+                String.format("%s/intermediate-mobility-space-usage.csv", outputDirectory));
 
         LOGGER.info("Computing KPI number one: demand by activity type");
         Table kpi = intermediate
@@ -793,17 +1077,16 @@ public class TablesawKpiCalculator implements KpiCalculator {
                         .setName("weighted_demand"));
         LOGGER.debug("Finished adding weighted_demand column to the KPI table");
         this.writeTableCompressed(intermediate,
-                String.format("%s/kpi-mobility-space-usage-per-activity-type.csv", outputDirectory),
-                this.compressionType);
+                String.format("%s/kpi-mobility-space-usage-per-activity-type.csv", outputDirectory));
 
         LOGGER.info("Calculating the final KPI");
         double finalKpi = kpi.numberColumn("parking_space_demand").sum()
-                / personModeScores.column("person").size();
+                / derivedTables.get(DerivedTable.PERSON_MODE_SCORES).column("person").size();
         LOGGER.info("Finished calculating the final KPI");
         finalKpi = round(finalKpi, 2);
         writeContentToFile(String.format("%s/kpi-mobility-space-usage.csv", outputDirectory),
-                String.valueOf(finalKpi),
-                this.compressionType);
+                String.valueOf(finalKpi));
+        derivedTables.kpiFinished(Kpi.MOBILITY_SPACE_USAGE);
         return finalKpi;
     }
 
@@ -827,18 +1110,6 @@ public class TablesawKpiCalculator implements KpiCalculator {
         return Math.round(number * Math.pow(10.0, decimalPoints)) / Math.pow(10.0, decimalPoints);
     }
 
-    private Table sanitiseInfiniteColumnValuesInTable(Table table, DoubleColumn column) {
-        Table infiniteValuesTable = table.where(column.eval(Double::isInfinite));
-        if (!infiniteValuesTable.isEmpty()) {
-            LOGGER.warn("Table: '{}' has {} row(s) affected by infinite values in column: '{}'. " +
-                            "These rows will be dropped for this calculation.",
-                    table.name(), infiniteValuesTable.rowCount(), column.name());
-            return table.dropWhere(column.eval(Double::isInfinite));
-        } else {
-            return table;
-        }
-    }
-
     private Table createFacilitiesTable(ActivityFacilities facilities) {
         LOGGER.info("Creating Facilities Table");
         StringColumn facilityIDColumn = StringColumn.create("facilityID");
@@ -930,7 +1201,7 @@ public class TablesawKpiCalculator implements KpiCalculator {
         return trips;
     }
 
-    private Table addCostToLegs(Table legs, Table personModeScores, MoneyLog moneyLog) {
+    Table addCostToLegs(Table legs, Table personModeScores, MoneyLog moneyLog) {
         LOGGER.info("Adding costs to legs table. Legs table has {} rows, personModeScores table " +
                         "has {} rows, moneyLog has {} entries",
                 legs.rowCount(),
@@ -938,14 +1209,18 @@ public class TablesawKpiCalculator implements KpiCalculator {
                 moneyLog.getMoneyLogData().size());
         // Add Costs to Legs
         // join personal monetary costs, constant and per distance unit
-        personModeScores.column("mode").setName("score_mode");
+        // the scoring mode is joined under another name, leaving the shared person mode scores table untouched
+        Table modeScores = Table.create(
+                personModeScores.name(),
+                personModeScores.column("person"),
+                personModeScores.column("mode").copy().setName("score_mode"),
+                personModeScores.column("monetaryDistanceRate"),
+                personModeScores.column("dailyMonetaryConstant"));
         legs = legs
                 .joinOn("person")
-                .inner(personModeScores
-                        .selectColumns("person", "score_mode", "monetaryDistanceRate", "dailyMonetaryConstant"));
+                .inner(modeScores);
         legs = legs.where(
                 legs.stringColumn("mode").isEqualTo(legs.stringColumn("score_mode")));
-        personModeScores.column("score_mode").setName("mode");
 
         LOGGER.debug("Computing monetary cost for each leg from scoring params");
         legs.addColumns(
@@ -957,38 +1232,34 @@ public class TablesawKpiCalculator implements KpiCalculator {
         legs.removeColumns("monetaryDistanceRate", "dailyMonetaryConstant");
 
         LOGGER.info("Adding contribution from person money events");
-        LOGGER.debug("Create a time columns in seconds");
-        DoubleColumn dep_time_seconds = DoubleColumn.create("dep_time_seconds");
-        DoubleColumn trav_time_seconds = DoubleColumn.create("trav_time_seconds");
-        LOGGER.debug("Adding dep_time column");
-        legs.stringColumn("dep_time")
-                .forEach(time -> dep_time_seconds.append(
-                        (int) Time.parseTime(time)));
-        LOGGER.debug("Adding trav_time column");
-        legs.stringColumn("trav_time")
-                .forEach(time -> trav_time_seconds.append(
-                        (int) Time.parseTime(time)));
-        DoubleColumn arr_time_seconds = dep_time_seconds.add(trav_time_seconds).setName("arr_time_seconds");
-        legs.addColumns(dep_time_seconds, arr_time_seconds);
+        int[] departureSeconds = legs.intColumn("dep_time_seconds").asIntArray();
+        int[] travelSeconds = legs.intColumn("trav_time_seconds").asIntArray();
+        double[] depTimes = new double[departureSeconds.length];
+        double[] arrTimes = new double[departureSeconds.length];
+        for (int row = 0; row < departureSeconds.length; row++) {
+            // a leg missing a time spans no time: it sorts after every other leg of its person and never arrives
+            depTimes[row] = departureSeconds[row] == MatsimCsvReader.MISSING_TIME
+                    ? Double.POSITIVE_INFINITY
+                    : departureSeconds[row];
+            int arrivalSeconds = arrivalTime(departureSeconds, travelSeconds, row);
+            arrTimes[row] = arrivalSeconds == MatsimCsvReader.MISSING_TIME ? Double.NaN : arrivalSeconds;
+        }
+        LOGGER.info("Grouping legs by person and departure time");
+        LegTimeIndex legTimeIndex = new LegTimeIndex(
+                legs.stringColumn("person").asObjectArray(), depTimes, arrTimes);
         LOGGER.info("Iterating over the money log");
-        DoubleColumn monetaryCostOfTravelColumn = legs.doubleColumn("monetaryCostOfTravel");
-        DoubleColumn departureTimeColumn = legs.doubleColumn("dep_time_seconds");
-        DoubleColumn arrivalTimeColumn = legs.doubleColumn("arr_time_seconds");
-        StringColumn personColumn = legs.stringColumn("person");
+        double[] monetaryCostOfTravel = legs.doubleColumn("monetaryCostOfTravel").asDoubleArray();
         for (Map.Entry<String, Map<Double, Double>> entry : moneyLog.getMoneyLogData().entrySet()) {
             String person = entry.getKey();
             for (Map.Entry<Double, Double> costEntry : entry.getValue().entrySet()) {
-                Double time = costEntry.getKey();
-                Double cost = costEntry.getValue();
-                monetaryCostOfTravelColumn.set(
-                        personColumn.isEqualTo(person)
-                                .and(departureTimeColumn.isLessThan(time)
-                                        .and(arrivalTimeColumn.isGreaterThanOrEqualTo(time))),
-                        monetaryCostOfTravelColumn.add(cost));
+                double time = costEntry.getKey();
+                double cost = costEntry.getValue();
+                legTimeIndex.forEachLegSpanning(person, time, legRow -> monetaryCostOfTravel[legRow] += cost);
             }
         }
+        legs.replaceColumn("monetaryCostOfTravel",
+                DoubleColumn.create("monetaryCostOfTravel", monetaryCostOfTravel));
         LOGGER.debug("Finished iterating over the money log");
-        legs.removeColumns(dep_time_seconds, arr_time_seconds);
         LOGGER.info("Finished adding costs to legs table");
         return legs;
     }
@@ -1013,99 +1284,156 @@ public class TablesawKpiCalculator implements KpiCalculator {
         return trips;
     }
 
-    private Table createActivitiesTable(Table trips) {
+    Table createActivitiesTable(Table trips) {
         LOGGER.info("Creating Activities Table");
-        Table activities = Table.create("Activities")
-                .addColumns(
-                        StringColumn.create("person"),
-                        StringColumn.create("activity_type"),
-                        StringColumn.create("facility_id"),
-                        StringColumn.create("access_mode"),
-                        StringColumn.create("egress_mode"),
-                        StringColumn.create("start_time"),
-                        StringColumn.create("end_time"),
-                        StringColumn.create("access_trip_id"),
-                        StringColumn.create("egress_trip_id"));
+        StringColumn person = StringColumn.create("person");
+        StringColumn activityType = StringColumn.create("activity_type");
+        StringColumn facilityId = StringColumn.create("facility_id");
+        StringColumn accessMode = StringColumn.create("access_mode");
+        StringColumn egressMode = StringColumn.create("egress_mode");
+        StringColumn startTime = StringColumn.create("start_time");
+        StringColumn endTime = StringColumn.create("end_time");
+        StringColumn accessTripId = StringColumn.create("access_trip_id");
+        StringColumn egressTripId = StringColumn.create("egress_trip_id");
 
         StringColumn uniquePersons = trips.stringColumn("person").unique();
-        LOGGER.info("About to iterate over {} unique persons in a trips table with {} rows",
-                uniquePersons.countUnique(),
-                trips.rowCount());
-        int personsProcessedCount = 0;
-        int loggingStepSize = 10000;
-        if (uniquePersons.countUnique() > 10) {
-            loggingStepSize = uniquePersons.countUnique() / 10;
-        }
-        for (String person : uniquePersons) {
-            Table personTrips = trips
-                    .where(trips.stringColumn("person").isEqualTo(person))
-                    .sortAscendingOn("trip_number");
-            Table personActivities = activities.emptyCopy();
-            for (int i = 0; i < personTrips.rowCount(); i++) {
-                Row thisTrip = personTrips.row(i);
-                personActivities.stringColumn("person").append(person);
-                personActivities.stringColumn("activity_type").append(thisTrip.getString("start_activity_type"));
-                personActivities.stringColumn("facility_id").append(thisTrip.getString("start_facility_id"));
-                personActivities.stringColumn("egress_mode").append(thisTrip.getString("longest_distance_mode"));
-                personActivities.stringColumn("end_time").append(thisTrip.getString("dep_time"));
-                personActivities.stringColumn("egress_trip_id").append(thisTrip.getString("trip_id"));
+        LOGGER.info("About to sort a trips table with {} rows by {} unique persons and trip number",
+                trips.rowCount(),
+                uniquePersons.size());
+        int[] personOffsets = new int[uniquePersons.size() + 1];
+        int[] rows = sortTripRowsByPersonAndTripNumber(trips, uniquePersons, personOffsets);
+
+        StringColumn startActivityTypes = trips.stringColumn("start_activity_type");
+        StringColumn endActivityTypes = trips.stringColumn("end_activity_type");
+        StringColumn startFacilityIds = trips.stringColumn("start_facility_id");
+        StringColumn endFacilityIds = trips.stringColumn("end_facility_id");
+        StringColumn longestDistanceModes = trips.stringColumn("longest_distance_mode");
+        StringColumn departureTimes = trips.stringColumn("dep_time");
+        int[] departureSeconds = trips.intColumn("dep_time_seconds").asIntArray();
+        int[] travelSeconds = trips.intColumn("trav_time_seconds").asIntArray();
+        StringColumn tripIds = trips.stringColumn("trip_id");
+        // one activity before each trip, plus the final activity of each person
+        for (int p = 0; p < uniquePersons.size(); p++) {
+            String personId = uniquePersons.get(p);
+            int previousTrip = -1;
+            for (int i = personOffsets[p]; i < personOffsets[p + 1]; i++) {
+                int thisTrip = rows[i];
+                person.append(personId);
+                activityType.append(startActivityTypes.get(thisTrip));
+                facilityId.append(startFacilityIds.get(thisTrip));
+                egressMode.append(longestDistanceModes.get(thisTrip));
+                endTime.append(departureTimes.get(thisTrip));
+                egressTripId.append(tripIds.get(thisTrip));
                 // access mode and start time comes from the previous trip
-                if (i == 0) {
-                    personActivities.stringColumn("access_mode").appendMissing();
-                    personActivities.stringColumn("start_time").appendMissing();
-                    personActivities.stringColumn("access_trip_id").appendMissing();
+                if (previousTrip < 0) {
+                    accessMode.appendMissing();
+                    startTime.appendMissing();
+                    accessTripId.appendMissing();
                 } else {
-                    Row previousTrip = personTrips.row(i - 1);
-                    personActivities.stringColumn("access_mode")
-                            .append(previousTrip.getString("longest_distance_mode"));
-                    personActivities.stringColumn("access_trip_id").append(previousTrip.getString("trip_id"));
-                    int arrivalTime = (int) (Time.parseTime(previousTrip.getString("dep_time"))
-                            + Time.parseTime(previousTrip.getString("trav_time")));
-                    personActivities.stringColumn("start_time").append(integerToStringDate(arrivalTime));
+                    accessMode.append(longestDistanceModes.get(previousTrip));
+                    accessTripId.append(tripIds.get(previousTrip));
+                    appendTimeOfDay(startTime, arrivalTime(departureSeconds, travelSeconds, previousTrip));
                 }
+                previousTrip = thisTrip;
             }
-            // last row of activities table
-            Row lastTrip = personTrips.row(personTrips.rowCount() - 1);
-            personActivities.stringColumn("person").append(person);
-            personActivities.stringColumn("activity_type").append(lastTrip.getString("end_activity_type"));
-            personActivities.stringColumn("facility_id").append(lastTrip.getString("end_facility_id"));
-            personActivities.stringColumn("access_mode").append(lastTrip.getString("longest_distance_mode"));
-            personActivities.stringColumn("access_trip_id").append(lastTrip.getString("trip_id"));
-            int arrivalTime = (int) (Time.parseTime(lastTrip.getString("dep_time"))
-                    + Time.parseTime(lastTrip.getString("trav_time")));
-            personActivities.stringColumn("start_time").append(integerToStringDate(arrivalTime));
-            personActivities.stringColumn("egress_mode").appendMissing();
-            personActivities.stringColumn("end_time").appendMissing();
-            personActivities.stringColumn("egress_trip_id").appendMissing();
-
-            // finally append the activities of this person
-            activities.append(personActivities);
-            personsProcessedCount++;
-            if (personsProcessedCount % loggingStepSize == 0) {
-                LOGGER.info("Created activities for {} persons so far", personsProcessedCount);
-            }
+            // last activity of this person
+            person.append(personId);
+            activityType.append(endActivityTypes.get(previousTrip));
+            facilityId.append(endFacilityIds.get(previousTrip));
+            accessMode.append(longestDistanceModes.get(previousTrip));
+            accessTripId.append(tripIds.get(previousTrip));
+            appendTimeOfDay(startTime, arrivalTime(departureSeconds, travelSeconds, previousTrip));
+            egressMode.appendMissing();
+            endTime.appendMissing();
+            egressTripId.appendMissing();
         }
-        LOGGER.info("Finished creating Activities Table");
+        Table activities = Table.create("Activities")
+                .addColumns(
+                        person,
+                        activityType,
+                        facilityId,
+                        accessMode,
+                        egressMode,
+                        startTime,
+                        endTime,
+                        accessTripId,
+                        egressTripId);
+        LOGGER.info("Finished creating Activities Table with {} rows", activities.rowCount());
 
         return activities;
     }
 
+    /**
+     * Returns the trip rows grouped by person, in the order of {@code uniquePersons}, and sorted by trip
+     * number within each person. The trips of person {@code p} end up between {@code personOffsets[p]}
+     * (inclusive) and {@code personOffsets[p + 1]} (exclusive).
+     */
+    private int[] sortTripRowsByPersonAndTripNumber(Table trips, StringColumn uniquePersons, int[] personOffsets) {
+        Map<String, Integer> personIndices = new HashMap<>();
+        for (int p = 0; p < uniquePersons.size(); p++) {
+            personIndices.put(uniquePersons.get(p), p);
+        }
+        StringColumn tripPersons = trips.stringColumn("person");
+        int[] tripPersonIndices = new int[trips.rowCount()];
+        for (int row = 0; row < trips.rowCount(); row++) {
+            tripPersonIndices[row] = personIndices.get(tripPersons.get(row));
+            personOffsets[tripPersonIndices[row] + 1]++;
+        }
+        for (int p = 0; p < uniquePersons.size(); p++) {
+            personOffsets[p + 1] += personOffsets[p];
+        }
+        int[] rows = new int[trips.rowCount()];
+        int[] nextPosition = personOffsets.clone();
+        for (int row = 0; row < trips.rowCount(); row++) {
+            rows[nextPosition[tripPersonIndices[row]]++] = row;
+        }
+
+        // a person only makes a handful of trips, which are usually already in trip number order
+        double[] tripNumbers = trips.numberColumn("trip_number").asDoubleArray();
+        for (int p = 0; p < uniquePersons.size(); p++) {
+            for (int i = personOffsets[p] + 1; i < personOffsets[p + 1]; i++) {
+                int row = rows[i];
+                int j = i - 1;
+                while (j >= personOffsets[p] && tripNumbers[rows[j]] > tripNumbers[row]) {
+                    rows[j + 1] = rows[j];
+                    j--;
+                }
+                rows[j + 1] = row;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * The departure plus travel time of a leg or trip, which is missing if either of them is.
+     */
+    private static int arrivalTime(int[] departureSeconds, int[] travelSeconds, int row) {
+        if (departureSeconds[row] == MatsimCsvReader.MISSING_TIME
+                || travelSeconds[row] == MatsimCsvReader.MISSING_TIME) {
+            return MatsimCsvReader.MISSING_TIME;
+        }
+        return departureSeconds[row] + travelSeconds[row];
+    }
+
+    private void appendTimeOfDay(StringColumn column, int time) {
+        if (time == MatsimCsvReader.MISSING_TIME) {
+            column.appendMissing();
+        } else {
+            column.append(integerToStringDate(time));
+        }
+    }
+
     private String integerToStringDate(int time) {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.of("UTC"));
         Instant instant = Instant.ofEpochMilli((long) (time * 1000));
-        return formatter.format(instant);
+        return TIME_OF_DAY_FORMATTER.format(instant);
     }
 
-    private void createPeopleTables(InputStream personInputStream, ScoringConfigGroup scoring) {
+    private Table createPeopleTables(InputStream personInputStream, ScoringConfigGroup scoring) {
         LOGGER.info("Creating Population Mode Scoring Table");
 
-        Map<String, ColumnType> columnMapping = new HashMap<>();
-        columnMapping.put("person", ColumnType.STRING);
-        columnMapping.put("income", ColumnType.DOUBLE);
-
         LOGGER.info("Reading persons file into a Table");
-        personModeScores = readCSVInputStream(personInputStream, columnMapping)
-                .setName("Person Mode Scoring Parameters");
+        Table personModeScores = csvReader.read(
+                personInputStream, MatsimCsvReader.PERSONS, "Person Mode Scoring Parameters");
         LOGGER.info("Created a persons table with {} rows", personModeScores.rowCount());
 
         if (!personModeScores.columnNames().contains("income")) {
@@ -1147,9 +1475,30 @@ public class TablesawKpiCalculator implements KpiCalculator {
                                 monetaryDistanceRateColumn,
                                 dailyMonetaryConstantColumn));
         LOGGER.info("Finished populating all person-related tables");
+        return personModeScores;
+    }
+
+    private List<Table> scenarioTables(String input,
+                                       Supplier<List<Table>> emptyTables,
+                                       Supplier<List<Table>> builder) {
+        return scenarioTableCache == null ? builder.get() : scenarioTableCache.get(input, emptyTables, builder);
+    }
+
+    // the scenario tables are built from an empty scenario to key the table cache by their columns
+    private static Scenario emptyScenario() {
+        return ScenarioUtils.createScenario(ConfigUtils.createConfig());
     }
 
-    private void createNetworkLinkTables(Network network) {
+    private Table createNetworkLinkTables(Supplier<Network> network) {
+        List<Table> tables = scenarioTables(ScenarioTableCache.NETWORK,
+                () -> buildNetworkLinkTables(emptyScenario().getNetwork()),
+                () -> buildNetworkLinkTables(network.get()));
+        // no KPI reads the link modes, so they are only kept long enough to write them out
+        writeSupportingData(tables.get(1), "networkLinkModes");
+        return tables.get(0);
+    }
+
+    private List<Table> buildNetworkLinkTables(Network network) {
         LOGGER.info("Creating Network Link Tables");
 
         // Network Links Table Columns
@@ -1185,7 +1534,7 @@ public class TablesawKpiCalculator implements KpiCalculator {
             }
         });
 
-        networkLinks = Table.create("Network Links")
+        Table networkLinks = Table.create("Network Links")
                 .addColumns(
                         linkIDColumn,
                         fromNodeColumn,
@@ -1195,14 +1544,24 @@ public class TablesawKpiCalculator implements KpiCalculator {
                         lengthColumn,
                         lanesColumn);
 
-        networkLinkModes = Table.create("Network Link Modes")
+        Table networkLinkModes = Table.create("Network Link Modes")
                 .addColumns(
                         StringColumn.create("linkID", modesLinkIDColumn),
                         StringColumn.create("mode", modesColumn));
         LOGGER.info("Finished creating Network Link Tables");
+        return List.of(networkLinks, networkLinkModes);
+    }
+
+    private Table createTransitTables(Supplier<TransitSchedule> schedule) {
+        List<Table> tables = scenarioTables(ScenarioTableCache.TRANSIT_SCHEDULE,
+                () -> buildTransitTables(emptyScenario().getTransitSchedule()),
+                () -> buildTransitTables(schedule.get()));
+        // no KPI reads the routes, so they are only kept long enough to write them out
+        writeSupportingData(tables.get(1), "scheduleRoutes");
+        return tables.get(0);
     }
 
-    private void createTransitTables(TransitSchedule schedule) {
+    private List<Table> buildTransitTables(TransitSchedule schedule) {
         LOGGER.info("Creating Transit Tables");
         LOGGER.info("Creating Schedule Stop Table");
         // Schedule Stop Table Columns
@@ -1225,7 +1584,7 @@ public class TablesawKpiCalculator implements KpiCalculator {
             isBlockingColumn.append(stop.getIsBlockingLane());
         });
 
-        scheduleStops = Table.create("Schedule Stops")
+        Table scheduleStops = Table.create("Schedule Stops")
                 .addColumns(
                         stopIDColumn,
                         xColumn,
@@ -1259,15 +1618,22 @@ public class TablesawKpiCalculator implements KpiCalculator {
                 modeModeColumn).dropDuplicateRows();
         scheduleStops = scheduleStops.joinOn("stopID").inner(tmpStopModeTable);
 
-        scheduleRoutes = Table.create("Schedule Routes")
+        Table scheduleRoutes = Table.create("Schedule Routes")
                 .addColumns(
                         lineIDColumn,
                         routeIDColumn,
                         modeColumn);
         LOGGER.info("Finished creating Transit Tables");
+        return List.of(scheduleStops, scheduleRoutes);
     }
 
-    private void createVehicleTable(Vehicles inputVehicles) {
+    private Table createVehicleTable(Supplier<Vehicles> vehicles) {
+        return scenarioTables(ScenarioTableCache.VEHICLES,
+                () -> List.of(buildVehicleTable(emptyScenario().getVehicles())),
+                () -> List.of(buildVehicleTable(vehicles.get()))).get(0);
+    }
+
+    private Table buildVehicleTable(Vehicles inputVehicles) {
         LOGGER.info("Creating Vehicle Table");
         StringColumn vehicleIDColumn = StringColumn.create("vehicleID");
         StringColumn modeColumn = StringColumn.create("mode");
@@ -1290,7 +1656,7 @@ public class TablesawKpiCalculator implements KpiCalculator {
             appendAttributeValueOrMissing(vehicle.getAttributes(), "PTRouteID", ptRouteIDColumn);
         });
 
-        vehicles = Table.create("Vehicles")
+        Table vehicles = Table.create("Vehicles")
                 .addColumns(
                         vehicleIDColumn,
                         modeColumn,
@@ -1300,6 +1666,7 @@ public class TablesawKpiCalculator implements KpiCalculator {
                         ptLineIDColumn,
                         ptRouteIDColumn);
         LOGGER.info("Finished creating Vehicle Table");
+        return vehicles;
     }
 
     private static void appendAttributeValueOrMissing(Attributes attributes, String attributeName, Column column) {
@@ -1311,23 +1678,25 @@ public class TablesawKpiCalculator implements KpiCalculator {
         }
     }
 
-    private void createLinkLogTables(NetworkLinkLog networkLinkLog) {
+    private Table createLinkLogTables(NetworkLinkLog networkLinkLog, Table vehicles) {
         LOGGER.info("Creating Link Log Table");
+        Table linkLogTable = null;
+        Table vehicleOccupancyTable = null;
+        String vehicleOccupancyName = "vehicleOccupancy";
 
         if (networkLinkLog instanceof TablesawNetworkLinkLog) {
             LOGGER.info("Link Log Tablesaw tables already exist - will only perform basic data cleaning");
             TablesawNetworkLinkLog tsLinkLog = (TablesawNetworkLinkLog) networkLinkLog;
-            linkLogTable = tsLinkLog.getLinkLogTable();
+            linkLogTable = dropIncompleteLinkLogEntries(tsLinkLog.getLinkLogTable());
             vehicleOccupancyTable = tsLinkLog.getVehicleOccupancyTable();
-            int rowsBeforeCleaning = linkLogTable.rowCount();
-            linkLogTable = linkLogTable.dropWhere(linkLogTable.doubleColumn("endTime").isMissing());
-            int rowsAfterCleaning = linkLogTable.rowCount();
-            if (rowsAfterCleaning != rowsBeforeCleaning) {
-                LOGGER.warn("{} missing 'endTime' data points were encountered - some vehicles " +
-                        "were stuck and did not complete their journey. These Link Log entries were " +
-                        "deleted.",
-                        rowsBeforeCleaning - rowsAfterCleaning);
-            }
+        } else if (networkLinkLog instanceof ColumnarNetworkLinkLog) {
+            ColumnarNetworkLinkLog columnarLinkLog = (ColumnarNetworkLinkLog) networkLinkLog;
+            LOGGER.info("Building Link Log Tablesaw tables from {} columnar link log entries and {} occupancy records",
+                    columnarLinkLog.getLinkLogSize(),
+                    columnarLinkLog.getVehicleOccupancySize());
+            linkLogTable = dropIncompleteLinkLogEntries(columnarLinkLog.getLinkLogTable());
+            vehicleOccupancyTable = columnarLinkLog.getVehicleOccupancyIntervalTable();
+            vehicleOccupancyName = "vehicleOccupancyIntervals";
         } else if (networkLinkLog instanceof LinkLog) {
             LinkLog gauvaLinkLog = (LinkLog) networkLinkLog;
             LongColumn indexColumn = LongColumn.create("index");
@@ -1389,11 +1758,106 @@ public class TablesawKpiCalculator implements KpiCalculator {
                             agentIDColumn);
         }
 
-        fixVehicleModesInLinkLog();
+        // no KPI reads the vehicle occupancy, so it is only kept long enough to write it out. Link logs that
+        // record occupancy as intervals write those rather than one row per occupant of each entry
+        writeSupportingData(vehicleOccupancyTable, vehicleOccupancyName);
+        linkLogTable = fixVehicleModesInLinkLog(linkLogTable, vehicles);
         LOGGER.info("Finished creating link log tables");
+        return linkLogTable;
     }
 
-    private void fixVehicleModesInLinkLog() {
+    /**
+     * Writes the link log entries of a memory-mapped link log out as supporting data a slice at a time, with the
+     * same columns as the link log table of other link logs, so that a table of every entry is never built. Its
+     * vehicle occupancy intervals are written out too.
+     */
+    private MappedNetworkLinkLog writeSupportingData(MappedNetworkLinkLog linkLog) {
+        LOGGER.info("Writing out {} memory-mapped link log entries and {} occupancy records",
+                linkLog.getLinkLogSize(),
+                linkLog.getVehicleOccupancySize());
+        writeSupportingData(linkLog.getVehicleOccupancyIntervalTable(), "vehicleOccupancyIntervals");
+        Table vehicles = derivedTables.get(DerivedTable.VEHICLES);
+        Map<String, String> vehicleModes = new HashMap<>();
+        StringColumn vehicleIds = vehicles.stringColumn("vehicleID");
+        StringColumn modes = vehicles.stringColumn("mode");
+        for (int row = 0; row < vehicles.rowCount(); row++) {
+            vehicleModes.putIfAbsent(vehicleIds.get(row), modes.get(row));
+        }
+        String fileName = "supporting-data-linkLog.csv";
+        tableWriter.writeInBackground(() -> runProfile.profile(String.format("write %s", fileName),
+                () -> tableWriter.write("Link Log", linkLogSlices(linkLog, vehicleModes),
+                        String.format("%s/%s", supportingDataDirectory, fileName))));
+        return linkLog;
+    }
+
+    /**
+     * The completed entries of {@code linkLog} in slices of at most {@link #LINK_LOG_SLICE_ENTRIES} entries, with
+     * the mode of their vehicle in the vehicles table. An empty link log still gives one (empty) slice.
+     */
+    private Iterator<Table> linkLogSlices(MappedNetworkLinkLog linkLog, Map<String, String> vehicleModes) {
+        int linkLogSize = linkLog.getLinkLogSize();
+        Set<String> mismatchedVehicles = new HashSet<>();
+        return new Iterator<>() {
+            private int from = 0;
+            private boolean first = true;
+
+            @Override
+            public boolean hasNext() {
+                return first || from < linkLogSize;
+            }
+
+            @Override
+            public Table next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int to = (int) Math.min(linkLogSize, (long) from + LINK_LOG_SLICE_ENTRIES);
+                Table slice = linkLog.getLinkLogTable(from, to);
+                slice = slice.dropWhere(slice.doubleColumn("endTime").isMissing());
+                StringColumn vehicleIds = slice.stringColumn("vehicleID");
+                StringColumn initialModes = slice.stringColumn("initialMode");
+                StringColumn modes = StringColumn.create("mode");
+                for (int row = 0; row < slice.rowCount(); row++) {
+                    String mode = vehicleModes.get(vehicleIds.get(row));
+                    if (mode == null) {
+                        modes.appendMissing();
+                    } else {
+                        modes.append(mode);
+                    }
+                    if (!initialModes.get(row).equals(modes.get(row))) {
+                        mismatchedVehicles.add(vehicleIds.get(row));
+                    }
+                }
+                slice.removeColumns("initialMode");
+                slice.addColumns(modes);
+                from = to;
+                first = false;
+                if (!hasNext() && !mismatchedVehicles.isEmpty()) {
+                    LOGGER.warn(String.format(
+                            "There are %d vehicles that have different modes to the ones found in the Link Log. " +
+                                    "The modes in the Link Log will be updated with the modes from the Vehicle " +
+                                    "Table.",
+                            mismatchedVehicles.size()));
+                }
+                return slice;
+            }
+        };
+    }
+
+    private Table dropIncompleteLinkLogEntries(Table linkLogTable) {
+        int rowsBeforeCleaning = linkLogTable.rowCount();
+        linkLogTable = linkLogTable.dropWhere(linkLogTable.doubleColumn("endTime").isMissing());
+        int rowsAfterCleaning = linkLogTable.rowCount();
+        if (rowsAfterCleaning != rowsBeforeCleaning) {
+            LOGGER.warn("{} missing 'endTime' data points were encountered - some vehicles " +
+                    "were stuck and did not complete their journey. These Link Log entries were " +
+                    "deleted.",
+                    rowsBeforeCleaning - rowsAfterCleaning);
+        }
+        return linkLogTable;
+    }
+
+    private Table fixVehicleModesInLinkLog(Table linkLogTable, Table vehicles) {
         LOGGER.info("Fixing vehicles modes in link log table");
         linkLogTable = linkLogTable
                 .joinOn("vehicleID")
@@ -1410,6 +1874,60 @@ public class TablesawKpiCalculator implements KpiCalculator {
         }
         linkLogTable.removeColumns("initialMode");
         LOGGER.info("Finished fixing vehicles modes in link log table");
+        return linkLogTable;
+    }
+
+    /**
+     * Looks up the network link of every link log entry once, so KPIs can read link attributes aligned with
+     * the link log rows rather than each joining the link log with the network. Attributes of entries on
+     * links missing from the network are left missing.
+     */
+    private Table createLinkLogNetworkTable(Table linkLogTable, Table networkLinks) {
+        LOGGER.info("Looking up network links of {} link log entries", linkLogTable.rowCount());
+        Map<String, Integer> networkLinkRows = new HashMap<>();
+        StringColumn networkLinkIds = networkLinks.stringColumn("linkID");
+        for (int row = 0; row < networkLinks.rowCount(); row++) {
+            networkLinkRows.putIfAbsent(networkLinkIds.get(row), row);
+        }
+        double[] networkLinkLengths = networkLinks.doubleColumn("length").asDoubleArray();
+        double[] networkLinkFreespeeds = networkLinks.doubleColumn("freespeed").asDoubleArray();
+
+        StringColumn linkIds = linkLogTable.stringColumn("linkID");
+        double[] startTimes = linkLogTable.doubleColumn("startTime").asDoubleArray();
+        double[] endTimes = linkLogTable.doubleColumn("endTime").asDoubleArray();
+        int rowCount = linkLogTable.rowCount();
+        double[] length = new double[rowCount];
+        double[] freespeed = new double[rowCount];
+        double[] freeFlowTime = new double[rowCount];
+        double[] travelTime = new double[rowCount];
+        int[] hour = new int[rowCount];
+        int entriesOffNetwork = 0;
+        for (int row = 0; row < rowCount; row++) {
+            travelTime[row] = endTimes[row] - startTimes[row];
+            hour[row] = (int) Math.floor(endTimes[row] / (60 * 60));
+            Integer networkLinkRow = networkLinkRows.get(linkIds.get(row));
+            if (networkLinkRow == null) {
+                length[row] = Double.NaN;
+                freespeed[row] = Double.NaN;
+                freeFlowTime[row] = Double.NaN;
+                entriesOffNetwork++;
+            } else {
+                length[row] = networkLinkLengths[networkLinkRow];
+                freespeed[row] = networkLinkFreespeeds[networkLinkRow];
+                freeFlowTime[row] = length[row] / freespeed[row];
+            }
+        }
+        if (entriesOffNetwork > 0) {
+            LOGGER.warn("{} link log entries are on links missing from the network and will be left out of " +
+                    "link based KPIs", entriesOffNetwork);
+        }
+        return Table.create("Link Log Network")
+                .addColumns(
+                        DoubleColumn.create("length", length),
+                        DoubleColumn.create("freespeed", freespeed),
+                        DoubleColumn.create("freeFlowTime", freeFlowTime),
+                        DoubleColumn.create("travelTime", travelTime),
+                        IntColumn.create("hour", hour));
     }
 
     public Table readCSVInputStream(InputStream inputStream, Map<String, ColumnType> columnMapping) {
@@ -1425,17 +1943,17 @@ public class TablesawKpiCalculator implements KpiCalculator {
         return Table.read().usingOptions(builder.build());
     }
 
-    private void writeContentToFile(String path, String content, CompressionType compressionType) {
+    private void writeContentToFile(String path, String content) {
         LOGGER.info("Writing file {}", path);
-        try (Writer wr = IOUtils.getBufferedWriter(path.concat(compressionType.fileEnding))) {
-            wr.write(content);
+        try {
+            tableWriter.writeContent(path, content);
         } catch (IOException e) {
             LOGGER.error("!!! Failed to save content '{}' to file: '{}'", content, path);
         }
         LOGGER.info("Finished writing file {}", path);
     }
 
-    private void writeContentToFile(String path, Map<String, Double> content, CompressionType compressionType) {
+    private void writeContentToFile(String path, Map<String, Double> content) {
         // keys of content map form columns in the output csv file
         StringBuilder csvColumns = new StringBuilder();
         StringBuilder csvValues = new StringBuilder();
@@ -1448,58 +1966,23 @@ public class TablesawKpiCalculator implements KpiCalculator {
         csvValues.deleteCharAt(csvValues.length() - 1);
         writeContentToFile(
                 path,
-                String.format(csvColumns + "\n" + csvValues),
-                compressionType);
+                String.format(csvColumns + "\n" + csvValues));
     }
 
-    private void writeSupportingData(Path outputDir) {
-        LOGGER.info("Writing supporting data files");
-        try {
-            Files.createDirectories(outputDir);
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new IllegalStateException(e);
-        }
+    private Table writeSupportingData(Table table, String name) {
+        String fileName = String.format("supporting-data-%s.csv", name);
+        // no KPI changes the tables it reads, so they can be written out while KPIs go on reading them
+        tableWriter.writeInBackground(() -> runProfile.profile(String.format("write %s", fileName),
+                () -> this.writeTableCompressed(table, String.format("%s/%s", supportingDataDirectory, fileName))));
+        return table;
+    }
 
-        this.writeTableCompressed(legs, String.format("%s/supporting-data-legs.csv", outputDir), this.compressionType);
-        this.writeTableCompressed(trips, String.format("%s/supporting-data-trips.csv", outputDir),
-                this.compressionType);
-        this.writeTableCompressed(activityFacilities,
-                String.format("%s/supporting-data-activity-facilities.csv", outputDir), this.compressionType);
-        this.writeTableCompressed(activities, String.format("%s/supporting-data-activities.csv", outputDir),
-                this.compressionType);
-        this.writeTableCompressed(personModeScores,
-                String.format("%s/supporting-data-person-mode-score-parameters.csv", outputDir), this.compressionType);
-        this.writeTableCompressed(linkLogTable, String.format("%s/supporting-data-linkLog.csv", outputDir),
-                this.compressionType);
-        this.writeTableCompressed(vehicleOccupancyTable,
-                String.format("%s/supporting-data-vehicleOccupancy.csv", outputDir), this.compressionType);
-        this.writeTableCompressed(networkLinks, String.format("%s/supporting-data-networkLinks.csv", outputDir),
-                this.compressionType);
-        this.writeTableCompressed(networkLinkModes, String.format("%s/supporting-data-networkLinkModes.csv", outputDir),
-                this.compressionType);
-        this.writeTableCompressed(scheduleStops, String.format("%s/supporting-data-scheduleStops.csv", outputDir),
-                this.compressionType);
-        this.writeTableCompressed(scheduleRoutes, String.format("%s/supporting-data-scheduleRoutes.csv", outputDir),
-                this.compressionType);
-        this.writeTableCompressed(vehicles, String.format("%s/supporting-data-vehicles.csv", outputDir),
-                this.compressionType);
-        LOGGER.info("Finished writing supporting data files");
-    }
-
-    private OutputStream getCompressedOutputStream(String filepath, CompressionType compressionType) {
-        return IOUtils.getOutputStream(IOUtils.getFileUrl(filepath.concat(compressionType.fileEnding)),
-                false);
-    }
-
-    private void writeTableCompressed(Table table, String filePath, CompressionType compressionType) {
-        LOGGER.info("Writing out compressed '{}' table to {}", table.name(), filePath);
-        try (OutputStream stream = getCompressedOutputStream(filePath, compressionType)) {
-            CsvWriteOptions options = CsvWriteOptions.builder(stream).lineEnd(MatsimKpiGenerator.EOL).build();
-            table.write().csv(options);
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
-        }
-        LOGGER.info("Finished writing out '{}' table to {}", table.name(), filePath);
+    private void writeTableCompressed(Table table, String filePath) {
+        tableWriter.write(table, filePath);
+    }
+
+    @Override
+    public void finishWriting() {
+        tableWriter.finish();
     }
 }
@@ -2,6 +2,9 @@ package com.arup.cml.abm.kpi.tablesaw;
 
 import com.arup.cml.abm.kpi.domain.LinkLogConsistencyException;
 import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.LinkedHashMultiset;
+import com.google.common.collect.Multiset;
 import tech.tablesaw.api.*;
 
 import java.util.*;
@@ -11,7 +14,8 @@ public class TablesawNetworkLinkLog implements NetworkLinkLog {
     private final Map<String, String> vehicleModes = new HashMap<>();
     // points to the index of the most recent reference of that vehicle ID in the Link Log
     private final Map<String, Integer> vehicleLatestLogIndex = new HashMap<>();
-    private final Map<String, List<String>> vehicleLatestOccupants = new HashMap<>();
+    // occupants in boarding order, counting a person who boarded more than once as often as they are aboard
+    private final Map<String, Multiset<String>> vehicleLatestOccupants = new HashMap<>();
     private Table linkLogTable;
     private Table vehicleOccupancyTable;
     private int linkLogRowIndex = 0;
@@ -57,7 +61,8 @@ public class TablesawNetworkLinkLog implements NetworkLinkLog {
         int latestStateIndex = vehicleLatestLogIndex.get(vehicleID);
         Row row = linkLogTable.row(latestStateIndex);
         row.setDouble("endTime", endTime);
-        List<String> currentVehicleOccupants = vehicleLatestOccupants.getOrDefault(vehicleID, new ArrayList<>());
+        Multiset<String> currentVehicleOccupants =
+                vehicleLatestOccupants.getOrDefault(vehicleID, ImmutableMultiset.of());
         row.setInt("numberOfPeople", currentVehicleOccupants.size());
         updateVehicleOccupancyTable(latestStateIndex, currentVehicleOccupants);
     }
@@ -69,19 +74,13 @@ public class TablesawNetworkLinkLog implements NetworkLinkLog {
 
     @Override
     public void personBoardsVehicle(String vehicleID, String personID) {
-        if (vehicleLatestOccupants.containsKey(vehicleID)) {
-            vehicleLatestOccupants.get(vehicleID).add(personID);
-        } else {
-            vehicleLatestOccupants.put(vehicleID, new ArrayList<>(Arrays.asList(personID)));
-        }
+        vehicleLatestOccupants.computeIfAbsent(vehicleID, k -> LinkedHashMultiset.create()).add(personID);
     }
 
     @Override
     public void personAlightsVehicle(String vehicleID, String personID) throws LinkLogConsistencyException {
-        if (vehicleLatestOccupants.containsKey(vehicleID)
-                && vehicleLatestOccupants.get(vehicleID).contains(personID)) {
-            vehicleLatestOccupants.get(vehicleID).remove(personID);
-        } else {
+        Multiset<String> latestOccupants = vehicleLatestOccupants.get(vehicleID);
+        if (latestOccupants == null || !latestOccupants.remove(personID)) {
             throw new LinkLogConsistencyException(String.format(
                     "Person '%s' cannot leave vehicle '%s' because they didn't board it",
                     personID,
@@ -89,7 +88,7 @@ public class TablesawNetworkLinkLog implements NetworkLinkLog {
         }
     }
 
-    private void updateVehicleOccupancyTable(long linkLogIndex, List<String> vehicleOccupants) {
+    private void updateVehicleOccupancyTable(long linkLogIndex, Multiset<String> vehicleOccupants) {
         for (String personID : vehicleOccupants) {
             Row row = vehicleOccupancyTable.appendRow();
             row.setLong("linkLogIndex", linkLogIndex);
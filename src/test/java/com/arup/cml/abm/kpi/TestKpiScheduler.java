@@ -0,0 +1,74 @@
+package com.arup.cml.abm.kpi;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestKpiScheduler {
+    @Test
+    public void writesKpisInOrderOnASingleThread() {
+        List<Kpi> writtenKpis = new ArrayList<>();
+        Map<Kpi, Runnable> kpiWriters = new LinkedHashMap<>();
+        for (Kpi kpi : List.of(Kpi.SPEED, Kpi.AFFORDABILITY, Kpi.CONGESTION)) {
+            kpiWriters.put(kpi, () -> writtenKpis.add(kpi));
+        }
+
+        KpiScheduler kpiScheduler = new KpiScheduler(1);
+        kpiScheduler.run(kpiWriters);
+
+        assertThat(writtenKpis).isEqualTo(List.of(Kpi.SPEED, Kpi.AFFORDABILITY, Kpi.CONGESTION));
+        assertThat(kpiScheduler.getWallTimes().keySet())
+                .isEqualTo(EnumSet.of(Kpi.SPEED, Kpi.AFFORDABILITY, Kpi.CONGESTION));
+    }
+
+    @Test
+    public void writesKpisConcurrently() {
+        // neither KPI can finish until both have started
+        CountDownLatch started = new CountDownLatch(2);
+        List<Kpi> writtenKpis = Collections.synchronizedList(new ArrayList<>());
+        Map<Kpi, Runnable> kpiWriters = new LinkedHashMap<>();
+        for (Kpi kpi : List.of(Kpi.GHG, Kpi.VEHICLE_KM)) {
+            kpiWriters.put(kpi, () -> {
+                started.countDown();
+                try {
+                    if (!started.await(10, TimeUnit.SECONDS)) {
+                        throw new IllegalStateException("KPIs were not written concurrently");
+                    }
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                writtenKpis.add(kpi);
+            });
+        }
+
+        new KpiScheduler(2).run(kpiWriters);
+
+        assertThat(writtenKpis.size()).isEqualTo(2);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failsWhenAKpiFails() {
+        Map<Kpi, Runnable> kpiWriters = new LinkedHashMap<>();
+        kpiWriters.put(Kpi.MODAL_SPLIT, () -> {
+        });
+        kpiWriters.put(Kpi.TRAVEL_TIME, () -> {
+            throw new RuntimeException("Cannot write the travel time KPI");
+        });
+
+        new KpiScheduler(2).run(kpiWriters);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsAtLeastOneThread() {
+        new KpiScheduler(0);
+    }
+}
@@ -0,0 +1,121 @@
+package com.arup.cml.abm.kpi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestRunProfile {
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void recordsPhasesInTheOrderTheyFinish() {
+        RunProfile runProfile = new RunProfile();
+
+        String result = runProfile.profile("outer", () -> {
+            runProfile.profile("inner", () -> {
+            });
+            return "done";
+        });
+
+        assertThat(result).isEqualTo("done");
+        assertThat(runProfile.getPhases().stream().map(RunProfile.Phase::getName).toList())
+                .isEqualTo(List.of("inner", "outer"));
+    }
+
+    @Test
+    public void measuresTheWorkDoneInAPhase() {
+        RunProfile runProfile = new RunProfile();
+
+        runProfile.profile("allocate", () -> {
+            long[] allocated = new long[1_000_000];
+            return allocated.length;
+        });
+        runProfile.profile("sleep", () -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        RunProfile.Phase allocatePhase = runProfile.getPhases().get(0);
+        RunProfile.Phase sleepPhase = runProfile.getPhases().get(1);
+        if (allocatePhase.getAllocatedBytes() != -1) {
+            assertThat(allocatePhase.getAllocatedBytes()).isGreaterThanOrEqualTo(8_000_000L);
+        }
+        assertThat(allocatePhase.getThread()).isEqualTo(Thread.currentThread().getName());
+        assertThat(sleepPhase.getWallTimeMillis()).isGreaterThanOrEqualTo(50L);
+        assertThat(sleepPhase.getStartMillis()).isGreaterThanOrEqualTo(allocatePhase.getStartMillis());
+    }
+
+    @Test
+    public void countsWorkHandedToAPoolInThePhasesWaitingOnIt() {
+        RunProfile runProfile = new RunProfile();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+
+        try {
+            runProfile.profile("outer", () -> runProfile.profile("wait on pool", () -> {
+                try {
+                    return pool.submit(RunProfile.onBehalfOfRunningPhases(() -> {
+                        long[] allocated = new long[1_000_000];
+                        return allocated.length;
+                    })).get();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        } finally {
+            pool.shutdownNow();
+        }
+
+        for (RunProfile.Phase phase : runProfile.getPhases()) {
+            if (phase.getAllocatedBytes() != -1) {
+                assertThat(phase.getAllocatedBytes()).as(phase.getName()).isGreaterThanOrEqualTo(8_000_000L);
+            }
+        }
+    }
+
+    @Test
+    public void recordsPhasesThatFail() {
+        RunProfile runProfile = new RunProfile();
+
+        try {
+            runProfile.profile("failing", () -> {
+                throw new IllegalStateException("failed");
+            });
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage()).isEqualTo("failed");
+        }
+
+        assertThat(runProfile.getPhases().get(0).getName()).isEqualTo("failing");
+    }
+
+    @Test
+    public void writesPhasesAsJson() throws IOException {
+        RunProfile runProfile = new RunProfile();
+        runProfile.profile("read events", () -> {
+        });
+        runProfile.profile("write SPEED KPI", () -> {
+        });
+
+        runProfile.write(tmpDir.getRoot().toPath());
+
+        JsonNode profile = new ObjectMapper().readTree(tmpDir.getRoot().toPath().resolve(RunProfile.FILE_NAME).toFile());
+        assertThat(profile.get("phases").size()).isEqualTo(2);
+        assertThat(profile.get("phases").get(1).get("name").asText()).isEqualTo("write SPEED KPI");
+        assertThat(profile.get("phases").get(1).has("cpuTimeMillis")).isTrue();
+        assertThat(profile.get("phases").get(1).has("peakHeapBytes")).isTrue();
+        assertThat(profile.get("maxHeapBytes").asLong()).isGreaterThan(0L);
+    }
+}
@@ -0,0 +1,105 @@
+package com.arup.cml.abm.kpi;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestRunProgress {
+    @Test
+    public void reportsThePhasesRunning() {
+        RunProfile runProfile = new RunProfile();
+        RunProgress progress = new RunProgress(runProfile);
+
+        String phaseWhileRunning = runProfile.profile("read events", progress::getPhase);
+
+        assertThat(phaseWhileRunning).isEqualTo("read events");
+        assertThat(progress.getPhase()).isEqualTo("");
+    }
+
+    @Test
+    public void estimatesCompletionFromTheShareOfTheEventsFileRead() {
+        RunProgress progress = new RunProgress(new RunProfile());
+
+        progress.eventsReadingStarted(1000);
+        progress.compressedBytesRead(250);
+        progress.eventRead();
+
+        assertThat(progress.getEventsFileFractionRead()).isEqualTo(0.25);
+        assertThat(progress.getEstimatedSecondsRemaining()).isGreaterThanOrEqualTo(0L);
+        assertThat(progress.getEstimatedCompletionTime()).isNotEmpty();
+        assertThat(progress.describe()).contains("1 events read", "(25.0%)");
+
+        progress.eventsReadingFinished();
+
+        assertThat(progress.getEventsFileFractionRead()).isEqualTo(1.0);
+        assertThat(progress.getEstimatedSecondsRemaining()).isEqualTo(0L);
+    }
+
+    @Test
+    public void cannotEstimateCompletionWithoutTheSizeOfTheEventsFile() {
+        RunProgress progress = new RunProgress(new RunProfile());
+
+        progress.eventsReadingStarted(-1);
+
+        assertThat(progress.getEventsFileFractionRead()).isEqualTo(-1.0);
+        assertThat(progress.getEstimatedSecondsRemaining()).isEqualTo(-1L);
+        assertThat(progress.getEstimatedCompletionTime()).isEmpty();
+    }
+
+    @Test
+    public void reportsTableSizesFromAllSources() {
+        RunProgress progress = new RunProgress(new RunProfile());
+
+        progress.trackTableSize("link log", () -> 10);
+        progress.trackTableSize("link log", () -> 20);
+        progress.trackTableSizes(() -> Map.of("LEGS", 5, "TRIPS", 3));
+
+        assertThat(progress.getTableSizes()).isEqualTo(Map.of("link log", 20, "LEGS", 5, "TRIPS", 3));
+    }
+
+    @Test
+    public void isExposedOverJmxUntilClosed() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(RunProgress.OBJECT_NAME);
+        RunProgress progress = new RunProgress(new RunProfile());
+        progress.eventsReadingStarted(-1);
+        progress.eventRead();
+        progress.eventRead();
+
+        progress.start(0);
+        try {
+            assertThat(server.getAttribute(name, "EventsRead")).isEqualTo(2L);
+        } finally {
+            progress.close();
+        }
+
+        assertThat(server.isRegistered(name)).isFalse();
+    }
+
+    @Test
+    public void exposesRunsSharingTheJvmUnderTheirOwnNames() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        RunProgress baseline = new RunProgress(new RunProfile(), "baseline");
+        RunProgress variant = new RunProgress(new RunProfile(), "variant");
+        variant.eventsReadingStarted(-1);
+        variant.eventRead();
+
+        baseline.start(0);
+        variant.start(0);
+        try {
+            assertThat(server.getAttribute(
+                    new ObjectName(RunProgress.OBJECT_NAME + ",run=\"baseline\""), "EventsRead")).isEqualTo(0L);
+            assertThat(server.getAttribute(
+                    new ObjectName(RunProgress.OBJECT_NAME + ",run=\"variant\""), "EventsRead")).isEqualTo(1L);
+            assertThat(variant.describe()).startsWith("Progress of variant: ");
+        } finally {
+            baseline.close();
+            variant.close();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.arup.cml.abm.kpi.builders;
 
 import com.arup.cml.abm.kpi.data.LinkLog;
 import com.arup.cml.abm.kpi.data.MoneyLog;
+import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
 import com.arup.cml.abm.kpi.tablesaw.TablesawKpiCalculator;
 import org.junit.rules.TemporaryFolder;
 import org.matsim.api.core.v01.network.Network;
@@ -21,7 +22,7 @@ public class KpiCalculatorBuilder {
     String legs;
     String trips;
     Vehicles vehicles = new VehiclesBuilder().build();
-    LinkLog linkLog = new LinkLog();
+    NetworkLinkLog linkLog = new LinkLog();
     MoneyLog moneyLog = new MoneyLog();
     String persons;
     ActivityFacilities facilities = new FacilitiesBuilder().build();
@@ -34,11 +35,16 @@ public class KpiCalculatorBuilder {
         this.persons = new PersonsBuilder(tmpDir).build();
     }
 
-    public KpiCalculatorBuilder withLinkLog(LinkLog linkLog) {
+    public KpiCalculatorBuilder withLinkLog(NetworkLinkLog linkLog) {
         this.linkLog = linkLog;
         return this;
     }
 
+    public KpiCalculatorBuilder withMoneyLog(MoneyLog moneyLog) {
+        this.moneyLog = moneyLog;
+        return this;
+    }
+
     public KpiCalculatorBuilder withNetwork(Network network) {
         this.network = network;
         return this;
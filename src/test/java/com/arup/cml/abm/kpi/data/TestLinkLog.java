@@ -183,6 +183,45 @@ public class TestLinkLog {
                 .as("Number of people in vehicle at index `3` should have been recorded as `1`");
     }
 
+    @Test
+    public void countsPersonWhoBoardedVehicleTwiceUntilTheyAlightTwice() {
+        LinkLog linkLog = new LinkLog();
+        linkLog.personBoardsVehicle("PartyBus", "gerry");
+        linkLog.personBoardsVehicle("PartyBus", "gerry");
+        linkLog.createLinkLogEntry("PartyBus", "boardedTwiceLink", 0.0);
+        linkLog.completeLinkLogEntry("PartyBus", 5.0);
+        linkLog.personAlightsVehicle("PartyBus", "gerry");
+        linkLog.createLinkLogEntry("PartyBus", "alightedOnceLink", 5.0);
+        linkLog.completeLinkLogEntry("PartyBus", 10.0);
+        linkLog.personAlightsVehicle("PartyBus", "gerry");
+        linkLog.createLinkLogEntry("PartyBus", "alightedTwiceLink", 10.0);
+        linkLog.completeLinkLogEntry("PartyBus", 15.0);
+
+        Table<Long, String, Object> linkLogTable = linkLog.getLinkLogData();
+        assertThat(linkLogTable.row(Long.valueOf(0)).get("numberOfPeople"))
+                .isEqualTo(2)
+                .as("A person who boarded twice should be counted twice");
+        assertThat(linkLogTable.row(Long.valueOf(1)).get("numberOfPeople"))
+                .isEqualTo(1)
+                .as("A person who boarded twice should still be aboard after alighting once");
+        assertThat(linkLogTable.row(Long.valueOf(2)).get("numberOfPeople"))
+                .isEqualTo(0)
+                .as("A person who boarded twice should be gone after alighting twice");
+        assertThat(linkLog.getVehicleOccupantsData().rowMap().size())
+                .isEqualTo(3)
+                .as("Vehicle occupants table should contain a row per boarding still aboard for each entry");
+    }
+
+    @Test(expected = LinkLogPassengerConsistencyException.class)
+    public void throwsExceptionWhenPersonWhoBoardedTwiceAlightsThreeTimes() {
+        LinkLog linkLog = new LinkLog();
+        linkLog.personBoardsVehicle("PartyBus", "gerry");
+        linkLog.personBoardsVehicle("PartyBus", "gerry");
+        linkLog.personAlightsVehicle("PartyBus", "gerry");
+        linkLog.personAlightsVehicle("PartyBus", "gerry");
+        linkLog.personAlightsVehicle("PartyBus", "gerry");
+    }
+
     @Test
     public void vehicleOccupantsTableTracksBoardingAndAlighting() {
         LinkLog linkLog = new LinkLog();
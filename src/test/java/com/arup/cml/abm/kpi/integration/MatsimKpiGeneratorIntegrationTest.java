@@ -1,15 +1,29 @@
 package com.arup.cml.abm.kpi.integration;
 
+import com.arup.cml.abm.kpi.RunProfile;
+import com.arup.cml.abm.kpi.matsim.run.MatsimKpiBatchGenerator;
+import com.arup.cml.abm.kpi.matsim.run.MatsimKpiComparisonGenerator;
 import com.arup.cml.abm.kpi.matsim.run.MatsimKpiGenerator;
+import com.arup.cml.abm.kpi.tablesaw.KpiComparison;
+import com.arup.cml.abm.kpi.tablesaw.MappedNetworkLinkLog;
+import com.arup.cml.abm.kpi.tablesaw.ScenarioTableCache;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.matsim.core.utils.misc.CRCChecksum;
 
 import picocli.CommandLine;
+import tech.tablesaw.api.Table;
+import tech.tablesaw.io.csv.CsvReadOptions;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 import static java.lang.String.format;
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
@@ -37,6 +51,9 @@ public class MatsimKpiGeneratorIntegrationTest {
         assertThat(exitCode).isEqualTo(0).as("App return code should be zero");
         assertKpiFilesWereGenerated(format("%s/expected-kpis", testDataDirRoot), appOutputDir.getRoot());
         assertSupportingFilesWereGenerated(appOutputDir.getRoot());
+        assertThat(appOutputDir.getRoot().list())
+                .contains(RunProfile.FILE_NAME)
+                .as("Check the run profile was written");
     }
 
     @Test
@@ -58,6 +75,263 @@ public class MatsimKpiGeneratorIntegrationTest {
         assertSupportingFilesWereGenerated(appOutputDir.getRoot());
     }
 
+    @Test
+    public void testAppWithParallelEventsPipeline() throws Exception {
+        String testDataDirRoot = format("%s/integration-test-data/smol-matsim-outputs/",
+                Paths.get("src", "test", "resources"));
+
+        int exitCode = new CommandLine(new MatsimKpiGenerator()).execute(
+                "-mc",
+                format("%s/output_config.xml", testDataDirRoot),
+                "-mo",
+                testDataDirRoot,
+                "-o",
+                appOutputDir.getRoot().getAbsolutePath(),
+                "-t",
+                "4"
+        );
+
+        assertThat(exitCode).isEqualTo(0).as("App return code should be zero");
+        assertKpiFilesWereGenerated(format("%s/expected-kpis", testDataDirRoot), appOutputDir.getRoot());
+        assertSupportingFilesWereGenerated(appOutputDir.getRoot());
+    }
+
+    @Test
+    public void testAppWritingKpisConcurrently() throws Exception {
+        String testDataDirRoot = format("%s/integration-test-data/smol-matsim-outputs/",
+                Paths.get("src", "test", "resources"));
+
+        int exitCode = new CommandLine(new MatsimKpiGenerator()).execute(
+                "-mc",
+                format("%s/output_config.xml", testDataDirRoot),
+                "-mo",
+                testDataDirRoot,
+                "-o",
+                appOutputDir.getRoot().getAbsolutePath(),
+                "-kt",
+                "4"
+        );
+
+        assertThat(exitCode).isEqualTo(0).as("App return code should be zero");
+        assertKpiFilesWereGenerated(format("%s/expected-kpis", testDataDirRoot), appOutputDir.getRoot());
+        assertSupportingFilesWereGenerated(appOutputDir.getRoot());
+    }
+
+    @Test
+    public void testAppLoadingLinkLogFromSnapshot() throws Exception {
+        String testDataDirRoot = format("%s/integration-test-data/smol-matsim-outputs/",
+                Paths.get("src", "test", "resources"));
+        File snapshotDir = appOutputDir.newFolder("snapshots");
+        File firstRunOutputDir = appOutputDir.newFolder("first-run");
+        File secondRunOutputDir = appOutputDir.newFolder("second-run");
+
+        for (File outputDir : new File[]{firstRunOutputDir, secondRunOutputDir}) {
+            int exitCode = new CommandLine(new MatsimKpiGenerator()).execute(
+                    "-mc",
+                    format("%s/output_config.xml", testDataDirRoot),
+                    "-mo",
+                    testDataDirRoot,
+                    "-o",
+                    outputDir.getAbsolutePath(),
+                    "-s",
+                    snapshotDir.getAbsolutePath()
+            );
+            assertThat(exitCode).isEqualTo(0).as("App return code should be zero");
+            assertThat(snapshotDir.list().length).isEqualTo(1).as("Check one link log snapshot was written");
+        }
+
+        assertKpiFilesWereGenerated(format("%s/expected-kpis", testDataDirRoot), secondRunOutputDir);
+        assertSupportingFilesWereGenerated(secondRunOutputDir);
+    }
+
+    @Test
+    public void testAppWritingTablesOnSeveralThreads() throws Exception {
+        String testDataDirRoot = format("%s/integration-test-data/smol-matsim-outputs/",
+                Paths.get("src", "test", "resources"));
+
+        int exitCode = new CommandLine(new MatsimKpiGenerator()).execute(
+                "-mc",
+                format("%s/output_config.xml", testDataDirRoot),
+                "-mo",
+                testDataDirRoot,
+                "-o",
+                appOutputDir.getRoot().getAbsolutePath(),
+                "-wt",
+                "4"
+        );
+
+        assertThat(exitCode).isEqualTo(0).as("App return code should be zero");
+        assertKpiFilesWereGenerated(format("%s/expected-kpis", testDataDirRoot), appOutputDir.getRoot());
+        assertSupportingFilesWereGenerated(appOutputDir.getRoot());
+    }
+
+    @Test
+    public void testAppWithMemoryMappedLinkLog() throws Exception {
+        String testDataDirRoot = format("%s/integration-test-data/smol-matsim-outputs/",
+                Paths.get("src", "test", "resources"));
+
+        int exitCode = new CommandLine(new MatsimKpiGenerator()).execute(
+                "-mc",
+                format("%s/output_config.xml", testDataDirRoot),
+                "-mo",
+                testDataDirRoot,
+                "-o",
+                appOutputDir.getRoot().getAbsolutePath(),
+                "-mm"
+        );
+
+        assertThat(exitCode).isEqualTo(0).as("App return code should be zero");
+        assertKpiFilesWereGenerated(format("%s/expected-kpis", testDataDirRoot), appOutputDir.getRoot());
+        assertSupportingFilesWereGenerated(appOutputDir.getRoot());
+        assertThat(new File(appOutputDir.getRoot(), MappedNetworkLinkLog.LINK_LOG_FILE_NAME).exists())
+                .as("Check the memory-mapped link log was cleaned up")
+                .isFalse();
+    }
+
+    @Test
+    public void testAppWithSelectedKpis() throws Exception {
+        String testDataDirRoot = format("%s/integration-test-data/smol-matsim-outputs/",
+                Paths.get("src", "test", "resources"));
+
+        int exitCode = new CommandLine(new MatsimKpiGenerator()).execute(
+                "-mc",
+                format("%s/output_config.xml", testDataDirRoot),
+                "-mo",
+                testDataDirRoot,
+                "-o",
+                appOutputDir.getRoot().getAbsolutePath(),
+                "-k",
+                "CONGESTION,SPEED"
+        );
+
+        assertThat(exitCode).isEqualTo(0).as("App return code should be zero");
+        String[] generatedFiles = appOutputDir.getRoot().list();
+        String[] expectedKpiFiles = {
+                "kpi-congestion.csv" + COMPRESSION_FILE_EXTENSION,
+                "kpi-speed.csv" + COMPRESSION_FILE_EXTENSION,
+        };
+        for (String kpiFile : expectedKpiFiles) {
+            long expectedFileChecksum = CRCChecksum.getCRCFromFile(
+                    format("%s/expected-kpis/expected-%s", testDataDirRoot, kpiFile));
+            long actualFileChecksum = CRCChecksum.getCRCFromFile(
+                    format("%s/%s", appOutputDir.getRoot(), kpiFile));
+            assertThat(expectedFileChecksum)
+                    .isEqualTo(actualFileChecksum)
+                    .as(format("Check %s KPI data matches expectation", kpiFile));
+        }
+        String[] skippedFiles = {
+                "kpi-modal-split.csv" + COMPRESSION_FILE_EXTENSION,
+                "supporting-data-legs.csv" + COMPRESSION_FILE_EXTENSION,
+                "supporting-data-trips.csv" + COMPRESSION_FILE_EXTENSION,
+                "supporting-data-activities.csv" + COMPRESSION_FILE_EXTENSION,
+        };
+        for (String skippedFile : skippedFiles) {
+            assertThat(generatedFiles)
+                    .doesNotContain(skippedFile)
+                    .as(format("Check output file '%s' was not written", skippedFile));
+        }
+    }
+
+    @Test
+    public void testBatchOfRunsSharingScenarioInputs() throws Exception {
+        String testDataDirRoot = format("%s/integration-test-data/smol-matsim-outputs/",
+                Paths.get("src", "test", "resources"));
+        File variantDir = appOutputDir.newFolder("smol-variant");
+        try (Stream<Path> files = Files.list(Paths.get(testDataDirRoot))) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                Files.copy(file, variantDir.toPath().resolve(file.getFileName()));
+            }
+        }
+        File kpiDir = appOutputDir.newFolder("kpis");
+
+        int exitCode = new CommandLine(new MatsimKpiBatchGenerator()).execute(
+                "-mc",
+                format("%s/output_config.xml", testDataDirRoot),
+                "-mo",
+                testDataDirRoot,
+                variantDir.getAbsolutePath(),
+                "-o",
+                kpiDir.getAbsolutePath(),
+                "-j",
+                "2"
+        );
+
+        assertThat(exitCode).isEqualTo(0).as("App return code should be zero");
+        for (String runName : new String[]{"smol-matsim-outputs", "smol-variant"}) {
+            assertKpiFilesWereGenerated(format("%s/expected-kpis", testDataDirRoot), new File(kpiDir, runName));
+            assertSupportingFilesWereGenerated(new File(kpiDir, runName));
+        }
+    }
+
+    @Test
+    public void testAppReadingScenarioTablesFromCache() throws Exception {
+        String testDataDirRoot = format("%s/integration-test-data/smol-matsim-outputs/",
+                Paths.get("src", "test", "resources"));
+        // the cache is kept in the MATSim output directory, so it is copied to keep test resources untouched
+        File matsimOutputDir = appOutputDir.newFolder("smol-matsim-outputs");
+        try (Stream<Path> files = Files.list(Paths.get(testDataDirRoot))) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                Files.copy(file, matsimOutputDir.toPath().resolve(file.getFileName()));
+            }
+        }
+        File firstRunOutputDir = appOutputDir.newFolder("first-run");
+        File secondRunOutputDir = appOutputDir.newFolder("second-run");
+
+        for (File outputDir : new File[]{firstRunOutputDir, secondRunOutputDir}) {
+            int exitCode = new CommandLine(new MatsimKpiGenerator()).execute(
+                    "-mc",
+                    format("%s/output_config.xml", matsimOutputDir),
+                    "-mo",
+                    matsimOutputDir.getAbsolutePath(),
+                    "-o",
+                    outputDir.getAbsolutePath(),
+                    "-ic"
+            );
+            assertThat(exitCode).isEqualTo(0).as("App return code should be zero");
+            assertThat(new File(matsimOutputDir, ScenarioTableCache.DIRECTORY_NAME).list().length)
+                    .isEqualTo(3)
+                    .as("Check the network, transit schedule and vehicles tables were cached");
+        }
+
+        assertKpiFilesWereGenerated(format("%s/expected-kpis", testDataDirRoot), secondRunOutputDir);
+        assertSupportingFilesWereGenerated(secondRunOutputDir);
+    }
+
+    @Test
+    public void testComparingAScenarioWithItsBaseline() throws Exception {
+        String testDataDirRoot = format("%s/integration-test-data/smol-matsim-outputs/",
+                Paths.get("src", "test", "resources"));
+
+        int exitCode = new CommandLine(new MatsimKpiComparisonGenerator()).execute(
+                "-mc",
+                format("%s/output_config.xml", testDataDirRoot),
+                "-bo",
+                testDataDirRoot,
+                "-so",
+                testDataDirRoot,
+                "-o",
+                appOutputDir.getRoot().getAbsolutePath()
+        );
+
+        assertThat(exitCode).isEqualTo(0).as("App return code should be zero");
+        for (String runName : new String[]{"baseline", "scenario"}) {
+            assertKpiFilesWereGenerated(format("%s/expected-kpis", testDataDirRoot),
+                    new File(appOutputDir.getRoot(), runName));
+        }
+        File comparisonDir = new File(appOutputDir.getRoot(), "comparison");
+        for (String comparisonFile : new String[]{KpiComparison.KPI_DELTAS, KpiComparison.LINK_CONGESTION,
+                KpiComparison.LINK_SPEED, KpiComparison.PERSON_AFFORDABILITY}) {
+            File file = new File(comparisonDir, comparisonFile + COMPRESSION_FILE_EXTENSION);
+            try (InputStream stream = new GZIPInputStream(new FileInputStream(file))) {
+                Table comparison = Table.read().csv(CsvReadOptions.builder(stream));
+                assertThat(comparison.rowCount()).isGreaterThan(0);
+                assertThat(comparison.doubleColumn("delta").isNotEqualTo(0.0).size())
+                        .isEqualTo(0)
+                        .as(format("Check %s shows no difference between the same runs", comparisonFile));
+            }
+        }
+    }
+
     private void assertSupportingFilesWereGenerated(File kpiDirectory) {
         String[] generatedFiles = kpiDirectory.list();
         String[] expectedSupportingFiles = {
@@ -74,7 +348,7 @@ public class MatsimKpiGeneratorIntegrationTest {
                 "supporting-data-scheduleStops.csv" + COMPRESSION_FILE_EXTENSION,
                 "supporting-data-networkLinkModes.csv" + COMPRESSION_FILE_EXTENSION,
                 "supporting-data-networkLinks.csv" + COMPRESSION_FILE_EXTENSION,
-                "supporting-data-vehicleOccupancy.csv" + COMPRESSION_FILE_EXTENSION,
+                "supporting-data-vehicleOccupancyIntervals.csv" + COMPRESSION_FILE_EXTENSION,
                 "supporting-data-linkLog.csv" + COMPRESSION_FILE_EXTENSION,
                 "supporting-data-trips.csv" + COMPRESSION_FILE_EXTENSION,
                 "supporting-data-legs.csv" + COMPRESSION_FILE_EXTENSION,
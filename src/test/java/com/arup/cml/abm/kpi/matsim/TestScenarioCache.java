@@ -0,0 +1,106 @@
+package com.arup.cml.abm.kpi.matsim;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestScenarioCache {
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private final ScenarioCache cache = new ScenarioCache();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    public void loadsInputsFromFilesWithTheSameContentOnce() throws Exception {
+        Path network = file("network.xml", "<network/>");
+        Path variantNetwork = file("variant-network.xml", "<network/>");
+
+        Object first = cache.get("network", List.of(network), this::load);
+        Object second = cache.get("network", List.of(variantNetwork), this::load);
+
+        assertThat(second).isSameAs(first);
+        assertThat(loads.get()).isEqualTo(1);
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void loadsInputsAgainFromFilesWithDifferentContent() throws Exception {
+        cache.get("network", List.of(file("network.xml", "<network/>")), this::load);
+        cache.get("network", List.of(file("variant-network.xml", "<network><nodes/></network>")), this::load);
+
+        assertThat(loads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void keysInputsByNameAsWellAsFiles() throws Exception {
+        Path file = file("vehicles.xml", "<vehicles/>");
+
+        cache.get("vehicles", List.of(file), this::load);
+        cache.get("transit vehicles", List.of(file), this::load);
+
+        assertThat(loads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void keysMissingFilesAsMissing() throws Exception {
+        Path vehicles = file("vehicles.xml", "<vehicles/>");
+        Path drtVehicles = tmpDir.getRoot().toPath().resolve("drt_vehicles.xml");
+
+        Object first = cache.get("vehicles", List.of(vehicles, drtVehicles), this::load);
+        Object second = cache.get("vehicles", List.of(vehicles, drtVehicles), this::load);
+
+        assertThat(second).isSameAs(first);
+    }
+
+    @Test
+    public void hashesFilesAgainOnlyOnceTheyChange() throws Exception {
+        Path network = file("network.xml", "<network/>");
+        String hash = cache.hash(network);
+
+        assertThat(cache.hash(network)).isEqualTo(hash);
+        Files.writeString(network, "<network><nodes/></network>");
+        assertThat(cache.hash(network)).isNotEqualTo(hash);
+        assertThat(cache.hash(tmpDir.getRoot().toPath().resolve("missing.xml"))).isEqualTo("none");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failsWhenTheInputFailsToLoad() throws Exception {
+        cache.get("network", List.of(file("network.xml", "<network/>")), () -> {
+            throw new IllegalArgumentException("Broken network");
+        });
+    }
+
+    @Test
+    public void loadsInputsThatFailedToLoadAgain() throws Exception {
+        Path network = file("network.xml", "<network/>");
+        try {
+            cache.get("network", List.of(network), () -> {
+                throw new IllegalArgumentException("Broken network");
+            });
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        cache.get("network", List.of(network), this::load);
+
+        assertThat(loads.get()).isEqualTo(1);
+    }
+
+    private Object load() {
+        loads.incrementAndGet();
+        return new Object();
+    }
+
+    private Path file(String name, String content) throws Exception {
+        return Files.writeString(tmpDir.getRoot().toPath().resolve(name), content);
+    }
+}
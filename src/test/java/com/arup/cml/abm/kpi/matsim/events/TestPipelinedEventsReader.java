@@ -0,0 +1,132 @@
+package com.arup.cml.abm.kpi.matsim.events;
+
+import com.arup.cml.abm.kpi.RunProfile;
+import com.arup.cml.abm.kpi.RunProgress;
+import com.arup.cml.abm.kpi.data.MoneyLog;
+import com.arup.cml.abm.kpi.matsim.handlers.MatsimLinkLogHandler;
+import com.arup.cml.abm.kpi.tablesaw.ColumnarNetworkLinkLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.*;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.MatsimEventsReader;
+import org.matsim.core.events.algorithms.EventWriterXML;
+import org.matsim.vehicles.Vehicle;
+import tech.tablesaw.api.Table;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestPipelinedEventsReader {
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void producesSameLinkLogAsSingleThreadedReader() throws Exception {
+        String eventsFile = writeEventsFile(buildEvents(50));
+
+        ColumnarNetworkLinkLog expectedLinkLog = new ColumnarNetworkLinkLog();
+        EventsManager eventsManager = EventsUtils.createEventsManager();
+        eventsManager.addHandler(new MatsimLinkLogHandler(expectedLinkLog));
+        new MatsimEventsReader(eventsManager).readFile(eventsFile);
+
+        PipelinedEventsReader pipelinedReader = new PipelinedEventsReader(4, new MoneyLog());
+        ColumnarNetworkLinkLog actualLinkLog = pipelinedReader.readFile(eventsFile);
+
+        Table expected = expectedLinkLog.getLinkLogTable();
+        Table actual = actualLinkLog.getLinkLogTable();
+        assertThat(actual.rowCount()).isEqualTo(expected.rowCount());
+        for (String column : expected.columnNames()) {
+            assertThat(actual.column(column).asList())
+                    .as(String.format("Link log column '%s' should match single-threaded reader", column))
+                    .isEqualTo(expected.column(column).asList());
+        }
+        assertThat(actualLinkLog.getVehicleOccupancySize()).isEqualTo(expectedLinkLog.getVehicleOccupancySize());
+    }
+
+    @Test
+    public void recordsMoneyEventsAndStageThroughput() throws Exception {
+        List<Event> events = buildEvents(3);
+        events.add(new PersonMoneyEvent(100.0, Id.createPersonId("person0"), -2.5, "toll", "someAgency"));
+        events.add(new PersonMoneyEvent(200.0, Id.createPersonId("person1"), -1.5, "toll", "someAgency"));
+        String eventsFile = writeEventsFile(events);
+        MoneyLog moneyLog = new MoneyLog();
+
+        PipelinedEventsReader pipelinedReader = new PipelinedEventsReader(2, moneyLog);
+        pipelinedReader.readFile(eventsFile);
+
+        assertThat(moneyLog.getMoneyLogData("person0").get(100.0)).isEqualTo(-2.5);
+        assertThat(moneyLog.getMoneyLogData("person1").get(200.0)).isEqualTo(-1.5);
+        assertThat(pipelinedReader.getMoneyEventCounts().get(PersonMoneyEvent.EVENT_TYPE).get()).isEqualTo(2);
+        assertThat(pipelinedReader.getStageThroughputs().size())
+                .as("Decompression, parsing, dispatch, two link log handlers and a money handler stage")
+                .isEqualTo(6);
+    }
+
+    @Test
+    public void reportsProgressThroughTheEventsFile() throws Exception {
+        List<Event> events = buildEvents(10);
+        String eventsFile = writeEventsFile(events);
+        RunProgress progress = new RunProgress(new RunProfile());
+
+        new PipelinedEventsReader(2, new MoneyLog(), progress).readFile(eventsFile);
+
+        assertThat(progress.getEventsRead()).isEqualTo(events.size());
+        assertThat(progress.getCompressedBytesTotal()).isEqualTo(new File(eventsFile).length());
+        assertThat(progress.getCompressedBytesRead()).isBetween(1L, progress.getCompressedBytesTotal());
+        assertThat(progress.getEventsFileFractionRead()).isEqualTo(1.0);
+        assertThat(progress.getTableSizes().get("link log")).isEqualTo(40);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsAtLeastOneHandlerThread() {
+        new PipelinedEventsReader(0, new MoneyLog());
+    }
+
+    private List<Event> buildEvents(int vehicleCount) {
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < vehicleCount; i++) {
+            Id<Person> person = Id.createPersonId("person" + i);
+            Id<Vehicle> vehicle = Id.createVehicleId("vehicle" + i);
+            double time = i;
+            events.add(new PersonEntersVehicleEvent(time, person, vehicle));
+            events.add(new VehicleEntersTrafficEvent(time, person, link(i, 0), vehicle, "car", 1.0));
+        }
+        for (int step = 1; step < 4; step++) {
+            for (int i = 0; i < vehicleCount; i++) {
+                Id<Vehicle> vehicle = Id.createVehicleId("vehicle" + i);
+                double time = step * 100 + i;
+                events.add(new LinkLeaveEvent(time, vehicle, link(i, step - 1)));
+                events.add(new LinkEnterEvent(time, vehicle, link(i, step)));
+            }
+        }
+        for (int i = 0; i < vehicleCount; i++) {
+            Id<Person> person = Id.createPersonId("person" + i);
+            Id<Vehicle> vehicle = Id.createVehicleId("vehicle" + i);
+            double time = 1000 + i;
+            events.add(new VehicleLeavesTrafficEvent(time, person, link(i, 3), vehicle, "car", 1.0));
+            events.add(new PersonLeavesVehicleEvent(time, person, vehicle));
+        }
+        return events;
+    }
+
+    private Id<Link> link(int vehicle, int step) {
+        return Id.createLinkId(String.format("link_%d_%d", vehicle % 5, step));
+    }
+
+    private String writeEventsFile(List<Event> events) throws Exception {
+        File eventsFile = new File(tmpDir.getRoot(), "output_events.xml.gz");
+        EventWriterXML writer = new EventWriterXML(eventsFile.getAbsolutePath());
+        events.forEach(writer::handleEvent);
+        writer.closeFile();
+        return eventsFile.getAbsolutePath();
+    }
+}
@@ -1,6 +1,7 @@
 package com.arup.cml.abm.kpi.matsim.handlers;
 
 import com.arup.cml.abm.kpi.data.LinkLog;
+import com.arup.cml.abm.kpi.domain.IndexedNetworkLinkLog;
 import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
 import com.google.common.collect.ImmutableMap;
 import org.junit.Test;
@@ -15,6 +16,8 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 
@@ -122,4 +125,20 @@ public class TestMatsimLinkLogHandler {
             assertThat(eventCount).isEqualTo(i).as(String.format("Event count should be {}", i));
         }
     }
+
+    @Test
+    public void handsIdIndicesToLinkLogsThatTakeThem() {
+        IndexedNetworkLinkLog mockLinkLog = Mockito.mock(IndexedNetworkLinkLog.class);
+        MatsimLinkLogHandler linkLogHandler = new MatsimLinkLogHandler(mockLinkLog);
+
+        linkLogHandler.handleEvent(new VehicleEntersTrafficEvent(eventTime, gerry, link, gerryVehicle, mode, 1.0));
+        linkLogHandler.handleEvent(new PersonEntersVehicleEvent(eventTime, gerry, gerryVehicle));
+        linkLogHandler.handleEvent(new LinkLeaveEvent(eventTime, gerryVehicle, link));
+
+        verify(mockLinkLog).recordVehicleMode(gerryVehicle.index(), mode);
+        verify(mockLinkLog).createLinkLogEntry(gerryVehicle.index(), link.index(), eventTime);
+        verify(mockLinkLog).personBoardsVehicle(gerryVehicle.index(), gerry.index());
+        verify(mockLinkLog).completeLinkLogEntry(gerryVehicle.index(), eventTime);
+        verify(mockLinkLog, never()).personBoardsVehicle(anyString(), anyString());
+    }
 }
@@ -0,0 +1,206 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.LinearNormaliser;
+import com.arup.cml.abm.kpi.builders.KpiCalculatorBuilder;
+import com.arup.cml.abm.kpi.builders.NetworkBuilder;
+import com.arup.cml.abm.kpi.builders.VehiclesBuilder;
+import com.arup.cml.abm.kpi.data.LinkLog;
+import com.arup.cml.abm.kpi.domain.LinkLogConsistencyException;
+import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.vehicles.Vehicles;
+import tech.tablesaw.api.Row;
+import tech.tablesaw.api.Table;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestAggregatingNetworkLinkLog {
+    private final Network network = new NetworkBuilder()
+            .withNetworkNode("A", 1, 1)
+            .withNetworkNode("B", 2, 2)
+            .withNetworkLinkWithLength("shortLink", "A", "B", 100)
+            .withNetworkLink("longLink", "B", "A", 1000, 20, 300, 1)
+            .withNetworkLink("unmeasuredLink", "A", "B", Double.NaN, 20, 300, 1)
+            .build();
+    private final Vehicles vehicles = new VehiclesBuilder()
+            .withVehicle("someCar", "car")
+            .withVehicleOfMode("someBus", "bus", "bus")
+            .build();
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void totalsTheEntriesPeopleAndNetworkLengthOfEachVehicle() {
+        AggregatingNetworkLinkLog linkLog = new AggregatingNetworkLinkLog(network, vehicles);
+
+        linkLog.personBoardsVehicle("someBus", "gerry");
+        linkLog.createLinkLogEntry("someBus", "shortLink", 0);
+        linkLog.completeLinkLogEntry("someBus", 10);
+        linkLog.personBoardsVehicle("someBus", "gerryFriend");
+        linkLog.createLinkLogEntry("someBus", "longLink", 10);
+        linkLog.completeLinkLogEntry("someBus", 60);
+        linkLog.createLinkLogEntry("someBus", "linkOffTheNetwork", 60);
+        linkLog.personAlightsVehicle("someBus", "gerry");
+        linkLog.completeLinkLogEntry("someBus", 70);
+
+        Table totals = linkLog.getVehicleTotalsTable();
+
+        assertThat(totals.rowCount()).isEqualTo(1);
+        Row bus = totals.row(0);
+        assertThat(bus.getString("vehicleID")).isEqualTo("someBus");
+        assertThat(bus.getInt("linkLogEntries")).isEqualTo(3);
+        assertThat(bus.getDouble("numberOfPeople")).isEqualTo(1.0 + 2.0 + 1.0);
+        assertThat(bus.getInt("networkLinkLogEntries")).isEqualTo(2);
+        assertThat(bus.getDouble("length")).isEqualTo(1100.0);
+    }
+
+    @Test
+    public void countsPersonWhoBoardedVehicleTwiceUntilTheyAlightTwice() {
+        AggregatingNetworkLinkLog linkLog = new AggregatingNetworkLinkLog(network, vehicles);
+
+        linkLog.personBoardsVehicle("someBus", "gerry");
+        linkLog.personBoardsVehicle("someBus", "gerry");
+        linkLog.createLinkLogEntry("someBus", "shortLink", 0);
+        linkLog.completeLinkLogEntry("someBus", 10);
+        linkLog.personAlightsVehicle("someBus", "gerry");
+        linkLog.createLinkLogEntry("someBus", "longLink", 10);
+        linkLog.completeLinkLogEntry("someBus", 60);
+        linkLog.personAlightsVehicle("someBus", "gerry");
+        linkLog.createLinkLogEntry("someBus", "shortLink", 60);
+        linkLog.completeLinkLogEntry("someBus", 70);
+
+        Table totals = linkLog.getVehicleTotalsTable();
+
+        assertThat(totals.row(0).getDouble("numberOfPeople")).isEqualTo(2.0 + 1.0 + 0.0);
+    }
+
+    @Test
+    public void totalsSpeedsAndDelayRatiosByLinkHourAndMode() {
+        AggregatingNetworkLinkLog linkLog = new AggregatingNetworkLinkLog(network, vehicles);
+
+        // 100m at 10m/s takes 10s free flow
+        linkLog.createLinkLogEntry("someCar", "shortLink", (8 * 60 * 60));
+        linkLog.completeLinkLogEntry("someCar", (8 * 60 * 60) + 20);
+        linkLog.createLinkLogEntry("someCar", "shortLink", (8 * 60 * 60) + 30);
+        linkLog.completeLinkLogEntry("someCar", (8 * 60 * 60) + 70);
+        linkLog.createLinkLogEntry("someCar", "shortLink", (9 * 60 * 60));
+        linkLog.completeLinkLogEntry("someCar", (9 * 60 * 60) + 10);
+
+        Table totals = linkLog.getLinkHourTotalsTable();
+
+        assertThat(totals.rowCount()).isEqualTo(2);
+        Row eightOClock = totals.row(0);
+        assertThat(eightOClock.getString("linkID")).isEqualTo("shortLink");
+        assertThat(eightOClock.getString("mode")).isEqualTo("car");
+        assertThat(eightOClock.getInt("hour")).isEqualTo(8);
+        assertThat(eightOClock.getInt("delayRatioCount")).isEqualTo(2);
+        assertThat(eightOClock.getDouble("delayRatioSum")).isEqualTo(2.0 + 4.0);
+        assertThat(eightOClock.getInt("speedCount")).isEqualTo(2);
+        assertThat(eightOClock.getDouble("speedSum")).isEqualTo(18.0 + 9.0);
+        assertThat(totals.row(1).getInt("hour")).isEqualTo(9);
+    }
+
+    @Test
+    public void countsEntriesCompletedAgainOnceWithTheirLatestEndTime() {
+        AggregatingNetworkLinkLog linkLog = new AggregatingNetworkLinkLog(network, vehicles);
+
+        linkLog.createLinkLogEntry("someCar", "shortLink", 0);
+        linkLog.completeLinkLogEntry("someCar", 10);
+        linkLog.completeLinkLogEntry("someCar", 20);
+
+        Table totals = linkLog.getLinkHourTotalsTable();
+
+        assertThat(totals.row(0).getInt("delayRatioCount")).isEqualTo(1);
+        assertThat(totals.row(0).getDouble("delayRatioSum")).isEqualTo(2.0);
+    }
+
+    @Test
+    public void leavesEntriesEndingAtInfiniteOrNegativeTimesOutOfTheLinkHourTotals() {
+        AggregatingNetworkLinkLog linkLog = new AggregatingNetworkLinkLog(network, vehicles);
+
+        linkLog.createLinkLogEntry("someCar", "shortLink", 0);
+        linkLog.completeLinkLogEntry("someCar", Double.POSITIVE_INFINITY);
+        linkLog.createLinkLogEntry("someCar", "shortLink", 0);
+        linkLog.completeLinkLogEntry("someCar", -10);
+
+        assertThat(linkLog.getLinkHourTotalsTable().rowCount()).isEqualTo(0);
+        assertThat(linkLog.getVehicleTotalsTable().row(0).getInt("linkLogEntries")).isEqualTo(2);
+    }
+
+    @Test
+    public void leavesOutEntriesThatWereNeverCompleted() {
+        AggregatingNetworkLinkLog linkLog = new AggregatingNetworkLinkLog(network, vehicles);
+
+        linkLog.createLinkLogEntry("someCar", "shortLink", 0);
+        linkLog.createLinkLogEntry("someCar", "longLink", 10);
+
+        assertThat(linkLog.getVehicleTotalsTable().rowCount()).isEqualTo(0);
+        assertThat(linkLog.getLinkHourTotalsTable().rowCount()).isEqualTo(0);
+    }
+
+    @Test(expected = LinkLogConsistencyException.class)
+    public void throwsExceptionWhenCompletingEntryThatWasNeverStarted() {
+        new AggregatingNetworkLinkLog(network, vehicles).completeLinkLogEntry("someCar", 10);
+    }
+
+    @Test(expected = LinkLogConsistencyException.class)
+    public void throwsExceptionWhenPersonAlightsVehicleTheyDidNotBoard() {
+        AggregatingNetworkLinkLog linkLog = new AggregatingNetworkLinkLog(network, vehicles);
+        linkLog.personBoardsVehicle("someBus", "gerry");
+
+        linkLog.personAlightsVehicle("someBus", "gerryFriend");
+    }
+
+    @Test
+    public void writesTheSameLinkBasedKpisAsTheLinkLog() {
+        LinkLog recordedLinkLog = new LinkLog();
+        AggregatingNetworkLinkLog aggregatingLinkLog = new AggregatingNetworkLinkLog(network, vehicles);
+        for (NetworkLinkLog linkLog : new NetworkLinkLog[]{recordedLinkLog, aggregatingLinkLog}) {
+            linkLog.recordVehicleMode("someCar", "car");
+            linkLog.personBoardsVehicle("someCar", "gerry");
+            linkLog.createLinkLogEntry("someCar", "shortLink", (8 * 60 * 60));
+            linkLog.completeLinkLogEntry("someCar", (8 * 60 * 60) + 25);
+            linkLog.createLinkLogEntry("someCar", "longLink", (8 * 60 * 60) + 25);
+            linkLog.completeLinkLogEntry("someCar", (8 * 60 * 60) + 125);
+            // has no delay ratio, so must not turn the car's mean delay ratios into NaN
+            linkLog.createLinkLogEntry("someCar", "unmeasuredLink", (8 * 60 * 60) + 125);
+            linkLog.completeLinkLogEntry("someCar", (8 * 60 * 60) + 150);
+            linkLog.recordVehicleMode("someBus", "bus");
+            linkLog.createLinkLogEntry("someBus", "longLink", (9 * 60 * 60));
+            linkLog.personBoardsVehicle("someBus", "gerryFriend");
+            linkLog.completeLinkLogEntry("someBus", (9 * 60 * 60) + 200);
+        }
+        TablesawKpiCalculator recordedCalculator = calculatorWith(recordedLinkLog);
+        TablesawKpiCalculator aggregatingCalculator = calculatorWith(aggregatingLinkLog);
+        LinearNormaliser normaliser = new LinearNormaliser(0, 10, 0, 1);
+
+        assertThat(aggregatingCalculator.writeVehicleKMKpi(outputDirectory()))
+                .isEqualTo(recordedCalculator.writeVehicleKMKpi(outputDirectory()));
+        assertThat(aggregatingCalculator.writeOccupancyRateKpi(outputDirectory(), normaliser))
+                .isEqualTo(recordedCalculator.writeOccupancyRateKpi(outputDirectory(), normaliser));
+        assertThat(aggregatingCalculator.writeGHGKpi(outputDirectory(), normaliser))
+                .isEqualTo(recordedCalculator.writeGHGKpi(outputDirectory(), normaliser));
+        Table aggregatedCongestion = aggregatingCalculator.writeCongestionKpi(outputDirectory(), normaliser);
+        Table recordedCongestion = recordedCalculator.writeCongestionKpi(outputDirectory(), normaliser);
+        assertThat(aggregatedCongestion.print()).isEqualTo(recordedCongestion.print());
+        assertThat(aggregatedCongestion.doubleColumn("Mean [delayRatio]").isMissing().size()).isEqualTo(0);
+    }
+
+    private TablesawKpiCalculator calculatorWith(NetworkLinkLog linkLog) {
+        return new KpiCalculatorBuilder(tmpDir)
+                .withNetwork(network)
+                .withVehicles(vehicles)
+                .withLinkLog(linkLog)
+                .build();
+    }
+
+    private Path outputDirectory() {
+        return Path.of(tmpDir.getRoot().getAbsolutePath());
+    }
+}
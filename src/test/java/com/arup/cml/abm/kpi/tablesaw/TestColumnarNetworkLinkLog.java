@@ -0,0 +1,156 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.domain.LinkLogConsistencyException;
+import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import tech.tablesaw.api.Row;
+import tech.tablesaw.api.Table;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestColumnarNetworkLinkLog {
+
+    @Test
+    public void defaultsToUnknownModeWhenCreatingLinkLogEntryWithUnrecordedMode() {
+        ColumnarNetworkLinkLog linkLog = new ColumnarNetworkLinkLog();
+        assertThat(linkLog.getLinkLogTable().isEmpty()).isTrue().as("Link log table should be empty initially");
+
+        linkLog.createLinkLogEntry("someVehicle", "someLink", 12.0);
+
+        Table linkLogTable = linkLog.getLinkLogTable();
+        assertThat(linkLogTable.rowCount()).isEqualTo(1);
+        assertThat(linkLogTable.row(0).getString("initialMode"))
+                .as("Vehicle mode should default to 'unknown'")
+                .isEqualTo("unknown");
+    }
+
+    @Test
+    public void usesRecordedModeWhenAvailableWhenCreatingLinkLogEntry() {
+        ColumnarNetworkLinkLog linkLog = new ColumnarNetworkLinkLog();
+
+        linkLog.recordVehicleMode("someVehicle", "someMode");
+        linkLog.createLinkLogEntry("someVehicle", "someLink", 12.0);
+
+        assertThat(linkLog.getLinkLogTable().row(0).getString("initialMode"))
+                .as("Vehicle mode should be as previously recorded ('someMode')")
+                .isEqualTo("someMode");
+    }
+
+    @Test
+    public void leavesEndTimeAndPassengerCountMissingForOpenLinkLogEntry() {
+        ColumnarNetworkLinkLog linkLog = new ColumnarNetworkLinkLog();
+
+        linkLog.createLinkLogEntry("someVehicle", "someLink", 12.0);
+
+        Table linkLogTable = linkLog.getLinkLogTable();
+        assertThat(linkLogTable.doubleColumn("endTime").isMissing(0))
+                .as("End time of an open link log entry should be missing")
+                .isTrue();
+        assertThat(linkLogTable.intColumn("numberOfPeople").isMissing(0))
+                .as("Number of people of an open link log entry should be missing")
+                .isTrue();
+    }
+
+    @Test
+    public void growsBeyondInitialCapacity() {
+        ColumnarNetworkLinkLog linkLog = new ColumnarNetworkLinkLog();
+        int entries = 5000;
+
+        linkLog.personBoardsVehicle("someVehicle", "somePerson");
+        for (int i = 0; i < entries; i++) {
+            linkLog.createLinkLogEntry("someVehicle", "link" + (i % 7), i);
+            linkLog.completeLinkLogEntry("someVehicle", i + 1);
+        }
+
+        Table linkLogTable = linkLog.getLinkLogTable();
+        assertThat(linkLogTable.rowCount()).isEqualTo(entries);
+        assertThat(linkLogTable.longColumn("index").getLong(entries - 1)).isEqualTo(entries - 1);
+        assertThat(linkLogTable.stringColumn("linkID").get(entries - 1)).isEqualTo("link" + ((entries - 1) % 7));
+        assertThat(linkLog.getVehicleOccupancyTable().rowCount()).isEqualTo(entries);
+    }
+
+    @Test(expected = LinkLogConsistencyException.class)
+    public void throwsExceptionWhenPersonAlightsUnrecordedVehicle() {
+        new ColumnarNetworkLinkLog().personAlightsVehicle("badVehicle", "someDude");
+    }
+
+    @Test(expected = LinkLogConsistencyException.class)
+    public void throwsExceptionWhenPersonAlightsVehicleTheyDidNotBoard() {
+        ColumnarNetworkLinkLog linkLog = new ColumnarNetworkLinkLog();
+
+        linkLog.personBoardsVehicle("someVehicle", "someDude");
+        linkLog.personBoardsVehicle("otherVehicle", "nonBoardingDude");
+        linkLog.personAlightsVehicle("someVehicle", "nonBoardingDude");
+    }
+
+    @Test
+    public void producesSameTablesAsTablesawNetworkLinkLog() {
+        ColumnarNetworkLinkLog columnarLinkLog = new ColumnarNetworkLinkLog();
+        TablesawNetworkLinkLog tablesawLinkLog = new TablesawNetworkLinkLog();
+
+        for (NetworkLinkLog linkLog : new NetworkLinkLog[]{columnarLinkLog, tablesawLinkLog}) {
+            linkLog.recordVehicleMode("PartyBus", "bus");
+            linkLog.personBoardsVehicle("PartyBus", "driver");
+            linkLog.createLinkLogEntry("PartyBus", "startLink", 0.0);
+            linkLog.completeLinkLogEntry("PartyBus", 5.0);
+            linkLog.createLinkLogEntry("PartyBus", "gerryLinkBoard", 5.0);
+            linkLog.personBoardsVehicle("PartyBus", "gerry");
+            linkLog.personBoardsVehicle("PartyBus", "gerryFriend");
+            linkLog.completeLinkLogEntry("PartyBus", 10.0);
+            linkLog.createLinkLogEntry("PartyBus", "gerryLinkAlight", 10.0);
+            linkLog.personAlightsVehicle("PartyBus", "gerry");
+            linkLog.completeLinkLogEntry("PartyBus", 15.0);
+            linkLog.createLinkLogEntry("someCar", "endLink", 15.0);
+        }
+
+        assertTablesMatch(columnarLinkLog.getLinkLogTable(), tablesawLinkLog.getLinkLogTable());
+        assertTablesMatch(columnarLinkLog.getVehicleOccupancyTable(), tablesawLinkLog.getVehicleOccupancyTable());
+    }
+
+    @Test
+    public void recordsIdsHandedOverAsIndicesOrStringsAsTheSameIds() {
+        ColumnarNetworkLinkLog linkLog = new ColumnarNetworkLinkLog();
+        int busIndex = Id.createVehicleId("PartyBus").index();
+        int gerryIndex = Id.createPersonId("gerry").index();
+
+        linkLog.recordVehicleMode(busIndex, "bus");
+        linkLog.createLinkLogEntry(busIndex, Id.createLinkId("gerryLinkBoard").index(), 5.0);
+        linkLog.personBoardsVehicle(busIndex, gerryIndex);
+        linkLog.completeLinkLogEntry("PartyBus", 10.0);
+        linkLog.createLinkLogEntry("PartyBus", "gerryLinkAlight", 10.0);
+        linkLog.personAlightsVehicle("PartyBus", "gerry");
+        linkLog.completeLinkLogEntry(busIndex, 15.0);
+
+        Table linkLogTable = linkLog.getLinkLogTable();
+        assertThat(linkLogTable.rowCount()).isEqualTo(2);
+        assertThat(linkLogTable.stringColumn("vehicleID").countUnique()).isEqualTo(1);
+        assertThat(linkLogTable.row(0).getString("linkID")).isEqualTo("gerryLinkBoard");
+        assertThat(linkLogTable.row(0).getString("initialMode")).isEqualTo("bus");
+        assertThat(linkLogTable.row(0).getInt("numberOfPeople")).isEqualTo(1);
+        assertThat(linkLogTable.row(1).getInt("numberOfPeople")).isEqualTo(0);
+    }
+
+    @Test(expected = LinkLogConsistencyException.class)
+    public void throwsExceptionWhenPersonAlightsByIndexWithoutBoarding() {
+        ColumnarNetworkLinkLog linkLog = new ColumnarNetworkLinkLog();
+        linkLog.personBoardsVehicle(Id.createVehicleId("PartyBus").index(), Id.createPersonId("gerry").index());
+
+        linkLog.personAlightsVehicle(Id.createVehicleId("PartyBus").index(), Id.createPersonId("gerryFriend").index());
+    }
+
+    private static void assertTablesMatch(Table actual, Table expected) {
+        assertThat(actual.name()).isEqualTo(expected.name());
+        assertThat(actual.columnNames()).isEqualTo(expected.columnNames());
+        assertThat(actual.rowCount()).isEqualTo(expected.rowCount());
+        for (int i = 0; i < expected.rowCount(); i++) {
+            Row expectedRow = expected.row(i);
+            Row actualRow = actual.row(i);
+            for (String column : expected.columnNames()) {
+                assertThat(String.valueOf(actualRow.getObject(column)))
+                        .as(String.format("Column '%s' of row %d in table '%s'", column, i, expected.name()))
+                        .isEqualTo(String.valueOf(expectedRow.getObject(column)));
+            }
+        }
+    }
+}
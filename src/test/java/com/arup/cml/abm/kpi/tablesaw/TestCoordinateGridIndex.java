@@ -0,0 +1,48 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestCoordinateGridIndex {
+
+    @Test
+    public void findsPointOnRadiusBoundary() {
+        CoordinateGridIndex index = new CoordinateGridIndex(new double[]{400.0}, new double[]{0.0}, 400.0);
+
+        assertThat(index.hasPointWithinRadius(0.0, 0.0))
+                .as("A point exactly one radius away should count as within the radius")
+                .isTrue();
+    }
+
+    @Test
+    public void findsPointInNeighbouringCellAcrossNegativeCoordinates() {
+        CoordinateGridIndex index = new CoordinateGridIndex(new double[]{-10.0}, new double[]{-10.0}, 100.0);
+
+        assertThat(index.hasPointWithinRadius(50.0, 50.0)).isTrue();
+    }
+
+    @Test
+    public void doesNotFindPointJustOutsideRadius() {
+        CoordinateGridIndex index = new CoordinateGridIndex(new double[]{300.0}, new double[]{300.0}, 400.0);
+
+        assertThat(index.hasPointWithinRadius(0.0, 0.0))
+                .as("A point about 424 units away should not be within a radius of 400")
+                .isFalse();
+    }
+
+    @Test
+    public void ignoresMissingCoordinates() {
+        CoordinateGridIndex index = new CoordinateGridIndex(
+                new double[]{Double.NaN, 1000.0}, new double[]{0.0, 1000.0}, 10.0);
+
+        assertThat(index.getCellCount()).isEqualTo(1);
+        assertThat(index.hasPointWithinRadius(0.0, 0.0)).isFalse();
+        assertThat(index.hasPointWithinRadius(Double.NaN, 0.0)).isFalse();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsPositiveRadius() {
+        new CoordinateGridIndex(new double[]{}, new double[]{}, 0.0);
+    }
+}
@@ -0,0 +1,86 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.Kpi;
+import org.junit.Before;
+import org.junit.Test;
+import tech.tablesaw.api.Table;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestDerivedTables {
+    private final List<DerivedTable> builtTables = new ArrayList<>();
+    private final DerivedTables derivedTables = new DerivedTables();
+
+    @Before
+    public void registerBuilders() {
+        for (DerivedTable table : DerivedTable.values()) {
+            derivedTables.register(table, () -> {
+                for (DerivedTable dependency : table.getDependencies()) {
+                    derivedTables.get(dependency);
+                }
+                builtTables.add(table);
+                return Table.create(table.name());
+            });
+        }
+    }
+
+    @Test
+    public void buildsEachTableOnlyOnce() {
+        Table trips = derivedTables.get(DerivedTable.TRIPS);
+
+        assertThat(derivedTables.get(DerivedTable.TRIPS)).isSameAs(trips);
+        assertThat(builtTables).isEqualTo(List.of(
+                DerivedTable.PERSON_MODE_SCORES, DerivedTable.LEGS, DerivedTable.TRIPS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void neverBuildsTablesThatNoPlannedKpiNeeds() {
+        derivedTables.planKpis(Set.of(Kpi.CONGESTION));
+
+        derivedTables.get(DerivedTable.LINK_LOG);
+        derivedTables.get(DerivedTable.LINK_LOG_NETWORK);
+
+        assertThat(builtTables).isEqualTo(List.of(
+                DerivedTable.VEHICLES, DerivedTable.LINK_LOG, DerivedTable.NETWORK_LINKS,
+                DerivedTable.LINK_LOG_NETWORK));
+        derivedTables.get(DerivedTable.LEGS);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasesTablesOnceTheLastKpiNeedingThemHasFinished() {
+        derivedTables.planKpis(Set.of(Kpi.MODAL_SPLIT, Kpi.PT_WAIT_TIME));
+        derivedTables.get(DerivedTable.LEGS);
+        derivedTables.kpiFinished(Kpi.PT_WAIT_TIME);
+
+        Table trips = derivedTables.get(DerivedTable.TRIPS);
+        derivedTables.kpiFinished(Kpi.MODAL_SPLIT);
+
+        assertThat(trips).isNotNull();
+        derivedTables.get(DerivedTable.TRIPS);
+    }
+
+    @Test
+    public void keepsTablesThatAnUnbuiltTableIsBuiltFrom() {
+        derivedTables.planKpis(Set.of(Kpi.PT_WAIT_TIME, Kpi.MOBILITY_SPACE_USAGE));
+        derivedTables.get(DerivedTable.LEGS);
+        derivedTables.kpiFinished(Kpi.PT_WAIT_TIME);
+
+        derivedTables.get(DerivedTable.ACTIVITIES);
+
+        assertThat(builtTables).isEqualTo(List.of(
+                DerivedTable.PERSON_MODE_SCORES, DerivedTable.LEGS, DerivedTable.TRIPS, DerivedTable.ACTIVITIES));
+    }
+
+    @Test
+    public void keepsEveryTableWithoutAPlan() {
+        Table legs = derivedTables.get(DerivedTable.LEGS);
+        derivedTables.kpiFinished(Kpi.AFFORDABILITY);
+        derivedTables.kpiFinished(Kpi.PT_WAIT_TIME);
+
+        assertThat(derivedTables.get(DerivedTable.LEGS)).isSameAs(legs);
+    }
+}
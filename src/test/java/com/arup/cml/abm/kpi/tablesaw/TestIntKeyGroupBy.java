@@ -0,0 +1,82 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestIntKeyGroupBy {
+    @Test
+    public void numbersGroupsInOrderOfFirstAppearance() {
+        IntKeyGroupBy groupBy = new IntKeyGroupBy(2, 1);
+
+        int first = groupBy.group(new int[]{7, 8});
+        int second = groupBy.group(new int[]{1, 8});
+        int firstAgain = groupBy.group(new int[]{7, 8});
+
+        assertThat(first).isEqualTo(0);
+        assertThat(second).isEqualTo(1);
+        assertThat(firstAgain).isEqualTo(0);
+        assertThat(groupBy.getGroupCount()).isEqualTo(2);
+        assertThat(groupBy.getKey(1, 0)).isEqualTo(1);
+        assertThat(groupBy.getKey(1, 1)).isEqualTo(8);
+    }
+
+    @Test
+    public void totalsUpEachValueOfEachGroup() {
+        IntKeyGroupBy groupBy = new IntKeyGroupBy(1, 2);
+        int[] key = new int[1];
+
+        key[0] = 3;
+        int group = groupBy.group(key);
+        groupBy.add(group, 0, 2.0);
+        groupBy.add(group, 0, 4.0);
+        groupBy.add(group, 1, 10.0);
+        key[0] = 4;
+        groupBy.add(groupBy.group(key), 0, 100.0);
+
+        assertThat(groupBy.getSum(group, 0)).isEqualTo(6.0);
+        assertThat(groupBy.getCount(group, 0)).isEqualTo(2);
+        assertThat(groupBy.getMean(group, 0)).isEqualTo(3.0);
+        assertThat(groupBy.getMean(group, 1)).isEqualTo(10.0);
+    }
+
+    @Test
+    public void leavesValuesThatAreNotANumberOutOfTheTotals() {
+        IntKeyGroupBy groupBy = new IntKeyGroupBy(1, 1);
+        int group = groupBy.group(new int[]{0});
+
+        groupBy.add(group, 0, Double.NaN);
+
+        assertThat(groupBy.getCount(group, 0)).isEqualTo(0);
+        assertThat(groupBy.getMean(group, 0)).isNaN();
+    }
+
+    @Test
+    public void keepsFindingGroupsAsTheTableGrows() {
+        IntKeyGroupBy groupBy = new IntKeyGroupBy(3, 1);
+        int[] key = new int[3];
+        for (int round = 0; round < 2; round++) {
+            for (int link = 0; link < 1000; link++) {
+                for (int hour = 0; hour < 24; hour++) {
+                    key[0] = link;
+                    key[1] = link % 3;
+                    key[2] = hour;
+                    groupBy.add(groupBy.group(key), 0, hour);
+                }
+            }
+        }
+
+        assertThat(groupBy.getGroupCount()).isEqualTo(24000);
+        key[0] = 999;
+        key[1] = 0;
+        key[2] = 23;
+        int group = groupBy.group(key);
+        assertThat(group).isEqualTo(23999);
+        assertThat(groupBy.getSum(group, 0)).isEqualTo(46.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void onlyTakesKeysOfItsWidth() {
+        new IntKeyGroupBy(2, 1).group(new int[]{1});
+    }
+}
@@ -0,0 +1,134 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.core.config.groups.ControllerConfigGroup.CompressionType;
+import tech.tablesaw.api.Table;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestKpiComparison {
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private Path baseline;
+    private Path scenario;
+
+    @Before
+    public void setUp() throws Exception {
+        baseline = tmpDir.newFolder("baseline").toPath();
+        scenario = tmpDir.newFolder("scenario").toPath();
+    }
+
+    @Test
+    public void comparesEveryValueOfTheKpis() throws Exception {
+        write(baseline, "kpi-affordability.csv", "actual,normalised\n0.34,10.0");
+        write(scenario, "kpi-affordability.csv", "actual,normalised\n0.5,8.0");
+        write(baseline, "kpi-vehicle-km.csv", "181.7");
+        write(scenario, "kpi-vehicle-km.csv", "170.2");
+
+        Table deltas = comparison().kpiDeltas();
+
+        assertThat(deltas.rowCount()).isEqualTo(3);
+        assertThat(deltas.stringColumn("kpi").asList())
+                .isEqualTo(List.of("affordability", "affordability", "vehicle-km"));
+        assertThat(deltas.stringColumn("measure").asList()).isEqualTo(List.of("actual", "normalised", "value"));
+        assertThat(deltas.doubleColumn("delta").get(0)).isEqualTo(0.16);
+        assertThat(deltas.doubleColumn("delta").get(1)).isEqualTo(-2.0);
+        assertThat(deltas.doubleColumn("delta").get(2)).isEqualTo(-11.5);
+    }
+
+    @Test
+    public void keysKpiRowsByTheirNonNumericColumns() throws Exception {
+        write(baseline, "kpi-congestion.csv",
+                "mode,Mean [delayRatio],Normalised [Mean [delayRatio]]\nbus,2.83,0.95\ncar,3.57,0.0");
+        write(scenario, "kpi-congestion.csv",
+                "mode,Mean [delayRatio],Normalised [Mean [delayRatio]]\ncar,3.0,0.0\nbus,2.83,0.95");
+
+        Table deltas = comparison().kpiDeltas();
+
+        Table carDelayRatio = deltas.where(deltas.stringColumn("key").isEqualTo("car")
+                .and(deltas.stringColumn("measure").isEqualTo("Mean [delayRatio]")));
+        assertThat(carDelayRatio.rowCount()).isEqualTo(1);
+        assertThat(carDelayRatio.doubleColumn("baseline").get(0)).isEqualTo(3.57);
+        assertThat(carDelayRatio.doubleColumn("scenario").get(0)).isEqualTo(3.0);
+        assertThat(carDelayRatio.doubleColumn("delta").get(0)).isEqualTo(-0.57);
+    }
+
+    @Test
+    public void keepsLinkValuesOnlyFoundInOneOfTheRuns() throws Exception {
+        write(baseline, "kpi-speed.csv", "linkID,8,9\n1,36.0,\n2,20.0,10.0");
+        write(scenario, "kpi-speed.csv", "linkID,8,10\n1,30.0,5.0");
+
+        Table speeds = comparison().linkSpeed().orElseThrow();
+
+        assertThat(speeds.columnNames())
+                .isEqualTo(List.of("linkID", "hour", "baseline", "scenario", "delta"));
+        assertThat(speeds.rowCount()).isEqualTo(4);
+        Table link1At8 = speeds.where(speeds.stringColumn("linkID").isEqualTo("1")
+                .and(speeds.stringColumn("hour").isEqualTo("8")));
+        assertThat(link1At8.doubleColumn("delta").get(0)).isEqualTo(-6.0);
+        Table link2At9 = speeds.where(speeds.stringColumn("linkID").isEqualTo("2")
+                .and(speeds.stringColumn("hour").isEqualTo("9")));
+        assertThat(link2At9.doubleColumn("baseline").get(0)).isEqualTo(10.0);
+        assertThat(link2At9.doubleColumn("scenario").isMissing(0)).isTrue();
+        assertThat(link2At9.doubleColumn("delta").isMissing(0)).isTrue();
+    }
+
+    @Test
+    public void comparesTheDailyCostOfTravelOfEachPerson() throws Exception {
+        write(baseline, "supporting-data-legs.csv",
+                "person,mode,monetaryCostOfTravel\nAlice,car,2.5\nAlice,car,1.5\nBob,bus,1.0");
+        write(scenario, "supporting-data-legs.csv",
+                "person,mode,monetaryCostOfTravel\nAlice,bus,1.0\nBob,bus,1.0");
+
+        Table costs = comparison().personAffordability().orElseThrow();
+
+        assertThat(costs.stringColumn("person").asList()).isEqualTo(List.of("Alice", "Bob"));
+        assertThat(costs.doubleColumn("baseline").get(0)).isEqualTo(4.0);
+        assertThat(costs.doubleColumn("delta").get(0)).isEqualTo(-3.0);
+        assertThat(costs.doubleColumn("delta").get(1)).isEqualTo(0.0);
+    }
+
+    @Test
+    public void sumsLegCostsOfQuotedPeopleCountingMissingCostsAsNothing() throws Exception {
+        write(baseline, "supporting-data-legs.csv",
+                "person,monetaryCostOfTravel,mode\n\"Smith, Alice\",2.5,car\n\"Smith, Alice\",,walk\nBob,1.0,bus");
+        write(scenario, "supporting-data-legs.csv",
+                "person,monetaryCostOfTravel,mode\n\"Smith, Alice\",3.0,car\nBob,,walk");
+
+        Table costs = comparison().personAffordability().orElseThrow();
+
+        assertThat(costs.stringColumn("person").asList()).isEqualTo(List.of("Smith, Alice", "Bob"));
+        assertThat(costs.doubleColumn("baseline").get(0)).isEqualTo(2.5);
+        assertThat(costs.doubleColumn("delta").get(0)).isEqualTo(0.5);
+        assertThat(costs.doubleColumn("delta").get(1)).isEqualTo(-1.0);
+    }
+
+    @Test
+    public void skipsDifferencesOfFilesNotWrittenForBothRuns() throws Exception {
+        write(baseline, "intermediate-congestion.csv", "linkID,mode,hour,Mean [delayRatio]\n1,car,8,1.5");
+
+        Path output = tmpDir.getRoot().toPath().resolve("comparison");
+        comparison().write(output);
+
+        assertThat(comparison().linkCongestion()).isEqualTo(Optional.empty());
+        assertThat(Files.exists(output.resolve(KpiComparison.KPI_DELTAS))).isTrue();
+        assertThat(Files.exists(output.resolve(KpiComparison.LINK_CONGESTION))).isFalse();
+    }
+
+    private KpiComparison comparison() {
+        return new KpiComparison(baseline, scenario, CompressionType.none);
+    }
+
+    private static void write(Path directory, String name, String content) throws Exception {
+        Files.writeString(directory.resolve(name), content);
+    }
+}
@@ -0,0 +1,66 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestLegTimeIndex {
+    // rows:                          0        1        2        3         4
+    private final String[] persons = {"Bobby", "Alice", "Bobby", "Bobby", "Alice"};
+    private final double[] departures = {600.0, 100.0, 100.0, 300.0, 500.0};
+    private final double[] arrivals = {700.0, 200.0, 200.0, 400.0, 900.0};
+    private final LegTimeIndex index = new LegTimeIndex(persons, departures, arrivals);
+
+    @Test
+    public void findsLegOfPersonInProgressAtTime() {
+        assertThat(legsSpanning("Bobby", 350.0)).isEqualTo(List.of(3));
+        assertThat(legsSpanning("Alice", 350.0)).isEqualTo(List.of());
+        assertThat(legsSpanning("Alice", 600.0)).isEqualTo(List.of(4));
+    }
+
+    @Test
+    public void excludesDepartureTimeAndIncludesArrivalTime() {
+        assertThat(legsSpanning("Bobby", 100.0)).isEqualTo(List.of());
+        assertThat(legsSpanning("Bobby", 200.0)).isEqualTo(List.of(2));
+    }
+
+    @Test
+    public void findsOverlappingLegs() {
+        LegTimeIndex overlappingIndex = new LegTimeIndex(
+                new String[]{"Bobby", "Bobby", "Bobby"},
+                new double[]{0.0, 10.0, 20.0},
+                new double[]{100.0, 15.0, 30.0});
+
+        List<Integer> rows = new ArrayList<>();
+        overlappingIndex.forEachLegSpanning("Bobby", 25.0, rows::add);
+        assertThat(rows)
+                .as("The long first leg and the third leg both span time 25, the second leg has already arrived")
+                .isEqualTo(List.of(2, 0));
+    }
+
+    @Test
+    public void findsLaterLegsOfPersonWithALegMissingItsArrivalTime() {
+        LegTimeIndex indexWithMissingArrival = new LegTimeIndex(
+                new String[]{"Bobby", "Bobby"},
+                new double[]{0.0, 100.0},
+                new double[]{Double.NaN, 200.0});
+
+        List<Integer> rows = new ArrayList<>();
+        indexWithMissingArrival.forEachLegSpanning("Bobby", 150.0, rows::add);
+        assertThat(rows).isEqualTo(List.of(1));
+    }
+
+    @Test
+    public void findsNothingForUnknownPerson() {
+        assertThat(legsSpanning("Nobody", 150.0)).isEqualTo(List.of());
+    }
+
+    private List<Integer> legsSpanning(String person, double time) {
+        List<Integer> rows = new ArrayList<>();
+        index.forEachLegSpanning(person, time, rows::add);
+        return rows;
+    }
+}
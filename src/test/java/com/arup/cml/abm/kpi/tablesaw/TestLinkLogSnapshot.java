@@ -0,0 +1,105 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.data.MoneyLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestLinkLogSnapshot {
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void readsBackTheLinkLogAndMoneyLogItWrote() throws IOException {
+        Path eventsFile = writeEventsFile("<events/>");
+        ColumnarNetworkLinkLog linkLog = new ColumnarNetworkLinkLog();
+        linkLog.recordVehicleMode("someCar", "car");
+        linkLog.personBoardsVehicle("someCar", "Bobby");
+        linkLog.personBoardsVehicle("someCar", "Bobbina");
+        linkLog.createLinkLogEntry("someCar", "someLink", 10.0);
+        linkLog.completeLinkLogEntry("someCar", 20.0);
+        linkLog.personAlightsVehicle("someCar", "Bobby");
+        linkLog.createLinkLogEntry("someCar", "otherLink", 20.0);
+        linkLog.completeLinkLogEntry("someCar", 35.0);
+        linkLog.createLinkLogEntry("someBus", "otherLink", 40.0);
+        MoneyLog moneyLog = new MoneyLog();
+        moneyLog.createMoneyLogEntry("Bobby", 15.0, -2.5);
+        moneyLog.createMoneyLogEntry("Bobby", 30.0, -1.0);
+
+        LinkLogSnapshot snapshot = new LinkLogSnapshot(tmpDir.getRoot().toPath(), eventsFile);
+        assertThat(snapshot.exists()).isFalse();
+        snapshot.write(linkLog, moneyLog);
+        assertThat(snapshot.exists()).isTrue();
+
+        MoneyLog readMoneyLog = new MoneyLog();
+        ColumnarNetworkLinkLog readLinkLog = new LinkLogSnapshot(tmpDir.getRoot().toPath(), eventsFile)
+                .read(readMoneyLog);
+
+        assertThat(readLinkLog.getLinkLogTable().toString()).isEqualTo(linkLog.getLinkLogTable().toString());
+        assertThat(readLinkLog.getVehicleOccupancyTable().toString())
+                .isEqualTo(linkLog.getVehicleOccupancyTable().toString());
+        assertThat(readMoneyLog.getMoneyLogData()).isEqualTo(Map.of("Bobby", Map.of(15.0, -2.5, 30.0, -1.0)));
+    }
+
+    @Test
+    public void keysSnapshotsByTheContentOfTheEventsFile() throws IOException {
+        Path eventsFile = writeEventsFile("<events/>");
+        Path sameEventsFile = Files.writeString(tmpDir.newFile("same_events.xml").toPath(), "<events/>");
+        Path otherEventsFile = Files.writeString(tmpDir.newFile("other_events.xml").toPath(), "<events></events>");
+        Path snapshotDirectory = tmpDir.getRoot().toPath();
+
+        new LinkLogSnapshot(snapshotDirectory, eventsFile).write(new ColumnarNetworkLinkLog(), new MoneyLog());
+
+        assertThat(new LinkLogSnapshot(snapshotDirectory, sameEventsFile).exists()).isTrue();
+        assertThat(new LinkLogSnapshot(snapshotDirectory, otherEventsFile).exists()).isFalse();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void refusesToReadAFileThatIsNotASnapshot() throws IOException {
+        Path eventsFile = writeEventsFile("<events/>");
+        LinkLogSnapshot snapshot = new LinkLogSnapshot(tmpDir.getRoot().toPath(), eventsFile);
+        Files.writeString(snapshot.getFile(), "definitely not a snapshot");
+
+        snapshot.read(new MoneyLog());
+    }
+
+    @Test
+    public void readsValuesSpanningMappedWindows() throws IOException {
+        Path file = tmpDir.newFile("values.bin").toPath();
+        int[] ints = new int[1000];
+        double[] doubles = new double[1000];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = i * 7;
+            doubles[i] = i / 3.0;
+        }
+        try (SnapshotOutput output = new SnapshotOutput(file)) {
+            output.writeString("header");
+            output.writeInts(ints, ints.length);
+            output.writeDoubles(doubles, doubles.length);
+            output.writeInt(42);
+        }
+
+        // a window smaller than the arrays, and not a multiple of their element sizes
+        try (SnapshotInput input = new SnapshotInput(file, 61)) {
+            assertThat(input.readString()).isEqualTo("header");
+            int[] readInts = input.readInts(ints.length, 0);
+            double[] readDoubles = input.readDoubles(doubles.length, 0);
+            assertThat(input.readInt()).isEqualTo(42);
+            for (int i = 0; i < ints.length; i++) {
+                assertThat(readInts[i]).isEqualTo(ints[i]);
+                assertThat(readDoubles[i]).isEqualTo(doubles[i]);
+            }
+        }
+    }
+
+    private Path writeEventsFile(String content) throws IOException {
+        return Files.writeString(tmpDir.newFile("output_events.xml").toPath(), content);
+    }
+}
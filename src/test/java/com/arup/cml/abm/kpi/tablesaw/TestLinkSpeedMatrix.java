@@ -0,0 +1,77 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import org.junit.Test;
+import tech.tablesaw.api.Table;
+
+import java.util.List;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestLinkSpeedMatrix {
+    private static final int HOUR = 60 * 60;
+    private static final int QUARTER_HOUR = 15 * 60;
+
+    @Test
+    public void averagesSpeedsOfEachLinkInEachTimeBin() {
+        LinkSpeedMatrix speeds = new LinkSpeedMatrix(HOUR, 24);
+        speeds.addSpeed("1-2", LinkSpeedMatrix.binOf(8.5 * HOUR, HOUR), 30.0);
+        speeds.addSpeed("1-2", LinkSpeedMatrix.binOf(8.9 * HOUR, HOUR), 50.0);
+        speeds.addSpeed("2-1", LinkSpeedMatrix.binOf(9.1 * HOUR, HOUR), 20.0);
+
+        Table table = speeds.toTable("Speed");
+
+        assertThat(table.stringColumn("linkID").asList()).isEqualTo(List.of("1-2", "2-1"));
+        assertThat(table.doubleColumn("8").get(0)).isEqualTo(40.0);
+        assertThat(table.doubleColumn("8").isMissing(1)).isTrue();
+        assertThat(table.doubleColumn("9").get(1)).isEqualTo(20.0);
+    }
+
+    @Test
+    public void ordersTimeBinColumnsChronologically() {
+        LinkSpeedMatrix speeds = new LinkSpeedMatrix(HOUR, 24);
+        speeds.addSpeed("1-2", 17, 30.0);
+        speeds.addSpeed("1-2", 7, 30.0);
+        speeds.addSpeed("1-2", 10, 30.0);
+
+        Table table = speeds.toTable("Speed");
+
+        assertThat(table.columnNames()).isEqualTo(List.of("linkID", "7", "10", "17"));
+    }
+
+    @Test
+    public void namesShorterTimeBinsAfterTheTimeTheyStartAt() {
+        LinkSpeedMatrix speeds = new LinkSpeedMatrix(QUARTER_HOUR, 24 * 4);
+        speeds.addSpeed("1-2", LinkSpeedMatrix.binOf(8 * HOUR + 20 * 60, QUARTER_HOUR), 30.0);
+        speeds.addSpeed("1-2", LinkSpeedMatrix.binOf(8 * HOUR + 50 * 60, QUARTER_HOUR), 50.0);
+
+        Table table = speeds.toTable("Speed");
+
+        assertThat(table.columnNames()).isEqualTo(List.of("linkID", "08:15", "08:45"));
+    }
+
+    @Test
+    public void keepsLinksAndTimeBinsWhoseSpeedsAreNotANumber() {
+        LinkSpeedMatrix speeds = new LinkSpeedMatrix(HOUR, 24);
+        speeds.addSpeed("1-2", 8, Double.NaN);
+        speeds.addSpeed("2-1", 9, 20.0);
+
+        Table table = speeds.toTable("Speed");
+
+        assertThat(table.rowCount()).isEqualTo(2);
+        assertThat(table.doubleColumn("8").isMissing(0)).isTrue();
+    }
+
+    @Test
+    public void averagesTotalledUpSpeedsOverAllTheirEntries() {
+        LinkSpeedMatrix speeds = new LinkSpeedMatrix(HOUR, 24);
+        speeds.addSpeeds("1-2", 8, 90.0, 3);
+        speeds.addSpeeds("1-2", 8, 10.0, 1);
+
+        assertThat(speeds.toTable("Speed").doubleColumn("8").get(0)).isEqualTo(25.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void onlyKeepsSpeedsForItsTimeBins() {
+        new LinkSpeedMatrix(HOUR, 24).addSpeed("1-2", 24, 30.0);
+    }
+}
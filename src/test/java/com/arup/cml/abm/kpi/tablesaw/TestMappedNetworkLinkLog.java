@@ -0,0 +1,236 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.LinearNormaliser;
+import com.arup.cml.abm.kpi.builders.KpiCalculatorBuilder;
+import com.arup.cml.abm.kpi.builders.NetworkBuilder;
+import com.arup.cml.abm.kpi.builders.VehiclesBuilder;
+import com.arup.cml.abm.kpi.data.LinkLog;
+import com.arup.cml.abm.kpi.domain.LinkLogConsistencyException;
+import com.arup.cml.abm.kpi.domain.NetworkLinkLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.vehicles.Vehicles;
+import tech.tablesaw.api.Row;
+import tech.tablesaw.api.Table;
+import tech.tablesaw.io.csv.CsvReadOptions;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestMappedNetworkLinkLog {
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void leavesEndTimeAndPassengerCountMissingForOpenLinkLogEntry() throws IOException {
+        try (MappedNetworkLinkLog linkLog = new MappedNetworkLinkLog(tmpDir.getRoot().toPath())) {
+            linkLog.createLinkLogEntry("someVehicle", "someLink", 12.0);
+
+            Table linkLogTable = linkLog.getLinkLogTable();
+            assertThat(linkLogTable.row(0).getString("initialMode")).isEqualTo("unknown");
+            assertThat(linkLogTable.doubleColumn("endTime").isMissing(0))
+                    .as("End time of an open link log entry should be missing")
+                    .isTrue();
+            assertThat(linkLogTable.intColumn("numberOfPeople").isMissing(0))
+                    .as("Number of people of an open link log entry should be missing")
+                    .isTrue();
+        }
+    }
+
+    @Test
+    public void growsAcrossMappedSegments() throws IOException {
+        // 64 byte segments hold two link log records or eight occupancy records each
+        try (MappedNetworkLinkLog linkLog = new MappedNetworkLinkLog(tmpDir.getRoot().toPath(), 64)) {
+            int entries = 5000;
+
+            linkLog.personBoardsVehicle("someVehicle", "somePerson");
+            for (int i = 0; i < entries; i++) {
+                linkLog.createLinkLogEntry("someVehicle", "link" + (i % 7), i);
+                linkLog.completeLinkLogEntry("someVehicle", i + 1);
+            }
+
+            Table linkLogTable = linkLog.getLinkLogTable();
+            assertThat(linkLogTable.rowCount()).isEqualTo(entries);
+            assertThat(linkLogTable.longColumn("index").getLong(entries - 1)).isEqualTo(entries - 1);
+            assertThat(linkLogTable.stringColumn("linkID").get(entries - 1)).isEqualTo("link" + ((entries - 1) % 7));
+            assertThat(linkLogTable.doubleColumn("endTime").getDouble(entries - 1)).isEqualTo(entries);
+            assertThat(linkLog.getVehicleOccupancyTable().rowCount()).isEqualTo(entries);
+        }
+    }
+
+    @Test(expected = LinkLogConsistencyException.class)
+    public void throwsExceptionWhenCompletingEntryOfUnrecordedVehicle() throws IOException {
+        try (MappedNetworkLinkLog linkLog = new MappedNetworkLinkLog(tmpDir.getRoot().toPath())) {
+            linkLog.completeLinkLogEntry("badVehicle", 12.0);
+        }
+    }
+
+    @Test
+    public void deletesRecordFileWhenClosed() throws IOException {
+        Path directory = tmpDir.getRoot().toPath();
+        MappedNetworkLinkLog linkLog = new MappedNetworkLinkLog(directory);
+        linkLog.createLinkLogEntry("someVehicle", "someLink", 12.0);
+        assertThat(directory.resolve(MappedNetworkLinkLog.LINK_LOG_FILE_NAME).toFile().exists()).isTrue();
+
+        linkLog.close();
+
+        assertThat(directory.resolve(MappedNetworkLinkLog.LINK_LOG_FILE_NAME).toFile().exists()).isFalse();
+    }
+
+    @Test
+    public void producesSameTablesAsColumnarNetworkLinkLog() throws IOException {
+        ColumnarNetworkLinkLog columnarLinkLog = new ColumnarNetworkLinkLog();
+        try (MappedNetworkLinkLog mappedLinkLog = new MappedNetworkLinkLog(tmpDir.getRoot().toPath(), 64)) {
+            for (NetworkLinkLog linkLog : new NetworkLinkLog[]{columnarLinkLog, mappedLinkLog}) {
+                linkLog.recordVehicleMode("PartyBus", "bus");
+                linkLog.personBoardsVehicle("PartyBus", "driver");
+                linkLog.createLinkLogEntry("PartyBus", "startLink", 0.0);
+                linkLog.completeLinkLogEntry("PartyBus", 5.0);
+                linkLog.createLinkLogEntry("PartyBus", "gerryLinkBoard", 5.0);
+                linkLog.personBoardsVehicle("PartyBus", "gerry");
+                linkLog.personBoardsVehicle("PartyBus", "gerryFriend");
+                linkLog.completeLinkLogEntry("PartyBus", 10.0);
+                linkLog.createLinkLogEntry("PartyBus", "gerryLinkAlight", 10.0);
+                linkLog.personAlightsVehicle("PartyBus", "gerry");
+                linkLog.completeLinkLogEntry("PartyBus", 15.0);
+                linkLog.createLinkLogEntry("someCar", "endLink", 15.0);
+            }
+
+            assertTablesMatch(mappedLinkLog.getLinkLogTable(), columnarLinkLog.getLinkLogTable());
+            assertTablesMatch(mappedLinkLog.getVehicleOccupancyTable(), columnarLinkLog.getVehicleOccupancyTable());
+        }
+    }
+
+    @Test
+    public void writesTheSameLinkBasedKpisAsTheLinkLogWithoutBuildingALinkLogTable() throws IOException {
+        Network network = new NetworkBuilder()
+                .withNetworkNode("A", 1, 1)
+                .withNetworkNode("B", 2, 2)
+                .withNetworkLinkWithLength("shortLink", "A", "B", 100)
+                .withNetworkLink("longLink", "B", "A", 1000, 20, 300, 1)
+                .build();
+        Vehicles vehicles = new VehiclesBuilder()
+                .withVehicle("someCar", "car")
+                .withVehicleOfMode("someBus", "bus", "bus")
+                .build();
+        LinkLog recordedLinkLog = new LinkLog();
+        try (MappedNetworkLinkLog mappedLinkLog = new MappedNetworkLinkLog(tmpDir.newFolder().toPath(), 64)) {
+            for (NetworkLinkLog linkLog : new NetworkLinkLog[]{recordedLinkLog, mappedLinkLog}) {
+                linkLog.recordVehicleMode("someCar", "car");
+                linkLog.personBoardsVehicle("someCar", "gerry");
+                linkLog.createLinkLogEntry("someCar", "shortLink", (8 * 60 * 60));
+                linkLog.completeLinkLogEntry("someCar", (8 * 60 * 60) + 25);
+                linkLog.createLinkLogEntry("someCar", "longLink", (8 * 60 * 60) + 25);
+                linkLog.completeLinkLogEntry("someCar", (8 * 60 * 60) + 125);
+                linkLog.recordVehicleMode("someBus", "bus");
+                linkLog.createLinkLogEntry("someBus", "longLink", (9 * 60 * 60));
+                linkLog.personBoardsVehicle("someBus", "gerryFriend");
+                linkLog.completeLinkLogEntry("someBus", (9 * 60 * 60) + 200);
+                linkLog.createLinkLogEntry("someBus", "linkOffTheNetwork", (9 * 60 * 60) + 200);
+            }
+            TemporaryFolder recordedOutput = new TemporaryFolder(tmpDir.newFolder());
+            TemporaryFolder mappedOutput = new TemporaryFolder(tmpDir.newFolder());
+            recordedOutput.create();
+            mappedOutput.create();
+            TablesawKpiCalculator recordedCalculator =
+                    calculatorWith(recordedLinkLog, network, vehicles, recordedOutput);
+            TablesawKpiCalculator mappedCalculator = calculatorWith(mappedLinkLog, network, vehicles, mappedOutput);
+            Path recordedDirectory = recordedOutput.getRoot().toPath();
+            Path mappedDirectory = mappedOutput.getRoot().toPath();
+            LinearNormaliser normaliser = new LinearNormaliser(0, 10, 0, 1);
+
+            assertThat(mappedCalculator.writeVehicleKMKpi(mappedDirectory))
+                    .isEqualTo(recordedCalculator.writeVehicleKMKpi(recordedDirectory));
+            assertThat(mappedCalculator.writeOccupancyRateKpi(mappedDirectory, normaliser))
+                    .isEqualTo(recordedCalculator.writeOccupancyRateKpi(recordedDirectory, normaliser));
+            assertThat(mappedCalculator.writeGHGKpi(mappedDirectory, normaliser))
+                    .isEqualTo(recordedCalculator.writeGHGKpi(recordedDirectory, normaliser));
+            assertThat(mappedCalculator.writeCongestionKpi(mappedDirectory, normaliser).print())
+                    .isEqualTo(recordedCalculator.writeCongestionKpi(recordedDirectory, normaliser).print());
+            mappedCalculator.writeSpeedKpi(mappedDirectory, 60 * 60);
+            recordedCalculator.writeSpeedKpi(recordedDirectory, 60 * 60);
+            assertThat(readCompressed(new File(mappedOutput.getRoot(), "kpi-speed.csv.gz")).print())
+                    .isEqualTo(readCompressed(new File(recordedOutput.getRoot(), "kpi-speed.csv.gz")).print());
+
+            Table mappedSupportingLinkLog =
+                    readCompressed(new File(mappedOutput.getRoot(), "supporting-data-linkLog.csv.gz"));
+            assertThat(mappedSupportingLinkLog.columnNames())
+                    .isEqualTo(readCompressed(new File(recordedOutput.getRoot(), "supporting-data-linkLog.csv.gz"))
+                            .columnNames());
+            assertThat(mappedSupportingLinkLog.rowCount())
+                    .as("The supporting link log should hold the completed entries only")
+                    .isEqualTo(3);
+        }
+    }
+
+    @Test
+    public void leavesEntriesEndingAtInfiniteOrNegativeTimesOutOfTheSpeedKpi() throws IOException {
+        Network network = new NetworkBuilder()
+                .withNetworkNode("A", 1, 1)
+                .withNetworkNode("B", 2, 2)
+                .withNetworkLinkWithLength("shortLink", "A", "B", 100)
+                .build();
+        Vehicles vehicles = new VehiclesBuilder().withVehicle("someCar", "car").build();
+        try (MappedNetworkLinkLog linkLog = new MappedNetworkLinkLog(tmpDir.newFolder().toPath(), 64)) {
+            linkLog.createLinkLogEntry("someCar", "shortLink", (8 * 60 * 60));
+            linkLog.completeLinkLogEntry("someCar", (8 * 60 * 60) + 25);
+            linkLog.createLinkLogEntry("someCar", "shortLink", (8 * 60 * 60) + 25);
+            linkLog.completeLinkLogEntry("someCar", Double.POSITIVE_INFINITY);
+            linkLog.createLinkLogEntry("someCar", "shortLink", 0);
+            linkLog.completeLinkLogEntry("someCar", -10);
+            linkLog.createLinkLogEntry("someCar", "linkOffTheNetwork", (10 * 60 * 60));
+            linkLog.completeLinkLogEntry("someCar", (10 * 60 * 60) + 10);
+            TemporaryFolder output = new TemporaryFolder(tmpDir.newFolder());
+            output.create();
+
+            calculatorWith(linkLog, network, vehicles, output).writeSpeedKpi(output.getRoot().toPath(), 60 * 60);
+
+            Table speeds = readCompressed(new File(output.getRoot(), "kpi-speed.csv.gz"));
+            assertThat(speeds.rowCount()).isEqualTo(1);
+            assertThat(speeds.columnNames())
+                    .as("Only the hour of the entry with a usable end time on the network should have a column")
+                    .isEqualTo(List.of("linkID", "8"));
+        }
+    }
+
+    private TablesawKpiCalculator calculatorWith(NetworkLinkLog linkLog,
+            Network network,
+            Vehicles vehicles,
+            TemporaryFolder outputDirectory) {
+        return new KpiCalculatorBuilder(outputDirectory)
+                .withNetwork(network)
+                .withVehicles(vehicles)
+                .withLinkLog(linkLog)
+                .build();
+    }
+
+    private static Table readCompressed(File file) throws IOException {
+        try (InputStream stream = new GZIPInputStream(new FileInputStream(file))) {
+            return Table.read().csv(CsvReadOptions.builder(stream));
+        }
+    }
+
+    private static void assertTablesMatch(Table actual, Table expected) {
+        assertThat(actual.name()).isEqualTo(expected.name());
+        assertThat(actual.columnNames()).isEqualTo(expected.columnNames());
+        assertThat(actual.rowCount()).isEqualTo(expected.rowCount());
+        for (int i = 0; i < expected.rowCount(); i++) {
+            Row expectedRow = expected.row(i);
+            Row actualRow = actual.row(i);
+            for (String column : expected.columnNames()) {
+                assertThat(String.valueOf(actualRow.getObject(column)))
+                        .as(String.format("Column '%s' of row %d in table '%s'", column, i, expected.name()))
+                        .isEqualTo(String.valueOf(expectedRow.getObject(column)));
+            }
+        }
+    }
+}
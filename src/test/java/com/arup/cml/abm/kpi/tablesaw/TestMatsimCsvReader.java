@@ -0,0 +1,142 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import org.junit.Test;
+import tech.tablesaw.api.ColumnType;
+import tech.tablesaw.api.Table;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestMatsimCsvReader {
+    private static final String LEGS_CSV = String.join("\n",
+            "person;trip_id;dep_time;trav_time;wait_time;distance;mode;start_link;access_stop_id;vehicle_id",
+            "chris;chris_1;07:38:40;00:09:12;00:00:00;5500;car;1-3;;chris",
+            "fatema;fatema_1;08:00:00;00:20:00;00:05:00;3000;bus;2-3;stop_1;bus_1",
+            "") + "\n";
+
+    @Test
+    public void readsOnlySchemaColumnsWithTheirTypes() {
+        Table legs = new MatsimCsvReader(1).read(stream(LEGS_CSV), MatsimCsvReader.LEGS, "Legs");
+
+        assertThat(legs.name()).isEqualTo("Legs");
+        assertThat(legs.columnNames()).isEqualTo(List.of(
+                "person", "trip_id",
+                "dep_time", "dep_time_seconds", "dep_hour",
+                "trav_time", "trav_time_seconds",
+                "wait_time", "wait_time_seconds",
+                "distance", "mode", "access_stop_id"));
+        assertThat(legs.rowCount()).isEqualTo(2);
+        assertThat(legs.column("distance").type()).isEqualTo(ColumnType.INTEGER);
+        assertThat(legs.intColumn("distance").getInt(1)).isEqualTo(3000);
+        assertThat(legs.stringColumn("dep_time").get(0)).isEqualTo("07:38:40");
+    }
+
+    @Test
+    public void readsEmptyAndNullValuesAsMissing() {
+        String csv = "person;income;subpopulation\nchris;;null\nfatema;12000.5;low income\n";
+
+        Table persons = new MatsimCsvReader(1).read(stream(csv), MatsimCsvReader.PERSONS, "Persons");
+
+        assertThat(persons.doubleColumn("income").isMissing(0)).isTrue();
+        assertThat(persons.stringColumn("subpopulation").isMissing(0)).isTrue();
+        assertThat(persons.doubleColumn("income").getDouble(1)).isEqualTo(12000.5);
+        assertThat(persons.stringColumn("subpopulation").get(1)).isEqualTo("low income");
+    }
+
+    @Test
+    public void leavesOutSchemaColumnsMissingFromTheFile() {
+        String csv = "person;executed_score\nchris;132.1\n";
+
+        Table persons = new MatsimCsvReader(1).read(stream(csv), MatsimCsvReader.PERSONS, "Persons");
+
+        assertThat(persons.columnNames()).isEqualTo(List.of("person"));
+    }
+
+    @Test
+    public void readsTimesAsSeconds() {
+        MatsimCsvReader.Schema schema = new MatsimCsvReader.Schema().string("person").time("dep_time");
+
+        Table legs = new MatsimCsvReader(1).read(stream(LEGS_CSV), schema, "Legs");
+
+        assertThat(legs.intColumn("dep_time").getInt(0)).isEqualTo(7 * 3600 + 38 * 60 + 40);
+    }
+
+    @Test
+    public void readsTimeStringsIntoSecondsAndHourColumnsAsWell() {
+        String csv = "person;dep_time;trav_time;wait_time\nchris;25:10:05;00:09:12;\n";
+
+        Table legs = new MatsimCsvReader(1).read(stream(csv), MatsimCsvReader.LEGS, "Legs");
+
+        assertThat(legs.stringColumn("dep_time").get(0)).isEqualTo("25:10:05");
+        assertThat(legs.intColumn("dep_time_seconds").getInt(0)).isEqualTo(25 * 3600 + 10 * 60 + 5);
+        assertThat(legs.intColumn("dep_hour").getInt(0)).isEqualTo(25);
+        assertThat(legs.intColumn("trav_time_seconds").getInt(0)).isEqualTo(9 * 60 + 12);
+        assertThat(legs.intColumn("wait_time_seconds").isMissing(0)).isTrue();
+    }
+
+    @Test
+    public void readsMissingTimesAsMissingSecondsAndHours() {
+        String csv = "person;dep_time;trav_time\nchris;;00:09:12\n";
+
+        Table legs = new MatsimCsvReader(1).read(stream(csv), MatsimCsvReader.LEGS, "Legs");
+
+        assertThat(legs.intColumn("dep_time_seconds").isMissing(0)).isTrue();
+        assertThat(legs.intColumn("dep_hour").isMissing(0)).isTrue();
+        assertThat(legs.intColumn("dep_time_seconds").getInt(0)).isEqualTo(MatsimCsvReader.MISSING_TIME);
+    }
+
+    @Test
+    public void readsHourOfTimeThatIsNotAlsoReadInSeconds() {
+        MatsimCsvReader.Schema schema = new MatsimCsvReader.Schema().string("person").hourOf("dep_time", "hour");
+
+        Table legs = new MatsimCsvReader(1).read(stream(LEGS_CSV), schema, "Legs");
+
+        assertThat(legs.intColumn("hour").asList()).isEqualTo(List.of(7, 8));
+    }
+
+    @Test
+    public void readsQuotedValuesContainingSeparators() {
+        String csv = "person;subpopulation\n\"chris\";\"low; \"\"very\"\" low income\"\n";
+
+        Table persons = new MatsimCsvReader(1).read(stream(csv), MatsimCsvReader.PERSONS, "Persons");
+
+        assertThat(persons.stringColumn("person").get(0)).isEqualTo("chris");
+        assertThat(persons.stringColumn("subpopulation").get(0)).isEqualTo("low; \"very\" low income");
+    }
+
+    @Test
+    public void readsSameTableWhateverTheNumberOfThreads() {
+        StringBuilder csv = new StringBuilder("person;trip_id;dep_time;distance;mode\n");
+        for (int i = 0; i < 1000; i++) {
+            csv.append("person").append(i % 37).append(";trip").append(i).append(";08:00:00;")
+                    .append(i * 10).append(i % 2 == 0 ? ";car\n" : ";\n");
+        }
+
+        Table readByOneThread = new MatsimCsvReader(1, 64).read(stream(csv.toString()), MatsimCsvReader.LEGS, "Legs");
+        Table readByFourThreads = new MatsimCsvReader(4, 64).read(stream(csv.toString()), MatsimCsvReader.LEGS, "Legs");
+
+        assertThat(readByFourThreads.rowCount()).isEqualTo(1000);
+        for (String column : readByOneThread.columnNames()) {
+            assertThat(readByFourThreads.column(column).asList())
+                    .as(String.format("Column '%s'", column))
+                    .isEqualTo(readByOneThread.column(column).asList());
+        }
+        assertThat(readByFourThreads.intColumn("distance").getInt(999)).isEqualTo(9990);
+        assertThat(readByFourThreads.stringColumn("mode").isMissing(999)).isTrue();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void throwsExceptionForValuesThatDoNotMatchTheSchema() {
+        String csv = "person;distance\nchris;far\n";
+
+        new MatsimCsvReader(2).read(stream(csv), MatsimCsvReader.LEGS, "Legs");
+    }
+
+    private static InputStream stream(String csv) {
+        return new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,146 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import com.arup.cml.abm.kpi.data.StringDictionary;
+import org.junit.Test;
+import tech.tablesaw.api.Table;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestOccupancyIntervals {
+    private final StringDictionary vehicleIds = new StringDictionary();
+    private final StringDictionary personIds = new StringDictionary();
+    private final List<Integer> entryVehicles = new ArrayList<>();
+    private final List<Boolean> entriesCompleted = new ArrayList<>();
+    private final OccupancyIntervals occupancy = new OccupancyIntervals();
+
+    @Test
+    public void recordsOneIntervalPerBoarding() {
+        board("bus", "gerry");
+        int firstEntry = createEntry("bus");
+        complete("bus", firstEntry);
+        int secondEntry = createEntry("bus");
+        complete("bus", secondEntry);
+        alight("bus", "gerry");
+        createEntry("bus");
+
+        Table intervals = occupancy.intervalTable(vehicleIds, personIds);
+
+        assertThat(intervals.rowCount()).isEqualTo(1);
+        assertThat(intervals.stringColumn("agentId").get(0)).isEqualTo("gerry");
+        assertThat(intervals.stringColumn("vehicleID").get(0)).isEqualTo("bus");
+        assertThat(intervals.longColumn("firstLinkLogIndex").getLong(0)).isEqualTo(firstEntry);
+        assertThat(intervals.longColumn("lastLinkLogIndex").getLong(0)).isEqualTo(secondEntry);
+        assertThat(occupancy.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void leavesOutBoardingsThatSpanNoCompletedEntry() {
+        board("bus", "gerry");
+        alight("bus", "gerry");
+        board("bus", "gerryFriend");
+        createEntry("bus");
+
+        assertThat(occupancy.intervalTable(vehicleIds, personIds).rowCount()).isEqualTo(0);
+        assertThat(occupancy.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void keepsPeopleStillAboardUntilTheLastCompletedEntry() {
+        board("bus", "gerry");
+        complete("bus", createEntry("bus"));
+        int lastEntry = createEntry("bus");
+        complete("bus", lastEntry);
+
+        assertThat(occupancy.intervalTable(vehicleIds, personIds).longColumn("lastLinkLogIndex").getLong(0))
+                .isEqualTo(lastEntry);
+    }
+
+    @Test
+    public void expandsToOneRowPerOccupantOfEachCompletedEntryInLinkLogOrder() {
+        board("bus", "driver");
+        int busEntry = createEntry("bus");
+        board("car", "chris");
+        int carEntry = createEntry("car");
+        board("bus", "gerry");
+        complete("car", carEntry);
+        complete("bus", busEntry);
+        int secondBusEntry = createEntry("bus");
+        alight("bus", "driver");
+        complete("bus", secondBusEntry);
+
+        Table rows = occupancy.expand(entries(), vehicleIds.size(), personIds);
+
+        assertThat(rows.rowCount()).isEqualTo(occupancy.size());
+        assertThat(rows.longColumn("linkLogIndex").asList())
+                .isEqualTo(List.of((long) busEntry, (long) busEntry, (long) carEntry, (long) secondBusEntry));
+        assertThat(rows.stringColumn("agentId").asList()).isEqualTo(List.of("driver", "gerry", "chris", "gerry"));
+    }
+
+    @Test
+    public void keepsTrackOfWhoIsAboardWhenPeopleAlightOutOfBoardingOrder() {
+        board("bus", "driver");
+        board("bus", "gerry");
+        board("bus", "chris");
+        board("car", "gerry");
+        int firstEntry = createEntry("bus");
+        complete("bus", firstEntry);
+        board("bus", "sam");
+        alight("bus", "driver");
+        alight("bus", "sam");
+        int secondEntry = createEntry("bus");
+        assertThat(occupancy.complete(vehicleIds.codeOf("bus"), secondEntry)).isEqualTo(2);
+        entriesCompleted.set(secondEntry, true);
+        alight("bus", "gerry");
+        alight("car", "gerry");
+
+        Table rows = occupancy.expand(entries(), vehicleIds.size(), personIds);
+
+        assertThat(rows.longColumn("linkLogIndex").asList())
+                .isEqualTo(List.of((long) firstEntry, (long) firstEntry, (long) firstEntry,
+                        (long) secondEntry, (long) secondEntry));
+        assertThat(rows.stringColumn("agentId").asList())
+                .isEqualTo(List.of("driver", "gerry", "chris", "gerry", "chris"));
+        assertThat(occupancy.alight(vehicleIds.codeOf("bus"), personIds.codeOf("gerry"))).isFalse();
+    }
+
+    private void board(String vehicle, String person) {
+        occupancy.board(vehicleIds.encode(vehicle), personIds.encode(person));
+    }
+
+    private void alight(String vehicle, String person) {
+        assertThat(occupancy.alight(vehicleIds.codeOf(vehicle), personIds.codeOf(person))).isTrue();
+    }
+
+    private int createEntry(String vehicle) {
+        entryVehicles.add(vehicleIds.encode(vehicle));
+        entriesCompleted.add(false);
+        return entryVehicles.size() - 1;
+    }
+
+    private void complete(String vehicle, int entry) {
+        entriesCompleted.set(entry, true);
+        occupancy.complete(vehicleIds.codeOf(vehicle), entry);
+    }
+
+    private OccupancyIntervals.LinkLogEntries entries() {
+        return new OccupancyIntervals.LinkLogEntries() {
+            @Override
+            public int size() {
+                return entryVehicles.size();
+            }
+
+            @Override
+            public int vehicle(int index) {
+                return entryVehicles.get(index);
+            }
+
+            @Override
+            public boolean isCompleted(int index) {
+                return entriesCompleted.get(index);
+            }
+        };
+    }
+}
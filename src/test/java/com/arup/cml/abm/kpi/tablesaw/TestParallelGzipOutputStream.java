@@ -0,0 +1,80 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestParallelGzipOutputStream {
+    private final ExecutorService compressors = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutDownCompressors() {
+        compressors.shutdownNow();
+    }
+
+    @Test
+    public void decompressesToWhatWasWrittenAcrossManyBlocks() throws IOException {
+        byte[] content = someCsvContent(5000);
+
+        byte[] compressed = compress(content, 4, 1000);
+
+        assertThat(Arrays.equals(decompress(compressed), content)).isTrue();
+    }
+
+    @Test
+    public void writesSameBytesWhateverTheNumberOfThreads() throws IOException {
+        byte[] content = someCsvContent(5000);
+
+        byte[] compressedByOneThread = compress(content, 1, 1000);
+        byte[] compressedByFourThreads = compress(content, 4, 1000);
+
+        assertThat(Arrays.equals(compressedByOneThread, compressedByFourThreads))
+                .as("Compressed bytes should not depend on the number of compressing threads")
+                .isTrue();
+    }
+
+    @Test
+    public void writesValidGzipForEmptyContent() throws IOException {
+        byte[] compressed = compress(new byte[0], 4, 1000);
+
+        assertThat(decompress(compressed).length).isEqualTo(0);
+    }
+
+    private byte[] compress(byte[] content, int threads, int blockBytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream stream =
+                     new ParallelGzipOutputStream(compressed, compressors, threads, blockBytes)) {
+            // odd sized writes, so that they straddle block boundaries
+            for (int offset = 0; offset < content.length; offset += 333) {
+                stream.write(content, offset, Math.min(333, content.length - offset));
+                stream.flush();
+            }
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] compressed) throws IOException {
+        try (InputStream stream = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return stream.readAllBytes();
+        }
+    }
+
+    private static byte[] someCsvContent(int rows) {
+        StringBuilder content = new StringBuilder("linkID,vehicleID,startTime\n");
+        for (int i = 0; i < rows; i++) {
+            content.append("link").append(i % 97).append(",vehicle").append(i % 13).append(',').append(i).append('\n');
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,168 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import tech.tablesaw.api.BooleanColumn;
+import tech.tablesaw.api.DoubleColumn;
+import tech.tablesaw.api.IntColumn;
+import tech.tablesaw.api.StringColumn;
+import tech.tablesaw.api.Table;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestScenarioTableCache {
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private final AtomicInteger builds = new AtomicInteger();
+
+    @Test
+    public void readsBackTheTablesItWasGiven() throws Exception {
+        Path network = file("network.xml", "<network/>");
+        cache(network).get(ScenarioTableCache.NETWORK, this::emptyTables, this::buildTables);
+
+        List<Table> tables = cache(network).get(ScenarioTableCache.NETWORK, this::emptyTables, this::buildTables);
+
+        assertThat(builds.get()).isEqualTo(1);
+        assertThat(tables.size()).isEqualTo(2);
+        Table links = tables.get(0);
+        Table expectedLinks = buildTables().get(0);
+        assertThat(links.name()).isEqualTo("Network Links");
+        assertThat(links.columnNames()).isEqualTo(expectedLinks.columnNames());
+        assertThat(links.stringColumn("linkID").asList()).isEqualTo(List.of("1", "2", "3"));
+        assertThat(links.stringColumn("mode").isMissing().size()).isEqualTo(1);
+        assertThat(links.doubleColumn("length").get(1)).isEqualTo(25.5);
+        assertThat(links.doubleColumn("length").isMissing(2)).isTrue();
+        assertThat(links.intColumn("lanes").get(0)).isEqualTo(2);
+        assertThat(links.intColumn("lanes").isMissing(1)).isTrue();
+        assertThat(links.booleanColumn("isBlocking").get(0)).isTrue();
+        assertThat(links.booleanColumn("isBlocking").get(1)).isFalse();
+        assertThat(links.booleanColumn("isBlocking").isMissing(2)).isTrue();
+        assertThat(tables.get(1).rowCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void buildsTheTablesAgainWhenTheFilesTheyWereBuiltFromChange() throws Exception {
+        Path network = file("network.xml", "<network/>");
+        cache(network).get(ScenarioTableCache.NETWORK, this::emptyTables, this::buildTables);
+
+        Files.writeString(network, "<network><nodes/></network>");
+        cache(network).get(ScenarioTableCache.NETWORK, this::emptyTables, this::buildTables);
+
+        assertThat(builds.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void buildsTheTablesAgainWhenTheirColumnsChange() throws Exception {
+        Path network = file("network.xml", "<network/>");
+        cache(network).get(ScenarioTableCache.NETWORK, this::emptyTables, this::buildTables);
+
+        Supplier<List<Table>> renamedColumn = () -> List.of(
+                Table.create("Network Links").addColumns(StringColumn.create("linkId")),
+                Table.create("Network Link Modes"));
+        List<Table> tables = cache(network).get(ScenarioTableCache.NETWORK, renamedColumn, renamedColumn);
+
+        assertThat(builds.get()).isEqualTo(1);
+        assertThat(tables.get(0).columnNames()).isEqualTo(List.of("linkId"));
+    }
+
+    @Test
+    public void leavesNoTemporaryFilesBehind() throws Exception {
+        Path network = file("network.xml", "<network/>");
+        cache(network).get(ScenarioTableCache.NETWORK, this::emptyTables, this::buildTables);
+
+        try (Stream<Path> files = Files.list(tmpDir.getRoot().toPath().resolve(ScenarioTableCache.DIRECTORY_NAME))) {
+            List<String> fileNames = files.map(file -> file.getFileName().toString()).toList();
+            assertThat(fileNames.size())
+                    .as("Only the cached tables should be left in the cache directory")
+                    .isEqualTo(1);
+            assertThat(fileNames.get(0)).endsWith(".tables");
+        }
+    }
+
+    @Test
+    public void hashesTheFilesWithTheGivenHashes() throws Exception {
+        Path network = file("network.xml", "<network/>");
+        List<Path> hashed = new ArrayList<>();
+        Path missing = tmpDir.getRoot().toPath().resolve("missing.xml");
+        ScenarioTableCache cache = new ScenarioTableCache(
+                tmpDir.getRoot().toPath().resolve(ScenarioTableCache.DIRECTORY_NAME),
+                List.of(network), List.of(missing), List.of(missing),
+                file -> {
+                    hashed.add(file);
+                    return "someHash";
+                });
+
+        cache.get(ScenarioTableCache.NETWORK, this::emptyTables, this::buildTables);
+
+        assertThat(hashed).isEqualTo(List.of(network));
+    }
+
+    @Test
+    public void buildsTheTablesAgainWhenTheCacheCannotBeRead() throws Exception {
+        Path network = file("network.xml", "<network/>");
+        cache(network).get(ScenarioTableCache.NETWORK, this::emptyTables, this::buildTables);
+        try (Stream<Path> files = Files.list(tmpDir.getRoot().toPath().resolve(ScenarioTableCache.DIRECTORY_NAME))) {
+            for (Path cacheFile : files.toList()) {
+                Files.writeString(cacheFile, "not a table cache");
+            }
+        }
+
+        List<Table> tables = cache(network).get(ScenarioTableCache.NETWORK, this::emptyTables, this::buildTables);
+
+        assertThat(builds.get()).isEqualTo(2);
+        assertThat(tables.get(0).rowCount()).isEqualTo(3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void onlyCachesTablesOfTheScenarioInputs() throws Exception {
+        cache(file("network.xml", "<network/>")).get("legs", this::emptyTables, this::buildTables);
+    }
+
+    private ScenarioTableCache cache(Path network) {
+        Path missing = tmpDir.getRoot().toPath().resolve("missing.xml");
+        return new ScenarioTableCache(tmpDir.getRoot().toPath().resolve(ScenarioTableCache.DIRECTORY_NAME),
+                List.of(network), List.of(missing), List.of(missing));
+    }
+
+    private List<Table> emptyTables() {
+        return tables().stream().map(Table::emptyCopy).toList();
+    }
+
+    private List<Table> buildTables() {
+        builds.incrementAndGet();
+        return tables();
+    }
+
+    private List<Table> tables() {
+        BooleanColumn isBlocking = BooleanColumn.create("isBlocking");
+        isBlocking.append(true);
+        isBlocking.append(false);
+        isBlocking.appendMissing();
+        IntColumn lanes = IntColumn.create("lanes", 2, 0, 1);
+        lanes.setMissing(1);
+        Table links = Table.create("Network Links").addColumns(
+                StringColumn.create("linkID", "1", "2", "3"),
+                StringColumn.create("mode", "car", "", "car"),
+                DoubleColumn.create("length", 10.0, 25.5, Double.NaN),
+                lanes,
+                isBlocking);
+        Table modes = Table.create("Network Link Modes").addColumns(
+                StringColumn.create("linkID"),
+                StringColumn.create("mode"));
+        return List.of(links, modes);
+    }
+
+    private Path file(String name, String content) throws Exception {
+        return Files.writeString(tmpDir.getRoot().toPath().resolve(name), content);
+    }
+}
@@ -0,0 +1,55 @@
+package com.arup.cml.abm.kpi.tablesaw;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.core.config.groups.ControllerConfigGroup.CompressionType;
+import tech.tablesaw.api.IntColumn;
+import tech.tablesaw.api.StringColumn;
+import tech.tablesaw.api.Table;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class TestTableWriter {
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void writesSameGzipBytesWithOneThreadAsWithFour() throws IOException {
+        // well over one compressed block, so that the file is written as several gzip members
+        Table table = someLinkLogTable(200_000);
+
+        byte[] writtenByOneThread = writeWith(1, table);
+        byte[] writtenByFourThreads = writeWith(4, table);
+
+        assertThat(writtenByOneThread.length).isGreaterThan(0);
+        assertThat(Arrays.equals(writtenByOneThread, writtenByFourThreads))
+                .as("Compressed bytes should not depend on the number of writing threads")
+                .isTrue();
+    }
+
+    private byte[] writeWith(int threads, Table table) throws IOException {
+        Path filePath = tmpDir.newFolder().toPath().resolve("linkLog.csv");
+        TableWriter tableWriter = new TableWriter(CompressionType.gzip, threads);
+        tableWriter.writeInBackground(() -> tableWriter.write(table, filePath.toString()));
+        tableWriter.finish();
+        return Files.readAllBytes(Path.of(filePath + CompressionType.gzip.fileEnding));
+    }
+
+    private static Table someLinkLogTable(int rows) {
+        IntColumn index = IntColumn.create("index");
+        StringColumn linkID = StringColumn.create("linkID");
+        StringColumn vehicleID = StringColumn.create("vehicleID");
+        for (int i = 0; i < rows; i++) {
+            index.append(i);
+            linkID.append("link" + (i % 97));
+            vehicleID.append("vehicle" + (i % 13));
+        }
+        return Table.create("linkLog", index, linkID, vehicleID);
+    }
+}
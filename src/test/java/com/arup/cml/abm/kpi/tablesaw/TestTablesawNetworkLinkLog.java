@@ -6,6 +6,8 @@ import tech.tablesaw.api.Row;
 import tech.tablesaw.api.Table;
 import tech.tablesaw.selection.Selection;
 
+import java.util.List;
+
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 
 public class TestTablesawNetworkLinkLog {
@@ -187,6 +189,43 @@ public class TestTablesawNetworkLinkLog {
         linkLog.personAlightsVehicle("someVehicle", "nonBoardingDude");
     }
 
+    @Test
+    public void countsPersonWhoBoardedVehicleTwiceUntilTheyAlightTwice() {
+        TablesawNetworkLinkLog linkLog = new TablesawNetworkLinkLog();
+
+        linkLog.personBoardsVehicle("PartyBus", "gerry");
+        linkLog.personBoardsVehicle("PartyBus", "gerry");
+        linkLog.createLinkLogEntry("PartyBus", "boardedTwiceLink", 0.0);
+        linkLog.completeLinkLogEntry("PartyBus", 5.0);
+        linkLog.personAlightsVehicle("PartyBus", "gerry");
+        linkLog.createLinkLogEntry("PartyBus", "alightedOnceLink", 5.0);
+        linkLog.completeLinkLogEntry("PartyBus", 10.0);
+        linkLog.personAlightsVehicle("PartyBus", "gerry");
+        linkLog.createLinkLogEntry("PartyBus", "alightedTwiceLink", 10.0);
+        linkLog.completeLinkLogEntry("PartyBus", 15.0);
+
+        Table linkLogTable = linkLog.getLinkLogTable();
+        assertThat(linkLogTable.intColumn("numberOfPeople").asList())
+                .as("A person who boarded twice should be counted until they alight twice")
+                .isEqualTo(List.of(2, 1, 0));
+        Table vehicleOccupancyTable = linkLog.getVehicleOccupancyTable();
+        assertTableRowCount(vehicleOccupancyTable, 3);
+        assertThat(vehicleOccupancyTable.longColumn("linkLogIndex").isEqualTo(0).size())
+                .as("A person who boarded twice should have a row per boarding for the first entry")
+                .isEqualTo(2);
+    }
+
+    @Test(expected = LinkLogConsistencyException.class)
+    public void throwsExceptionWhenPersonWhoBoardedTwiceAlightsThreeTimes() {
+        TablesawNetworkLinkLog linkLog = new TablesawNetworkLinkLog();
+
+        linkLog.personBoardsVehicle("PartyBus", "gerry");
+        linkLog.personBoardsVehicle("PartyBus", "gerry");
+        linkLog.personAlightsVehicle("PartyBus", "gerry");
+        linkLog.personAlightsVehicle("PartyBus", "gerry");
+        linkLog.personAlightsVehicle("PartyBus", "gerry");
+    }
+
     @Test
     public void linkLogTracksPassengerBoardingAndAlighting() {
         TablesawNetworkLinkLog linkLog = new TablesawNetworkLinkLog();
@@ -7,6 +7,8 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Map;
@@ -87,5 +89,39 @@ public class TestTablesawTravelTimeKpiWithLinearNormaliser {
                 .as("Should be the average of two travel times");
     }
 
+    @Test
+    public void tripMissingItsTravelTimeIsLeftOutOfTheAverage() throws IOException {
+        KpiCalculatorBuilder kpiCalculatorBuilder = new KpiCalculatorBuilder(tmpDir);
+        TripsTableBuilder tripsTableBuilder = new TripsTableBuilder(tmpDir);
+        String trips = tripsTableBuilder.reset()
+                .withTrip(
+                        "Bobby",
+                        "1",
+                        new TripBuilder()
+                                .withLegs(Arrays.asList(new LegBuilder().withTravTime("00:20:00").build()))
+                                .build())
+                .withTrip(
+                        "Bobbina",
+                        "1",
+                        new TripBuilder()
+                                .withLegs(Arrays.asList(new LegBuilder().withTravTime("01:04:00").build()))
+                                .build())
+                .build();
+        Path tripsFile = Path.of(trips);
+        Files.writeString(tripsFile, Files.readString(tripsFile).replace(";01:04:00;", ";;"));
+
+        TablesawKpiCalculator kpiCalculator = kpiCalculatorBuilder
+                .withTrips(trips)
+                .withLegs(tripsTableBuilder.getLegsBuilder().build())
+                .build();
+        Map<String, Double> outputKpi = kpiCalculator.writeTravelTimeKpi(
+                Path.of(tmpDir.getRoot().getAbsolutePath()),
+                linearNormaliser
+        );
+
+        assertThat(outputKpi.get("actual"))
+                .as("A missing travel time should be left out rather than averaged as a time")
+                .isEqualTo(20.0);
+    }
 }
 